@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 import org.traincontrol.model.ViewListener;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -32,6 +33,11 @@ public class Edge
     // A list of edges that should be locked whenever this edge is locked
     // This is useful if the layout contains crossings that cannot otherwise be modeled as a graph edge
     private final List<Edge> lockEdges;
+
+    // Bumped by every change to a length or a lock edge list, on any edge.  Layout's graph snapshot
+    // copies both, and these are set directly on the edge - by the editor dialog as often as by Layout -
+    // so the snapshot compares this rather than relying on every caller to tell it
+    private static final AtomicLong ATTRIBUTE_CHANGES = new AtomicLong();
         
     /**
      * @param start
@@ -240,6 +246,7 @@ public class Edge
     public Edge addLockEdge(Edge e)
     {
         this.lockEdges.add(e);
+        ATTRIBUTE_CHANGES.incrementAndGet();
         
         return this;
     }
@@ -252,6 +259,7 @@ public class Edge
     public Edge removeLockEdge(Edge e)
     {
         this.lockEdges.remove(e);
+        ATTRIBUTE_CHANGES.incrementAndGet();
         
         return this;
     }
@@ -263,6 +271,7 @@ public class Edge
     public Edge clearLockEdges()
     {
         this.lockEdges.clear();
+        ATTRIBUTE_CHANGES.incrementAndGet();
         
         return this;
     }
@@ -285,6 +294,16 @@ public class Edge
         assert length >= 0;
         
         this.length = length;
+        ATTRIBUTE_CHANGES.incrementAndGet();
+    }
+    
+    /**
+     * Counts changes to edge lengths and lock edges, across all edges
+     * @return 
+     */
+    public static long getAttributeChanges()
+    {
+        return ATTRIBUTE_CHANGES.get();
     }
     
     /**
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import org.traincontrol.base.Accessory;
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.Collection;
 import java.util.Collections;
@@ -15,7 +16,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import org.traincontrol.base.Locomotive;
 
 /**
@@ -44,21 +50,32 @@ import org.traincontrol.base.Locomotive;
  * maxActiveTrains out of the model entirely: in every state the planner considers, nothing is moving.
  * The runtime may still overlap the moves it is given, provided it respects their order.
  *
+ * <b>The search works on indices, not objects.</b>  Points and locomotives are numbered once, when the
+ * snapshot is taken, and a configuration is an int array giving each locomotive's point.  Its hash is
+ * kept up to date move by move (Zobrist), so recognising a configuration already seen no longer means
+ * building, sorting and joining a string for it.  Everything the route search asks of a point - edges,
+ * sensor siblings, exclusions, rest rules - is likewise tabulated once, which is also what allows the
+ * locomotives of one configuration to be expanded in parallel: the tables are never written again.
+ *
  * @author Adam
  */
 public final class HomeStaging
 {
     /** Configurations examined before the search gives up.  Reached only on large, tightly packed
-     *  layouts; a plain greedy pass solves the ordinary case without searching at all. */
-    private static final int SEARCH_LIMIT = 50000;
+     *  layouts; a plain greedy pass solves the ordinary case without searching at all.  Ten times the
+     *  previous 50000 - the compact state made each configuration that much cheaper, so the time budget
+     *  below is once again the limit that matters. */
+    private static final int SEARCH_LIMIT = 500000;
 
     /**
      * Wall clock, because a state count cannot bound the time this takes.
      *
-     * Expanding one state runs firstClearRoute once per locomotive per station, and each of those is a
-     * breadth-first search over the graph.  On a 62-point layout that is milliseconds per state, so the
-     * old ceiling of 200000 states was minutes of work - and an arrangement with no solution reached it
-     * every time, presenting as a frozen application rather than as NO_PLAN_FOUND.
+     * Expanding one state used to run firstClearRoute once per locomotive per station, each a breadth-
+     * first search over the graph.  On a 62-point layout that was milliseconds per state, so the old
+     * ceiling of 200000 states was minutes of work - and an arrangement with no solution reached it
+     * every time, presenting as a frozen application rather than as NO_PLAN_FOUND.  It is now one search
+     * per locomotive per state (see clearRoutes), but that only moves the ceiling; it does not remove
+     * the need for one.
      *
      * NO_PLAN_FOUND already says "may still be possible", which is exactly the right claim to make when
      * the answer is cut short.  What was wrong was how long it took to say it.
@@ -88,6 +105,69 @@ public final class HomeStaging
     /** Stations with zero incoming edges - hand-staged launch pads; see snapshot. */
     private final Set<String> launchPads;
 
+    /** Fleets smaller than this are expanded on the calling thread.  Handing a few route searches to
+     *  the pool costs more than it saves. */
+    private static final int PARALLEL_MIN_FLEET = 4;
+
+    /** Shared by every planner.  Daemon threads, so an abandoned plan never keeps the JVM alive. */
+    private static final ForkJoinPool POOL = new ForkJoinPool(
+        Math.max(1, Runtime.getRuntime().availableProcessors()),
+        pool ->
+        {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            t.setName("Staging planner " + t.getPoolIndex());
+            t.setDaemon(true);
+            return t;
+        },
+        null, false);
+
+    // The compact model.  Indices into points[] and fleet[] stand for the objects everywhere below.
+
+    /** Every point on the graph. */
+    private final Point[] points;
+    private final Map<Point, Integer> pointIndex = new HashMap<>();
+
+    /** Every locomotive placed on the graph at the snapshot - the only ones a plan can move. */
+    private final Locomotive[] fleet;
+    private final Map<Locomotive, Integer> fleetIndex = new HashMap<>();
+
+    /** Per point: the edges leaving it.  Read once, in a fixed order, rather than reshuffled per call. */
+    private final Arc[][] arcs;
+
+    /** Per point: the other points reporting the same sensor. */
+    private final int[][] siblings;
+
+    /** Per point: reports a sensor blocked for the whole plan - see blockedSensors. */
+    private final boolean[] sensorBlocked;
+
+    /** Per point: flags the route search consults on every step. */
+    private final boolean[] active;
+    private final boolean[] terminus;
+    private final boolean[] launchPad;
+
+    /** Per locomotive: the index of its home, or -1 for a free agent. */
+    private final int[] homeIndex;
+
+    /** Per locomotive, per point: canRest, and whether the exclusion rule in canEnter lets it pass. */
+    private final boolean[][] mayRest;
+    private final boolean[][] mayPass;
+
+    /** The stations, as indices, in the same order as this.stations. */
+    private final int[] stationIndex;
+
+    /** Per locomotive, per point: the random word a configuration's hash includes when it stands there. */
+    private final long[][] zobrist;
+
+    /** Configurations the last search examined. */
+    private volatile int statesExamined;
+
+    /** Route searches remembered before the memo is emptied and started again.  Each entry holds only
+     *  the stations reached, so this is a few megabytes at most. */
+    private static final int REACH_MEMO_LIMIT = 100000;
+
+    /** Where a locomotive can go from a point, given which points are occupied - see expand. */
+    private final Map<Reach, Reachable> reachMemo = new ConcurrentHashMap<>();
+
     private HomeStaging(Layout layout, Map<Point, Locomotive> start, Map<Locomotive, Point> homes,
         List<Point> stations, Set<String> sensorsSet, Map<String, List<Point>> pointsBySensor,
         Set<String> launchPads)
@@ -100,6 +180,109 @@ public final class HomeStaging
         this.sensorsSet = sensorsSet;
         this.pointsBySensor = pointsBySensor;
 
+        // The planner's indices are the graph snapshot's point ids, which also cover points an edge
+        // refers to but the point list lacks
+        LayoutGraph graph = layout.getGraph();
+
+        this.points = new Point[graph.getPointCount()];
+
+        for (int i = 0; i < this.points.length; i++)
+        {
+            this.points[i] = graph.getPoint(i);
+            this.pointIndex.put(this.points[i], i);
+        }
+
+        this.fleet = new ArrayList<>(start.values()).toArray(new Locomotive[0]);
+
+        for (int i = 0; i < this.fleet.length; i++)
+        {
+            this.fleetIndex.put(this.fleet[i], i);
+        }
+
+        int n = this.points.length;
+        Set<String> blocked = blockedSensors();
+
+        this.arcs = new Arc[n][];
+        this.siblings = new int[n][];
+        this.sensorBlocked = new boolean[n];
+        this.active = new boolean[n];
+        this.terminus = new boolean[n];
+        this.launchPad = new boolean[n];
+
+        for (int i = 0; i < n; i++)
+        {
+            Point p = this.points[i];
+
+            this.active[i] = p.isActive();
+            this.terminus[i] = p.isTerminus();
+            this.launchPad[i] = launchPads.contains(p.getName());
+            this.sensorBlocked[i] = p.getS88() != null && blocked.contains(p.getS88());
+
+            // In row order, which is sorted by end name - so among routes of equal length the one
+            // chosen does not depend on the order getNeighbors would have shuffled the edges into
+            this.arcs[i] = new Arc[graph.outDegree(i)];
+
+            for (int j = 0; j < this.arcs[i].length; j++)
+            {
+                this.arcs[i][j] = new Arc(graph, graph.outEdge(graph.outOffset(i) + j));
+            }
+
+            List<Point> sharing = p.getS88() == null ? null : pointsBySensor.get(p.getS88());
+            List<Integer> others = new ArrayList<>();
+
+            if (sharing != null)
+            {
+                for (Point sibling : sharing)
+                {
+                    if (!sibling.equals(p) && this.pointIndex.containsKey(sibling))
+                    {
+                        others.add(this.pointIndex.get(sibling));
+                    }
+                }
+            }
+
+            this.siblings[i] = others.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        this.homeIndex = new int[this.fleet.length];
+        this.mayRest = new boolean[this.fleet.length][n];
+        this.mayPass = new boolean[this.fleet.length][n];
+
+        for (int l = 0; l < this.fleet.length; l++)
+        {
+            Point home = homes.get(this.fleet[l]);
+
+            this.homeIndex[l] = home == null ? -1 : this.pointIndex.getOrDefault(home, -1);
+
+            for (int i = 0; i < n; i++)
+            {
+                Point p = this.points[i];
+
+                this.mayRest[l][i] = canRest(this.fleet[l], p);
+
+                // The exclusion half of canEnter, which is all of it that depends on the locomotive
+                this.mayPass[l][i] = p.isDestination() || !p.getExcludedLocs().contains(this.fleet[l]);
+            }
+        }
+
+        this.stationIndex = new int[stations.size()];
+
+        for (int i = 0; i < stations.size(); i++)
+        {
+            this.stationIndex[i] = this.pointIndex.get(stations.get(i));
+        }
+
+        // Seeded, so a plan does not depend on the run that produced it
+        Random random = new Random(0x5EED);
+        this.zobrist = new long[this.fleet.length][n];
+
+        for (long[] row : this.zobrist)
+        {
+            for (int i = 0; i < n; i++)
+            {
+                row[i] = random.nextLong();
+            }
+        }
     }
 
     /**
@@ -144,10 +327,11 @@ public final class HomeStaging
         // it below: a positional home on one is not a home, and the search never moves a locomotive
         // off one.
         Set<String> launchPads = new HashSet<>();
+        LayoutGraph graph = layout.getGraph();
 
         for (Point p : layout.getPoints())
         {
-            if (layout.getIncomingEdges(p).isEmpty()) launchPads.add(p.getName());
+            if (graph.inDegree(graph.pointId(p)) == 0) launchPads.add(p.getName());
         }
 
         // A POSITIONAL home on a launch pad stops being a home once the locomotive has LEFT it.
@@ -374,7 +558,7 @@ public final class HomeStaging
     public int auditAgainstRuntime()
     {
         int disagreements = 0;
-        Set<String> blocked = blockedSensors(this.start);
+        int[] occupant = occupancy(this.start);
 
         for (Map.Entry<Point, Locomotive> e : this.start.entrySet())
         {
@@ -395,10 +579,11 @@ public final class HomeStaging
             }
 
             Set<Point> plannerSays = new HashSet<>();
+            Step[] reached = clearRoutes(occupant, this.fleetIndex.get(loc), this.pointIndex.get(e.getKey()), -1);
 
-            for (Point to : this.stations)
+            for (int to : this.stationIndex)
             {
-                if (firstClearRoute(this.start, blocked, loc, e.getKey(), to) != null) plannerSays.add(to);
+                if (reached[to] != null) plannerSays.add(this.points[to]);
             }
 
             for (Point p : runtimeSays)
@@ -491,8 +676,7 @@ public final class HomeStaging
 
                 if (home == null || home.equals(locationOf(state, l))) continue;
 
-                List<Edge> path = firstClearRoute(state, blockedSensors(state), l,
-                    locationOf(state, l), home);
+                List<Edge> path = firstClearRoute(state, l, locationOf(state, l), home);
 
                 if (path != null)
                 {
@@ -519,125 +703,215 @@ public final class HomeStaging
      *
      * Admissible: every move relocates exactly one locomotive, so at least one move per misplaced one
      * is needed.  Cheap, and enough to keep realistic layouts well inside the limit.
+     *
+     * A configuration is an int array of positions, identified by its Zobrist hash.  It used to be a
+     * map from point to locomotive, identified by a string of every "point=locomotive" pair - sorted and
+     * joined afresh for every successor of every state, which on a large fleet cost more than the route
+     * searches did.
      */
     private List<Move> astar(Map<Point, Locomotive> from)
     {
-        Map<String, Map<Point, Locomotive>> states = new HashMap<>();
-        Map<String, Integer> cost = new HashMap<>();
-        Map<String, Integer> score = new HashMap<>();
-        Map<String, Move> arrivedBy = new HashMap<>();
-        Map<String, String> cameFrom = new HashMap<>();
-
-        String startKey = key(from);
-        states.put(startKey, from);
-        cost.put(startKey, 0);
-        score.put(startKey, misplaced(from));
-
-        // Ordered on a precomputed f-score.  Computing it inside the comparator instead would rescan
-        // every locomotive on every comparison - O(log n) comparisons per queue operation, each doing
-        // work proportional to the fleet.
-        //
-        // Each entry carries the score it was queued with rather than reading the score map.  The
-        // relaxation below re-scores a state when it finds a cheaper route to it, and that state may
-        // already be sitting in the queue: a PriorityQueue compares on demand, so rewriting the map
-        // changed an existing entry’s priority in place and broke the heap invariant after the fact,
-        // letting polls return states that were not the cheapest.  Plans stayed valid - the closed set
-        // makes revisits harmless - but the search spent its budget out of order, and NO_PLAN_FOUND is
-        // precisely a statement about that budget.
-        PriorityQueue<Scored> open = new PriorityQueue<>((a, b) -> Integer.compare(a.score, b.score));
-
-        open.add(new Scored(startKey, score.get(startKey)));
-
-        Set<String> closed = new HashSet<>();
-        int examined = 0;
-
-        long deadline = System.currentTimeMillis() + SEARCH_BUDGET_MS;
+        int[] at = new int[this.fleet.length];
+        long hash = 0;
 
-        while (!open.isEmpty() && examined < SEARCH_LIMIT && System.currentTimeMillis() < deadline)
+        for (Map.Entry<Point, Locomotive> e : from.entrySet())
         {
-            Scored polled = open.poll();
-            String currentKey = polled.key;
+            int l = this.fleetIndex.get(e.getValue());
 
-            if (closed.contains(currentKey)) continue;
+            at[l] = this.pointIndex.get(e.getKey());
+            hash ^= this.zobrist[l][at[l]];
+        }
 
-            // A cheaper route to this state was found after this entry was queued.  The better entry is
-            // still in the queue and will come up in its own place, so this one is stale.
-            if (polled.score != score.get(currentKey)) continue;
+        Node startNode = new Node(new State(at, hash), 0, misplaced(from), null, -1, null);
 
-            closed.add(currentKey);
-            examined++;
+        // The cheapest known way to each configuration.  A node is never changed once queued: a cheaper
+        // route to its configuration is a new node, and the old one is recognised as stale when polled.
+        //
+        // Each entry used to carry the score it was queued with rather than reading a score map.  The
+        // relaxation re-scores a state when it finds a cheaper route to it, and that state may already
+        // be sitting in the queue: a PriorityQueue compares on demand, so rewriting the map changed an
+        // existing entry’s priority in place and broke the heap invariant after the fact, letting polls
+        // return states that were not the cheapest.  Plans stayed valid - the closed set makes revisits
+        // harmless - but the search spent its budget out of order, and NO_PLAN_FOUND is precisely a
+        // statement about that budget.  Immutable nodes keep that property by construction.
+        Map<State, Node> best = new HashMap<>(1 << 16);
+        // Among equal scores, the configuration closer to done first.  Every pair of swapped locomotives
+        // costs three moves against a heuristic of two, so without this the search works through every
+        // equally-scored arrangement at one depth before trying the next.
+        PriorityQueue<Node> open = new PriorityQueue<>((x, y) -> x.score != y.score
+            ? Integer.compare(x.score, y.score) : Integer.compare(x.misplaced, y.misplaced));
+        best.put(startNode.state, startNode);
+        open.add(startNode);
 
-            Map<Point, Locomotive> current = states.get(currentKey);
+        int examined = 0;
+        long deadline = System.currentTimeMillis() + SEARCH_BUDGET_MS;
 
-            if (misplaced(current) == 0) return rebuild(currentKey, cameFrom, arrivedBy);
+        try
+        {
+            while (!open.isEmpty() && examined < SEARCH_LIMIT && System.currentTimeMillis() < deadline)
+            {
+                Node current = open.poll();
 
-            // One set per state, not one per candidate move: nothing moves while we expand this state
-            Set<String> blocked = blockedSensors(current);
+                // A cheaper route to this state was found after this entry was queued.  The better entry
+                // is still in the queue and will come up in its own place, so this one is stale.
+                if (best.get(current.state) != current || current.closed) continue;
 
-            for (Locomotive l : new ArrayList<>(current.values()))
-            {
-                Point at = locationOf(current, l);
-
-                // A locomotive standing on a launch pad stays there unless its assigned home lies
-                // elsewhere.  Free agents exist to break deadlocks, and the expansion would happily
-                // relocate one when cornered - but a pad has no incoming edges, so the move can
-                // never be planner-undone: the hand-staging the pad represents would be destroyed
-                // permanently, silently, as a side effect of someone else's plan.  Keyed on the pad
-                // and the home, not on homelessness: a satisfied positional pad-home stays in the
-                // homes map (that is what makes a staged layout report ALREADY_HOME), so the
-                // homeless test alone would have re-opened this exact hole for it.  One already
-                // dispatched from its pad is an ordinary free agent wherever it now stands.
-                Point ownHome = this.homes.get(l);
-
-                if (this.launchPads.contains(at.getName()) && (ownHome == null || ownHome.equals(at)))
-                {
-                    continue;
-                }
+                current.closed = true;
+                examined++;
+
+                if (current.misplaced == 0) return rebuild(current);
 
-                for (Point to : this.stations)
+                for (Successor next : expand(current.state.at))
                 {
-                    if (to.equals(at) || current.containsKey(to)) continue;
+                    int[] nextAt = current.state.at.clone();
+                    int was = nextAt[next.loc];
 
-                    List<Edge> path = firstClearRoute(current, blocked, l, at, to);
+                    nextAt[next.loc] = next.to;
 
-                    if (path == null) continue;
+                    State nextState = new State(nextAt,
+                        current.state.hash ^ this.zobrist[next.loc][was] ^ this.zobrist[next.loc][next.to]);
 
-                    Map<Point, Locomotive> next = new LinkedHashMap<>(current);
-                    apply(next, l, to);
+                    Node known = best.get(nextState);
 
-                    String nextKey = key(next);
-                    int nextCost = cost.get(currentKey) + 1;
+                    if (known != null && known.closed) continue;
 
-                    if (!cost.containsKey(nextKey) || nextCost < cost.get(nextKey))
+                    int home = this.homeIndex[next.loc];
+                    int nextMisplaced = current.misplaced
+                        - (home >= 0 && home != was ? 1 : 0)
+                        + (home >= 0 && home != next.to ? 1 : 0);
+
+                    if (known == null || current.cost + 1 < known.cost)
                     {
-                        states.put(nextKey, next);
-                        cost.put(nextKey, nextCost);
-                        score.put(nextKey, nextCost + misplaced(next));
-                        cameFrom.put(nextKey, currentKey);
-                        arrivedBy.put(nextKey, new Move(l, path));
-                        open.add(new Scored(nextKey, score.get(nextKey)));
+                        Node node = new Node(nextState, current.cost + 1, nextMisplaced, current, next.loc,
+                            next.arrival);
+
+                        best.put(nextState, node);
+                        open.add(node);
                     }
                 }
             }
+
+            return null;
         }
+        finally
+        {
+            this.statesExamined = examined;
+        }
+    }
 
-        return null;
+    /**
+     * Every move available from one configuration: each locomotive to each free station it has a clear
+     * route to.
+     *
+     * One route search per locomotive answers every station at once (see clearRoutes), where it used
+     * to take one per station.  And the answer is remembered: it depends only on the locomotive, where
+     * it stands and WHICH points are occupied - not by whom, since every rule in canEnter asks only
+     * "someone else?".  Configurations the search meets are overwhelmingly rearrangements of the same
+     * few occupied sets, so after the first few hundred states nearly every expansion is a lookup.
+     *
+     * The searches that are still needed share nothing but tables that are never written, so on a large
+     * fleet they run side by side in the pool; the moves come back in the same order either way.
+     */
+    private List<Successor> expand(int[] at)
+    {
+        int[] occupant = new int[this.points.length];
+        long[] occupied = new long[(this.points.length + 63) >>> 6];
+        Arrays.fill(occupant, -1);
+
+        for (int l = 0; l < at.length; l++)
+        {
+            occupant[at[l]] = l;
+            occupied[at[l] >>> 6] |= 1L << at[l];
+        }
+
+        if (this.reachMemo.size() > REACH_MEMO_LIMIT) this.reachMemo.clear();
+
+        List<Successor> out = new ArrayList<>();
+
+        if (this.fleet.length < PARALLEL_MIN_FLEET || POOL.getParallelism() < 2)
+        {
+            for (int l = 0; l < at.length; l++)
+            {
+                movesOf(l, at[l], occupant, occupied, out);
+            }
+
+            return out;
+        }
+
+        List<ForkJoinTask<List<Successor>>> tasks = new ArrayList<>();
+
+        for (int l = 0; l < at.length; l++)
+        {
+            final int loc = l;
+
+            tasks.add(POOL.submit(() ->
+            {
+                List<Successor> moves = new ArrayList<>();
+                movesOf(loc, at[loc], occupant, occupied, moves);
+                return moves;
+            }));
+        }
+
+        for (ForkJoinTask<List<Successor>> task : tasks)
+        {
+            out.addAll(task.join());
+        }
+
+        return out;
+    }
+
+    /**
+     * The moves one locomotive can make from where it stands
+     */
+    private void movesOf(int l, int from, int[] occupant, long[] occupied, List<Successor> out)
+    {
+        // A locomotive standing on a launch pad stays there unless its assigned home lies elsewhere.
+        // Free agents exist to break deadlocks, and the expansion would happily relocate one when
+        // cornered - but a pad has no incoming edges, so the move can never be planner-undone: the
+        // hand-staging the pad represents would be destroyed permanently, silently, as a side effect of
+        // someone else's plan.  Keyed on the pad and the home, not on homelessness: a satisfied
+        // positional pad-home stays in the homes map (that is what makes a staged layout report
+        // ALREADY_HOME), so the homeless test alone would have re-opened this exact hole for it.  One
+        // already dispatched from its pad is an ordinary free agent wherever it now stands.
+        if (this.launchPad[from] && (this.homeIndex[l] < 0 || this.homeIndex[l] == from)) return;
+
+        Reach key = new Reach(l, from, occupied);
+        Reachable reachable = this.reachMemo.get(key);
+
+        if (reachable == null)
+        {
+            reachable = new Reachable(clearRoutes(occupant, l, from, -1), this.stationIndex);
+            this.reachMemo.putIfAbsent(key, reachable);
+        }
+
+        for (int i = 0; i < reachable.to.length; i++)
+        {
+            out.add(new Successor(l, reachable.to[i], reachable.via[i]));
+        }
     }
 
-    private List<Move> rebuild(String end, Map<String, String> cameFrom, Map<String, Move> arrivedBy)
+    private List<Move> rebuild(Node end)
     {
         LinkedList<Move> out = new LinkedList<>();
-        String at = end;
 
-        while (cameFrom.containsKey(at))
+        for (Node n = end; n.parent != null; n = n.parent)
         {
-            out.addFirst(arrivedBy.get(at));
-            at = cameFrom.get(at);
+            out.addFirst(new Move(this.fleet[n.loc], n.arrival.route()));
         }
 
         return out;
     }
 
+    /**
+     * Configurations the last search examined, for diagnostics.  Zero when the greedy pass needed no
+     * search at all.
+     * @return
+     */
+    public int getStatesExamined()
+    {
+        return this.statesExamined;
+    }
+
     // ---------------------------------------------------------------------------------------------
     // The shadow rules
     // ---------------------------------------------------------------------------------------------
@@ -645,6 +919,27 @@ public final class HomeStaging
     /**
      * A route from one station to another that is clear in this hypothetical state, or null.
      *
+     * The object-level form of clearRoutes, for the greedy pass, which works on the occupancy map.
+     */
+    private List<Edge> firstClearRoute(Map<Point, Locomotive> state, Locomotive loc, Point from, Point to)
+    {
+        if (from == null || to == null || from.equals(to)) return null;
+
+        Integer l = this.fleetIndex.get(loc);
+        Integer f = this.pointIndex.get(from);
+        Integer t = this.pointIndex.get(to);
+
+        if (l == null || f == null || t == null) return null;
+
+        Step arrival = clearRoutes(occupancy(state), l, f, t)[t];
+
+        return arrival == null ? null : arrival.route();
+    }
+
+    /**
+     * The shortest clear route from a locomotive's position to every station it could stop at, in this
+     * hypothetical state.  Indexed by point; null where there is none.
+     *
      * Searches over the points that can actually be entered given who is standing where, rather than
      * enumerating a few routes computed without regard to occupancy and then filtering them.  Those are
      * different questions, and the difference is not academic: on a layout with loops the shortest
@@ -652,90 +947,254 @@ public final class HomeStaging
      * them can be blocked while a longer clear one exists.  Answering the wrong question made the
      * planner report that a locomotive could not get home when it plainly could.
      *
-     * Breadth-first, so the route returned is the shortest clear one.
+     * Breadth-first, so each route returned is the shortest clear one.  This used to be a search per
+     * destination that stopped on reaching it; one search that records every station as it is first
+     * reached finds exactly the same routes, since a search for one destination expands the same
+     * candidates in the same order until it gets there.
+     *
+     * @param occupant per point, the locomotive standing there or -1
+     * @param target a point to stop at as soon as it is reached, or -1 to search everything
      */
-    private List<Edge> firstClearRoute(Map<Point, Locomotive> state, Set<String> blocked, Locomotive loc,
-        Point from, Point to)
+    private Step[] clearRoutes(int[] occupant, int loc, int from, int target)
     {
-        if (from == null || to == null || from.equals(to)) return null;
+        Step[] reached = new Step[this.points.length];
 
         // The origin is exempt from every other test here - that is what stops the moving train's own
         // sensor blocking its own departure - but not from this one.  isPathClear applies its
         // inactive-point rule to every edge start including the first, and staging executes with
         // autonomy running, so a locomotive standing on a deactivated point would be planned home and
         // then refused at its first edge.
-        if (!from.isActive()) return null;
-        if (!canRest(loc, to) || state.containsKey(to)) return null;
+        if (!this.active[from]) return reached;
 
-        Deque<Candidate> queue = new ArrayDeque<>();
-        Map<Point, List<Map<String, Accessory.accessorySetting>>> seen = new HashMap<>();
+        Deque<Step> queue = new ArrayDeque<>();
+        List<List<Map<String, Accessory.accessorySetting>>> seen =
+            new ArrayList<>(Collections.nCopies(this.points.length, null));
         int expansions = 0;
 
-        queue.add(new Candidate(from, new LinkedList<Edge>(),
-            new HashMap<String, Accessory.accessorySetting>()));
+        queue.add(new Step(from, null, null, Collections.emptyMap()));
 
         while (!queue.isEmpty() && expansions++ < ROUTE_SEARCH_LIMIT)
         {
-            Candidate current = queue.poll();
+            Step current = queue.poll();
 
-            for (Edge e : this.layout.getNeighbors(current.at))
+            for (Arc arc : this.arcs[current.at])
             {
-                Point next = e.getEnd();
+                int next = arc.end;
 
-                if (!canEnter(next, loc, blocked, state)) continue;
+                if (!canEnter(next, loc, occupant)) continue;
 
                 // An edge can be refused because of track the train never drives on
-                if (!lockEdgesFree(e, loc, state)) continue;
+                if (!lockEdgesFree(arc, loc, occupant)) continue;
 
-                Map<String, Accessory.accessorySetting> commands = withCommandsOf(e, current.commands);
+                Map<String, Accessory.accessorySetting> commands = withCommandsOf(arc.edge, current.commands);
 
                 // Two edges asking one accessory for opposite settings
                 if (commands == null) continue;
 
                 if (alreadyReached(seen, next, commands)) continue;
 
-                if (!seen.containsKey(next)) seen.put(next, new ArrayList<>());
+                if (seen.get(next) == null) seen.set(next, new ArrayList<>());
                 seen.get(next).add(commands);
 
-                List<Edge> route = new LinkedList<>(current.route);
-                route.add(e);
+                Step step = new Step(next, arc, current, commands);
+
+                // A station it may stop at, free, and not where it started
+                if (next != from && this.mayRest[loc][next] && occupant[next] < 0 && reached[next] == null)
+                {
+                    reached[next] = step;
 
-                if (next.equals(to)) return route;
+                    if (next == target) return reached;
+                }
 
                 // A terminus may be arrived at but not driven through, so it is never expanded
-                if (!next.isTerminus()) queue.add(new Candidate(next, route, commands));
+                if (!this.terminus[next]) queue.add(step);
             }
         }
 
-        return null;
+        return reached;
     }
 
-    /** A queued state and the score it was queued with, so re-scoring cannot reorder what is already in. */
-    private static final class Scored
+    /** One configuration: the point each locomotive stands on, and its Zobrist hash. */
+    private static final class State
     {
-        private final String key;
+        private final int[] at;
+        private final long hash;
+
+        private State(int[] at, long hash)
+        {
+            this.at = at;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (int) (this.hash ^ (this.hash >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof State && ((State) other).hash == this.hash
+                && Arrays.equals(((State) other).at, this.at);
+        }
+    }
+
+    /**
+     * A configuration as reached by the search: its cost, how it was reached, and the score it was
+     * queued with.  Never changed once queued, so re-scoring cannot reorder what is already in - apart
+     * from being marked closed, which is the visited set.
+     */
+    private static final class Node
+    {
+        private final State state;
+        private final int cost;
+        private final int misplaced;
         private final int score;
+        private final Node parent;
+        private final int loc;
+        private final Step arrival;
+        private boolean closed;
+
+        private Node(State state, int cost, int misplaced, Node parent, int loc, Step arrival)
+        {
+            this.state = state;
+            this.cost = cost;
+            this.misplaced = misplaced;
+            this.score = cost + misplaced;
+            this.parent = parent;
+            this.loc = loc;
+            this.arrival = arrival;
+        }
+    }
+
+    /** A route search's inputs: the locomotive, where it stands, and the occupied points as a bitmap. */
+    private static final class Reach
+    {
+        private final int loc;
+        private final int from;
+        private final long[] occupied;
+        private final int hash;
+
+        private Reach(int loc, int from, long[] occupied)
+        {
+            this.loc = loc;
+            this.from = from;
+            this.occupied = occupied;
+            this.hash = (31 * loc + from) * 31 + Arrays.hashCode(occupied);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.hash;
+        }
 
-        private Scored(String key, int score)
+        @Override
+        public boolean equals(Object other)
         {
-            this.key = key;
-            this.score = score;
+            if (!(other instanceof Reach)) return false;
+
+            Reach r = (Reach) other;
+
+            return r.loc == this.loc && r.from == this.from && Arrays.equals(r.occupied, this.occupied);
         }
     }
 
-    /** A partial route and the accessory settings it has committed to along the way. */
-    private static final class Candidate
+    /** A route search's answer, kept to the stations reached. */
+    private static final class Reachable
+    {
+        private final int[] to;
+        private final Step[] via;
+
+        private Reachable(Step[] reached, int[] stations)
+        {
+            List<Integer> found = new ArrayList<>();
+
+            for (int station : stations)
+            {
+                if (reached[station] != null) found.add(station);
+            }
+
+            this.to = new int[found.size()];
+            this.via = new Step[found.size()];
+
+            for (int i = 0; i < this.to.length; i++)
+            {
+                this.to[i] = found.get(i);
+                this.via[i] = reached[this.to[i]];
+            }
+        }
+    }
+
+    /** One available move: a locomotive, the station it can reach, and the route there. */
+    private static final class Successor
+    {
+        private final int loc;
+        private final int to;
+        private final Step arrival;
+
+        private Successor(int loc, int to, Step arrival)
+        {
+            this.loc = loc;
+            this.to = to;
+            this.arrival = arrival;
+        }
+    }
+
+    /**
+     * A partial route - the point reached, the edge taken to it and the step before - and the accessory
+     * settings it has committed to along the way.  Routes share their common prefix rather than each
+     * holding a copy of it.
+     */
+    private static final class Step
     {
-        private final Point at;
-        private final List<Edge> route;
+        private final int at;
+        private final Arc arc;
+        private final Step previous;
         private final Map<String, Accessory.accessorySetting> commands;
 
-        private Candidate(Point at, List<Edge> route, Map<String, Accessory.accessorySetting> commands)
+        private Step(int at, Arc arc, Step previous, Map<String, Accessory.accessorySetting> commands)
         {
             this.at = at;
-            this.route = route;
+            this.arc = arc;
+            this.previous = previous;
             this.commands = commands;
         }
+
+        private List<Edge> route()
+        {
+            LinkedList<Edge> out = new LinkedList<>();
+
+            for (Step s = this; s.arc != null; s = s.previous)
+            {
+                out.addFirst(s.arc.edge);
+            }
+
+            return out;
+        }
+    }
+
+    /** An edge, with the points it leads to and locks given as indices. */
+    private static final class Arc
+    {
+        private final Edge edge;
+        private final int end;
+        private final int[] lockEnds;
+
+        private Arc(LayoutGraph graph, int edge)
+        {
+            this.edge = graph.getEdge(edge);
+            this.end = graph.to(edge);
+
+            // The graph keeps only lock edges still in it; one that has left can never be occupied
+            this.lockEnds = new int[graph.lockOffset(edge + 1) - graph.lockOffset(edge)];
+
+            for (int k = 0; k < this.lockEnds.length; k++)
+            {
+                this.lockEnds[k] = graph.to(graph.lockEdge(graph.lockOffset(edge) + k));
+            }
+        }
     }
 
     /**
@@ -774,10 +1233,10 @@ public final class HomeStaging
      * committed to nothing that this one has not also committed to - then anything reachable from here
      * was reachable from there.
      */
-    private static boolean alreadyReached(Map<Point, List<Map<String, Accessory.accessorySetting>>> seen,
-        Point p, Map<String, Accessory.accessorySetting> commands)
+    private static boolean alreadyReached(List<List<Map<String, Accessory.accessorySetting>>> seen,
+        int p, Map<String, Accessory.accessorySetting> commands)
     {
-        if (!seen.containsKey(p)) return false;
+        if (seen.get(p) == null) return false;
 
         for (Map<String, Accessory.accessorySetting> earlier : seen.get(p))
         {
@@ -809,13 +1268,11 @@ public final class HomeStaging
      * Only the endpoint is consulted: the runtime's own "locked" flag is set while a path is being
      * driven, and the planner reasons about a layout at rest where nothing holds a lock.
      */
-    private static boolean lockEdgesFree(Edge e, Locomotive loc, Map<Point, Locomotive> state)
+    private static boolean lockEdgesFree(Arc arc, int loc, int[] occupant)
     {
-        for (Edge locked : e.getLockEdges())
+        for (int end : arc.lockEnds)
         {
-            Locomotive occupant = state.get(locked.getEnd());
-
-            if (occupant != null && !occupant.equals(loc)) return false;
+            if (occupant[end] >= 0 && occupant[end] != loc) return false;
         }
 
         return true;
@@ -828,19 +1285,16 @@ public final class HomeStaging
      * The origin is never tested, which is what keeps the moving locomotive's own sensor from blocking
      * its own departure.
      */
-    private boolean canEnter(Point p, Locomotive loc, Set<String> blocked,
-        Map<Point, Locomotive> state)
+    private boolean canEnter(int p, int loc, int[] occupant)
     {
-        if (!p.isActive()) return false;
+        if (!this.active[p]) return false;
 
         // The rule the runtime actually enforces: Edge.isOccupied is true when the point the edge leads
         // to holds someone else.  Point occupancy, not sensor state - which is why a bypass sharing an
         // address with a busy platform is still passable.
-        Locomotive occupant = state.get(p);
+        if (occupant[p] >= 0 && occupant[p] != loc) return false;
 
-        if (occupant != null && !occupant.equals(loc)) return false;
-
-        if (p.getS88() != null && blocked.contains(p.getS88())) return false;
+        if (this.sensorBlocked[p]) return false;
 
         // Two ACTIVE points reporting one sensor are a single detection section, so they cannot both
         // hold a train.  This is now the whole of the shared-address rule.  It used to be expressed by
@@ -848,21 +1302,14 @@ public final class HomeStaging
         // the snapshot was taken - so on a layout whose feedback was quiet the rule did not apply at
         // all, and the planner would cheerfully park two trains on one section for the runtime to
         // discover.
-        if (p.getS88() != null && this.pointsBySensor.containsKey(p.getS88()))
+        for (int sibling : this.siblings[p])
         {
-            for (Point sibling : this.pointsBySensor.get(p.getS88()))
-            {
-                // Not gated on the sibling being active: a detection section is electrical, and a
-                // train parked on a deactivated siding holds the sensor exactly as hard as one on a
-                // live platform.  snapshot records occupants of inactive points, so the planner knows
-                // it is there; skipping it let a second train be routed into the active twin, for the
-                // runtime to refuse on live feedback partway through the run.
-                if (sibling.equals(p)) continue;
-
-                Locomotive there = state.get(sibling);
-
-                if (there != null && !there.equals(loc)) return false;
-            }
+            // Not gated on the sibling being active: a detection section is electrical, and a train
+            // parked on a deactivated siding holds the sensor exactly as hard as one on a live
+            // platform.  snapshot records occupants of inactive points, so the planner knows it is
+            // there; skipping it let a second train be routed into the active twin, for the runtime to
+            // refuse on live feedback partway through the run.
+            if (occupant[sibling] >= 0 && occupant[sibling] != loc) return false;
         }
 
         // The two exclusion lists mean different things, and the difference is deliberate.
@@ -875,7 +1322,7 @@ public final class HomeStaging
         // Enforcing the stricter reading on stations too was tried and reverted: on the author's own
         // layout it removed 45% of the reachable station pairs for two locomotives, because two of its
         // through stations carry exclusion lists.
-        return p.isDestination() || !p.getExcludedLocs().contains(loc);
+        return this.mayPass[loc][p];
     }
 
     /**
@@ -888,8 +1335,10 @@ public final class HomeStaging
      * leaves the section closed behind it is the mutual exclusion in canEnter - two active points
      * sharing an address cannot both be occupied.  Expressing it there rather than here is what makes
      * the rule structural instead of a function of whatever the feedback happened to read a moment ago.
+     *
+     * Depends only on the snapshot, so it is worked out once, per point, when the planner is built.
      */
-    private Set<String> blockedSensors(Map<Point, Locomotive> state)
+    private Set<String> blockedSensors()
     {
         Set<String> out = new HashSet<>();
 
@@ -974,26 +1423,33 @@ public final class HomeStaging
         if (from == null || to == null) return false;
         if (from.equals(to)) return true;
 
-        Set<Point> seen = new HashSet<>();
-        Deque<Point> queue = new ArrayDeque<>();
+        LayoutGraph graph = this.layout.getGraph();
+        int start = graph.pointId(from);
+        int target = graph.pointId(to);
+
+        if (start < 0 || target < 0) return false;
 
-        seen.add(from);
-        queue.add(from);
+        boolean[] seen = new boolean[graph.getPointCount()];
+        int[] queue = new int[graph.getPointCount()];
+        int head = 0, tail = 0;
 
-        while (!queue.isEmpty())
+        seen[start] = true;
+        queue[tail++] = start;
+
+        while (head < tail)
         {
-            Point at = queue.poll();
+            int at = queue[head++];
 
-            for (Edge e : this.layout.getNeighbors(at))
+            for (int k = graph.outOffset(at); k < graph.outOffset(at + 1); k++)
             {
-                Point next = e.getEnd();
+                int next = graph.to(graph.outEdge(k));
 
-                if (seen.contains(next)) continue;
-                if (next.equals(to)) return true;
+                if (seen[next]) continue;
+                if (next == target) return true;
 
-                seen.add(next);
+                seen[next] = true;
 
-                if (!next.isTerminus()) queue.add(next);
+                if (!graph.getPoint(next).isTerminus()) queue[tail++] = next;
             }
         }
 
@@ -1052,19 +1508,21 @@ public final class HomeStaging
         return count;
     }
 
-    /** Identifies a configuration for the search's visited set. */
-    private static String key(Map<Point, Locomotive> state)
+    /** Per point, the index of the locomotive standing there, or -1. */
+    private int[] occupancy(Map<Point, Locomotive> state)
     {
-        List<String> parts = new ArrayList<>();
+        int[] occupant = new int[this.points.length];
+        Arrays.fill(occupant, -1);
 
         for (Map.Entry<Point, Locomotive> e : state.entrySet())
         {
-            parts.add(e.getKey().getName() + "=" + e.getValue().getName());
-        }
+            Integer p = this.pointIndex.get(e.getKey());
+            Integer l = this.fleetIndex.get(e.getValue());
 
-        Collections.sort(parts);
+            if (p != null && l != null) occupant[p] = l;
+        }
 
-        return String.join("|", parts);
+        return occupant;
     }
 
     private static List<Move> empty()
@@ -2,12 +2,13 @@ package org.traincontrol.automation;
 
 import org.traincontrol.base.Accessory;
 import org.traincontrol.base.Accessory.accessorySetting;
+import org.traincontrol.base.EventHub;
 import org.traincontrol.base.Locomotive;
 import java.lang.reflect.Field;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -19,8 +20,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import org.traincontrol.model.ViewListener;
@@ -46,6 +53,9 @@ public class Layout
 
     // ms to wait between configuration commands
     public static final int CONFIGURE_SLEEP = 150;
+    
+    // Stripes held while a claimed path's accessories are being commanded
+    private final PathReservations reservations = new PathReservations();
 
     // Base time budget for path validation: the actual deadline is PATH_VALIDATION_MS * (accessories on
     // the path + 1) - see validatePathActuation - so paths with more accessories get proportionally more
@@ -87,7 +97,13 @@ public class Layout
     private final ViewListener control;
     private final Map<String, Edge> edges;
     private final Map<String, Point> points;
-    private final Map<String, List<Edge>> adjacency;
+
+    // Integer-indexed snapshot of points and edges, rebuilt by getGraph when graphVersion or an edge
+    // attribute has moved on since it was taken.  Everything that adds, removes or renames a point or
+    // an edge bumps graphVersion; lengths and lock edges are tracked by Edge itself.
+    private final AtomicLong graphVersion = new AtomicLong();
+    private final Object graphLock = new Object();
+    private volatile LayoutGraph graph;
     
     // Custom callbacks before/after path execution
     protected Map<String, TriFunction<List<Edge>, Locomotive, Boolean, Void>> callbacks;
@@ -116,10 +132,47 @@ public class Layout
     private boolean atomicRoutes = true; // if false, routes will be unlocked as milestones are passed
     private boolean timetableCapture = false;
 
-    // Staging plans are only valid executed one train at a time.  Set by loadReturnToHomeTimetable and
-    // cleared by any other timetable load - see executeTimetable.
+    // Lookahead dispatch: an autonomous train picks its next path as it passes its pre-arrival milestone,
+    // and departs on it straight after arriving if it is still clear.  See reserveLookahead.
+    private boolean lookahead = false;
+
+    // How routes are ranked when choosing among them - see RouteCost
+    private volatile RouteCost routeCost = RouteCost.DEFAULT;
+
+    // The most alternative routes tried between one start and one destination.  The generator yields
+    // them cheapest first, so anything past this is a long detour, and a destination whose approach is
+    // blocked no longer costs an enumeration of every simple path in the layout on every pick.
+    public static final int MAX_PATH_ALTERNATIVES = 64;
+
+    // Paths reserved ahead of arrival, by the locomotive that will take them.  Advisory: isPathClear
+    // refuses other trains anything that touches one, but nothing is marked occupied or configured
+    // until configureAndLockPath claims it on arrival.  Written under synchronized(activeLocomotives).
+    private final Map<Locomotive, List<Edge>> lookaheadPaths = new ConcurrentHashMap<>();
+
+    // The points each reserved path touches, its lock edges included - computed once, when the path
+    // is reserved, rather than on every isPathClear.  Added before the path and removed after it, so
+    // a check never misses a reservation.
+    private final Map<Locomotive, Set<Point>> lookaheadPoints = new ConcurrentHashMap<>();
+
+    // Locomotives whose runLocomotive loop is live - the only ones a lookahead is picked for.  Timetable
+    // and semi-autonomous runs know where they are going next already.
+    private final Set<Locomotive> lookaheadEligible = ConcurrentHashMap.newKeySet();
+
+    // Of those, the ones whose last search found nothing free
+    private final Set<Locomotive> lookaheadWaiting = ConcurrentHashMap.newKeySet();
+    private final AtomicLong lookaheadConfirmed = new AtomicLong();
+    private final AtomicLong lookaheadReleased = new AtomicLong();
+
+    // Staging plans are only valid executed in an order that respects their dependencies.  Set by
+    // loadReturnToHomeTimetable and cleared by any other timetable load - see executeStagingSchedule.
     private boolean timetableSequential = false;
 
+    // The most recent staging run's dependency graph and timings
+    private volatile StagingSchedule lastStagingSchedule = null;
+
+    // The most recent ordinary timetable run's due and dispatch times, and what its waits are woken by
+    private volatile TimetableSchedule lastTimetableSchedule = null;
+
     // Set for as long as executeTimetable is driving.  Capture records what the OPERATOR drives; a
     // timetable run recording itself appends to the very list being walked, and the dispatch loop
     // re-reads its own size.  Staging was only one of the two entrances into that.
@@ -130,10 +183,16 @@ public class Layout
     private static final int STAGING_MAX_ATTEMPTS = 3;
     private static final int STAGING_RETRY_PAUSE = 2000;
 
-    // How often executeTimetable checks whether the run it dispatched has actually finished
+    // The longest executeTimetable waits without being woken.  Starts, arrivals and stops all wake it;
+    // this only bounds how long it takes to notice that the layout it is running on has been replaced.
     private static final int COMPLETION_POLL = 250;
     private int maxLatency = 0;
     private int maxActiveTrains = 0;
+
+    // Judge maxLatency against the p99 of accessory round trips instead of the periodic ping, once at
+    // least ACCESSORY_LATENCY_MIN_SAMPLES of them have been measured in the last minute
+    private boolean accessoryLatencyGuard = false;
+    public static final int ACCESSORY_LATENCY_MIN_SAMPLES = 10;
     
     // Route-related settings
     private boolean activateRoutes = false;
@@ -160,17 +219,36 @@ public class Layout
     private static String lastError = "";
 
     /**
-     * Helper class for BFS
+     * Helper class for BFS: a point reached, and the last edge of the route that reached it.  Routes
+     * share their common prefix through parent, so queueing one no longer copies the whole path.
      */
-    private class PointPath
+    private static final class PointPath
     {
-        public Point start;
-        public List<Edge> path;
+        public final int start;
+        public final int edge;
+        public final PointPath parent;
 
-        public PointPath(Point start, List<Edge> path)
+        public PointPath(int start, int edge, PointPath parent)
         {
             this.start = start;
-            this.path = path;
+            this.edge = edge;
+            this.parent = parent;
+        }
+
+        /**
+         * The route as edges, with one more appended
+         */
+        public List<Edge> toPath(LayoutGraph g, int last)
+        {
+            LinkedList<Edge> path = new LinkedList<>();
+            path.add(g.getEdge(last));
+
+            for (PointPath at = this; at.parent != null; at = at.parent)
+            {
+                path.addFirst(g.getEdge(at.edge));
+            }
+
+            return path;
         }
     }
     
@@ -205,7 +283,6 @@ public class Layout
         this.control = control;
         this.edges = new HashMap<>();
         this.points = new HashMap<>();
-        this.adjacency = new HashMap<>();    
         // These four are read by the UI (getActiveAccs, getActiveLocomotives, getReachedMilestones)
         // without holding the writers' synchronized(activeLocomotives) lock, so they must be
         // individually thread-safe.  The existing synchronized blocks still provide the writers'
@@ -328,6 +405,20 @@ public class Layout
     {
         return this.maxLatency;
     }
+
+    /**
+     * Whether the latency limit is checked against accessory round trips rather than the ping
+     * @return
+     */
+    public boolean isAccessoryLatencyGuard()
+    {
+        return this.accessoryLatencyGuard;
+    }
+
+    public void setAccessoryLatencyGuard(boolean accessoryLatencyGuard)
+    {
+        this.accessoryLatencyGuard = accessoryLatencyGuard;
+    }
     
     /**
      * Returns all accessories along active routes
@@ -898,6 +989,20 @@ public class Layout
     public void stopLocomotives()
     {
         this.running = false;
+        this.timetableChanged();
+    }
+
+    /**
+     * Wakes the timetable run, if there is one, to look again at what it is waiting for
+     */
+    private void timetableChanged()
+    {
+        TimetableSchedule schedule = this.lastTimetableSchedule;
+
+        if (schedule != null)
+        {
+            schedule.changed();
+        }
     }
     
     /**
@@ -1078,12 +1183,13 @@ public class Layout
         Point p = new Point(name, isDest, feedback);
         
         this.points.put(p.getName(), p);
+        this.graphVersion.incrementAndGet();
         
         return p;
     }
     
     /**
-     * Adds a (directed) Edge to the graph and updates adjacency list
+     * Adds a (directed) Edge to the graph and invalidates the graph snapshot
      * Requires points to be added first
      * @param startPoint name of the starting point
      * @param endPoint name of the ending point
@@ -1109,17 +1215,7 @@ public class Layout
         }
       
         this.edges.put(newEdge.getName(), newEdge);
-           
-        if (!this.adjacency.containsKey(newEdge.getStart().getName()))
-        {
-            List<Edge> newList = new LinkedList<>();
-            newList.add(newEdge);
-            this.adjacency.put(newEdge.getStart().getName(), newList);
-        }
-        else
-        {
-            this.adjacency.get(newEdge.getStart().getName()).add(newEdge);
-        }
+        this.graphVersion.incrementAndGet();
         
         return newEdge;
     }
@@ -1191,17 +1287,10 @@ public class Layout
      */
     public List<Edge> getIncomingEdges(Point p)
     {
-        List<Edge> edgeList = new LinkedList<>();
-        
-        for (Edge e : this.getEdges())
-        {
-            if (e.getEnd().equals(p))
-            {
-                edgeList.add(e);
-            }
-        }
+        LayoutGraph g = this.getGraph();
+        int id = g.pointId(p);
         
-        return edgeList;
+        return id < 0 ? new ArrayList<>() : g.getIncoming(id);
     }
 
     /**
@@ -1211,15 +1300,15 @@ public class Layout
      */
     public List<Edge> getNeighbors(Point p)
     {
-        List<Edge> neighbors = new LinkedList<>();
+        LayoutGraph g = this.getGraph();
+        int id = g.pointId(p);
         
-        if (this.adjacency.containsKey(p.getName()))
+        if (id < 0)
         {
-            for (Edge e : this.adjacency.get(p.getName()))
-            {
-                neighbors.add(e);
-            }
+            return new ArrayList<>();
         }
+        
+        List<Edge> neighbors = g.getOutgoing(id);
 
         // Randomize order to allow for variation in paths
         Collections.shuffle(neighbors);
@@ -1235,35 +1324,51 @@ public class Layout
     public List<Edge> getNeighborsAndIncoming(Point p)
     {
         List<Edge> neighbors = new LinkedList<>();
+        LayoutGraph g = this.getGraph();
+        int id = g.pointId(p);
 
-        // Separate outgoing and incoming edges
-        List<Edge> outgoing = new ArrayList<>();
-        List<Edge> incoming = new ArrayList<>();
+        // Outgoing sorted by end name, then incoming sorted by start name - the graph's row order
+        if (id >= 0)
+        {
+            neighbors.addAll(g.getOutgoing(id));
+            neighbors.addAll(g.getIncoming(id));
+        }
 
-        for (Edge e : this.getEdges())
+        return neighbors;
+    }
+    
+    /**
+     * The integer-indexed snapshot of this layout's graph, rebuilt only if a point or edge has been
+     * added, removed or renamed, or an edge length or lock edge changed, since the last call
+     * @return 
+     */
+    public LayoutGraph getGraph()
+    {
+        LayoutGraph g = this.graph;
+        long version = this.graphVersion.get();
+        long attributes = Edge.getAttributeChanges();
+        
+        if (g != null && g.isCurrent(version, attributes))
         {
-            if (e.getStart().equals(p))
-            {
-                outgoing.add(e);
-            }
+            return g;
+        }
+        
+        synchronized (this.graphLock)
+        {
+            g = this.graph;
+            version = this.graphVersion.get();
+            attributes = Edge.getAttributeChanges();
             
-            if (e.getEnd().equals(p))
+            // Versions read before the collections: a change made during the build leaves this snapshot
+            // already stale, and the next call builds again
+            if (g == null || !g.isCurrent(version, attributes))
             {
-                incoming.add(e);
+                g = new LayoutGraph(this.getPoints(), this.getEdges(), version, attributes);
+                this.graph = g;
             }
+            
+            return g;
         }
-
-        // Sort outgoing edges by e.getEnd().getName()
-        outgoing.sort(Comparator.comparing(e -> e.getEnd().getName()));
-
-        // Sort incoming edges by e.getStart().getName()
-        incoming.sort(Comparator.comparing(e -> e.getStart().getName()));
-
-        // Combine sorted outgoing and incoming edges
-        neighbors.addAll(outgoing);
-        neighbors.addAll(incoming);
-
-        return neighbors;
     }
 
     /**
@@ -1321,7 +1426,22 @@ public class Layout
      */
     public boolean isPathClear(List<Edge> path, Locomotive loc, boolean logFailures)
     {
-        if (this.maxActiveTrains > 0 && this.isAutoRunning() && this.activeLocomotives.size() >= this.maxActiveTrains)
+        return this.isPathClear(path, loc, logFailures, Collections.emptySet());
+    }
+
+    /**
+     * @param own edges the locomotive itself holds right now, and will have released by the time it
+     *            takes this path.  Only a lookahead, chosen while the train is still on its current path,
+     *            passes any - their occupancy, and the sensors its own train may still be covering, are
+     *            not held against it.
+     */
+    private boolean isPathClear(List<Edge> path, Locomotive loc, boolean logFailures, Collection<Edge> own)
+    {
+        // The locomotive's own path counts against the limit until it arrives, but it is not an
+        // additional train
+        int active = this.activeLocomotives.size() - (!own.isEmpty() && this.activeLocomotives.containsKey(loc) ? 1 : 0);
+
+        if (this.maxActiveTrains > 0 && this.isAutoRunning() && active >= this.maxActiveTrains)
         {
             logPathError(
                 loc,
@@ -1332,9 +1452,19 @@ public class Layout
             return false;
         }
         
+        Locomotive reservedBy = this.lookaheadConflict(path, loc);
+
+        if (reservedBy != null)
+        {
+            logPathError(loc, path, logFailures,
+                I18n.f("autolayout.errorPathReservedAhead", reservedBy.getName())
+            );
+            return false;
+        }
+
         for (Edge e : path)
         {
-            if (e.isOccupied(loc))
+            if (e.isOccupied(loc) && !own.contains(e))
             {
                 logPathError(loc, path, logFailures,
                     I18n.f("autolayout.errorEdgeOccupied", e.getName())
@@ -1343,7 +1473,9 @@ public class Layout
             }
 
             // The same edge going in the opposite direction
-            if (this.getEdge(e.getOppositeName()) != null && this.getEdge(e.getOppositeName()).isOccupied(loc))
+            Edge opposite = this.getEdge(e.getOppositeName());
+
+            if (opposite != null && opposite.isOccupied(loc) && !own.contains(opposite))
             {
                 logPathError(loc, path, logFailures,
                     I18n.f("autolayout.errorEdgeOccupied", e.getOppositeName())
@@ -1392,7 +1524,7 @@ public class Layout
                 return false;
             }
 
-            if (control.getFeedbackState(e.getEnd().getS88()) != false)
+            if (control.getFeedbackState(e.getEnd().getS88()) != false && !isOwnPoint(own, e.getEnd()))
             {
                 logPathError(loc, path, logFailures,
                     I18n.f("autolayout.errorFeedbackNotClear", e.getEnd().getS88())
@@ -1403,7 +1535,7 @@ public class Layout
             // Ensure all lock edges are unoccupied
             for (Edge e2 : e.getLockEdges())
             {
-                if (e2.isOccupied(loc))
+                if (e2.isOccupied(loc) && !own.contains(e2))
                 {
                     logPathError(loc, path, logFailures,
                         I18n.f("autolayout.errorLockEdgeOccupied", e2.getName())
@@ -1649,14 +1781,11 @@ public class Layout
             );
         }
 
-        for (Edge e : this.getEdges())
+        if (!this.getIncomingEdges(p).isEmpty())
         {
-            if (e.getStart().equals(p) || e.getEnd().equals(p))
-            {
-                throw new Exception(
-                    I18n.f("autolayout.errorPointHasIncomingEdgesDeleteFirst", name)
-                );
-            }
+            throw new Exception(
+                I18n.f("autolayout.errorPointHasIncomingEdgesDeleteFirst", name)
+            );
         }
         
         // Releases any home claim on it - the twin of locDeleted's release, on the value side of the
@@ -1670,6 +1799,7 @@ public class Layout
 
         // Remove from db
         this.points.remove(name);
+        this.graphVersion.incrementAndGet();
     }
     
     /**
@@ -1726,11 +1856,9 @@ public class Layout
             throw new Exception(I18n.f("autolayout.errorEdgeDoesNotExist", start, end));                    
         }
         
-        // Remove from adjacency list
-        this.adjacency.get(e.getStart().getName()).remove(e);
-        
         // Remove from db
         this.edges.remove(e.getName());
+        this.graphVersion.incrementAndGet();
         
         // Remove from lock edge lists
         for (Edge e2 : this.getEdges())
@@ -1797,13 +1925,6 @@ public class Layout
         this.points.put(newName, p);
         this.points.remove(name);
         
-        // Update adjacency list keys
-        if (this.adjacency.containsKey(name))
-        {
-            this.adjacency.put(newName, this.adjacency.get(name));
-            this.adjacency.remove(name);
-        }
-        
         // Add keys corresponding to new edge name
         List<Edge> edgeList = new ArrayList(this.getEdges());
         
@@ -1827,6 +1948,8 @@ public class Layout
             }
         }
         
+        this.graphVersion.incrementAndGet();
+        
         this.refreshUI();
     }
     
@@ -1852,28 +1975,53 @@ public class Layout
      */
     public boolean configureAndLockPath(List<Edge> path, Locomotive loc)
     {
-        // Lock the path and send the accessory commands under the Layout monitor.  Holding it here is
-        // fine - path locking must be atomic - but the validation wait below must NOT hold it, so other
-        // locomotives' path checks are not blocked for the (possibly multi-second, scales with path size -
-        // see validatePathActuation) validation wait.
+        // The whole path is checked and marked occupied under the Layout monitor, which is what makes
+        // the claim atomic.  The accessory commands that follow take CONFIGURE_SLEEP each, plus one per
+        // edge, and used to be sent under the monitor too - so every other train's path check waited
+        // seconds behind them, wherever it was on the layout.  They are now sent holding only this
+        // path's reservation stripes: another claim touching the same points or accessories waits for
+        // them, and nothing else does.  The validation wait below holds neither.
         boolean configureFailed = false;
-        int edgesLocked = 0;
+        PathReservations.Claim claim;
 
-        synchronized (this)
+        try
+        {
+            claim = this.reservations.claim(path);
+        }
+        catch (InterruptedException ex)
+        {
+            // Autonomy is being stopped
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        try
         {
-            // Return if this path isn't clear
-            if (!this.isPathClear(path, loc))
+            synchronized (this)
             {
-                this.control.logf("autolayout.errorPathOccupied");
-                return false;
+                // Return if this path isn't clear
+                if (!this.isPathClear(path, loc))
+                {
+                    this.control.logf("autolayout.errorPathOccupied");
+                    return false;
+                }
+
+                for (Edge e : path)
+                {
+                    e.setOccupied();
+                    e.getEnd().setLocomotive(loc);
+                }
+
+                // A path reserved ahead is now held outright
+                if (this.lookaheadPaths.remove(loc, path))
+                {
+                    this.lookaheadPoints.remove(loc);
+                    this.lookaheadConfirmed.incrementAndGet();
+                }
             }
 
             for (Edge e : path)
             {
-                e.setOccupied();
-                e.getEnd().setLocomotive(loc);
-                edgesLocked++;
-
                 // isPathClear already previewed the configuration, so this should not fail - but if an
                 // accessory went missing in between, the locomotive must not be released onto a path we
                 // were unable to set up.  Stop here and let the caller below release the locks.
@@ -1886,13 +2034,15 @@ public class Layout
                 loc.delay(CONFIGURE_SLEEP);
             }
         }
+        finally
+        {
+            claim.close();
+        }
 
         if (configureFailed)
         {
-            // Only the edges we actually took.  Releasing the rest would call setUnoccupied on edges we
-            // never locked, and that also clears their lock edges - which, precisely because we never
-            // held them, may belong to another locomotive by now.
-            this.handleMisconfiguredPath(path.subList(0, edgesLocked), loc);
+            // Every edge of the path was marked above, so every edge is released
+            this.handleMisconfiguredPath(path, loc);
             return false;
         }
 
@@ -1918,12 +2068,15 @@ public class Layout
     }
 
     /**
-     * Waits (up to PATH_VALIDATION_MS * (accessories on the path + 1), so longer paths get proportionally
-     * more time) for every accessory on the path to reach its CS-confirmed commanded state.  Waits on
-     * Accessory.actuationConfirmedMonitor (which MarklinAccessory notifies on each confirmed actuation)
-     * rather than busy-polling, and returns as soon as all are confirmed - the full timeout only elapses
-     * when an accessory never confirms.  Must be called WITHOUT holding the Layout monitor so concurrent
-     * path checks are not blocked.
+     * Waits for every accessory on the path to reach its CS-confirmed commanded state.  Each accessory
+     * gets what its decoder has been learned to need (see ConfirmationLatency), and at most
+     * PATH_VALIDATION_MS * (accessories on the path + 1), so longer paths get proportionally more time.
+     *
+     * Waits on one future per accessory, completed by that accessory's own echo, and returns as soon as
+     * the last completes.  This used to wait on a monitor shared by every accessory, re-checking the whole
+     * path on any echo anywhere, and to give every accessory the full budget - so a dead decoder held the
+     * locomotive for the longest wait possible.  Now validation fails as soon as any accessory is overdue.
+     * Must be called WITHOUT holding the Layout monitor so concurrent path checks are not blocked.
      * @param path
      * @return true if all accessories on the path are confirmed at their commanded state
      */
@@ -1952,32 +2105,55 @@ public class Layout
             return true;
         }
 
-        // Wait on the dedicated actuation monitor until all are confirmed or the timeout elapses.
-        // MarklinAccessory notifies it each time a CS echo advances stateAtLastActuation, so we wake and
-        // re-check only when a confirmed state actually changed - and exit immediately once all are confirmed.
-        long deadline = System.currentTimeMillis() + PATH_VALIDATION_MS + PATH_VALIDATION_MS * accessories.size();
+        long budget = PATH_VALIDATION_MS + PATH_VALIDATION_MS * accessories.size();
+        long start = System.currentTimeMillis();
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        long[] deadlines = new long[accessories.size()];
 
-        synchronized (Accessory.actuationConfirmedMonitor)
+        for (int i = 0; i < accessories.size(); i++)
         {
-            while (!allConfirmed(accessories, desired))
-            {
-                long remaining = deadline - System.currentTimeMillis();
+            futures.add(accessories.get(i).awaitConfirmedAt(desired.get(i)));
+            deadlines[i] = start + accessories.get(i).getConfirmationLatency().getTimeoutMs(budget);
+        }
 
-                if (remaining <= 0)
-                {
-                    break;
-                }
+        // Soonest deadline first, so an overdue accessory is noticed as soon as it is overdue
+        List<Integer> order = new ArrayList<>();
 
-                try
-                {
-                    Accessory.actuationConfirmedMonitor.wait(remaining);
-                }
-                catch (InterruptedException ex)
+        for (int i = 0; i < accessories.size(); i++)
+        {
+            order.add(i);
+        }
+
+        order.sort((x, y) -> Long.compare(deadlines[x], deadlines[y]));
+
+        try
+        {
+            for (int i : order)
+            {
+                futures.get(i).get(Math.max(0, deadlines[i] - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            // Autonomy is being stopped - abort validation without flagging a misconfiguration
+            // (the loco is not going anywhere).  Preserve the interrupt for downstream code.
+            Thread.currentThread().interrupt();
+            return true;
+        }
+        catch (TimeoutException | ExecutionException | CancellationException ex)
+        {
+            // An accessory is overdue - reported below
+        }
+        finally
+        {
+            long now = System.currentTimeMillis();
+
+            for (int i = 0; i < accessories.size(); i++)
+            {
+                if (futures.get(i).cancel(false) && now >= deadlines[i])
                 {
-                    // Autonomy is being stopped - abort validation without flagging a misconfiguration
-                    // (the loco is not going anywhere).  Preserve the interrupt for downstream code.
-                    Thread.currentThread().interrupt();
-                    return true;
+                    accessories.get(i).getConfirmationLatency().timedOut();
                 }
             }
         }
@@ -2109,6 +2285,15 @@ public class Layout
         }
     }
 
+    /**
+     * The stripes path claims hold while configuring, with their contention counters
+     * @return
+     */
+    public PathReservations getPathReservations()
+    {
+        return this.reservations;
+    }
+
     /**
      * Marks all the edges in a path as unoccupied,
      * unlocking it so that other trains may pass
@@ -2235,43 +2420,68 @@ public class Layout
         // reaching a point by several different routes in order to find one that is not excluded.
         // Marking on enqueue would explore only the first route to each point and could then fail to
         // return an allowed alternative that exists.
-        Set<Point> visited = new HashSet<>();
-        Queue<PointPath> queue = new LinkedList<>();
+        //
+        // Runs on the graph snapshot's integer ids: visited is a flag per point, and each row is copied
+        // into one scratch array and shuffled there, so a point dequeued allocates nothing but the
+        // queue entries for its neighbours.
+        LayoutGraph g = this.getGraph();
+        int origin = g.pointId(start);
+        int target = g.pointId(end);
+        
+        // The points were looked up before the snapshot was taken, so one renamed or deleted in between
+        // is missing from it.  There is no path to or from a point the graph does not have.
+        if (origin < 0 || target < 0)
+        {
+            return null;
+        }
+        
+        boolean[] visited = new boolean[g.getPointCount()];
+        int[] row = new int[g.getMaxOutDegree()];
+        Queue<PointPath> queue = new ArrayDeque<>();
         
-        queue.add(new PointPath(start, new LinkedList<>()));
+        queue.add(new PointPath(origin, -1, null));
         
         while (!queue.isEmpty())
         {
             PointPath current = queue.remove();
-            Point point = current.start;
-            List<Edge> path = current.path;
+            int point = current.start;
             
-            visited.add(point);
+            visited[point] = true;
             
-            for (Edge next : this.getNeighbors(point))
+            int degree = g.outDegree(point);
+            
+            for (int k = 0; k < degree; k++)
+            {
+                row[k] = g.outEdge(g.outOffset(point) + k);
+            }
+            
+            // Randomize order to allow for variation in paths, as getNeighbors does
+            for (int k = degree - 1; k > 0; k--)
             {
-                if (next.getEnd().equals(end))
+                int swap = ThreadLocalRandom.current().nextInt(k + 1);
+                int tmp = row[k];
+                row[k] = row[swap];
+                row[swap] = tmp;
+            }
+            
+            for (int k = 0; k < degree; k++)
+            {
+                int next = row[k];
+                
+                if (g.to(next) == target)
                 {
-                    path.add(next);
+                    List<Edge> path = current.toPath(g, next);
                                         
                     // Path is not within the list of disallowed paths - return it
                     if (excludePaths == null || !excludePaths.contains(path))
                     {                                  
-                        //this.control.log("Path: " + this.pathToString(path));
                         return path;
                     }
                     // Path is disallowed - continue and get another one
-                    else
-                    {
-                        path.remove(path.size() - 1);
-                    }
                 }
-                else if (!visited.contains(next.getEnd()))
+                else if (!visited[g.to(next)])
                 {
-                    List<Edge> newPath = new LinkedList<>(path);
-                    newPath.add(next);
-                    
-                    queue.add(new PointPath(next.getEnd(), newPath));                    
+                    queue.add(new PointPath(g.to(next), next, current));                    
                 }
             }
         }
@@ -2279,6 +2489,75 @@ public class Layout
         return null;   
     }
     
+    /**
+     * Simple paths between two points, cheapest first by this layout's RouteCost, generated lazily
+     * @param start
+     * @param end
+     * @return nothing if end is not a destination, as bfs returns nothing
+     * @throws Exception if either point is not in this layout
+     */
+    public PathGenerator getPaths(Point start, Point end) throws Exception
+    {
+        LayoutGraph g = this.getGraph();
+        
+        return this.getPaths(g, this.pathCosts(g), start, end);
+    }
+    
+    /**
+     * @param g
+     * @param costs from pathCosts, so that a caller trying many destinations computes them once
+     * @param start
+     * @param end
+     * @return
+     * @throws Exception 
+     */
+    private PathGenerator getPaths(LayoutGraph g, double[] costs, Point start, Point end) throws Exception
+    {
+        start = this.getPoint(start.getName());
+        end = this.getPoint(end.getName());
+                
+        if (start == null || end == null)
+        {
+            throw new Exception(
+                I18n.f("autolayout.errorInvalidPointsSpecified")
+            );
+        }
+        
+        return new PathGenerator(g, costs, g.pointId(start), end.isDestination() ? g.pointId(end) : -1,
+            MAX_PATH_ALTERNATIVES, ThreadLocalRandom.current());
+    }
+    
+    /**
+     * Each edge's cost under the current RouteCost, by edge id
+     * @param g
+     * @return 
+     */
+    private double[] pathCosts(LayoutGraph g)
+    {
+        RouteCost weights = this.routeCost;
+        double[] costs = new double[g.getEdgeCount()];
+        
+        for (int e = 0; e < costs.length; e++)
+        {
+            Edge edge = g.getEdge(e);
+            int turnouts = 0;
+            
+            if (weights.getTurnoutPenalty() > 0)
+            {
+                for (String acc : edge.getConfigCommands().keySet())
+                {
+                    Accessory a = this.control == null ? null : this.control.getAccessoryByName(acc);
+                    
+                    if (a != null && a.isSwitch()) turnouts++;
+                }
+            }
+            
+            costs[e] = weights.cost(edge, turnouts);
+        }
+        
+        return costs;
+    }
+    
     /**
      * Whether a path drives through a reversing STATION on its way somewhere else.
      *
@@ -2356,6 +2635,11 @@ public class Layout
      * @return 
      */
     public Locomotive checkForSlowerLoc(int threshold, Locomotive currentLoc)
+    {
+        return this.checkForSlowerLoc(threshold, currentLoc, true);
+    }
+
+    private Locomotive checkForSlowerLoc(int threshold, Locomotive currentLoc, boolean log)
     {
         // Calculate locomotive that has been inactive the longest
         Locomotive minLoc = null;
@@ -2375,13 +2659,17 @@ public class Layout
         {
             int waited = (int) ((currentLoc.getLastPathTime() - minLoc.getLastPathTime()) / 1000);
             
-            this.control.logf(
-                "autolayout.infoLocomotiveYieldingForInactive",
-                currentLoc.getName(),
-                YIELD_SECONDS,
-                minLoc.getName(),
-                waited
-            );
+            if (log)
+            {
+                this.control.logf(
+                    "autolayout.infoLocomotiveYieldingForInactive",
+                    currentLoc.getName(),
+                    YIELD_SECONDS,
+                    minLoc.getName(),
+                    waited
+                );
+            }
+
             return minLoc;
         }
         
@@ -2405,37 +2693,301 @@ public class Layout
         
         new Thread( () ->
         {    
-            while(running)
-            {                
-                List<Edge> path = this.pickPath(loc);
+            this.lookaheadEligible.add(loc);
 
-                if (path != null)
-                {
-                    this.executePath(path, loc, speed, null);
-                }
+            try
+            {
+                List<Edge> next = null;
 
-                loc.delay(this.getMinDelay() * 1000);
+                while(running)
+                {                
+                    List<Edge> path = next != null ? next : this.pickPath(loc);
+                    next = null;
 
-                // If another locomotive is falling behind, attempt to yield to it
-                if (this.isAutoRunning() && this.maxLocInactiveSeconds > 0)
-                {
-                    Locomotive yieldLoc = this.checkForSlowerLoc(this.maxLocInactiveSeconds, loc);
+                    if (path == null && !loc.isAutonomyPaused())
+                    {
+                        this.lookaheadWaiting.add(loc);
+                    }
+                    else
+                    {
+                        this.lookaheadWaiting.remove(loc);
+                    }
 
-                    if (yieldLoc != null)
+                    if (path != null && !this.executePath(path, loc, speed, null))
                     {
-                        yieldLoc.blockUntilMotion(YIELD_SECONDS);
+                        // Refused before it was claimed - whatever was reserved ahead went with it
+                        this.releaseLookahead(loc);
                     }
-                }                   
-            }
-        }).start();
-    }
-    
-    /**
-     * Returns the current location of the given locomotive
-     * @param loc
-     * @return 
-     */
-    public Point getLocomotiveLocation(Locomotive loc)
+
+                    // With lookahead, the next path was chosen on the way in.  Depart on it now rather
+                    // than dwelling and searching again; the dwell only applies when there is none.
+                    next = this.confirmLookahead(loc);
+
+                    if (next != null)
+                    {
+                        continue;
+                    }
+
+                    loc.delay(this.getMinDelay() * 1000);
+
+                    // If another locomotive is falling behind, attempt to yield to it
+                    if (this.isAutoRunning() && this.maxLocInactiveSeconds > 0)
+                    {
+                        Locomotive yieldLoc = this.checkForSlowerLoc(this.maxLocInactiveSeconds, loc);
+
+                        if (yieldLoc != null)
+                        {
+                            yieldLoc.blockUntilMotion(YIELD_SECONDS);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                this.lookaheadEligible.remove(loc);
+                this.lookaheadWaiting.remove(loc);
+                this.releaseLookahead(loc);
+            }
+        }).start();
+    }
+    
+    /**
+     * Picks and tentatively reserves a locomotive's next path while it is still arriving.
+     *
+     * A train used to look for its next path only once executePath had returned - after it stopped, the
+     * terminus reversal, the route-end callbacks and the station dwell - so a station stayed occupied
+     * for all of that and then for the search and the path's configuration besides.  With lookahead on,
+     * the search runs as the train passes its pre-arrival milestone, from the station it is about to
+     * reach, treating the path it is still on as free.  What it finds is recorded, not claimed: nothing
+     * is marked occupied or commanded, but isPathClear refuses other trains anything that touches it.
+     * On arrival runLocomotive confirms it - configureAndLockPath claims it exactly as any other path,
+     * which is the only point safety rests on - or releases it if it is no longer clear.
+     * @param loc
+     * @param path the path the locomotive is on
+     * @param arrival where that path ends
+     */
+    private void reserveLookahead(Locomotive loc, List<Edge> path, Point arrival)
+    {
+        if (!this.running || !this.isCurrentLayout() || loc.isAutonomyPaused()
+                || !arrival.isActive() || !arrival.isDestination())
+        {
+            return;
+        }
+
+        // A train standing at a station that found no free path is served before one that has not
+        // arrived yet.  Reserving regardless let two trains shuttle through a shared station
+        // indefinitely, each holding it for the other, while a third waited for it for the whole run.
+        for (Locomotive other : this.lookaheadWaiting)
+        {
+            if (!other.equals(loc))
+            {
+                return;
+            }
+        }
+
+        // A train that has fallen behind gets the next departure; this one dwells and yields as usual
+        if (this.maxLocInactiveSeconds > 0 && this.checkForSlowerLoc(this.maxLocInactiveSeconds, loc, false) != null)
+        {
+            return;
+        }
+
+        Set<Edge> own = new HashSet<>();
+
+        for (Edge e : path)
+        {
+            own.add(e);
+            own.addAll(e.getLockEdges());
+        }
+
+        List<Edge> next = this.pickPathFrom(loc, arrival, this.candidateDestinations(), own);
+
+        if (next == null)
+        {
+            return;
+        }
+
+        synchronized (this.activeLocomotives)
+        {
+            // Arrived, or abandoned the path, while this was searching - the moment has passed
+            if (this.activeLocomotives.get(loc) != path || !this.running)
+            {
+                return;
+            }
+
+            // Two trains searching at once can find overlapping paths.  The first one recorded stands.
+            if (this.lookaheadConflict(next, loc) != null)
+            {
+                return;
+            }
+
+            this.lookaheadPoints.put(loc, touchedPoints(next));
+            this.lookaheadPaths.put(loc, next);
+        }
+
+        this.control.logf(
+            "autolayout.infoLookaheadReserved",
+            loc.getName(),
+            this.pathToString(next)
+        );
+    }
+
+    /**
+     * The path reserved ahead for a locomotive that has just arrived, if it may still take it
+     * @param loc
+     * @return null if there is none, in which case any reservation has been released
+     */
+    private List<Edge> confirmLookahead(Locomotive loc)
+    {
+        List<Edge> next = this.lookaheadPaths.get(loc);
+
+        if (next == null)
+        {
+            return null;
+        }
+
+        if (!this.running || !this.lookahead || loc.isAutonomyPaused()
+                || !loc.equals(next.get(0).getStart().getCurrentLocomotive())
+                || (this.maxLocInactiveSeconds > 0 && this.checkForSlowerLoc(this.maxLocInactiveSeconds, loc, false) != null)
+                || !this.isPathClear(next, loc, false))
+        {
+            this.releaseLookahead(loc);
+            return null;
+        }
+
+        return next;
+    }
+
+    /**
+     * Drops whatever was reserved ahead for a locomotive
+     * @param loc
+     */
+    private void releaseLookahead(Locomotive loc)
+    {
+        List<Edge> released = this.lookaheadPaths.remove(loc);
+        this.lookaheadPoints.remove(loc);
+
+        if (released != null)
+        {
+            this.lookaheadReleased.incrementAndGet();
+
+            if (control.isDebug())
+            {
+                this.control.logf(
+                    "autolayout.infoLookaheadReleased",
+                    loc.getName(),
+                    this.pathToString(released)
+                );
+            }
+        }
+    }
+
+    /**
+     * Every point a path touches, including those of the edges it locks
+     * @param path
+     * @return 
+     */
+    private static Set<Point> touchedPoints(List<Edge> path)
+    {
+        Set<Point> touched = new HashSet<>();
+
+        for (Edge e : path)
+        {
+            touched.add(e.getStart());
+            touched.add(e.getEnd());
+
+            for (Edge locked : e.getLockEdges())
+            {
+                touched.add(locked.getStart());
+                touched.add(locked.getEnd());
+            }
+        }
+
+        return touched;
+    }
+
+    /**
+     * Another locomotive whose reserved path shares a point with the given one
+     * @param path
+     * @param loc the locomotive asking, whose own reservation does not count
+     * @return null if there is none
+     */
+    private Locomotive lookaheadConflict(List<Edge> path, Locomotive loc)
+    {
+        if (this.lookaheadPoints.isEmpty())
+        {
+            return null;
+        }
+
+        for (Entry<Locomotive, Set<Point>> reserved : this.lookaheadPoints.entrySet())
+        {
+            if (reserved.getKey().equals(loc))
+            {
+                continue;
+            }
+
+            Set<Point> touched = reserved.getValue();
+
+            for (Edge e : path)
+            {
+                if (touched.contains(e.getStart()) || touched.contains(e.getEnd()))
+                {
+                    return reserved.getKey();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isOwnPoint(Collection<Edge> own, Point p)
+    {
+        for (Edge e : own)
+        {
+            if (e.getStart().equals(p) || e.getEnd().equals(p))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The path reserved ahead for a locomotive, if any
+     * @param loc
+     * @return 
+     */
+    public List<Edge> getLookaheadPath(Locomotive loc)
+    {
+        if (loc == null) return null;
+
+        return this.lookaheadPaths.get(loc);
+    }
+
+    /**
+     * Paths reserved ahead that were then taken, since this layout was loaded
+     * @return 
+     */
+    public long getLookaheadConfirmedCount()
+    {
+        return this.lookaheadConfirmed.get();
+    }
+
+    /**
+     * Paths reserved ahead that were given up instead
+     * @return 
+     */
+    public long getLookaheadReleasedCount()
+    {
+        return this.lookaheadReleased.get();
+    }
+
+    /**
+     * Returns the current location of the given locomotive
+     * @param loc
+     * @return 
+     */
+    public Point getLocomotiveLocation(Locomotive loc)
     {
         for (Point start : this.points.values())
         {
@@ -2458,6 +3010,40 @@ public class Layout
     {
         if (loc.isAutonomyPaused()) return null;
         
+        List<Point> ends = this.candidateDestinations();
+
+        for (Point start : this.points.values())
+        {
+            if (loc.equals(start.getCurrentLocomotive()) 
+                    && start.isActive() && start.isDestination() // not needed from a validation perspective, but will speed things up
+            )
+            {
+                List<Edge> path = this.pickPathFrom(loc, start, ends, Collections.emptySet());
+
+                if (path != null)
+                {
+                    return path;
+                }
+
+                break;
+            }
+        }
+
+        this.control.logf(
+            "autolayout.infoLocomotiveNoFreePaths",
+            loc.getName()
+        );          
+        loc.delay(minDelay, maxDelay);
+        
+        return null;
+    }
+    
+    /**
+     * Every point, shuffled and then sorted by priority, highest first
+     * @return 
+     */
+    private List<Point> candidateDestinations()
+    {
         List<Point> ends = new LinkedList<>(this.points.values());
         Collections.shuffle(ends);
 
@@ -2474,73 +3060,64 @@ public class Layout
             return p2.getPriority() < p1.getPriority() ? -1 : 1;
         });
 
-        for (Point start : this.points.values())
-        {
-            if (loc.equals(start.getCurrentLocomotive()) 
-                    && start.isActive() && start.isDestination() // not needed from a validation perspective, but will speed things up
-            )
+        return ends;
+    }
+
+    /**
+     * The first valid, clear path from a given start to any of the given ends, tried in order
+     * @param loc
+     * @param start
+     * @param ends
+     * @param own see isPathClear
+     * @return null if there is none
+     */
+    private List<Edge> pickPathFrom(Locomotive loc, Point start, List<Point> ends, Collection<Edge> own)
+    {
+        LayoutGraph g = this.getGraph();
+        double[] costs = this.pathCosts(g);
+        
+        for (Point end : ends)
+        {                        
+            // Reversing stations are parking, not traffic: Automation.md has always said they
+            // are chosen only in semi-autonomous operation, where the user picks the route.
+            // The exclusion belongs here and not in isPathClear, because executeTimetable sets
+            // running - so an isAutoRunning() fence would also refuse the "return home" staging
+            // run, which is precisely what is meant to fill these tracks at the end of a
+            // session.  Filtering at selection, never refusing at execution, is the same tier
+            // split the excluded-locomotive rule uses.
+            if (!end.equals(start) && (!end.isOccupied() || isOwnPoint(own, end)) && end.isDestination() && end.isActive()
+                    && !end.isReversing()
+                    && !end.getExcludedLocs().contains(loc))
             {
-                for (Point end : ends)
-                {                        
-                    // Reversing stations are parking, not traffic: Automation.md has always said they
-                    // are chosen only in semi-autonomous operation, where the user picks the route.
-                    // The exclusion belongs here and not in isPathClear, because executeTimetable sets
-                    // running - so an isAutoRunning() fence would also refuse the "return home" staging
-                    // run, which is precisely what is meant to fill these tracks at the end of a
-                    // session.  Filtering at selection, never refusing at execution, is the same tier
-                    // split the excluded-locomotive rule uses.
-                    if (!end.equals(start) && !end.isOccupied() && end.isDestination() && end.isActive()
-                            && !end.isReversing()
-                            && !end.getExcludedLocs().contains(loc))
+                try 
+                {
+                    // If the cheapest path is invalid, check the alternatives in order of cost, and stop
+                    // at the first that is clear
+                    for (PathGenerator paths = this.getPaths(g, costs, start, end); paths.hasNext();)
                     {
-                        try 
-                        {
-                            // If the first shortest path is invalid, check all alternatives                            
-                            List<Edge> path;
-                            List<List<Edge>> seenPaths = new LinkedList<>();
-
-                            do
-                            {
-                                path = this.bfs(start, end, seenPaths);
+                        List<Edge> path = paths.next();
 
-                                if (path != null && !this.passesThroughReversingStation(path)
-                                        && this.isPathClear(path, loc, false))
-                                {
-                                    return path;
-                                }
-                                else if (path != null)
-                                {
-                                    // Get another path other than the one we just saw
-                                    seenPaths.add(path);
-                                }
-
-                            } while (path != null);
-                        }
-                        catch (Exception e)
+                        if (!this.passesThroughReversingStation(path) && this.isPathClear(path, loc, false, own))
                         {
-                            // Not silent.  Execution falls through to the "no free paths" message, which reports
-                            // a normal, expected condition - so a failure here was indistinguishable from simply
-                            // having nowhere to go, and the retry loop went on calling this forever with nothing
-                            // in the log to explain it.
-                            this.control.logf("autolayout.errorPathSelectionFailed", loc.getName());
-                            this.control.log(e);
+                            return path;
                         }
                     }
                 }
-
-                break;
+                catch (Exception e)
+                {
+                    // Not silent.  Execution falls through to the "no free paths" message, which reports
+                    // a normal, expected condition - so a failure here was indistinguishable from simply
+                    // having nowhere to go, and the retry loop went on calling this forever with nothing
+                    // in the log to explain it.
+                    this.control.logf("autolayout.errorPathSelectionFailed", loc.getName());
+                    this.control.log(e);
+                }
             }
         }
 
-        this.control.logf(
-            "autolayout.infoLocomotiveNoFreePaths",
-            loc.getName()
-        );          
-        loc.delay(minDelay, maxDelay);
-        
         return null;
     }
-    
+
     /**
      * Debugs a connection between two points.  Output value will be null for valid paths
      * @param loc
@@ -2553,20 +3130,13 @@ public class Layout
     {
         Map<List<Edge>, String> output = new HashMap<>();
         
-        List<Edge> path;
         List<List<Edge>> seenPaths = new LinkedList<>();
 
         // Get all possible paths
-        do 
+        for (PathGenerator paths = this.getPaths(start, end); paths.hasNext();)
         {
-            path = this.bfs(start, end, seenPaths);
-
-            if (path != null)
-            {
-                seenPaths.add(path);
-            }
-
-        } while (path != null);
+            seenPaths.add(paths.next());
+        }
         
         for (List<Edge> p : seenPaths)
         {
@@ -2620,15 +3190,12 @@ public class Layout
                         {
                             try 
                             {
-                                List<Edge> path;
-                                List<List<Edge>> seenPaths = new LinkedList<>();
-
-                                // If the first shortest path is invalid, check all alternatives                            
-                                do 
+                                // If the cheapest path is invalid, check all alternatives
+                                for (PathGenerator paths = this.getPaths(start, end); paths.hasNext();)
                                 {
-                                    path = this.bfs(start, end, seenPaths);
+                                    List<Edge> path = paths.next();
 
-                                    if (path != null && this.isPathClear(path, loc, false))
+                                    if (this.isPathClear(path, loc, false))
                                     {
                                         boolean unique = true;
 
@@ -2650,14 +3217,7 @@ public class Layout
                                             output.add(path);
                                         }
                                     }
-
-                                    if (path != null)
-                                    {
-                                        // Get another path other than the one we just saw
-                                        seenPaths.add(path);
-                                    }
-
-                                } while (path != null);
+                                }
                             }
                             catch (Exception e)
                             {
@@ -2771,7 +3331,8 @@ public class Layout
      *
      * The staging retry loop already reached this conclusion for itself - STAGING_RETRY_PAUSE exists
      * with "the delay settings may be zero" written against it.  This is the same thought, applied to
-     * the other two places that wait.
+     * an ordinary entry retrying its path.  The dispatch loop and the completion wait used to come
+     * through here too; they now sleep on the TimetableSchedule, which is woken by what they wait for.
      *
      * @param loc
      */
@@ -2837,9 +3398,6 @@ public class Layout
         // Written from an entry's own thread, read here once they have all finished
         final AtomicBoolean abandoned = new AtomicBoolean(false);
 
-        // Capture start time
-        long startTime = System.currentTimeMillis();
-
         // Reset all timestamps in the timetable
         if (!this.timetableHasUnfinishedPaths())
         {
@@ -2859,130 +3417,62 @@ public class Layout
         this.control.logf(
             "autolayout.infoExecutionStartedFromIndex",
             startIndex + 1
-        );        
-        
-        for (int i = startIndex; i < this.timetable.size(); i++)
-        {
-            TimetablePath ttp = this.timetable.get(i);
-            
-            final int index = i;
-
-            // Continuously execute unless user requests graceful stop - or unless this Layout has been
-            // retired.  Without the fence a reload during a run left this loop waiting on a retired
-            // graph forever: the sequential branch below waits for the entry ahead to leave
-            // activeLocomotives, the fence-abort inside executePath returns before removing it, and
-            // nothing reachable from the UI can call stopLocomotives() on a Layout that getAutoLayout()
-            // no longer resolves to.  The executor never returned, so its caller’s finally never ran.
-            //
-            // The completion wait below already reads isRunning() && isCurrentLayout(); this is the
-            // same question asked at the point that actually spins.
-            while (this.running && this.isCurrentLayout())
-            {
-                if (i > startIndex && (System.currentTimeMillis() - startTime) < ttp.getSecondsToNext())
-                {
-                    this.control.logf(
-                        "autolayout.infoWaitingForNextTimetableEntry",
-                        (ttp.getSecondsToNext() - (System.currentTimeMillis() - startTime)) / 1000
-                    );
-                }
-                else if (i > startIndex && this.timetable.get(i - 1).getExecutionTime() == 0)
-                {
-                    this.control.logf(
-                        "autolayout.infoWaitingForPreviousRouteToStart"
-                    );
-                }
-                else if (i > startIndex && this.timetableSequential
-                    && this.activeLocomotives.containsKey(this.timetable.get(i - 1).getLoc()))
-                {
-                    // Sequential mode waits for the train ahead to ARRIVE, not merely to set off
-                    this.control.logf(
-                        "autolayout.infoWaitingForPreviousRouteToFinish"
-                    );
-                }
-                else
-                {
-                    this.control.logf(
-                        "autolayout.infoStartingTimetableRoute",
-                        ttp.toString()
-                    );
-                    startTime = System.currentTimeMillis();
-
-                    new Thread(() ->
-                    {
-                        try
-                        {
-                            int attempts = 0;
-
-                            while (this.running && !this.executePath(ttp.getPath(), ttp.getLoc(), ttp.getLoc().getPreferredSpeed(), ttp))
-                            {
-                                attempts++;
+        );        
 
-                                if (this.timetableSequential && attempts >= STAGING_MAX_ATTEMPTS)
-                                {
-                                    // Retrying cannot help here - with one train moving at a time,
-                                    // nothing will free the path.  Stop and say so rather than spin.
-                                    this.control.logf(
-                                        "autolayout.errorReturnToHomeEntryStuck",
-                                        ttp.toString()
-                                    );
+        // A staging plan is not walked in order - see executeStagingSchedule.  Whatever it dispatched is
+        // waited for below, like the last entry of an ordinary run.
+        if (this.timetableSequential)
+        {
+            this.executeStagingSchedule(abandoned);
+        }
 
-                                    // Recorded so the caller can say so, rather than the operator
-                                    // having to notice a log line and work out that the run ended early
-                                    abandoned.set(true);
+        TimetableSchedule schedule = new TimetableSchedule(this.timetable, startIndex);
+        this.lastTimetableSchedule = schedule;
 
-                                    synchronized (this.activeLocomotives)
-                                    {
-                                        this.stopLocomotives();
-                                    }
+        long runStart = System.currentTimeMillis();
 
-                                    break;
-                                }
+        for (int i = this.timetableSequential ? schedule.size() : startIndex; i < schedule.size(); i++)
+        {
+            TimetablePath ttp = schedule.getEntry(i);
+            
+            final int index = i;
 
-                                this.control.logf(
-                                    "autolayout.infoTimetableEntryNotYetExecutable",
-                                    ttp.toString()
-                                );
+            // Logged once per entry.  Every pass of the old polling loop logged again.
+            boolean loggedWait = false;
 
-                                if (this.timetableSequential)
-                                {
-                                    // Paced independently of the delay settings, which may be zero -
-                                    // that would busy-wait here rather than pause
-                                    try
-                                    {
-                                        Thread.sleep(STAGING_RETRY_PAUSE);
-                                    }
-                                    catch (InterruptedException ie)
-                                    {
-                                        Thread.currentThread().interrupt();
-                                        break;
-                                    }
-                                }
-                                else
-                                {
-                                    this.pacedWait(ttp.getLoc());
-                                }
-                            }
+            // Continuously execute unless user requests graceful stop - or unless this Layout has been
+            // retired.  Without the fence a reload during a run left this loop waiting on a retired
+            // graph forever: the sequential branch below waits for the entry ahead to leave
+            // activeLocomotives, the fence-abort inside executePath returns before removing it, and
+            // nothing reachable from the UI can call stopLocomotives() on a Layout that getAutoLayout()
+            // no longer resolves to.  The executor never returned, so its caller’s finally never ran.
+            //
+            // The completion wait below already reads isRunning() && isCurrentLayout(); this is the
+            // same question asked at the point that actually waits.
+            //
+            // The change count is read before each look at the schedule, so that a change arriving
+            // between the look and the wait ends the wait rather than being slept through.
+            long seen = schedule.getChangeCount();
 
-                            this.control.logf("autolayout.infoTimetablePathFinished");
-                        }
-                        catch (Exception e)
-                        {
-                            this.control.logf(
-                                "autolayout.errorTimetableExecutionFailed",
-                                e.toString()
-                            );
+            while (this.running && this.isCurrentLayout())
+            {
+                long due = schedule.getDueTime(i, runStart);
+                long now = System.currentTimeMillis();
 
-                            // Stop execution
-                            synchronized (this.activeLocomotives)
-                            {
-                                this.stopLocomotives();
-                            }
+                if (due >= 0 && now >= due)
+                {
+                    this.control.logf(
+                        "autolayout.infoStartingTimetableRoute",
+                        ttp.toString()
+                    );
+                    schedule.markDispatched(i, due, now);
 
-                            control.log(e);
-                        }
+                    new Thread(() ->
+                    {
+                        this.driveTimetableEntry(ttp, abandoned);
 
                         // When we are done, exit in this thread to avoid disrupting the final path
-                        if (index == this.timetable.size() - 1)
+                        if (index == schedule.size() - 1)
                         {
                             // Reset running status
                             synchronized (this.activeLocomotives)
@@ -2990,15 +3480,51 @@ public class Layout
                                 this.stopLocomotives();
                             }
 
+                            this.control.logf(
+                                "autolayout.infoTimetableStartSkew",
+                                schedule.getDispatched(),
+                                schedule.getMeanStartSkewMillis(),
+                                schedule.getMaxStartSkewMillis()
+                            );
+
                             this.control.logf("autolayout.infoTimetableExecutionFinished");
                         }
 
                     }).start();
 
                     break;
-                }  
+                }
+
+                if (!loggedWait)
+                {
+                    if (due < 0)
+                    {
+                        this.control.logf(
+                            "autolayout.infoWaitingForPreviousRouteToStart"
+                        );
+                    }
+                    else
+                    {
+                        this.control.logf(
+                            "autolayout.infoWaitingForNextTimetableEntry",
+                            (due - now) / 1000
+                        );
+                    }
 
-                this.pacedWait(ttp.getLoc());
+                    loggedWait = true;
+                }
+
+                try
+                {
+                    // Until the entry is due, or the one before it sets off
+                    schedule.awaitChange(seen, due < 0 ? COMPLETION_POLL : Math.min(due - now, COMPLETION_POLL));
+                    seen = schedule.getChangeCount();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
             }                
         }
 
@@ -3015,11 +3541,15 @@ public class Layout
         // graph, and a wait that polled only that never returned: the timetable was never restored and
         // the buttons never came back.  Both behaviours are right; they had simply never been asked
         // about each other, the wait being newer than the fence.
+        long seen = schedule.getChangeCount();
+
         while (this.isRunning() && this.isCurrentLayout())
         {
             try
             {
-                Thread.sleep(COMPLETION_POLL);
+                // Woken by each arrival and by a stop
+                schedule.awaitChange(seen, COMPLETION_POLL);
+                seen = schedule.getChangeCount();
             }
             catch (InterruptedException e)
             {
@@ -3031,6 +3561,200 @@ public class Layout
         return !abandoned.get();
     }
     
+    /**
+     * Drives one timetable entry, retrying while its path is not clear.
+     *
+     * Runs on the entry's own thread.  A staging entry gives up after STAGING_MAX_ATTEMPTS and records
+     * that in abandoned; an ordinary one keeps retrying for as long as the run lasts.
+     *
+     * @param ttp
+     * @param abandoned
+     * @return true if the train arrived
+     */
+    private boolean driveTimetableEntry(TimetablePath ttp, AtomicBoolean abandoned)
+    {
+        try
+        {
+            int attempts = 0;
+            boolean arrived = false;
+
+            while (this.running && !(arrived = this.executePath(ttp.getPath(), ttp.getLoc(), ttp.getLoc().getPreferredSpeed(), ttp)))
+            {
+                attempts++;
+
+                if (this.timetableSequential && attempts >= STAGING_MAX_ATTEMPTS)
+                {
+                    // Retrying cannot help here - every move sharing this one's track has
+                    // already arrived, so nothing running will free the path.  Stop and say so
+                    // rather than spin.
+                    this.control.logf(
+                        "autolayout.errorReturnToHomeEntryStuck",
+                        ttp.toString()
+                    );
+
+                    // Recorded so the caller can say so, rather than the operator
+                    // having to notice a log line and work out that the run ended early
+                    abandoned.set(true);
+
+                    synchronized (this.activeLocomotives)
+                    {
+                        this.stopLocomotives();
+                    }
+
+                    break;
+                }
+
+                this.control.logf(
+                    "autolayout.infoTimetableEntryNotYetExecutable",
+                    ttp.toString()
+                );
+
+                if (this.timetableSequential)
+                {
+                    // Paced independently of the delay settings, which may be zero -
+                    // that would busy-wait here rather than pause
+                    try
+                    {
+                        Thread.sleep(STAGING_RETRY_PAUSE);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                else
+                {
+                    this.pacedWait(ttp.getLoc());
+                }
+            }
+
+            this.control.logf("autolayout.infoTimetablePathFinished");
+
+            return arrived;
+        }
+        catch (Exception e)
+        {
+            this.control.logf(
+                "autolayout.errorTimetableExecutionFailed",
+                e.toString()
+            );
+
+            // Stop execution
+            synchronized (this.activeLocomotives)
+            {
+                this.stopLocomotives();
+            }
+
+            control.log(e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Runs a staging plan as a dependency graph rather than a queue.
+     *
+     * Entries used to be dispatched in order, each only once the one before it had arrived - the plan is
+     * built on a model in which nothing moves, so that was the one order known to be safe.  But one
+     * move waiting on its path then held back every move after it, including ones on the other side of
+     * the layout, and sending thirty trains home took most of an hour.  StagingSchedule works out which
+     * earlier moves each one genuinely depends on; any move whose dependencies have arrived is
+     * dispatched, up to maxActiveTrains at once.  Two moves running together share no track, station,
+     * section or lock, so neither can contend for an edge the planner never considered.
+     *
+     * Entries already executed - a graceful stop let them finish - count as done.  On completion the
+     * run's makespan is logged against its critical path, the least any schedule could have managed.
+     *
+     * @param abandoned set if an entry gave up
+     */
+    private void executeStagingSchedule(AtomicBoolean abandoned)
+    {
+        StagingSchedule schedule = new StagingSchedule(this.timetable);
+        this.lastStagingSchedule = schedule;
+
+        for (int i = 0; i < schedule.size(); i++)
+        {
+            if (schedule.getMove(i).isExecuted()) schedule.markDone(i);
+        }
+
+        long seen = schedule.getChangeCount();
+
+        while (this.running && this.isCurrentLayout() && !schedule.isComplete())
+        {
+            for (int i : schedule.getReady())
+            {
+                if (this.maxActiveTrains > 0 && schedule.getActive() >= this.maxActiveTrains) break;
+
+                TimetablePath ttp = schedule.getMove(i);
+
+                this.control.logf(
+                    "autolayout.infoStartingTimetableRoute",
+                    ttp.toString()
+                );
+
+                schedule.markStarted(i, System.currentTimeMillis());
+
+                new Thread(() ->
+                {
+                    boolean arrived = this.driveTimetableEntry(ttp, abandoned);
+
+                    schedule.markFinished(i, arrived, System.currentTimeMillis());
+                }).start();
+            }
+
+            try
+            {
+                // Woken by any move finishing; the timeout only catches a stop or a retired layout
+                schedule.awaitChange(seen, COMPLETION_POLL);
+                seen = schedule.getChangeCount();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (schedule.isComplete() && this.running)
+        {
+            this.control.logf(
+                "autolayout.infoStagingScheduleReport",
+                schedule.getMakespanMillis() / 1000,
+                schedule.getCriticalPathMillis() / 1000,
+                schedule.getCriticalPathMoves(),
+                schedule.size(),
+                schedule.getMaxActive()
+            );
+
+            // The ordered walk leaves this to its last entry's thread; here no thread knows it is last
+            synchronized (this.activeLocomotives)
+            {
+                this.stopLocomotives();
+            }
+
+            this.control.logf("autolayout.infoTimetableExecutionFinished");
+        }
+    }
+
+    /**
+     * The due and dispatch times of the most recent ordinary timetable run, or null if there has been none
+     * @return
+     */
+    public TimetableSchedule getLastTimetableSchedule()
+    {
+        return this.lastTimetableSchedule;
+    }
+
+    /**
+     * The dependency graph and timings of the most recent staging run, or null if there has been none
+     * @return
+     */
+    public StagingSchedule getLastStagingSchedule()
+    {
+        return this.lastStagingSchedule;
+    }
+    
     /**
      * If targetS88 is the nextS88 for the given locomotive, this method will wait until it isn't
      * @param l
@@ -3241,6 +3965,12 @@ public class Layout
                     ttp.setExecutionTime(System.currentTimeMillis());
                 }
             }
+
+            // The next timetable entry may be waiting for this one to set off
+            if (ttp != null)
+            {
+                this.timetableChanged();
+            }
              
             this.control.logf(
                 "autolayout.infoExecutingPathForLocomotive",
@@ -3402,6 +4132,15 @@ public class Layout
                     {
                         loc.getCallback(CB_PRE_ARRIVAL).accept(loc);
                     }
+
+                    // Searched for on its own thread: the wait for the arrival sensor starts now, and a
+                    // train stopping late because the planner was busy would overrun the station
+                    if (this.lookahead && this.lookaheadEligible.contains(loc))
+                    {
+                        final Point arrival = current;
+
+                        new Thread(() -> this.reserveLookahead(loc, path, arrival)).start();
+                    }
                     
                     long simEpoch = 0;
 
@@ -3462,6 +4201,8 @@ public class Layout
                 current.toString()
             );
 
+            this.control.getEvents().publish(EventHub.Kind.MILESTONE, loc.getName(), true, current);
+
             synchronized (this.activeLocomotives)
             {
                 List<Point> milestones = this.locomotiveMilestones.get(loc);
@@ -3545,6 +4286,9 @@ public class Layout
             this.pathToString(path)
         );
 
+        // The end of a timetable run waits for every train to arrive
+        this.timetableChanged();
+
         // Track number of completed paths
         loc.incrementNumPaths();
         
@@ -3860,6 +4604,37 @@ public class Layout
     {
         this.atomicRoutes = atomicRoutes;
     }
+
+    public boolean isLookahead()
+    {
+        return lookahead;
+    }
+
+    /**
+     * Whether autonomous trains choose their next path on the way into a station - see reserveLookahead
+     * @param lookahead 
+     */
+    public void setLookahead(boolean lookahead)
+    {
+        this.lookahead = lookahead;
+    }
+    
+    /**
+     * How routes are ranked when a path is picked
+     * @return 
+     */
+    public RouteCost getRouteCost()
+    {
+        return routeCost;
+    }
+
+    /**
+     * @param routeCost 
+     */
+    public void setRouteCost(RouteCost routeCost)
+    {
+        this.routeCost = routeCost == null ? RouteCost.DEFAULT : routeCost;
+    }
     
     /**
      * Replaces the timetable with the one passed
@@ -3972,11 +4747,10 @@ public class Layout
      * hand-built timetable is persisted in the autonomy file, so overwriting it and then saving loses
      * it for good.
      *
-     * The moves are emitted in the order the planner produced, each with no delay, so the existing
-     * timetable machinery does the rest: executeTimetable dispatches entry i+1 once entry i has
-     * started, and its retry loop holds a move back while the train ahead is still on the path it
-     * needs.  That is what turns a sequential plan into as much parallelism as the layout allows,
-     * without a scheduler - and it is why the order matters and must not be rearranged.
+     * The moves are emitted in the order the planner produced, each with no delay.  executeTimetable
+     * runs them through a StagingSchedule, which releases each move once the earlier moves it shares
+     * track with have arrived - as much parallelism as the plan allows, and the reason the order
+     * matters and must not be rearranged: it is what the dependencies are derived from.
      *
      * Capture is forced off for the load: with it on, every move would be appended to the timetable a
      * second time as though the operator had recorded it.
@@ -4016,12 +4790,12 @@ public class Layout
 
         // Must be after setTimetable, which clears it.
         //
-        // The plan is built on a model in which nothing is moving - see HomeStaging - so the moves are
-        // only safe run one at a time.  executeTimetable normally dispatches an entry as soon as the
-        // one before it has STARTED, and executePath locks a whole path up front, so two staging moves
-        // overlapping can contend for an edge the planner never considered: the second retries forever
-        // on a route it cannot abandon, while a free alternative exists that only live path selection
-        // would find.  Observed in exactly that form before this flag existed.
+        // The plan is built on a model in which nothing is moving - see HomeStaging - so two of its moves
+        // may only overlap if they share no track.  executeTimetable normally dispatches an entry as
+        // soon as the one before it has STARTED, and executePath locks a whole path up front, so two
+        // staging moves overlapping can contend for an edge the planner never considered: the second
+        // retries forever on a route it cannot abandon, while a free alternative exists that only live
+        // path selection would find.  Observed in exactly that form before this flag existed.
         this.timetableSequential = true;
 
         this.control.logf("autolayout.infoReturnToHomeLoaded", staged.size());
@@ -4030,10 +4804,10 @@ public class Layout
     }
         
     /**
-     * Whether the loaded timetable must run one train at a time.
+     * Whether the loaded timetable must run under a StagingSchedule rather than in order.
      *
      * True only for a staging plan: it is built on a model in which nothing is moving, so overlapping
-     * its moves can contend for an edge the planner never considered.
+     * moves that share track can contend for an edge the planner never considered.
      *
      * @return
      */
@@ -4227,9 +5001,12 @@ public class Layout
         jsonObj.put("defaultLocSpeed", this.getDefaultLocSpeed());
         jsonObj.put("preArrivalSpeedReduction", this.preArrivalSpeedReduction);
         jsonObj.put("maxLatency", this.getMaxLatency());
+        jsonObj.put("accessoryLatencyGuard", this.isAccessoryLatencyGuard());
         jsonObj.put("turnOffFunctionsOnArrival", this.isTurnOffFunctionsOnArrival());
         jsonObj.put("turnOnFunctionsOnDeparture", this.isTurnOnFunctionsOnDeparture());
         jsonObj.put("atomicRoutes", this.isAtomicRoutes());
+        jsonObj.put("lookahead", this.isLookahead());
+        jsonObj.put("routeCost", this.routeCost.toJSON());
         jsonObj.put("maxActiveTrains", this.maxActiveTrains);
         jsonObj.put("maxLocInactiveSeconds", this.maxLocInactiveSeconds);
         jsonObj.put("timetable", timeTableJson);
@@ -4355,6 +5132,51 @@ public class Layout
                 return layout;
             }    
         }
+
+        if (o.has("accessoryLatencyGuard"))
+        {
+            try
+            {
+                layout.setAccessoryLatencyGuard(o.getBoolean("accessoryLatencyGuard"));
+            }
+            catch (JSONException e)
+            {
+                layout.invalidate(
+                    I18n.f("autolayout.errorAccessoryLatencyGuardInvalid")
+                );
+                return layout;
+            }    
+        }
+              
+        if (o.has("lookahead"))
+        {
+            try
+            {
+                layout.setLookahead(o.getBoolean("lookahead"));
+            }
+            catch (JSONException e)
+            {
+                layout.invalidate(
+                    I18n.f("autolayout.errorLookaheadInvalid")
+                );
+                return layout;
+            }    
+        }
+              
+        if (o.has("routeCost"))
+        {
+            try
+            {
+                layout.setRouteCost(RouteCost.fromJSON(o.getJSONObject("routeCost")));
+            }
+            catch (JSONException | IllegalArgumentException e)
+            {
+                layout.invalidate(
+                    I18n.f("autolayout.errorRouteCostInvalid")
+                );
+                return layout;
+            }    
+        }
               
         if (o.has("maxActiveTrains"))
         {
@@ -0,0 +1,353 @@
+package org.traincontrol.automation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of a Layout's graph with points and edges numbered 0..n-1.
+ *
+ * Outgoing and incoming edges are kept in compressed sparse row form: the edges leaving point p are
+ * outEdge(k) for k from outOffset(p) up to outOffset(p + 1), and likewise for incoming.  Each edge's
+ * ends, length, opposite edge and lock edges are primitive arrays indexed by edge id.
+ *
+ * Layout used to answer "which edges arrive here" by scanning every edge in the graph, so building a
+ * HomeStaging snapshot - one such question per point - was quadratic, and every neighbour lookup copied
+ * a list out of a string-keyed map.  A snapshot is built once and then reused until the topology, an
+ * edge length or a lock edge changes; see Layout.getGraph.
+ *
+ * Rows are sorted by the name of the point at the other end, so an iteration order never depends on
+ * how a hash map happened to lay the edges out.  Callers that want variety, such as bfs, shuffle.
+ *
+ * @author Adam
+ */
+public final class LayoutGraph
+{
+    private final long version;
+    private final long attributeChanges;
+
+    private final Point[] points;
+    private final Edge[] edges;
+    private final Map<String, Integer> pointIds = new HashMap<>();
+    private final Map<String, Integer> edgeIds = new HashMap<>();
+
+    private final int[] outOffset;
+    private final int[] outEdge;
+    private final int[] inOffset;
+    private final int[] inEdge;
+
+    private final int[] from;
+    private final int[] to;
+    private final int[] length;
+    private final int[] opposite;
+    private final int[] lockOffset;
+    private final int[] lockEdge;
+
+    private final int maxOutDegree;
+
+    /**
+     * @param points
+     * @param edges
+     * @param version the layout's topology version when the two collections were read
+     * @param attributeChanges Edge.getAttributeChanges when the two collections were read
+     */
+    LayoutGraph(Collection<Point> points, Collection<Edge> edges, long version, long attributeChanges)
+    {
+        this.version = version;
+        this.attributeChanges = attributeChanges;
+
+        List<Point> all = new ArrayList<>(points);
+
+        for (Point p : all)
+        {
+            this.pointIds.putIfAbsent(p.getName(), this.pointIds.size());
+        }
+
+        // Points an edge refers to but the point list lacks still get an id, so every edge has two ends
+        for (Edge e : edges)
+        {
+            for (Point p : new Point[] {e.getStart(), e.getEnd()})
+            {
+                if (!this.pointIds.containsKey(p.getName()))
+                {
+                    this.pointIds.put(p.getName(), all.size());
+                    all.add(p);
+                }
+            }
+        }
+
+        this.points = all.toArray(new Point[0]);
+
+        // Grouped by start, then by end name, so each outgoing row is contiguous and already sorted
+        List<Edge> sorted = new ArrayList<>(edges);
+        sorted.sort(Comparator.<Edge>comparingInt(e -> this.pointIds.get(e.getStart().getName()))
+            .thenComparing(e -> e.getEnd().getName()));
+
+        this.edges = sorted.toArray(new Edge[0]);
+
+        int n = this.points.length;
+        int m = this.edges.length;
+
+        this.from = new int[m];
+        this.to = new int[m];
+        this.length = new int[m];
+        this.opposite = new int[m];
+
+        for (int e = 0; e < m; e++)
+        {
+            this.edgeIds.put(this.edges[e].getName(), e);
+            this.from[e] = this.pointIds.get(this.edges[e].getStart().getName());
+            this.to[e] = this.pointIds.get(this.edges[e].getEnd().getName());
+            this.length[e] = this.edges[e].getLength();
+        }
+
+        this.outOffset = new int[n + 1];
+        this.outEdge = new int[m];
+        this.inOffset = new int[n + 1];
+        this.inEdge = new int[m];
+
+        for (int e = 0; e < m; e++)
+        {
+            this.outOffset[this.from[e] + 1]++;
+            this.inOffset[this.to[e] + 1]++;
+            this.outEdge[e] = e;
+        }
+
+        int widest = 0;
+
+        for (int p = 0; p < n; p++)
+        {
+            widest = Math.max(widest, this.outOffset[p + 1]);
+            this.outOffset[p + 1] += this.outOffset[p];
+            this.inOffset[p + 1] += this.inOffset[p];
+        }
+
+        this.maxOutDegree = widest;
+
+        // Incoming rows sorted by start name, which is the order getNeighborsAndIncoming has always used
+        Integer[] byStartName = new Integer[m];
+
+        for (int e = 0; e < m; e++)
+        {
+            byStartName[e] = e;
+        }
+
+        Arrays.sort(byStartName, Comparator.comparing(e -> this.edges[e].getStart().getName()));
+
+        int[] fill = Arrays.copyOf(this.inOffset, n);
+
+        for (int e : byStartName)
+        {
+            this.inEdge[fill[this.to[e]]++] = e;
+        }
+
+        List<Integer> locks = new ArrayList<>();
+        this.lockOffset = new int[m + 1];
+
+        for (int e = 0; e < m; e++)
+        {
+            Integer back = this.edgeIds.get(this.edges[e].getOppositeName());
+            this.opposite[e] = back == null ? -1 : back;
+
+            for (Edge locked : this.edges[e].getLockEdges())
+            {
+                // A lock edge that has since left the graph can never be occupied
+                Integer id = locked == null ? null : this.edgeIds.get(locked.getName());
+
+                if (id != null) locks.add(id);
+            }
+
+            this.lockOffset[e + 1] = locks.size();
+        }
+
+        this.lockEdge = locks.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Whether this snapshot still describes the layout
+     * @param version
+     * @param attributeChanges
+     * @return
+     */
+    boolean isCurrent(long version, long attributeChanges)
+    {
+        return this.version == version && this.attributeChanges == attributeChanges;
+    }
+
+    public int getPointCount()
+    {
+        return this.points.length;
+    }
+
+    public int getEdgeCount()
+    {
+        return this.edges.length;
+    }
+
+    /**
+     * @param name
+     * @return the point's id, or -1 if the graph has no point of that name
+     */
+    public int pointId(String name)
+    {
+        Integer id = this.pointIds.get(name);
+
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param p
+     * @return the point's id, or -1 if the graph has no point of that name
+     */
+    public int pointId(Point p)
+    {
+        return p == null ? -1 : this.pointId(p.getName());
+    }
+
+    /**
+     * @param e
+     * @return the edge's id, or -1 if the graph has no such edge
+     */
+    public int edgeId(Edge e)
+    {
+        Integer id = e == null ? null : this.edgeIds.get(e.getName());
+
+        return id == null ? -1 : id;
+    }
+
+    public Point getPoint(int p)
+    {
+        return this.points[p];
+    }
+
+    public Edge getEdge(int e)
+    {
+        return this.edges[e];
+    }
+
+    /**
+     * Where point p's outgoing row starts; outOffset(p + 1) is where it ends
+     * @param p
+     * @return
+     */
+    public int outOffset(int p)
+    {
+        return this.outOffset[p];
+    }
+
+    public int outEdge(int k)
+    {
+        return this.outEdge[k];
+    }
+
+    /**
+     * Where point p's incoming row starts; inOffset(p + 1) is where it ends
+     * @param p
+     * @return
+     */
+    public int inOffset(int p)
+    {
+        return this.inOffset[p];
+    }
+
+    public int inEdge(int k)
+    {
+        return this.inEdge[k];
+    }
+
+    public int outDegree(int p)
+    {
+        return this.outOffset[p + 1] - this.outOffset[p];
+    }
+
+    public int inDegree(int p)
+    {
+        return this.inOffset[p + 1] - this.inOffset[p];
+    }
+
+    /**
+     * The most edges leaving any one point - the size of scratch space a caller iterating rows needs
+     * @return
+     */
+    public int getMaxOutDegree()
+    {
+        return this.maxOutDegree;
+    }
+
+    public int from(int e)
+    {
+        return this.from[e];
+    }
+
+    public int to(int e)
+    {
+        return this.to[e];
+    }
+
+    public int length(int e)
+    {
+        return this.length[e];
+    }
+
+    /**
+     * @param e
+     * @return the id of the edge joining the same points the other way, or -1 if there is none
+     */
+    public int opposite(int e)
+    {
+        return this.opposite[e];
+    }
+
+    /**
+     * Where edge e's lock edges start; lockOffset(e + 1) is where they end
+     * @param e
+     * @return
+     */
+    public int lockOffset(int e)
+    {
+        return this.lockOffset[e];
+    }
+
+    public int lockEdge(int k)
+    {
+        return this.lockEdge[k];
+    }
+
+    /**
+     * The edges leaving a point, as a new list in row order
+     * @param p
+     * @return
+     */
+    public List<Edge> getOutgoing(int p)
+    {
+        List<Edge> out = new ArrayList<>(this.outDegree(p));
+
+        for (int k = this.outOffset[p]; k < this.outOffset[p + 1]; k++)
+        {
+            out.add(this.edges[this.outEdge[k]]);
+        }
+
+        return out;
+    }
+
+    /**
+     * The edges arriving at a point, as a new list in row order
+     * @param p
+     * @return
+     */
+    public List<Edge> getIncoming(int p)
+    {
+        List<Edge> in = new ArrayList<>(this.inDegree(p));
+
+        for (int k = this.inOffset[p]; k < this.inOffset[p + 1]; k++)
+        {
+            in.add(this.edges[this.inEdge[k]]);
+        }
+
+        return in;
+    }
+}
@@ -0,0 +1,320 @@
+package org.traincontrol.automation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Simple paths between two points, cheapest first, generated one at a time (Yen's algorithm).
+ *
+ * pickPath used to find alternatives by running bfs again with every route it had already rejected
+ * passed in as an exclusion list, so the k-th alternative cost k searches each probing a list of k
+ * routes, and the ranking knew only hop counts although edges carry a length.  This ranks by a
+ * RouteCost over a LayoutGraph snapshot, and each next() does only the spur searches needed to produce
+ * one more route - so a caller that stops at the first clear one pays for nothing after it.
+ *
+ * Ties between routes of equal cost are broken at random, as bfs's shuffled neighbours break them, so
+ * repeated runs still spread trains over equivalent routes.  A point's route to itself is not a simple
+ * path and yields nothing.
+ *
+ * Not thread safe; one search, one thread.
+ *
+ * @author Adam
+ */
+public final class PathGenerator implements Iterator<List<Edge>>
+{
+    private final LayoutGraph graph;
+    private final double[] cost;
+    private final int start;
+    private final int end;
+    private final int limit;
+    private final Random random;
+
+    /** Routes yielded so far, as edge ids. */
+    private final List<int[]> found = new ArrayList<>();
+
+    /** Yen's candidate set: spur routes not yet yielded, cheapest first. */
+    private final PriorityQueue<Candidate> candidates = new PriorityQueue<>();
+    private final Set<List<Integer>> queued = new HashSet<>();
+
+    // Dijkstra scratch, reused by every spur search
+    private final double[] distance;
+    private final int[] via;
+    private final boolean[] bannedPoint;
+    private final boolean[] bannedEdge;
+
+    private int[] next;
+    private boolean exhausted;
+
+    private static final class Candidate implements Comparable<Candidate>
+    {
+        private final int[] edges;
+        private final double cost;
+        private final int tie;
+
+        private Candidate(int[] edges, double cost, int tie)
+        {
+            this.edges = edges;
+            this.cost = cost;
+            this.tie = tie;
+        }
+
+        @Override
+        public int compareTo(Candidate o)
+        {
+            int c = Double.compare(this.cost, o.cost);
+
+            return c != 0 ? c : Integer.compare(this.tie, o.tie);
+        }
+    }
+
+    /**
+     * @param graph
+     * @param cost per edge id; every entry must be positive
+     * @param start point id
+     * @param end point id
+     * @param limit the most routes to yield
+     * @param random breaks ties between routes of equal cost
+     */
+    public PathGenerator(LayoutGraph graph, double[] cost, int start, int end, int limit, Random random)
+    {
+        this.graph = graph;
+        this.cost = cost;
+        this.start = start;
+        this.end = end;
+        this.limit = limit;
+        this.random = random;
+
+        int n = graph.getPointCount();
+
+        this.distance = new double[n];
+        this.via = new int[n];
+        this.bannedPoint = new boolean[n];
+        this.bannedEdge = new boolean[graph.getEdgeCount()];
+
+        this.exhausted = start == end || start < 0 || end < 0 || limit <= 0;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (this.next == null && !this.exhausted)
+        {
+            this.next = this.advance();
+            this.exhausted = this.next == null;
+        }
+
+        return this.next != null;
+    }
+
+    @Override
+    public List<Edge> next()
+    {
+        if (!this.hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+
+        int[] path = this.next;
+        this.next = null;
+
+        List<Edge> out = new LinkedList<>();
+
+        for (int e : path)
+        {
+            out.add(this.graph.getEdge(e));
+        }
+
+        return out;
+    }
+
+    /**
+     * Routes yielded so far
+     * @return
+     */
+    public int getCount()
+    {
+        return this.found.size();
+    }
+
+    /**
+     * The cost of a route, by the weights this search ranks with
+     * @param path edge ids
+     * @return
+     */
+    public double cost(int[] path)
+    {
+        double total = 0;
+
+        for (int e : path)
+        {
+            total += this.cost[e];
+        }
+
+        return total;
+    }
+
+    /**
+     * The next cheapest route, or null if there are no more
+     */
+    private int[] advance()
+    {
+        if (this.found.size() >= this.limit)
+        {
+            return null;
+        }
+
+        if (this.found.isEmpty())
+        {
+            int[] first = this.shortest(this.start);
+
+            if (first != null)
+            {
+                this.found.add(first);
+            }
+
+            return first;
+        }
+
+        int[] last = this.found.get(this.found.size() - 1);
+
+        // Deviate from the last route at each of its points in turn, keeping the part before the
+        // deviation and banning whatever would lead back onto a route already yielded
+        for (int i = 0; i < last.length; i++)
+        {
+            int spur = i == 0 ? this.start : this.graph.to(last[i - 1]);
+
+            Arrays.fill(this.bannedPoint, false);
+            Arrays.fill(this.bannedEdge, false);
+
+            for (int k = 0; k < i; k++)
+            {
+                this.bannedPoint[this.graph.from(last[k])] = true;
+            }
+
+            for (int[] p : this.found)
+            {
+                if (p.length > i && samePrefix(p, last, i))
+                {
+                    this.bannedEdge[p[i]] = true;
+                }
+            }
+
+            int[] tail = this.shortest(spur);
+
+            if (tail != null)
+            {
+                int[] route = Arrays.copyOf(last, i + tail.length);
+                System.arraycopy(tail, 0, route, i, tail.length);
+
+                List<Integer> key = new ArrayList<>(route.length);
+
+                for (int e : route)
+                {
+                    key.add(e);
+                }
+
+                if (this.queued.add(key))
+                {
+                    this.candidates.add(new Candidate(route, this.cost(route), this.random.nextInt()));
+                }
+            }
+        }
+
+        Candidate best = this.candidates.poll();
+
+        if (best == null)
+        {
+            return null;
+        }
+
+        this.found.add(best.edges);
+
+        return best.edges;
+    }
+
+    private static boolean samePrefix(int[] a, int[] b, int length)
+    {
+        for (int k = 0; k < length; k++)
+        {
+            if (a[k] != b[k]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Dijkstra from a point to the end, avoiding banned points and edges
+     * @param from
+     * @return edge ids, or null if the end cannot be reached
+     */
+    private int[] shortest(int from)
+    {
+        Arrays.fill(this.distance, Double.POSITIVE_INFINITY);
+        Arrays.fill(this.via, -1);
+
+        // Entries are {distance, random tie-break, point}; stale ones are skipped when polled
+        PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) ->
+            a[0] != b[0] ? Double.compare(a[0], b[0]) : Double.compare(a[1], b[1]));
+
+        this.distance[from] = 0;
+        queue.add(new double[] {0, 0, from});
+
+        while (!queue.isEmpty())
+        {
+            double[] top = queue.poll();
+            int p = (int) top[2];
+
+            if (top[0] > this.distance[p])
+            {
+                continue;
+            }
+
+            if (p == this.end)
+            {
+                break;
+            }
+
+            for (int k = this.graph.outOffset(p); k < this.graph.outOffset(p + 1); k++)
+            {
+                int e = this.graph.outEdge(k);
+                int q = this.graph.to(e);
+
+                if (this.bannedEdge[e] || this.bannedPoint[q] || q == from)
+                {
+                    continue;
+                }
+
+                double d = top[0] + this.cost[e];
+
+                if (d < this.distance[q])
+                {
+                    this.distance[q] = d;
+                    this.via[q] = e;
+                    queue.add(new double[] {d, this.random.nextDouble(), q});
+                }
+            }
+        }
+
+        if (this.via[this.end] < 0)
+        {
+            return null;
+        }
+
+        LinkedList<Integer> edges = new LinkedList<>();
+
+        for (int p = this.end; p != from; p = this.graph.from(this.via[p]))
+        {
+            edges.addFirst(this.via[p]);
+        }
+
+        return edges.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,243 @@
+package org.traincontrol.automation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks over the parts of the layout a path claim touches.
+ *
+ * Claiming a path used to hold the Layout monitor from the occupancy check through the last accessory
+ * command - CONFIGURE_SLEEP per command and per edge, so seconds on a long path - and every other
+ * train's path check, timetable read and UI query waited behind it, however far away.  The monitor is
+ * now held only to check and mark occupancy, which is quick.  The slow part, commanding the path's
+ * accessories, is guarded here instead: by the points the path and its lock edges touch and the
+ * accessories it sets, each hashed to one of a fixed set of stripes.
+ *
+ * A claim takes all of its stripes or none.  They are tried in ascending stripe order; if one is held,
+ * everything taken so far is released, that stripe's contention counter is bumped, and the claim
+ * backs off briefly before trying again.  Two claims in separate parts of the layout almost always hash
+ * to disjoint stripes and configure side by side; two that share a point or an accessory take turns,
+ * so their commands are never interleaved.
+ *
+ * @author Adam
+ */
+public final class PathReservations
+{
+    // Power of two.  Collisions only cost parallelism, never correctness.
+    public static final int STRIPES = 64;
+
+    // Back-off between attempts, doubling up to the cap
+    private static final long BACKOFF_MIN_NS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final long BACKOFF_MAX_NS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final AtomicLongArray contention = new AtomicLongArray(STRIPES);
+    private final AtomicLongArray claims = new AtomicLongArray(STRIPES);
+
+    /**
+     * A set of stripes held by one claim
+     */
+    public final class Claim implements AutoCloseable
+    {
+        private final int[] held;
+
+        private Claim(int[] held)
+        {
+            this.held = held;
+        }
+
+        /**
+         * The stripes this claim holds, ascending
+         * @return
+         */
+        public int[] getStripes()
+        {
+            return this.held.clone();
+        }
+
+        /**
+         * Releases every stripe
+         */
+        @Override
+        public void close()
+        {
+            for (int i = this.held.length - 1; i >= 0; i--)
+            {
+                stripes[this.held[i]].unlock();
+            }
+        }
+    }
+
+    public PathReservations()
+    {
+        for (int i = 0; i < STRIPES; i++)
+        {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * The stripes a path claim needs: every point its edges and their lock edges touch, and every
+     * accessory the path sets
+     * @param path
+     * @return ascending, without duplicates
+     */
+    public static int[] footprint(List<Edge> path)
+    {
+        TreeSet<Integer> out = new TreeSet<>();
+
+        for (Edge e : path)
+        {
+            addEdge(out, e);
+
+            for (Edge locked : e.getLockEdges())
+            {
+                addEdge(out, locked);
+            }
+
+            for (String accessory : e.getConfigCommands().keySet())
+            {
+                out.add(stripeOf("a:" + accessory));
+            }
+        }
+
+        return out.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static void addEdge(TreeSet<Integer> out, Edge e)
+    {
+        out.add(stripeOf("p:" + e.getStart().getUniqueId()));
+        out.add(stripeOf("p:" + e.getEnd().getUniqueId()));
+    }
+
+    /**
+     * @param key
+     * @return
+     */
+    public static int stripeOf(String key)
+    {
+        int h = key.hashCode();
+
+        // Spread the high bits, as HashMap does, so that similar names do not crowd the same stripes
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Takes every stripe a path needs, waiting as long as it takes
+     * @param path
+     * @return a claim, to be closed once the path is configured
+     * @throws InterruptedException
+     */
+    public Claim claim(List<Edge> path) throws InterruptedException
+    {
+        return this.claim(footprint(path));
+    }
+
+    /**
+     * Takes every given stripe, or none, retrying with back-off until all are free at once
+     * @param wanted ascending
+     * @return
+     * @throws InterruptedException
+     */
+    public Claim claim(int[] wanted) throws InterruptedException
+    {
+        long backoff = BACKOFF_MIN_NS;
+
+        while (true)
+        {
+            Claim c = this.tryClaim(wanted);
+
+            if (c != null) return c;
+
+            if (Thread.interrupted()) throw new InterruptedException();
+
+            LockSupport.parkNanos(backoff);
+            backoff = Math.min(backoff * 2, BACKOFF_MAX_NS);
+        }
+    }
+
+    /**
+     * One attempt at taking every given stripe
+     * @param wanted ascending
+     * @return null if any was held, in which case none are
+     */
+    public Claim tryClaim(int[] wanted)
+    {
+        List<Integer> taken = new ArrayList<>(wanted.length);
+
+        for (int s : wanted)
+        {
+            if (!this.stripes[s].tryLock())
+            {
+                this.contention.incrementAndGet(s);
+
+                for (int i = taken.size() - 1; i >= 0; i--)
+                {
+                    this.stripes[taken.get(i)].unlock();
+                }
+
+                return null;
+            }
+
+            taken.add(s);
+        }
+
+        for (int s : wanted)
+        {
+            this.claims.incrementAndGet(s);
+        }
+
+        return new Claim(wanted.clone());
+    }
+
+    /**
+     * How often a claim found this stripe held and had to back off
+     * @param stripe
+     * @return
+     */
+    public long getContention(int stripe)
+    {
+        return this.contention.get(stripe);
+    }
+
+    /**
+     * How often this stripe has been claimed
+     * @param stripe
+     * @return
+     */
+    public long getClaims(int stripe)
+    {
+        return this.claims.get(stripe);
+    }
+
+    /**
+     * Back-offs over all stripes
+     * @return
+     */
+    public long getTotalContention()
+    {
+        long total = 0;
+
+        for (int i = 0; i < STRIPES; i++)
+        {
+            total += this.contention.get(i);
+        }
+
+        return total;
+    }
+
+    /**
+     * Whether a stripe is held right now - for tests and diagnostics
+     * @param stripe
+     * @return
+     */
+    public boolean isHeld(int stripe)
+    {
+        return this.stripes[stripe].isLocked();
+    }
+}
@@ -0,0 +1,124 @@
+package org.traincontrol.automation;
+
+import org.json.JSONObject;
+import org.traincontrol.util.I18n;
+
+/**
+ * How the autonomy path search weighs one route against another.
+ *
+ * Every edge costs one, so with nothing else set the cheapest route is the one with the fewest edges -
+ * exactly what bfs has always returned.  On top of that an edge can cost its length times lengthWeight,
+ * turnoutPenalty for each switch it sets, and reversingPenalty if it ends on a reversing point; and with
+ * speedWeighted, the total is divided by the speed multiplier of the point it ends on, so a stretch the
+ * train has to crawl through costs more than one it can run at full speed.
+ *
+ * Immutable; Layout holds one and PathGenerator reads it once per search.
+ *
+ * @author Adam
+ */
+public final class RouteCost
+{
+    /** One per edge and nothing else - routes are ranked by hop count, as bfs ranks them. */
+    public static final RouteCost DEFAULT = new RouteCost(0, 0, 0, false);
+
+    private final int lengthWeight;
+    private final int turnoutPenalty;
+    private final int reversingPenalty;
+    private final boolean speedWeighted;
+
+    /**
+     * @param lengthWeight added per unit of edge length
+     * @param turnoutPenalty added per switch an edge sets
+     * @param reversingPenalty added for an edge ending on a reversing point
+     * @param speedWeighted divide each edge's cost by the speed multiplier of the point it ends on
+     */
+    public RouteCost(int lengthWeight, int turnoutPenalty, int reversingPenalty, boolean speedWeighted)
+    {
+        if (lengthWeight < 0 || turnoutPenalty < 0 || reversingPenalty < 0)
+        {
+            throw new IllegalArgumentException(I18n.f("autolayout.errorRouteCostInvalid"));
+        }
+
+        this.lengthWeight = lengthWeight;
+        this.turnoutPenalty = turnoutPenalty;
+        this.reversingPenalty = reversingPenalty;
+        this.speedWeighted = speedWeighted;
+    }
+
+    public int getLengthWeight()
+    {
+        return this.lengthWeight;
+    }
+
+    public int getTurnoutPenalty()
+    {
+        return this.turnoutPenalty;
+    }
+
+    public int getReversingPenalty()
+    {
+        return this.reversingPenalty;
+    }
+
+    public boolean isSpeedWeighted()
+    {
+        return this.speedWeighted;
+    }
+
+    /**
+     * The cost of one edge
+     * @param e
+     * @param turnouts how many switches the edge sets
+     * @return always at least some positive amount, so the cheapest route to anywhere is a simple one
+     */
+    public double cost(Edge e, int turnouts)
+    {
+        double cost = 1 + (double) this.lengthWeight * e.getLength() + (double) this.turnoutPenalty * turnouts;
+
+        if (e.getEnd().isReversing())
+        {
+            cost += this.reversingPenalty;
+        }
+
+        if (this.speedWeighted && e.getEnd().getSpeedMultiplier() > 0)
+        {
+            cost /= e.getEnd().getSpeedMultiplier();
+        }
+
+        return cost;
+    }
+
+    public JSONObject toJSON()
+    {
+        JSONObject o = new JSONObject();
+
+        o.put("lengthWeight", this.lengthWeight);
+        o.put("turnoutPenalty", this.turnoutPenalty);
+        o.put("reversingPenalty", this.reversingPenalty);
+        o.put("speedWeighted", this.speedWeighted);
+
+        return o;
+    }
+
+    /**
+     * @param o
+     * @return
+     * @throws org.json.JSONException if a field has the wrong type
+     * @throws IllegalArgumentException if a weight is negative
+     */
+    public static RouteCost fromJSON(JSONObject o)
+    {
+        return new RouteCost(
+            o.has("lengthWeight") ? o.getInt("lengthWeight") : 0,
+            o.has("turnoutPenalty") ? o.getInt("turnoutPenalty") : 0,
+            o.has("reversingPenalty") ? o.getInt("reversingPenalty") : 0,
+            o.has("speedWeighted") && o.getBoolean("speedWeighted")
+        );
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.toJSON().toString();
+    }
+}
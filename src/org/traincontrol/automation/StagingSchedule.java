@@ -0,0 +1,352 @@
+package org.traincontrol.automation;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The order a staging plan's moves actually have to keep.
+ *
+ * HomeStaging emits a sequence, valid run one train at a time.  Most of that order is incidental: a
+ * move only has to wait for an earlier one if the two share something - the same locomotive, a point
+ * either drives through or stops on, a detection section, or an edge either one locks.  Two moves that
+ * share none of that cannot change anything the other depends on, so running them side by side is
+ * exactly as valid as running them in sequence.  Each move therefore depends on every earlier move it
+ * conflicts with, and nothing else, and is ready as soon as those are done.
+ *
+ * Also records when each move started and finished, so a run can report how long it took against the
+ * longest chain of dependent moves - the least any schedule could have taken.
+ *
+ * @author Adam
+ */
+public final class StagingSchedule
+{
+    private final List<TimetablePath> moves;
+
+    /** Per move: the earlier moves it conflicts with */
+    private final int[][] predecessors;
+
+    private final boolean[] started;
+    private final boolean[] done;
+    private final long[] startedAt;
+    private final long[] finishedAt;
+
+    private int active = 0;
+    private int maxActive = 0;
+
+    // Bumped by every move finishing, so a waiter can tell whether one finished after it last looked
+    private long changes = 0;
+
+    /**
+     * @param moves a staging plan, in the order it was planned
+     */
+    public StagingSchedule(List<TimetablePath> moves)
+    {
+        this.moves = new ArrayList<>(moves);
+
+        int n = this.moves.size();
+        List<Set<String>> footprints = new ArrayList<>();
+
+        for (TimetablePath move : this.moves)
+        {
+            footprints.add(footprint(move));
+        }
+
+        this.predecessors = new int[n][];
+
+        for (int i = 0; i < n; i++)
+        {
+            List<Integer> before = new ArrayList<>();
+
+            for (int j = 0; j < i; j++)
+            {
+                if (this.moves.get(i).getLoc().equals(this.moves.get(j).getLoc())
+                    || intersects(footprints.get(i), footprints.get(j)))
+                {
+                    before.add(j);
+                }
+            }
+
+            this.predecessors[i] = before.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        this.started = new boolean[n];
+        this.done = new boolean[n];
+        this.startedAt = new long[n];
+        this.finishedAt = new long[n];
+    }
+
+    /**
+     * Everything a move touches: each point it passes or stops on, those points' sensors, and every edge
+     * it drives or locks along with the points at either end of it.
+     *
+     * Deliberately generous.  A conflict that is not real costs some parallelism; one that is missed
+     * sends two trains at the same track.
+     */
+    private static Set<String> footprint(TimetablePath move)
+    {
+        Set<String> out = new HashSet<>();
+
+        for (Edge e : move.getPath())
+        {
+            addEdge(out, e);
+
+            for (Edge locked : e.getLockEdges())
+            {
+                addEdge(out, locked);
+            }
+        }
+
+        return out;
+    }
+
+    private static void addEdge(Set<String> out, Edge e)
+    {
+        out.add("e:" + e.getUniqueId());
+
+        for (Point p : new Point[] {e.getStart(), e.getEnd()})
+        {
+            out.add("p:" + p.getUniqueId());
+
+            if (p.getS88() != null) out.add("s:" + p.getS88());
+        }
+    }
+
+    private static boolean intersects(Set<String> a, Set<String> b)
+    {
+        Set<String> smaller = a.size() < b.size() ? a : b;
+        Set<String> larger = smaller == a ? b : a;
+
+        for (String s : smaller)
+        {
+            if (larger.contains(s)) return true;
+        }
+
+        return false;
+    }
+
+    public int size()
+    {
+        return this.moves.size();
+    }
+
+    public TimetablePath getMove(int i)
+    {
+        return this.moves.get(i);
+    }
+
+    /**
+     * The earlier moves this one has to wait for
+     * @param i
+     * @return
+     */
+    public List<Integer> getPredecessors(int i)
+    {
+        List<Integer> out = new ArrayList<>();
+
+        for (int p : this.predecessors[i])
+        {
+            out.add(p);
+        }
+
+        return out;
+    }
+
+    /**
+     * Moves not yet started whose predecessors have all finished, in plan order
+     * @return
+     */
+    synchronized public List<Integer> getReady()
+    {
+        List<Integer> out = new ArrayList<>();
+
+        for (int i = 0; i < this.moves.size(); i++)
+        {
+            if (this.started[i]) continue;
+
+            boolean ready = true;
+
+            for (int p : this.predecessors[i])
+            {
+                if (!this.done[p])
+                {
+                    ready = false;
+                    break;
+                }
+            }
+
+            if (ready) out.add(i);
+        }
+
+        return out;
+    }
+
+    /**
+     * Marks a move as dispatched
+     * @param i
+     * @param now
+     */
+    synchronized public void markStarted(int i, long now)
+    {
+        this.started[i] = true;
+        this.startedAt[i] = now;
+        this.active++;
+        this.maxActive = Math.max(this.maxActive, this.active);
+    }
+
+    /**
+     * Marks a move as over.  One that did not arrive stays not done, so nothing that depends on it is
+     * ever released.
+     * @param i
+     * @param arrived
+     * @param now
+     */
+    synchronized public void markFinished(int i, boolean arrived, long now)
+    {
+        this.done[i] = arrived;
+        this.finishedAt[i] = now;
+        this.active--;
+        this.changes++;
+        notifyAll();
+    }
+
+    /**
+     * Marks a move as already done before this run - one a graceful stop let finish
+     * @param i
+     */
+    synchronized public void markDone(int i)
+    {
+        this.started[i] = true;
+        this.done[i] = true;
+    }
+
+    /**
+     * Moves dispatched and not yet finished
+     * @return
+     */
+    synchronized public int getActive()
+    {
+        return this.active;
+    }
+
+    /**
+     * The most moves that were running at once
+     * @return
+     */
+    synchronized public int getMaxActive()
+    {
+        return this.maxActive;
+    }
+
+    synchronized public boolean isComplete()
+    {
+        for (boolean d : this.done)
+        {
+            if (!d) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * How many moves have finished.  Read before looking for ready moves, and passed to awaitChange.
+     * @return
+     */
+    synchronized public long getChangeCount()
+    {
+        return this.changes;
+    }
+
+    /**
+     * Waits until a move has finished since the count was read, or the timeout passes, whichever is
+     * first.  A move that finished while the caller was dispatching no longer leaves it asleep for the
+     * whole timeout.
+     * @param seen the change count read before the caller looked for ready moves
+     * @param millis
+     * @throws InterruptedException
+     */
+    synchronized public void awaitChange(long seen, long millis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + millis;
+        long left = millis;
+
+        while (this.changes == seen && left > 0)
+        {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The most moves in any chain of dependent ones - the length of a run if every move took equally
+     * long and the trains were unlimited
+     * @return
+     */
+    public int getCriticalPathMoves()
+    {
+        int[] chain = new int[this.moves.size()];
+        int longest = 0;
+
+        for (int i = 0; i < chain.length; i++)
+        {
+            chain[i] = 1;
+
+            for (int p : this.predecessors[i])
+            {
+                chain[i] = Math.max(chain[i], chain[p] + 1);
+            }
+
+            longest = Math.max(longest, chain[i]);
+        }
+
+        return longest;
+    }
+
+    /**
+     * The longest chain of dependent moves, timed by how long each actually took in this run - the
+     * least any schedule could have taken with the same moves
+     * @return ms
+     */
+    synchronized public long getCriticalPathMillis()
+    {
+        long[] chain = new long[this.moves.size()];
+        long longest = 0;
+
+        for (int i = 0; i < chain.length; i++)
+        {
+            long own = this.finishedAt[i] > 0 ? this.finishedAt[i] - this.startedAt[i] : 0;
+
+            chain[i] = own;
+
+            for (int p : this.predecessors[i])
+            {
+                chain[i] = Math.max(chain[i], chain[p] + own);
+            }
+
+            longest = Math.max(longest, chain[i]);
+        }
+
+        return longest;
+    }
+
+    /**
+     * From the first move dispatched to the last one finished in this run
+     * @return ms
+     */
+    synchronized public long getMakespanMillis()
+    {
+        long first = Long.MAX_VALUE;
+        long last = 0;
+
+        for (int i = 0; i < this.moves.size(); i++)
+        {
+            if (this.finishedAt[i] == 0) continue;
+
+            first = Math.min(first, this.startedAt[i]);
+            last = Math.max(last, this.finishedAt[i]);
+        }
+
+        return last == 0 ? 0 : last - first;
+    }
+}
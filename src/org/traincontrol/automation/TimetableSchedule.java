@@ -0,0 +1,196 @@
+package org.traincontrol.automation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * When each entry of an ordinary timetable run is due, and when it was actually dispatched.
+ *
+ * An entry is due a fixed gap - its secondsToNext, which is in milliseconds - after the one before it
+ * was dispatched, but never before that one has claimed its path and set off.  The dispatch loop used
+ * to find that out by sleeping COMPLETION_POLL or an action delay between checks, so an entry set off
+ * anywhere up to a quarter of a second late, or a whole action delay, and every pass logged another
+ * "waiting" line.  It now sleeps until the due time exactly, and is woken early by the events that can
+ * change it: the previous entry starting, a path finishing, or the run being stopped.
+ *
+ * The entries are copied into an ArrayList.  The timetable itself is a LinkedList, and indexing it
+ * from a loop over thousands of captured entries was quadratic.
+ *
+ * @author Adam
+ */
+public final class TimetableSchedule
+{
+    private final List<TimetablePath> entries;
+    private final int startIndex;
+
+    private final long[] dueAt;
+    private final long[] dispatchedAt;
+
+    private int dispatched = 0;
+
+    // Bumped by every change, so a waiter can tell whether one came after it last looked
+    private long changes = 0;
+
+    /**
+     * @param timetable
+     * @param startIndex the first entry this run dispatches; earlier ones finished in an earlier run
+     */
+    public TimetableSchedule(List<TimetablePath> timetable, int startIndex)
+    {
+        this.entries = new ArrayList<>(timetable);
+        this.startIndex = startIndex;
+        this.dueAt = new long[this.entries.size()];
+        this.dispatchedAt = new long[this.entries.size()];
+    }
+
+    public int size()
+    {
+        return this.entries.size();
+    }
+
+    public int getStartIndex()
+    {
+        return this.startIndex;
+    }
+
+    public TimetablePath getEntry(int i)
+    {
+        return this.entries.get(i);
+    }
+
+    /**
+     * When an entry is due
+     * @param i
+     * @param runStart when the run began, which is when its first entry is due
+     * @return -1 while the entry before it has yet to set off
+     */
+    synchronized public long getDueTime(int i, long runStart)
+    {
+        if (i == this.startIndex)
+        {
+            return runStart;
+        }
+
+        TimetablePath previous = this.entries.get(i - 1);
+
+        if (!previous.isExecuted())
+        {
+            return -1;
+        }
+
+        return Math.max(this.dispatchedAt[i - 1] + this.entries.get(i).getSecondsToNext(), previous.getExecutionTime());
+    }
+
+    /**
+     * Records an entry as dispatched
+     * @param i
+     * @param due when it was due
+     * @param now
+     */
+    synchronized public void markDispatched(int i, long due, long now)
+    {
+        this.dueAt[i] = due;
+        this.dispatchedAt[i] = now;
+        this.dispatched++;
+    }
+
+    /**
+     * Wakes anything waiting in awaitChange: an entry started, a path finished, or the run was stopped
+     */
+    synchronized public void changed()
+    {
+        this.changes++;
+        notifyAll();
+    }
+
+    /**
+     * How many changes there have been.  Read before looking at what the wait is for, and passed to
+     * awaitChange.
+     * @return
+     */
+    synchronized public long getChangeCount()
+    {
+        return this.changes;
+    }
+
+    /**
+     * Waits until there has been a change since the count was read, or the timeout passes, whichever
+     * is first.  This used to wait unconditionally, so a change that came between the due check and
+     * the wait was missed and the run slept out the whole timeout.
+     * @param seen the change count read before the caller looked at the schedule
+     * @param millis
+     * @throws InterruptedException
+     */
+    synchronized public void awaitChange(long seen, long millis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + millis;
+        long left = millis;
+
+        while (this.changes == seen && left > 0)
+        {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Entries dispatched in this run
+     * @return
+     */
+    synchronized public int getDispatched()
+    {
+        return this.dispatched;
+    }
+
+    /**
+     * How long after it was due an entry was dispatched
+     * @param i
+     * @return -1 if it has not been
+     */
+    synchronized public long getStartSkewMillis(int i)
+    {
+        if (this.dispatchedAt[i] == 0)
+        {
+            return -1;
+        }
+
+        return this.dispatchedAt[i] - this.dueAt[i];
+    }
+
+    /**
+     * The largest start skew over the entries dispatched
+     * @return
+     */
+    synchronized public long getMaxStartSkewMillis()
+    {
+        long max = 0;
+
+        for (int i = this.startIndex; i < this.entries.size(); i++)
+        {
+            max = Math.max(max, this.getStartSkewMillis(i));
+        }
+
+        return max;
+    }
+
+    /**
+     * The mean start skew over the entries dispatched
+     * @return
+     */
+    synchronized public long getMeanStartSkewMillis()
+    {
+        if (this.dispatched == 0)
+        {
+            return 0;
+        }
+
+        long total = 0;
+
+        for (int i = this.startIndex; i < this.entries.size(); i++)
+        {
+            total += Math.max(0, this.getStartSkewMillis(i));
+        }
+
+        return total / this.dispatched;
+    }
+}
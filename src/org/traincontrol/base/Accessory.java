@@ -1,5 +1,9 @@
 package org.traincontrol.base;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import org.traincontrol.gui.LayoutLabel;
 import org.traincontrol.util.I18n;
 
@@ -19,7 +23,7 @@ abstract public class Accessory
     public static enum accessorySetting {GREEN, RED, STRAIGHT, TURN};
 
     // State of the switch/signal
-    protected boolean switched;
+    protected volatile boolean switched;
     
     // The type of this accessory
     private final accessoryType type;
@@ -30,7 +34,7 @@ abstract public class Accessory
     // Number of times this accessory has been actuated
     protected int numActuations;
     
-    // volatile: read without locking by autonomy path validation (which waits on actuationConfirmedMonitor)
+    // volatile: read without locking by autonomy path validation (which waits on confirmation futures)
     // while parseMessage writes it, so the reader sees updates without taking this accessory's lock.
     protected volatile boolean stateAtLastActuation;
 
@@ -41,10 +45,24 @@ abstract public class Accessory
     // volatile for the same reason as the field above.
     protected volatile boolean actuationConfirmed = false;
 
-    // Notified whenever a CS echo advances stateAtLastActuation (see MarklinAccessory.parseMessage), so
-    // autonomy path validation can wait for confirmed actuations.  Deliberately separate from Locomotive's
-    // accessoryMonitor, which also fires on optimistic setSwitched() changes and drives unrelated waits.
-    public static final Object actuationConfirmedMonitor = new Object();
+    // Futures waiting for a CS echo at a given state, completed by confirmed().  These used to be one
+    // monitor shared by every accessory: each echo woke every waiter on the layout, which then re-checked
+    // all of its accessories, however unrelated the echo.  Now an echo completes only its own waiters.
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    // How quickly this accessory's decoder has confirmed its commands
+    private final ConfirmationLatency confirmationLatency = new ConfirmationLatency();
+
+    private static final class Waiter
+    {
+        final boolean desired;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(boolean desired)
+        {
+            this.desired = desired;
+        }
+    }
     
     // Maximum MM2 and DCC addresses.  These are the low level addresses, not the logical addresses of 320 and 2048
     public static final int MAX_MM2_ADDRESS = 319;
@@ -71,19 +89,39 @@ abstract public class Accessory
     abstract public Accessory setSwitched(boolean state);
     
     /**
-     * Sets internal state
+     * Sets internal state.  Callers hold this accessory's lock, so that updates reach the listeners in
+     * the order they were stored.
      * @param state 
      */
     protected final void _setSwitched(boolean state)
     {
+        boolean was;
+        
         synchronized (Locomotive.accessoryMonitor)
         {
+            was = this.switched;
             this.switched = state;
+        }
+        
+        // After the write, as in Feedback._setState: a listener that reads the state itself in between
+        // - the condition engine compiling a new condition - must not be left with the old one
+        this.stateUpdated(was, state);
         
+        synchronized (Locomotive.accessoryMonitor)
+        {
             Locomotive.accessoryMonitor.notifyAll();
         }
     }
     
+    /**
+     * Called after every state update, changed or not, with the state it replaced
+     * @param was
+     * @param state 
+     */
+    protected void stateUpdated(boolean was, boolean state)
+    {
+    }
+    
     /**
      * Whether this setting throws the accessory, as opposed to releasing it to straight.
      *
@@ -223,6 +261,76 @@ abstract public class Accessory
         return this.actuationConfirmed && this.stateAtLastActuation == desired;
     }
 
+    /**
+     * A future completed once the CS has echoed this accessory at the given state - immediately if
+     * isConfirmedAt already holds.  Cancelling it is how a waiter gives up; it is then dropped.
+     * @param desired the commanded switched state
+     * @return
+     */
+    public CompletableFuture<Void> awaitConfirmedAt(boolean desired)
+    {
+        Waiter w = new Waiter(desired);
+
+        synchronized (this.waiters)
+        {
+            this.waiters.removeIf(x -> x.future.isDone());
+
+            // Checked under the lock confirmed() completes under, so an echo cannot slip in between
+            if (this.isConfirmedAt(desired))
+            {
+                w.future.complete(null);
+            }
+            else
+            {
+                this.waiters.add(w);
+            }
+        }
+
+        return w.future;
+    }
+
+    /**
+     * Notes that a command for this accessory was just sent
+     */
+    protected void commanded()
+    {
+        this.confirmationLatency.commanded(System.nanoTime());
+    }
+
+    /**
+     * Called once a CS echo has updated the confirmed state: records the decoder's latency and completes
+     * the waiters it satisfies
+     */
+    protected void confirmed()
+    {
+        this.confirmationLatency.echoed(System.nanoTime());
+
+        synchronized (this.waiters)
+        {
+            Iterator<Waiter> it = this.waiters.iterator();
+
+            while (it.hasNext())
+            {
+                Waiter w = it.next();
+
+                if (w.future.isDone() || this.isConfirmedAt(w.desired))
+                {
+                    w.future.complete(null);
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * How quickly this accessory has confirmed its commands
+     * @return
+     */
+    public ConfirmationLatency getConfirmationLatency()
+    {
+        return this.confirmationLatency;
+    }
+
     /**
      * Returns switch state
      * @return 
@@ -0,0 +1,474 @@
+package org.traincontrol.base;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.traincontrol.model.ViewListener;
+
+/**
+ * Keeps route conditions' truth values current as sensors and accessories change.
+ *
+ * A condition used to be evaluated by walking its NodeExpression tree on every trigger, each leaf
+ * looking its sensor up by name or its accessory by address.  Here each condition is compiled once
+ * into flat arrays - one slot per node, leaves pointing at integer input indices - and every input
+ * keeps the list of compiled conditions that read it.  When a sensor or accessory changes, only those
+ * conditions are touched, and only along the path from the changed leaf to the root: an AND node keeps
+ * a count of its false children and an OR node of its true ones, so a node's value is a comparison and
+ * propagation stops at the first node whose value did not change.  A condition of sensors and
+ * accessories alone can then be read in O(1).
+ *
+ * Autoloc leaves depend on autonomy state that does not pass through here, and may block waiting for
+ * it, so they are not tracked.  They are evaluated when the condition is, left to right as before, and
+ * only where the tracked leaves around them have not already decided the answer.
+ *
+ * @author Adam
+ */
+public class ConditionEngine
+{
+    private static final byte LEAF = 0;
+    private static final byte LEAF_DYNAMIC = 1;
+    private static final byte AND = 2;
+    private static final byte OR = 3;
+
+    private final ViewListener network;
+
+    // Input key -> index.  Keys pack the kind of input, protocol and address into one long.
+    private final Map<Long, Integer> inputIndex = new HashMap<>();
+    private boolean[] inputState = new boolean[16];
+    private final List<List<Compiled>> dependents = new ArrayList<>();
+
+    private long leafUpdates = 0;
+
+    /**
+     * A condition compiled against this engine's inputs
+     */
+    public final class Compiled
+    {
+        private final NodeExpression source;
+
+        // Per node
+        private final byte[] kind;
+        private final int[] parent;
+        private final int[] firstChild;
+        private final int[] nextSibling;
+        private final boolean[] dynamic;
+        private final boolean[] value;
+        private final int[] count;
+
+        // Per leaf node; -1 and null elsewhere
+        private final int[] input;
+        private final boolean[] expected;
+        private final RouteCommand[] command;
+
+        // Input index -> the leaves that read it
+        private final Map<Integer, int[]> leavesByInput = new HashMap<>();
+
+        private boolean released = false;
+
+        private Compiled(NodeExpression source, int size)
+        {
+            this.source = source;
+            this.kind = new byte[size];
+            this.parent = new int[size];
+            this.firstChild = new int[size];
+            this.nextSibling = new int[size];
+            this.dynamic = new boolean[size];
+            this.value = new boolean[size];
+            this.count = new int[size];
+            this.input = new int[size];
+            this.expected = new boolean[size];
+            this.command = new RouteCommand[size];
+        }
+
+        /**
+         * The expression this was compiled from
+         * @return
+         */
+        public NodeExpression getSource()
+        {
+            return this.source;
+        }
+
+        /**
+         * Whether the condition can be read without evaluating anything - it has no autoloc leaves
+         * @return
+         */
+        public boolean isTracked()
+        {
+            return !this.dynamic[0];
+        }
+
+        /**
+         * The condition's current value, for a condition with no autoloc leaves.  O(1).
+         * @return
+         */
+        public boolean isSatisfied()
+        {
+            synchronized (ConditionEngine.this)
+            {
+                if (this.dynamic[0])
+                {
+                    throw new IllegalStateException("Condition has untracked leaves; use evaluate");
+                }
+
+                return this.value[0];
+            }
+        }
+
+        /**
+         * The condition's current value.  Tracked subtrees are read as they stand; autoloc leaves are
+         * evaluated, without holding the engine's lock, since they may wait on autonomy.
+         * @param network
+         * @return
+         */
+        public boolean evaluate(ViewListener network)
+        {
+            return this.evaluate(0, network);
+        }
+
+        private boolean evaluate(int node, ViewListener network)
+        {
+            int decided;
+
+            synchronized (ConditionEngine.this)
+            {
+                if (!this.dynamic[node]) return this.value[node];
+
+                if (this.kind[node] == LEAF_DYNAMIC)
+                {
+                    decided = -1;
+                }
+                else
+                {
+                    // A false static child decides an AND, a true one an OR
+                    decided = this.count[node] > 0 ? (this.kind[node] == OR ? 1 : 0) : -1;
+                }
+            }
+
+            if (this.kind[node] == LEAF_DYNAMIC)
+            {
+                return Route.evaluate(this.command[node], network);
+            }
+
+            if (decided >= 0) return decided == 1;
+
+            // Every static child agrees with the node's identity, so the untracked children decide
+            boolean isAnd = this.kind[node] == AND;
+
+            for (int c = this.firstChild[node]; c >= 0; c = this.nextSibling[c])
+            {
+                if (this.dynamic[c] && this.evaluate(c, network) != isAnd)
+                {
+                    return !isAnd;
+                }
+            }
+
+            return isAnd;
+        }
+
+        /**
+         * Applies a changed input to the leaves reading it, and their ancestors as far as any changes
+         */
+        private void inputChanged(int in, boolean state)
+        {
+            for (int leaf : this.leavesByInput.get(in))
+            {
+                leafUpdates++;
+
+                boolean v = state == this.expected[leaf];
+
+                if (v == this.value[leaf]) continue;
+
+                this.value[leaf] = v;
+
+                int node = leaf;
+
+                for (int p = this.parent[node]; p >= 0; node = p, p = this.parent[p])
+                {
+                    boolean before = this.value[p];
+
+                    // AND counts false children, OR counts true ones
+                    boolean counted = this.kind[p] == AND ? !this.value[node] : this.value[node];
+
+                    this.count[p] += counted ? 1 : -1;
+                    this.value[p] = this.kind[p] == AND ? this.count[p] == 0 : this.count[p] > 0;
+
+                    // An untracked node's value only covers its tracked children, and its parent does
+                    // not count it - nothing further up depends on this change
+                    if (this.dynamic[p] || this.value[p] == before) break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param network where inputs are read from when first seen
+     */
+    public ConditionEngine(ViewListener network)
+    {
+        this.network = network;
+    }
+
+    /**
+     * Compiles a condition and starts tracking it
+     * @param expression
+     * @return null for a null expression
+     */
+    public synchronized Compiled compile(NodeExpression expression)
+    {
+        if (expression == null) return null;
+
+        Compiled c = new Compiled(expression, size(expression));
+
+        build(c, expression, -1, new int[] {0});
+
+        // Values bottom-up: children always come after their parent
+        for (int n = c.kind.length - 1; n >= 0; n--)
+        {
+            if (c.kind[n] == LEAF)
+            {
+                c.value[n] = this.inputState[c.input[n]] == c.expected[n];
+            }
+            else if (c.kind[n] == LEAF_DYNAMIC)
+            {
+                c.dynamic[n] = true;
+            }
+            else
+            {
+                for (int ch = c.firstChild[n]; ch >= 0; ch = c.nextSibling[ch])
+                {
+                    if (c.dynamic[ch])
+                    {
+                        c.dynamic[n] = true;
+                    }
+                    else if (c.kind[n] == AND ? !c.value[ch] : c.value[ch])
+                    {
+                        c.count[n]++;
+                    }
+                }
+
+                c.value[n] = c.kind[n] == AND ? c.count[n] == 0 : c.count[n] > 0;
+            }
+        }
+
+        for (Integer in : c.leavesByInput.keySet())
+        {
+            this.dependents.get(in).add(c);
+        }
+
+        return c;
+    }
+
+    /**
+     * Stops tracking a condition
+     * @param c
+     */
+    public synchronized void release(Compiled c)
+    {
+        if (c == null || c.released) return;
+
+        c.released = true;
+
+        for (Integer in : c.leavesByInput.keySet())
+        {
+            this.dependents.get(in).remove(c);
+        }
+    }
+
+    /**
+     * A sensor changed
+     * @param address
+     * @param state
+     */
+    public synchronized void feedbackChanged(int address, boolean state)
+    {
+        this.inputChanged(feedbackKey(address), state);
+    }
+
+    /**
+     * An accessory changed
+     * @param address logical address, as in route commands
+     * @param protocol
+     * @param state
+     */
+    public synchronized void accessoryChanged(int address, Accessory.accessoryDecoderType protocol, boolean state)
+    {
+        this.inputChanged(accessoryKey(address, protocol), state);
+    }
+
+    private void inputChanged(long key, boolean state)
+    {
+        Integer in = this.inputIndex.get(key);
+
+        // Nothing has ever asked about this input
+        if (in == null || this.inputState[in] == state) return;
+
+        this.inputState[in] = state;
+
+        for (Compiled c : this.dependents.get(in))
+        {
+            c.inputChanged(in, state);
+        }
+    }
+
+    /**
+     * Inputs tracked
+     * @return
+     */
+    public synchronized int getInputCount()
+    {
+        return this.inputIndex.size();
+    }
+
+    /**
+     * Leaves re-evaluated because an input they read changed, since startup
+     * @return
+     */
+    public synchronized long getLeafUpdates()
+    {
+        return this.leafUpdates;
+    }
+
+    private static int size(NodeExpression e)
+    {
+        if (e instanceof NodeAnd)
+        {
+            return 1 + size(((NodeAnd) e).getLeft()) + size(((NodeAnd) e).getRight());
+        }
+        else if (e instanceof NodeOr)
+        {
+            return 1 + size(((NodeOr) e).getLeft()) + size(((NodeOr) e).getRight());
+        }
+        else if (e instanceof NodeGroup)
+        {
+            int n = 1;
+
+            for (NodeExpression child : ((NodeGroup) e).getExpressions())
+            {
+                n += size(child);
+            }
+
+            return n;
+        }
+
+        return 1;
+    }
+
+    /**
+     * Lays the tree out in pre-order, so that each node's children follow it
+     */
+    private int build(Compiled c, NodeExpression e, int parent, int[] next)
+    {
+        int n = next[0]++;
+
+        c.parent[n] = parent;
+        c.firstChild[n] = -1;
+        c.nextSibling[n] = -1;
+        c.input[n] = -1;
+
+        List<NodeExpression> children = new ArrayList<>();
+
+        if (e instanceof NodeAnd)
+        {
+            c.kind[n] = AND;
+            children.add(((NodeAnd) e).getLeft());
+            children.add(((NodeAnd) e).getRight());
+        }
+        else if (e instanceof NodeOr)
+        {
+            c.kind[n] = OR;
+            children.add(((NodeOr) e).getLeft());
+            children.add(((NodeOr) e).getRight());
+        }
+        else if (e instanceof NodeGroup)
+        {
+            // A group is its children ANDed, as NodeGroup.evaluate has it
+            c.kind[n] = AND;
+            children.addAll(((NodeGroup) e).getExpressions());
+        }
+        else
+        {
+            RouteCommand rc = ((NodeRouteCommand) e).getRouteCommand();
+
+            if (rc.isFeedback() || rc.isAccessory())
+            {
+                int in = this.inputOf(rc);
+
+                c.kind[n] = LEAF;
+                c.input[n] = in;
+                c.expected[n] = rc.getSetting();
+
+                int[] leaves = c.leavesByInput.get(in);
+                int[] grown = leaves == null ? new int[1] : java.util.Arrays.copyOf(leaves, leaves.length + 1);
+                grown[grown.length - 1] = n;
+                c.leavesByInput.put(in, grown);
+            }
+            else
+            {
+                // Autoloc, or anything Route.evaluate does not know - which it answers false, as it
+                // always has
+                c.kind[n] = LEAF_DYNAMIC;
+                c.command[n] = rc;
+            }
+
+            return n;
+        }
+
+        int last = -1;
+
+        for (NodeExpression child : children)
+        {
+            int ch = this.build(c, child, n, next);
+
+            if (last < 0)
+            {
+                c.firstChild[n] = ch;
+            }
+            else
+            {
+                c.nextSibling[last] = ch;
+            }
+
+            last = ch;
+        }
+
+        return n;
+    }
+
+    /**
+     * The index of a leaf's input, registering it and reading its current state the first time
+     */
+    private int inputOf(RouteCommand rc)
+    {
+        long key = rc.isFeedback() ? feedbackKey(rc.getAddress()) : accessoryKey(rc.getAddress(), rc.getProtocol());
+        Integer in = this.inputIndex.get(key);
+
+        if (in != null) return in;
+
+        in = this.inputIndex.size();
+        this.inputIndex.put(key, in);
+        this.dependents.add(new ArrayList<>());
+
+        if (in >= this.inputState.length)
+        {
+            this.inputState = java.util.Arrays.copyOf(this.inputState, this.inputState.length * 2);
+        }
+
+        this.inputState[in] = rc.isFeedback()
+            ? this.network.getFeedbackState(Integer.toString(rc.getAddress()))
+            : this.network.getAccessoryState(rc.getAddress(), rc.getProtocol());
+
+        return in;
+    }
+
+    private static long feedbackKey(int address)
+    {
+        return (1L << 40) | (address & 0xFFFFFFFFL);
+    }
+
+    private static long accessoryKey(int address, Accessory.accessoryDecoderType protocol)
+    {
+        return (2L << 40) | ((long) protocol.ordinal() << 32) | (address & 0xFFFFFFFFL);
+    }
+}
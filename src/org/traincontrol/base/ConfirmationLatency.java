@@ -0,0 +1,172 @@
+package org.traincontrol.base;
+
+import java.util.Arrays;
+
+/**
+ * How quickly one accessory's decoder has confirmed its commands: the time from each command to the
+ * Central Station's echo over the last SAMPLES confirmations, and how often a confirmation never came
+ * in time.
+ *
+ * Path validation used to give every accessory the same budget, however fast its decoder actually
+ * answers, so a path with a dead decoder held its locomotive for the full budget every time.  Once
+ * enough confirmations have been seen, an accessory's budget is its p99 times MARGIN - never less than
+ * MIN_TIMEOUT_MS, and never more than the fixed budget it replaces.  A late confirmation still counts,
+ * so a decoder that slows down raises its own budget again - but only up to LATE_LIMIT_MS after its
+ * command.  An echo later than that is more likely someone else's than ours.
+ *
+ * @author Adam
+ */
+public final class ConfirmationLatency
+{
+    // Confirmations remembered
+    public static final int SAMPLES = 64;
+
+    // Confirmations needed before the budget adapts.  Not final so tests can change them.
+    public static int MIN_SAMPLES = 5;
+    public static double MARGIN = 3.0;
+    public static long MIN_TIMEOUT_MS = 200;
+
+    // p99 above which an accessory is reported as slow, and the share of timeouts above which it is
+    // reported as unreliable
+    public static long SLOW_MS = 500;
+    public static double UNRELIABLE_RATE = 0.1;
+
+    // How long after a command its echo can still count as its confirmation.  Longer than any path
+    // validation budget, so a late echo is never lost while it could still raise one.
+    public static long LATE_LIMIT_MS = 10000;
+
+    private final long[] samples = new long[SAMPLES];
+    private int count = 0;
+    private int next = 0;
+
+    // When the last unanswered command was sent, or 0
+    private long commandedAt = 0;
+
+    private long confirmations = 0;
+    private long timeouts = 0;
+
+    /**
+     * Notes that a command was sent
+     * @param nanoTime
+     */
+    public synchronized void commanded(long nanoTime)
+    {
+        this.commandedAt = nanoTime;
+    }
+
+    /**
+     * Notes the Central Station's echo: a confirmation, and its latency, if a command was outstanding.
+     * An echo nobody here commanded - the Central Station's own panel, another controller - is
+     * neither, or it would dilute the timeout rate of exactly the decoders that rate is meant to flag.
+     * @param nanoTime
+     */
+    public synchronized void echoed(long nanoTime)
+    {
+        if (this.commandedAt == 0)
+        {
+            return;
+        }
+
+        long latency = Math.max(0, nanoTime - this.commandedAt);
+        this.commandedAt = 0;
+
+        // The command timed out long ago and was never answered.  Counting this echo used to record
+        // however long the accessory had sat idle since as one huge latency.
+        if (latency > LATE_LIMIT_MS * 1000000)
+        {
+            return;
+        }
+
+        this.samples[this.next] = latency;
+        this.next = (this.next + 1) % SAMPLES;
+        this.count = Math.min(this.count + 1, SAMPLES);
+        this.confirmations++;
+    }
+
+    /**
+     * Notes that validation gave up waiting for a confirmation.  The command stays outstanding, so its
+     * echo can still count if it comes within LATE_LIMIT_MS.
+     */
+    public synchronized void timedOut()
+    {
+        this.timeouts++;
+    }
+
+    /**
+     * A latency percentile of the remembered confirmations
+     * @param p 0 to 1
+     * @return milliseconds, 0 if there are none
+     */
+    public synchronized double getPercentileMs(double p)
+    {
+        if (this.count == 0)
+        {
+            return 0;
+        }
+
+        long[] sorted = Arrays.copyOf(this.samples, this.count);
+        Arrays.sort(sorted);
+
+        int index = (int) Math.ceil(p * this.count) - 1;
+
+        return sorted[Math.max(0, Math.min(this.count - 1, index))] / 1e6;
+    }
+
+    public double getMaxMs()
+    {
+        return this.getPercentileMs(1);
+    }
+
+    /**
+     * How long to wait for this accessory to confirm
+     * @param defaultMs the budget before enough has been learned, and the most ever waited
+     * @return milliseconds
+     */
+    public synchronized long getTimeoutMs(long defaultMs)
+    {
+        if (this.count < MIN_SAMPLES)
+        {
+            return defaultMs;
+        }
+
+        long learned = (long) Math.ceil(this.getPercentileMs(0.99) * MARGIN);
+
+        return Math.min(defaultMs, Math.max(MIN_TIMEOUT_MS, learned));
+    }
+
+    public synchronized int getSampleCount()
+    {
+        return this.count;
+    }
+
+    public synchronized long getConfirmations()
+    {
+        return this.confirmations;
+    }
+
+    public synchronized long getTimeouts()
+    {
+        return this.timeouts;
+    }
+
+    /**
+     * Share of waits that timed out
+     * @return
+     */
+    public synchronized double getTimeoutRate()
+    {
+        long total = this.confirmations + this.timeouts;
+
+        return total == 0 ? 0 : (double) this.timeouts / total;
+    }
+
+    public synchronized boolean isSlow()
+    {
+        return this.count >= MIN_SAMPLES && this.getPercentileMs(0.99) > SLOW_MS;
+    }
+
+    public synchronized boolean isUnreliable()
+    {
+        return this.timeouts > 0 && this.getTimeoutRate() >= UNRELIABLE_RATE;
+    }
+}
@@ -0,0 +1,460 @@
+package org.traincontrol.base;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import org.traincontrol.util.KeyedLaneExecutor;
+
+/**
+ * Non-blocking subscriptions to what happens on the layout: sensors changing, accessories and
+ * locomotives confirmed by the Central Station, power going on or off, autonomous trains reaching
+ * their milestones, and track diagram pages becoming available as they load.
+ *
+ * Programmatic control used to react to a sensor by starting a thread per rule that looped on
+ * Locomotive.waitForOccupiedThenClear - borrowing a locomotive just for its wait helpers - so every
+ * rule cost a parked thread, and every one of them was woken by every sensor change on the layout to
+ * check whether it was theirs.  Here listeners are indexed by kind and name, so an event reaches only
+ * the listeners for that sensor, accessory or locomotive, and is handed to a small pool of delivery
+ * lanes: thousands of rules cost no threads at all.
+ *
+ * Each subscription is its own key on the lanes, so it sees its events one at a time and in the order
+ * they were reported, and never on the thread that reported them - a slow rule delays neither the CAN
+ * reader nor a driving train.
+ *
+ * Three ways to listen: a callback (subscribe, onFeedback), a one-shot CompletableFuture (whenOccupied,
+ * whenClear, next), or a publisher with demand-based backpressure (publisher).  The publisher has the
+ * shape of java.util.concurrent.Flow, which the project cannot use while it targets Java 8.
+ *
+ * @author Adam
+ */
+public class EventHub
+{
+    public enum Kind
+    {
+        FEEDBACK, ACCESSORY, LOCOMOTIVE, POWER, MILESTONE, LAYOUT
+    }
+
+    /** Events a publisher subscriber may fall behind by before the oldest are dropped. */
+    public static final int PUBLISHER_BUFFER = 256;
+
+    /**
+     * Something that happened.  The state is a sensor being occupied, an accessory being switched
+     * (turned, or red), a locomotive moving, the power being on, or true for a milestone or a loaded
+     * layout page.
+     */
+    public static final class Event
+    {
+        private final Kind kind;
+        private final String name;
+        private final boolean state;
+        private final Object source;
+        private final long time;
+
+        public Event(Kind kind, String name, boolean state, Object source)
+        {
+            this.kind = kind;
+            this.name = name;
+            this.state = state;
+            this.source = source;
+            this.time = System.currentTimeMillis();
+        }
+
+        public Kind getKind()
+        {
+            return this.kind;
+        }
+
+        /**
+         * The sensor, accessory or locomotive's name; null for power
+         * @return
+         */
+        public String getName()
+        {
+            return this.name;
+        }
+
+        public boolean getState()
+        {
+            return this.state;
+        }
+
+        /**
+         * The Feedback, Accessory or Locomotive concerned, or for a milestone the point reached
+         * @return
+         */
+        public Object getSource()
+        {
+            return this.source;
+        }
+
+        public long getTime()
+        {
+            return this.time;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.kind + (this.name != null ? " " + this.name : "") + " " + this.state;
+        }
+    }
+
+    /**
+     * A registered listener; cancel to stop receiving events
+     */
+    public interface Subscription
+    {
+        public void cancel();
+    }
+
+    /**
+     * A publisher subscription: nothing is delivered beyond what has been requested
+     */
+    public interface Demand extends Subscription
+    {
+        public void request(long n);
+    }
+
+    public interface Subscriber
+    {
+        public void onSubscribe(Demand demand);
+        public void onNext(Event event);
+        public void onError(Throwable error);
+        public void onComplete();
+    }
+
+    public interface Publisher
+    {
+        public void subscribe(Subscriber subscriber);
+    }
+
+    private class Listener implements Subscription
+    {
+        protected final int id = nextId.incrementAndGet();
+        private final String key;
+        private final Predicate<Event> filter;
+        private final Consumer<Event> sink;
+        protected volatile boolean cancelled = false;
+
+        private Listener(String key, Predicate<Event> filter, Consumer<Event> sink)
+        {
+            this.key = key;
+            this.filter = filter;
+            this.sink = sink;
+        }
+
+        protected void deliver(Event e)
+        {
+            if (!this.cancelled)
+            {
+                delivered.incrementAndGet();
+                this.sink.accept(e);
+            }
+        }
+
+        @Override
+        public void cancel()
+        {
+            this.cancelled = true;
+
+            // The key goes with its last listener.  Emptied lists used to be left behind, so once
+            // anything had subscribed, publish never took its nobody-listening shortcut again.
+            listeners.computeIfPresent(this.key, (k, list) ->
+            {
+                list.remove(this);
+
+                return list.isEmpty() ? null : list;
+            });
+        }
+    }
+
+    private final Map<String, List<Listener>> listeners = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final KeyedLaneExecutor lanes;
+
+    /**
+     * @param errorHandler receives anything a listener throws
+     */
+    public EventHub(Consumer<Exception> errorHandler)
+    {
+        this.lanes = new KeyedLaneExecutor("Event delivery", KeyedLaneExecutor.MIN_LANES, errorHandler);
+    }
+
+    private static String key(Kind kind, String name)
+    {
+        return name == null ? kind.name() : kind.name() + ":" + name;
+    }
+
+    private Listener register(Listener l)
+    {
+        // Added under the key's lock, so that a cancel emptying the same key cannot drop the list this
+        // is being added to
+        this.listeners.compute(l.key, (k, list) ->
+        {
+            List<Listener> out = list != null ? list : new CopyOnWriteArrayList<>();
+            out.add(l);
+
+            return out;
+        });
+
+        return l;
+    }
+
+    /**
+     * Reports an event to everything listening for it
+     * @param e
+     */
+    public void publish(Event e)
+    {
+        this.published.incrementAndGet();
+
+        // Nobody listening at all, the usual case, costs nothing past this check
+        if (this.listeners.isEmpty())
+        {
+            return;
+        }
+
+        if (e.getName() != null)
+        {
+            this.dispatch(this.listeners.get(key(e.getKind(), e.getName())), e);
+        }
+
+        this.dispatch(this.listeners.get(key(e.getKind(), null)), e);
+    }
+
+    public void publish(Kind kind, String name, boolean state, Object source)
+    {
+        this.publish(new Event(kind, name, state, source));
+    }
+
+    private void dispatch(List<Listener> list, Event e)
+    {
+        if (list == null)
+        {
+            return;
+        }
+
+        for (Listener l : list)
+        {
+            if (!l.cancelled && (l.filter == null || l.filter.test(e)))
+            {
+                this.lanes.submit(l.id, () -> l.deliver(e));
+            }
+        }
+    }
+
+    /**
+     * Calls back with every event of a kind, or for one name of that kind
+     * @param kind
+     * @param name the sensor, accessory or locomotive, or null for all of them
+     * @param callback
+     * @return
+     */
+    public Subscription subscribe(Kind kind, String name, Consumer<Event> callback)
+    {
+        return this.subscribe(kind, name, null, callback);
+    }
+
+    /**
+     * @param kind
+     * @param name
+     * @param filter only events it accepts are delivered; tested on the reporting thread, so keep it cheap
+     * @param callback
+     * @return
+     */
+    public Subscription subscribe(Kind kind, String name, Predicate<Event> filter, Consumer<Event> callback)
+    {
+        return this.register(new Listener(key(kind, name), filter, callback));
+    }
+
+    /**
+     * Calls back each time a sensor becomes occupied, or each time it clears
+     * @param sensor
+     * @param occupied
+     * @param callback
+     * @return
+     */
+    public Subscription onFeedback(String sensor, boolean occupied, Consumer<Event> callback)
+    {
+        return this.subscribe(Kind.FEEDBACK, sensor, e -> e.getState() == occupied, callback);
+    }
+
+    /**
+     * The next event of a kind that a filter accepts
+     * @param kind
+     * @param name
+     * @param filter null for any
+     * @return completes once; cancelling it removes the listener
+     */
+    public CompletableFuture<Event> next(Kind kind, String name, Predicate<Event> filter)
+    {
+        CompletableFuture<Event> future = new CompletableFuture<>();
+        Listener l = this.register(new Listener(key(kind, name), filter, future::complete));
+
+        future.whenComplete((e, error) -> l.cancel());
+
+        return future;
+    }
+
+    /**
+     * Completes the next time a sensor becomes occupied
+     * @param sensor
+     * @return
+     */
+    public CompletableFuture<Event> whenOccupied(String sensor)
+    {
+        return this.next(Kind.FEEDBACK, sensor, e -> e.getState());
+    }
+
+    /**
+     * Completes the next time a sensor clears
+     * @param sensor
+     * @return
+     */
+    public CompletableFuture<Event> whenClear(String sensor)
+    {
+        return this.next(Kind.FEEDBACK, sensor, e -> !e.getState());
+    }
+
+    /**
+     * Completes the next time the power goes on, or off
+     * @param on
+     * @return
+     */
+    public CompletableFuture<Event> whenPower(boolean on)
+    {
+        return this.next(Kind.POWER, null, e -> e.getState() == on);
+    }
+
+    /**
+     * Events of a kind, delivered as the subscriber requests them.  A subscriber that falls more than
+     * PUBLISHER_BUFFER events behind loses the oldest - for sensors and accessories the latest state is
+     * the one that matters - and getDroppedCount says how many.
+     * @param kind
+     * @param name null for all of the kind
+     * @return
+     */
+    public Publisher publisher(Kind kind, String name)
+    {
+        return subscriber ->
+        {
+            FlowListener l = new FlowListener(key(kind, name), subscriber);
+            this.register(l);
+            this.lanes.submit(l.id, () -> subscriber.onSubscribe(l));
+        };
+    }
+
+    /**
+     * A publisher subscription.  Everything it does - buffering, draining, calling the subscriber -
+     * runs on its own key's lane, so there is never more than one thread inside it.
+     */
+    private final class FlowListener extends Listener implements Demand
+    {
+        private final Subscriber subscriber;
+        private final ArrayDeque<Event> buffer = new ArrayDeque<>();
+        private long requested = 0;
+
+        private FlowListener(String key, Subscriber subscriber)
+        {
+            super(key, null, null);
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        protected void deliver(Event e)
+        {
+            if (this.cancelled) return;
+
+            if (this.buffer.size() >= PUBLISHER_BUFFER)
+            {
+                this.buffer.poll();
+                dropped.incrementAndGet();
+            }
+
+            this.buffer.add(e);
+            this.drain();
+        }
+
+        private void drain()
+        {
+            while (!this.cancelled && this.requested > 0 && !this.buffer.isEmpty())
+            {
+                this.requested--;
+                delivered.incrementAndGet();
+                this.subscriber.onNext(this.buffer.poll());
+            }
+        }
+
+        @Override
+        public void request(long n)
+        {
+            lanes.submit(this.id, () ->
+            {
+                if (n <= 0)
+                {
+                    this.cancel();
+                    this.subscriber.onError(new IllegalArgumentException("request " + n));
+                    return;
+                }
+
+                // Saturating, as Flow does: Long.MAX_VALUE means unbounded
+                this.requested = this.requested + n < 0 ? Long.MAX_VALUE : this.requested + n;
+                this.drain();
+            });
+        }
+    }
+
+    /**
+     * Listeners currently registered
+     * @return
+     */
+    public int getListenerCount()
+    {
+        int total = 0;
+
+        for (List<Listener> list : this.listeners.values())
+        {
+            total += list.size();
+        }
+
+        return total;
+    }
+
+    public long getPublishedCount()
+    {
+        return this.published.get();
+    }
+
+    public long getDeliveredCount()
+    {
+        return this.delivered.get();
+    }
+
+    /**
+     * Events publisher subscribers lost by falling too far behind
+     * @return
+     */
+    public long getDroppedCount()
+    {
+        return this.dropped.get();
+    }
+
+    /**
+     * Threads delivering events, however many listeners there are
+     * @return
+     */
+    public int getThreadCount()
+    {
+        return this.lanes.getLaneCount();
+    }
+}
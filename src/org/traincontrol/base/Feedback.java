@@ -12,7 +12,7 @@ public abstract class Feedback
     public static final int IGNORE_SUB_INTERVAL = 0;
     
     // The feedback state
-    private boolean set;
+    private volatile boolean set;
         
     // Timestamp of the last event
     private long lastEvent;
@@ -64,23 +64,46 @@ public abstract class Feedback
     }
     
     /**
-     * Sets the state of the feedback
+     * Sets the state of the feedback.  Callers hold this feedback's lock, so that updates reach the
+     * listeners in the order they were stored.
      * @param set
      */
     protected void _setState(boolean set)
     {
+        boolean was;
+        
         synchronized (Locomotive.monitor)
         {
+            was = this.set;
+            
             if (set != this.set)
             {
                 this.set = set;
                 this.lastEvent = System.currentTimeMillis();
             }        
+        }
+        
+        // After the write, so that listeners never record a state the field does not end up with, and
+        // before the notify, so that anything woken by it - a route monitor checking its conditions -
+        // sees them already up to date.  Outside the monitor, since listeners take their own locks.
+        this.stateUpdated(was, set);
         
+        synchronized (Locomotive.monitor)
+        {
             Locomotive.monitor.notifyAll();
         }
     }
     
+    /**
+     * Called after every state update, changed or not, with the state it replaced - the two differ
+     * only for the one update that changed it
+     * @param was
+     * @param set 
+     */
+    protected void stateUpdated(boolean was, boolean set)
+    {
+    }
+    
     /**
      * Returns the name of the feedback
      * @return 
@@ -0,0 +1,421 @@
+package org.traincontrol.base;
+
+import java.util.Arrays;
+
+/**
+ * The occupied cells of a track diagram page, stored sparsely: the page is divided into CHUNK x CHUNK
+ * blocks, and only blocks holding at least one component exist, in an open-addressed table keyed by
+ * a primitive int.
+ *
+ * Also keeps how many components each row and column holds, so the bounds of what is laid need no
+ * walk over the page - only the rows and columns whose count dropped to zero are looked at again.
+ *
+ * Knows nothing of the page size; LayoutDiagram checks coordinates before they get here.
+ *
+ * @author Adam
+ */
+final class LayoutCells
+{
+    // Chunks are 16 x 16 cells
+    static final int CHUNK_BITS = 4;
+    static final int CHUNK = 1 << CHUNK_BITS;
+    private static final int CELL_MASK = CHUNK - 1;
+
+    // A free slot.  Never a key: chunk coordinates share one int, 16 bits each, and are not negative.
+    private static final int EMPTY = -1;
+
+    /**
+     * Receives cells in the order they are walked
+     */
+    interface Visitor
+    {
+        void visit(int x, int y, LayoutDiagramComponent c);
+    }
+
+    // Open-addressed with linear probing: keys[i] == EMPTY for a free slot
+    private int[] keys = new int[16];
+    private LayoutDiagramComponent[][] chunks = new LayoutDiagramComponent[16][];
+    private int[] chunkSizes = new int[16];
+    private int chunkCount = 0;
+
+    private int size = 0;
+
+    // Components per column and per row
+    private int[] columns = new int[0];
+    private int[] rows = new int[0];
+
+    // Bounds of the occupied cells, valid unless stale
+    private int minX, minY, maxX, maxY;
+    private boolean boundsStale = false;
+
+    LayoutCells()
+    {
+        Arrays.fill(this.keys, EMPTY);
+    }
+
+    private static int key(int cx, int cy)
+    {
+        return (cx << 16) | cy;
+    }
+
+    private static int hash(int key)
+    {
+        int h = key * 0x9E3779B9;
+
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(int key)
+    {
+        int mask = this.keys.length - 1;
+        int i = hash(key) & mask;
+
+        while (this.keys[i] != EMPTY && this.keys[i] != key)
+        {
+            i = (i + 1) & mask;
+        }
+
+        return i;
+    }
+
+    private LayoutDiagramComponent[] chunk(int cx, int cy)
+    {
+        int i = this.slot(key(cx, cy));
+
+        return this.keys[i] == EMPTY ? null : this.chunks[i];
+    }
+
+    /**
+     * What a cell holds
+     * @param x not negative
+     * @param y not negative
+     * @return
+     */
+    LayoutDiagramComponent get(int x, int y)
+    {
+        LayoutDiagramComponent[] c = this.chunk(x >> CHUNK_BITS, y >> CHUNK_BITS);
+
+        return c == null ? null : c[((x & CELL_MASK) << CHUNK_BITS) | (y & CELL_MASK)];
+    }
+
+    /**
+     * Puts a component in a cell, or empties it
+     * @param x not negative
+     * @param y not negative
+     * @param value null to empty the cell
+     * @return what the cell held
+     */
+    LayoutDiagramComponent set(int x, int y, LayoutDiagramComponent value)
+    {
+        int key = key(x >> CHUNK_BITS, y >> CHUNK_BITS);
+        int i = this.slot(key);
+        int cell = ((x & CELL_MASK) << CHUNK_BITS) | (y & CELL_MASK);
+
+        if (this.keys[i] == EMPTY)
+        {
+            if (value == null) return null;
+
+            this.keys[i] = key;
+            this.chunks[i] = new LayoutDiagramComponent[CHUNK * CHUNK];
+            this.chunkSizes[i] = 0;
+            this.chunkCount++;
+        }
+
+        LayoutDiagramComponent old = this.chunks[i][cell];
+        this.chunks[i][cell] = value;
+
+        if (old == null && value != null)
+        {
+            this.chunkSizes[i]++;
+            this.occupied(x, y);
+        }
+        else if (old != null && value == null)
+        {
+            this.emptied(x, y);
+
+            if (--this.chunkSizes[i] == 0)
+            {
+                this.removeSlot(i);
+            }
+        }
+
+        if (this.chunkCount * 2 > this.keys.length)
+        {
+            this.grow();
+        }
+
+        return old;
+    }
+
+    private void occupied(int x, int y)
+    {
+        if (x >= this.columns.length) this.columns = Arrays.copyOf(this.columns, Math.max(x + 1, this.columns.length * 2));
+        if (y >= this.rows.length) this.rows = Arrays.copyOf(this.rows, Math.max(y + 1, this.rows.length * 2));
+
+        this.columns[x]++;
+        this.rows[y]++;
+
+        if (this.size++ == 0)
+        {
+            this.minX = this.maxX = x;
+            this.minY = this.maxY = y;
+            this.boundsStale = false;
+        }
+        else if (!this.boundsStale)
+        {
+            this.minX = Math.min(this.minX, x);
+            this.maxX = Math.max(this.maxX, x);
+            this.minY = Math.min(this.minY, y);
+            this.maxY = Math.max(this.maxY, y);
+        }
+    }
+
+    private void emptied(int x, int y)
+    {
+        this.size--;
+
+        boolean columnEmptied = --this.columns[x] == 0;
+        boolean rowEmptied = --this.rows[y] == 0;
+
+        // Only an edge row or column emptying moves the bounds
+        if (columnEmptied && (x == this.minX || x == this.maxX) || rowEmptied && (y == this.minY || y == this.maxY))
+        {
+            this.boundsStale = true;
+        }
+    }
+
+    /**
+     * Frees a slot, moving back entries that probed past it so lookups still find them
+     * @param i
+     */
+    private void removeSlot(int i)
+    {
+        int mask = this.keys.length - 1;
+
+        this.keys[i] = EMPTY;
+        this.chunks[i] = null;
+        this.chunkCount--;
+
+        int j = (i + 1) & mask;
+
+        while (this.keys[j] != EMPTY)
+        {
+            int home = hash(this.keys[j]) & mask;
+
+            // Whether j's entry may move to i: its home is not cyclically within (i, j]
+            if (((j - home) & mask) >= ((j - i) & mask))
+            {
+                this.keys[i] = this.keys[j];
+                this.chunks[i] = this.chunks[j];
+                this.chunkSizes[i] = this.chunkSizes[j];
+                this.keys[j] = EMPTY;
+                this.chunks[j] = null;
+                i = j;
+            }
+
+            j = (j + 1) & mask;
+        }
+    }
+
+    private void grow()
+    {
+        int[] oldKeys = this.keys;
+        LayoutDiagramComponent[][] oldChunks = this.chunks;
+        int[] oldSizes = this.chunkSizes;
+
+        this.keys = new int[oldKeys.length * 2];
+        this.chunks = new LayoutDiagramComponent[oldKeys.length * 2][];
+        this.chunkSizes = new int[oldKeys.length * 2];
+        Arrays.fill(this.keys, EMPTY);
+
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldKeys[i] != EMPTY)
+            {
+                int j = this.slot(oldKeys[i]);
+                this.keys[j] = oldKeys[i];
+                this.chunks[j] = oldChunks[i];
+                this.chunkSizes[j] = oldSizes[i];
+            }
+        }
+    }
+
+    /**
+     * Components held
+     * @return
+     */
+    int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Chunks allocated
+     * @return
+     */
+    int getChunkCount()
+    {
+        return this.chunkCount;
+    }
+
+    private void refreshBounds()
+    {
+        if (!this.boundsStale) return;
+
+        this.boundsStale = false;
+
+        if (this.size == 0) return;
+
+        this.minX = 0;
+        while (this.columns[this.minX] == 0) this.minX++;
+
+        this.maxX = this.columns.length - 1;
+        while (this.columns[this.maxX] == 0) this.maxX--;
+
+        this.minY = 0;
+        while (this.rows[this.minY] == 0) this.minY++;
+
+        this.maxY = this.rows.length - 1;
+        while (this.rows[this.maxY] == 0) this.maxY--;
+    }
+
+    /**
+     * Leftmost occupied column
+     * @return undefined when empty
+     */
+    int getMinX()
+    {
+        this.refreshBounds();
+        return this.minX;
+    }
+
+    int getMaxX()
+    {
+        this.refreshBounds();
+        return this.maxX;
+    }
+
+    int getMinY()
+    {
+        this.refreshBounds();
+        return this.minY;
+    }
+
+    int getMaxY()
+    {
+        this.refreshBounds();
+        return this.maxY;
+    }
+
+    /**
+     * Visits the components in a rectangle, row by row and left to right within a row.  Looks only
+     * at the chunks the rectangle overlaps.
+     * @param x0 inclusive
+     * @param y0 inclusive
+     * @param x1 inclusive
+     * @param y1 inclusive
+     * @param v
+     */
+    void visitRows(int x0, int y0, int x1, int y1, Visitor v)
+    {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+
+        if (this.size == 0 || x1 < x0 || y1 < y0) return;
+
+        int cx0 = x0 >> CHUNK_BITS, cx1 = x1 >> CHUNK_BITS;
+        LayoutDiagramComponent[][] band = new LayoutDiagramComponent[cx1 - cx0 + 1][];
+
+        for (int cy = y0 >> CHUNK_BITS; cy <= y1 >> CHUNK_BITS; cy++)
+        {
+            boolean any = false;
+
+            for (int cx = cx0; cx <= cx1; cx++)
+            {
+                band[cx - cx0] = this.chunk(cx, cy);
+                any |= band[cx - cx0] != null;
+            }
+
+            if (!any) continue;
+
+            int yFrom = Math.max(y0, cy << CHUNK_BITS);
+            int yTo = Math.min(y1, (cy << CHUNK_BITS) + CELL_MASK);
+
+            for (int y = yFrom; y <= yTo; y++)
+            {
+                for (int cx = cx0; cx <= cx1; cx++)
+                {
+                    LayoutDiagramComponent[] c = band[cx - cx0];
+
+                    if (c == null) continue;
+
+                    int xFrom = Math.max(x0, cx << CHUNK_BITS);
+                    int xTo = Math.min(x1, (cx << CHUNK_BITS) + CELL_MASK);
+
+                    for (int x = xFrom; x <= xTo; x++)
+                    {
+                        LayoutDiagramComponent l = c[((x & CELL_MASK) << CHUNK_BITS) | (y & CELL_MASK)];
+
+                        if (l != null) v.visit(x, y, l);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits the components in a rectangle, column by column and top to bottom within a column.
+     * Looks only at the chunks the rectangle overlaps.
+     * @param x0 inclusive
+     * @param y0 inclusive
+     * @param x1 inclusive
+     * @param y1 inclusive
+     * @param v
+     */
+    void visitColumns(int x0, int y0, int x1, int y1, Visitor v)
+    {
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+
+        if (this.size == 0 || x1 < x0 || y1 < y0) return;
+
+        int cy0 = y0 >> CHUNK_BITS, cy1 = y1 >> CHUNK_BITS;
+        LayoutDiagramComponent[][] band = new LayoutDiagramComponent[cy1 - cy0 + 1][];
+
+        for (int cx = x0 >> CHUNK_BITS; cx <= x1 >> CHUNK_BITS; cx++)
+        {
+            boolean any = false;
+
+            for (int cy = cy0; cy <= cy1; cy++)
+            {
+                band[cy - cy0] = this.chunk(cx, cy);
+                any |= band[cy - cy0] != null;
+            }
+
+            if (!any) continue;
+
+            int xFrom = Math.max(x0, cx << CHUNK_BITS);
+            int xTo = Math.min(x1, (cx << CHUNK_BITS) + CELL_MASK);
+
+            for (int x = xFrom; x <= xTo; x++)
+            {
+                for (int cy = cy0; cy <= cy1; cy++)
+                {
+                    LayoutDiagramComponent[] c = band[cy - cy0];
+
+                    if (c == null) continue;
+
+                    int yFrom = Math.max(y0, cy << CHUNK_BITS);
+                    int yTo = Math.min(y1, (cy << CHUNK_BITS) + CELL_MASK);
+
+                    for (int y = yFrom; y <= yTo; y++)
+                    {
+                        LayoutDiagramComponent l = c[((x & CELL_MASK) << CHUNK_BITS) | (y & CELL_MASK)];
+
+                        if (l != null) v.visit(x, y, l);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -10,12 +10,22 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import org.traincontrol.model.ViewListener;
 import org.traincontrol.util.I18n;
 
 /**
  * Layout container with grid and size info
+ *
+ * The grid used to be a list of sx columns of sy cells each, so a page cost memory and time in
+ * proportion to its area: every walk over it - getAll, checkBounds, the CS2 export, a shift - visited
+ * every cell, laid or blank.  Cells are now kept sparsely in chunks (see LayoutCells), and those walks
+ * cost what is laid on the page instead.
+ *
  * @author Adam
  */
 public class LayoutDiagram
@@ -54,8 +64,8 @@ public class LayoutDiagram
         return maxy;
     }
    
-    // Corresponding accessory reference
-    private final List<List<LayoutDiagramComponent>> grid;
+    // The components on the page, by cell
+    private final LayoutCells cells = new LayoutCells();
     
     // Network reference
     private final ViewListener network;
@@ -67,6 +77,12 @@ public class LayoutDiagram
     private boolean edit = false;
     private boolean editHideText = false;
     private boolean showAddress = false;
+    
+    // While an undoable edit is open: each cell it has touched, keyed by position, with a copy of what
+    // the cell held before the first touch.  Null when nothing is being recorded.
+    private Map<Integer, LayoutDiagramComponent> recording = null;
+    private int recordingSx;
+    private int recordingSy;
 
     /**
      * Constructor
@@ -85,21 +101,6 @@ public class LayoutDiagram
         this.maxy = sy;
         this.network = network;
         this.url = url;
-                
-        this.grid = new ArrayList<>();
-        
-        for (int i = 0; i < sx; i++)
-        {            
-            List<LayoutDiagramComponent> l = 
-                    new ArrayList<>();
-            
-            for (int j = 0; j < sy; j++)
-            {
-                l.add(null);
-            }
-            
-            grid.add(l);
-        }
     }
     
     public String getUrl()
@@ -112,8 +113,11 @@ public class LayoutDiagram
     {
         assert x < sx;
         assert y < sy;
+        
+        this.checkCell(x, y);
+        this.record(x, y);
                 
-        grid.get(x).set(y, new LayoutDiagramComponent(t, x, y, orient, state, address, rawAddresss, protocol));
+        this.cells.set(x, y, new LayoutDiagramComponent(t, x, y, orient, state, address, rawAddresss, protocol));
         
         if (text != null)
         {
@@ -125,8 +129,181 @@ public class LayoutDiagram
     {
         assert x < sx;
         assert y < sy;
+        
+        this.checkCell(x, y);
+        this.record(x, y);
                 
-        grid.get(x).set(y, l);
+        this.cells.set(x, y, l);
+    }
+    
+    /**
+     * Refuses a cell outside the page, as the list the grid used to be did
+     * @param x
+     * @param y 
+     */
+    private void checkCell(int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= this.sx || y >= this.sy)
+        {
+            throw new IndexOutOfBoundsException("Cell " + x + "," + y + " outside " + this.sx + "x" + this.sy);
+        }
+    }
+    
+    /**
+     * Remembers what a cell holds before an open edit first changes it
+     * @param x
+     * @param y
+     * @throws IOException 
+     */
+    private void record(int x, int y) throws IOException
+    {
+        if (this.recording != null)
+        {
+            Integer key = (x << 16) | y;
+            
+            if (!this.recording.containsKey(key))
+            {
+                this.recording.put(key, copyAt(this.getComponent(x, y), x, y));
+            }
+        }
+    }
+    
+    /**
+     * A copy of a component placed at a cell.  Copies, because components are changed in place -
+     * the shifts move them by setting their coordinates - and a history entry must not change with them.
+     * @param c
+     * @param x
+     * @param y
+     * @return
+     * @throws IOException 
+     */
+    private static LayoutDiagramComponent copyAt(LayoutDiagramComponent c, int x, int y) throws IOException
+    {
+        if (c == null) return null;
+        
+        LayoutDiagramComponent copy = new LayoutDiagramComponent(c);
+        copy.setX(x);
+        copy.setY(y);
+        
+        return copy;
+    }
+    
+    /**
+     * True if two cells would display and save the same
+     * @param a
+     * @param b
+     * @return 
+     */
+    private static boolean sameCell(LayoutDiagramComponent a, LayoutDiagramComponent b)
+    {
+        if (a == null || b == null) return a == b;
+        
+        return a.getType() == b.getType()
+            && a.getOrientation() == b.getOrientation()
+            && a.getState() == b.getState()
+            && a.getAddress() == b.getAddress()
+            && a.getRawAddress() == b.getRawAddress()
+            && a.getProtocol() == b.getProtocol()
+            && Objects.equals(a.getLabel(), b.getLabel());
+    }
+    
+    /**
+     * Starts recording the cells changed, for LayoutDiagramHistory
+     */
+    synchronized void startRecording()
+    {
+        this.recording = new LinkedHashMap<>();
+        this.recordingSx = this.sx;
+        this.recordingSy = this.sy;
+    }
+    
+    /**
+     * Stops recording
+     * @return the cells that really changed, with their contents before and after, or null if none did
+     * @throws IOException 
+     */
+    synchronized LayoutDiagramHistory.Edit stopRecording() throws IOException
+    {
+        Map<Integer, LayoutDiagramComponent> touched = this.recording;
+        this.recording = null;
+        
+        if (touched == null) return null;
+        
+        int n = 0;
+        int[] xs = new int[touched.size()];
+        int[] ys = new int[touched.size()];
+        LayoutDiagramComponent[] before = new LayoutDiagramComponent[touched.size()];
+        LayoutDiagramComponent[] after = new LayoutDiagramComponent[touched.size()];
+        
+        for (Map.Entry<Integer, LayoutDiagramComponent> e : touched.entrySet())
+        {
+            int x = e.getKey() >>> 16, y = e.getKey() & 0xFFFF;
+            LayoutDiagramComponent now = this.getComponent(x, y);
+            
+            // A shift of a row of identical track moves every component and changes no cell
+            if (!sameCell(e.getValue(), now))
+            {
+                xs[n] = x;
+                ys[n] = y;
+                before[n] = e.getValue();
+                after[n] = copyAt(now, x, y);
+                n++;
+            }
+        }
+        
+        if (n == 0 && this.sx == this.recordingSx && this.sy == this.recordingSy)
+        {
+            return null;
+        }
+        
+        return new LayoutDiagramHistory.Edit(this.recordingSx, this.recordingSy, this.sx, this.sy,
+            Arrays.copyOf(xs, n), Arrays.copyOf(ys, n),
+            Arrays.copyOf(before, n), Arrays.copyOf(after, n));
+    }
+    
+    /**
+     * Puts cells and the page size back as an undo or redo has them
+     * @param sx
+     * @param sy
+     * @param xs
+     * @param ys
+     * @param cells what each cell should hold; copied, so the history keeps its own
+     * @throws IOException 
+     */
+    synchronized void restore(int sx, int sy, int[] xs, int[] ys, LayoutDiagramComponent[] cells) throws IOException
+    {
+        boolean resized = sx != this.sx || sy != this.sy;
+        
+        this.addRowsAndColumns(sy - this.sy, sx - this.sx);
+        
+        for (int i = 0; i < xs.length; i++)
+        {
+            this.addComponent(copyAt(cells[i], xs[i], ys[i]), xs[i], ys[i]);
+        }
+        
+        // Rows and columns being removed go with whatever is still in them, unrecorded
+        if (sx < this.sx || sy < this.sy)
+        {
+            List<int[]> dropped = new ArrayList<>();
+            
+            this.cells.visitRows(0, 0, this.sx - 1, this.sy - 1, (x, y, c) ->
+            {
+                if (x >= sx || y >= sy) dropped.add(new int[] {x, y});
+            });
+            
+            for (int[] cell : dropped)
+            {
+                this.cells.set(cell[0], cell[1], null);
+            }
+            
+            this.sx = Math.min(this.sx, sx);
+            this.sy = Math.min(this.sy, sy);
+        }
+        
+        if (resized)
+        {
+            this.checkBounds();
+        }
     }
     
     public String getName()
@@ -136,35 +313,70 @@ public class LayoutDiagram
     
     public LayoutDiagramComponent getComponent(int x, int y)
     {
-        if (x < 0 || y < 0 || x >= this.grid.size() || y >= this.grid.get(0).size()) return null;
+        if (x < 0 || y < 0 || x >= this.sx || y >= this.sy) return null;
         
-        return this.grid.get(x).get(y);
+        return this.cells.get(x, y);
     }
     
+    /**
+     * Every component on the page, column by column
+     * @return 
+     */
     public List<LayoutDiagramComponent> getAll()
+    {
+        List<LayoutDiagramComponent> out = new ArrayList<>(this.cells.size());
+        
+        this.cells.visitColumns(0, 0, sx - 1, sy - 1, (x, y, c) -> out.add(c));
+        
+        return out;
+    }
+    
+    /**
+     * The components in part of the page, row by row - what a view of that part has to draw.  Costs
+     * the chunks the area overlaps, however large the page.
+     * @param x left column
+     * @param y top row
+     * @param width
+     * @param height
+     * @return 
+     */
+    public List<LayoutDiagramComponent> getComponentsIn(int x, int y, int width, int height)
     {
         List<LayoutDiagramComponent> out = new ArrayList<>();
         
-        for (int x = 0; x < sx; x++)
-        {            
-            for (int y = 0; y < sy; y++)
-            {
-                if (this.getComponent(x, y) != null)
-                {
-                    out.add(this.getComponent(x, y));
-                }
-            }
-        }
+        this.cells.visitRows(x, y, Math.min(x + width, sx) - 1, Math.min(y + height, sy) - 1,
+            (cx, cy, c) -> out.add(c));
         
         return out;
     }
     
+    /**
+     * Components on the page
+     * @return 
+     */
+    public int getComponentCount()
+    {
+        return this.cells.size();
+    }
+    
     public void checkBounds()
     {
-        if (IGNORE_PADDING && !edit)
+        // Every cell counts in edit mode, so that the whole grid persists
+        if (edit)
         {
-            minx = sx;
-            miny = sy;
+            minx = 0;
+            miny = 0;
+            maxx = sy > 0 ? Math.max(0, sx - 1) : 0;
+            maxy = sx > 0 ? Math.max(0, sy - 1) : 0;
+            return;
+        }
+        
+        boolean empty = this.cells.size() == 0;
+        
+        if (IGNORE_PADDING)
+        {
+            minx = empty ? sx : this.cells.getMinX();
+            miny = empty ? sy : this.cells.getMinY();
         }
         else
         {
@@ -172,43 +384,8 @@ public class LayoutDiagram
             miny = 0;
         }
         
-        maxx = 0;
-        maxy = 0;
-        
-        for (int x = 0; x < sx; x++)
-        {            
-            for (int y = 0; y < sy; y++)
-            {
-                if (this.getComponent(x, y) != null || edit) // This will persist the grid in edit mode
-                {
-                    if (x < minx)
-                    {
-                        if (IGNORE_PADDING && !edit)
-                        {
-                            minx = x;
-                        }
-                    }
-                    
-                    if (y < miny)
-                    {
-                        if (IGNORE_PADDING && !edit)
-                        {
-                            miny = y;
-                        }
-                    }
-                    
-                    if (x > maxx)
-                    {
-                        maxx = x;
-                    }
-                    
-                    if (y > maxy)
-                    {
-                        maxy = y;
-                    }
-                }
-            }            
-        }  
+        maxx = empty ? 0 : this.cells.getMaxX();
+        maxy = empty ? 0 : this.cells.getMaxY();
     }
 
     public int getSx()
@@ -245,16 +422,28 @@ public class LayoutDiagram
             "version\n" +
             " .major=1\n");
         
-        for (int y = 0; y < sy; y++)
+        // Row by row, left to right, as the Central Station writes a page
+        Exception[] failed = {null};
+        
+        this.cells.visitRows(0, 0, sx - 1, sy - 1, (x, y, c) ->
         {
-            for (int x = 0; x < sx; x++)
-            {            
-                if (this.getComponent(x, y) != null)
+            try
+            {
+                if (failed[0] == null)
                 {
-                    builder.append(this.getComponent(x, y).exportToCS2TextFormat());
+                    builder.append(c.exportToCS2TextFormat());
                     builder.append("\n");
                 }
             }
+            catch (Exception e)
+            {
+                failed[0] = e;
+            }
+        });
+        
+        if (failed[0] != null)
+        {
+            throw failed[0];
         }
         
         return builder.toString().trim();
@@ -350,34 +539,12 @@ public class LayoutDiagram
         if (numColumns < 0) numColumns = 0;
         if (numRows < 0) numRows = 0;
 
-        for (int x = 0; x < numColumns; x++)
-        {
-            List<LayoutDiagramComponent> newColumn = new ArrayList<>();
-
-            // A column is sy cells tall.  Sizing it by sx made the new column the wrong length, and on
-            // a layout taller than it is wide it was too short - getComponent bounds-checks y against
-            // column 0, so reading the new column then threw IndexOutOfBounds
-            for (int i = 0; i < sy; i++)
-            {
-                newColumn.add(null);
-            }
-
-            grid.add(newColumn);
-            
-            sx+=1;
-            maxx+=1;
-        }
+        // New rows and columns are blank, so there is nothing to store
+        sx += numColumns;
+        maxx += numColumns;
         
-        for (int x = 0; x < numRows; x++)
-        {
-            for (List<LayoutDiagramComponent> col : grid)
-            {
-                col.add(null);
-            }
-
-            sy+=1;
-            maxy+=1;
-        }
+        sy += numRows;
+        maxy += numRows;
     }
     
     /**
@@ -386,12 +553,13 @@ public class LayoutDiagram
      */
     synchronized public void clear() throws IOException
     {
-        for (int y = 0; y < sy; y++)
+        List<int[]> laid = new ArrayList<>();
+        
+        this.cells.visitRows(0, 0, sx - 1, sy - 1, (x, y, c) -> laid.add(new int[] {x, y}));
+        
+        for (int[] cell : laid)
         {
-            for (int x = 0; x < sx; x++)
-            {   
-                addComponent(null, x, y);
-            }
+            addComponent(null, cell[0], cell[1]);
         }
         
         // Do not reset sx and sy unless we also shrink the arrays...
@@ -431,6 +599,49 @@ public class LayoutDiagram
         this.showAddress = showAddress;
     }
     
+    /**
+     * Moves every component in a rectangle by one cell.  One that would leave the rectangle is
+     * removed, as the cell-by-cell copies the shifts used to do overwrote it.  Costs the components
+     * moved rather than the area of the rectangle.
+     * @param x0 inclusive
+     * @param y0 inclusive
+     * @param x1 inclusive
+     * @param y1 inclusive
+     * @param dx
+     * @param dy
+     * @throws IOException 
+     */
+    private void move(int x0, int y0, int x1, int y1, int dx, int dy) throws IOException
+    {
+        List<int[]> from = new ArrayList<>();
+        List<LayoutDiagramComponent> moved = new ArrayList<>();
+        
+        this.cells.visitRows(x0, y0, x1, y1, (x, y, c) ->
+        {
+            from.add(new int[] {x, y});
+            moved.add(c);
+        });
+        
+        for (int[] cell : from)
+        {
+            addComponent(null, cell[0], cell[1]); // Clear the original cell
+        }
+        
+        for (int i = 0; i < from.size(); i++)
+        {
+            int x = from.get(i)[0] + dx, y = from.get(i)[1] + dy;
+            
+            if (x >= x0 && x <= x1 && y >= y0 && y <= y1)
+            {
+                LayoutDiagramComponent component = moved.get(i);
+                
+                component.setX(x);
+                component.setY(y);
+                addComponent(component, x, y);
+            }
+        }
+    }
+    
     // We don't use these methods in the UI becuase we would also need shiftLeft and shiftDown for completeness
     
     /**
@@ -450,16 +661,9 @@ public class LayoutDiagram
         // Shift all existing components one column to the right
         if (sx >= 2)
         {
-            for (int x = maxx - 1; x >= startCol; x--)
-            { // Start from the second-to-last column and move backward
-                for (int y = 0; y <= maxy; y++)
-                {
-                    LayoutDiagramComponent component = getComponent(x, y);
-
-                    if (component != null) component.setX(x + 1);
-                    addComponent(null, x, y); // Clear the original cell
-                    addComponent(component, x + 1, y); // Move the component to the right
-                }
+            if (startCol < maxx)
+            {
+                this.move(startCol, 0, maxx, maxy, 1, 0);
             }
 
             this.checkBounds();
@@ -484,16 +688,9 @@ public class LayoutDiagram
         // Shift all existing components one row downward
         if (sy >= 2)
         {
-            for (int y = maxy - 1; y >= startRow; y--)
-            { // Start from the last row and move upward
-                for (int x = 0; x <= maxx; x++)
-                {
-                   LayoutDiagramComponent component = getComponent(x, y);
-
-                   if (component != null) component.setY(y + 1); // Update the component's row position
-                   addComponent(null, x, y); // Clear the original cell
-                   addComponent(component, x, y + 1); // Move the component downward
-                }
+            if (startRow < maxy)
+            {
+                this.move(0, startRow, maxx, maxy, 0, 1);
             }
 
            this.checkBounds();
@@ -514,17 +711,10 @@ public class LayoutDiagram
             startRow = miny; // Normalize startRow
         }
 
-        // Shift all existing components one row upward
-        for (int y = startRow; y < maxy; y++) 
-        { 
-            for (int x = 0; x <= maxx; x++) 
-            {
-                LayoutDiagramComponent component = getComponent(x, y + 1);
-
-                if (component != null) component.setY(y); // Update the component's row position
-                addComponent(null, x, y + 1); // Clear the original cell
-                addComponent(component, x, y); // Move the component upward
-            }
+        // Shift all existing components one row upward, dropping those in startRow
+        if (startRow < maxy)
+        {
+            this.move(0, startRow, maxx, maxy, 0, -1);
         }
 
         this.checkBounds();
@@ -544,17 +734,10 @@ public class LayoutDiagram
             startCol = minx; // Normalize startCol
         }
 
-        // Shift all existing components one column to the left
-        for (int x = startCol; x < maxx; x++) 
-        { 
-            for (int y = 0; y <= maxy; y++) 
-            {
-                LayoutDiagramComponent component = getComponent(x + 1, y);
-
-                if (component != null) component.setX(x); // Update the component's column position
-                addComponent(null, x + 1, y); // Clear the original cell
-                addComponent(component, x, y); // Move the component left
-            }
+        // Shift all existing components one column to the left, dropping those in startCol
+        if (startCol < maxx)
+        {
+            this.move(startCol, 0, maxx, maxy, -1, 0);
         }
 
         this.checkBounds();
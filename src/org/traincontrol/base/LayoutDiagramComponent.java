@@ -9,6 +9,7 @@ import java.io.IOException;
 import javax.imageio.ImageIO;
 import org.traincontrol.base.Accessory.accessoryDecoderType;
 import org.traincontrol.util.I18n;
+import org.traincontrol.util.ImagePyramidCache;
 
 /**
  * Representation of each layout component as defined by CS2
@@ -32,6 +33,9 @@ public class LayoutDiagramComponent
         
     private final static String RESOURCE_PATH = "/org/traincontrol/gui/resources/icons";
     
+    // Largest icon set shipped; sizes without their own set are scaled from it
+    public final static int LARGEST_ICON_SIZE = 60;
+    
     // Rotation of the component
     private int orientation;
     
@@ -364,25 +368,26 @@ public class LayoutDiagramComponent
          String imageName = getImageName(size, ignoreState);
          java.net.URL icon = LayoutDiagramComponent.class.getResource(imageName);
 
+         // No icon set drawn at this size: scale the largest one
+         if (icon == null && size != LARGEST_ICON_SIZE)
+         {
+             imageName = getImageName(LARGEST_ICON_SIZE, ignoreState);
+             icon = LayoutDiagramComponent.class.getResource(imageName);
+         }
+         
          if (icon == null)
          {
              throw new IOException(I18n.f("error.missingLayoutIcon", imageName));
          }
 
-         Image img = ImageIO.read(icon);
+         // Decoded once per icon, and resized (only if we don't have the right icon) from the nearest level
+         final java.net.URL source = icon;
+         Image img = ImagePyramidCache.getShared().getScaledToWidth(imageName, () -> ImageIO.read(source), size);
 
          if (img == null)
          {
              throw new IOException(I18n.f("error.missingLayoutIcon", imageName));
          }
-
-         // Resize only if we don't have the right icon
-         if (size != img.getWidth(null))
-         {
-            float aspect = (float) img.getHeight(null) / (float) img.getWidth(null);
-
-            img = img.getScaledInstance(size, (int) (size * aspect), 1);
-         }
          
          // Rotate
          if (this.orientation > 0)
@@ -0,0 +1,221 @@
+package org.traincontrol.base;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Undo and redo for a track diagram, kept as the cells each edit changed.
+ *
+ * The editor used to deep-copy every component on the page before each edit and keep up to a hundred
+ * such copies; undo then deleted every component and placed the whole copy back.  On a large page that
+ * was thousands of components allocated per click and seconds per undo.  Here an edit is recorded by the
+ * diagram itself as it happens - each cell it touches, what it held before and after, and the page size
+ * if that changed - so an entry costs what the edit changed, and undoing or redoing it writes back only
+ * those cells.
+ *
+ * Edits nest: begin and commit may be called inside an edit already open, and everything up to the
+ * outermost commit is one entry, so a drag or a bulk row copy undoes in one step.
+ *
+ * @author Adam
+ */
+public class LayoutDiagramHistory
+{
+    /**
+     * One undoable step: the cells it changed, with their contents before and after, and the page size
+     * before and after
+     */
+    public static final class Edit
+    {
+        private final int sxBefore;
+        private final int syBefore;
+        private final int sxAfter;
+        private final int syAfter;
+        private final int[] xs;
+        private final int[] ys;
+        private final LayoutDiagramComponent[] before;
+        private final LayoutDiagramComponent[] after;
+
+        Edit(int sxBefore, int syBefore, int sxAfter, int syAfter, int[] xs, int[] ys,
+            LayoutDiagramComponent[] before, LayoutDiagramComponent[] after)
+        {
+            this.sxBefore = sxBefore;
+            this.syBefore = syBefore;
+            this.sxAfter = sxAfter;
+            this.syAfter = syAfter;
+            this.xs = xs;
+            this.ys = ys;
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * Cells this edit changed
+         * @return
+         */
+        public int getCellCount()
+        {
+            return this.xs.length;
+        }
+
+        public int getX(int i)
+        {
+            return this.xs[i];
+        }
+
+        public int getY(int i)
+        {
+            return this.ys[i];
+        }
+
+        /**
+         * True if this edit added rows or columns, so the page changed shape and not just content
+         * @return
+         */
+        public boolean isResized()
+        {
+            return this.sxBefore != this.sxAfter || this.syBefore != this.syAfter;
+        }
+
+        void undo(LayoutDiagram diagram) throws IOException
+        {
+            diagram.restore(this.sxBefore, this.syBefore, this.xs, this.ys, this.before);
+        }
+
+        void redo(LayoutDiagram diagram) throws IOException
+        {
+            diagram.restore(this.sxAfter, this.syAfter, this.xs, this.ys, this.after);
+        }
+    }
+
+    private final LayoutDiagram diagram;
+    private final int limit;
+    private final Deque<Edit> undo = new ArrayDeque<>();
+    private final Deque<Edit> redo = new ArrayDeque<>();
+
+    // Nesting depth of begin; the diagram records while above zero
+    private int depth = 0;
+
+    /**
+     * @param diagram
+     * @param limit the most edits kept; the oldest are forgotten first
+     */
+    public LayoutDiagramHistory(LayoutDiagram diagram, int limit)
+    {
+        this.diagram = diagram;
+        this.limit = limit;
+    }
+
+    /**
+     * Starts an edit, or continues the one already open
+     */
+    synchronized public void begin()
+    {
+        if (this.depth++ == 0)
+        {
+            this.diagram.startRecording();
+        }
+    }
+
+    /**
+     * Ends an edit.  Only the outermost commit records anything.
+     * @return the edit recorded, or null if this was a nested commit or the edit changed nothing
+     * @throws IOException
+     */
+    synchronized public Edit commit() throws IOException
+    {
+        if (this.depth == 0 || --this.depth > 0)
+        {
+            return null;
+        }
+
+        Edit edit = this.diagram.stopRecording();
+
+        if (edit != null)
+        {
+            if (this.undo.size() >= this.limit)
+            {
+                this.undo.removeLast();
+            }
+
+            this.undo.push(edit);
+            this.redo.clear();
+        }
+
+        return edit;
+    }
+
+    /**
+     * Reverts the latest edit
+     * @return the edit reverted, whose cells are the ones to repaint, or null if there was none
+     * @throws IOException
+     */
+    synchronized public Edit undo() throws IOException
+    {
+        if (this.depth > 0 || this.undo.isEmpty())
+        {
+            return null;
+        }
+
+        Edit edit = this.undo.pop();
+        edit.undo(this.diagram);
+        this.redo.push(edit);
+
+        return edit;
+    }
+
+    /**
+     * Reapplies the latest edit undone
+     * @return the edit reapplied, or null if there was none
+     * @throws IOException
+     */
+    synchronized public Edit redo() throws IOException
+    {
+        if (this.depth > 0 || this.redo.isEmpty())
+        {
+            return null;
+        }
+
+        Edit edit = this.redo.pop();
+        edit.redo(this.diagram);
+        this.undo.push(edit);
+
+        return edit;
+    }
+
+    synchronized public boolean canUndo()
+    {
+        return !this.undo.isEmpty();
+    }
+
+    synchronized public boolean canRedo()
+    {
+        return !this.redo.isEmpty();
+    }
+
+    synchronized public int getUndoCount()
+    {
+        return this.undo.size();
+    }
+
+    /**
+     * Cells held across the whole history, undo and redo - what it costs in memory
+     * @return
+     */
+    synchronized public int getCellCount()
+    {
+        int total = 0;
+
+        for (Edit e : this.undo)
+        {
+            total += e.getCellCount();
+        }
+
+        for (Edit e : this.redo)
+        {
+            total += e.getCellCount();
+        }
+
+        return total;
+    }
+}
@@ -4,7 +4,6 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -105,6 +104,9 @@ public abstract class Locomotive
     // User-defined notes about this locomotive
     private String notes = "";
     
+    // notes, parsed - not persisted.  Reparsed whenever notes is replaced.
+    private volatile LocomotiveNotes parsedNotes;
+    
     // Used to pause autonomous operation - not persisted
     private boolean autonomyPaused = false;
 
@@ -1411,71 +1413,19 @@ public abstract class Locomotive
      */
     public LocomotiveNotes getStructuredNotes()
     {
-        return LocomotiveNotes.fromJson(this.notes);
-    }
-    
-    /**
-     * Finds other locomotives with a similar profile to to the specified locomotive
-     * @param target
-     * @param maxResults
-     * @param railroads
-     * @param locList
-     * @param randomize
-     * @return 
-     */
-    public static List<Locomotive> findSimilarLocomotives(
-        Locomotive target,
-        int maxResults,
-        List<String> railroads,
-        List<Locomotive> locList,
-        boolean randomize
-    )
-    {
-        List<Locomotive> candidates = new ArrayList<>(locList);
-
-        if (randomize)
-        {
-            Collections.shuffle(candidates);
-        }
-        else
-        {
-            candidates.sort(Comparator.comparingLong(Locomotive::getTotalRuntime));
-        }
-
-        List<Locomotive> matches = new ArrayList<>();
-
-        LocomotiveNotes targetNotes = target.getStructuredNotes();
-        int targetStart = targetNotes.getStartYear();
-        int targetEnd = targetNotes.getEndYear();
-
-        if (targetStart == 0 && (railroads == null || railroads.isEmpty()))
-        {
-            return Collections.emptyList(); // No meaningful range to compare against
-        }
+        // Parsed once per change rather than on every call.  This is read for every locomotive by the
+        // catalog search, the similar-locomotive search and each summary line, and parsing the JSON
+        // each time was most of their cost.  LocomotiveNotes is immutable, so it can be shared.
+        LocomotiveNotes parsed = this.parsedNotes;
+        String source = this.notes;
 
-        for (Locomotive l : candidates)
+        if (parsed == null || parsed.getSource() != source)
         {
-            if (l == target || l == null) continue;
-
-            LocomotiveNotes notes = l.getStructuredNotes();
-            int start = notes.getStartYear();
-            int end = notes.getEndYear();
-
-            boolean yearsOverlap = (start != 0) &&
-                                   (start <= targetEnd || targetEnd == 0) &&
-                                   (end == 0 || end >= targetStart);
-
-            boolean railroadMatch = railroads == null || railroads.isEmpty()
-                || railroads.stream().anyMatch(r -> r.equalsIgnoreCase(notes.getRailway()));
-
-            if (yearsOverlap && railroadMatch)
-            {
-                matches.add(l);
-                if (matches.size() >= maxResults) break;
-            }
+            parsed = LocomotiveNotes.fromJson(source);
+            this.parsedNotes = parsed;
         }
 
-        return matches;
+        return parsed;
     }
     
     /**
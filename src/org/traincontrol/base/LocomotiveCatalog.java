@@ -0,0 +1,557 @@
+package org.traincontrol.base;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Searchable index of the locomotive database.
+ *
+ * Text search covers each locomotive's name, address, decoder type and railway.  Every substring of
+ * up to GRAM_LENGTH characters of those fields has a posting set, so a short filter is answered by a
+ * single lookup and a longer one by intersecting the sets of its grams and confirming what remains.
+ * Service years from the notes are kept sorted by start year, so overlapping ranges are found by a
+ * binary search instead of parsing every locomotive's notes.
+ *
+ * Entries are keyed by identity and re-indexed one at a time: sync() compares each locomotive with
+ * what was indexed for it and only redoes those that were added, renamed, readdressed or edited.
+ *
+ * @author Adam
+ */
+public class LocomotiveCatalog
+{
+    // Longest gram with its own posting set
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * What was indexed for one locomotive
+     */
+    private static final class Entry
+    {
+        final Locomotive loc;
+        final int id;
+        final String name;
+        final int address;
+        final String decoderType;
+        final String notesSource;
+        final String[] fields;
+        final String railway;
+        final int startYear;
+        final int endYear;
+
+        Entry(Locomotive loc, int id)
+        {
+            this.loc = loc;
+            this.id = id;
+            this.name = loc.getName();
+            this.address = loc.getAddress();
+            this.decoderType = loc.getDecoderTypeLabel();
+            this.notesSource = loc.getNotes();
+
+            LocomotiveNotes notes = loc.getStructuredNotes();
+            this.railway = notes.getRailway() == null ? "" : normalize(notes.getRailway());
+            this.startYear = notes.getStartYear();
+            this.endYear = notes.getEndYear();
+
+            this.fields = new String[] {
+                normalize(this.name), Integer.toString(this.address),
+                this.decoderType == null ? "" : normalize(this.decoderType), this.railway
+            };
+        }
+
+        /**
+         * Whether the locomotive still matches what was indexed
+         */
+        boolean isCurrent()
+        {
+            // notes is replaced, never edited in place, so an identity check is enough
+            return this.notesSource == this.loc.getNotes()
+                && this.address == this.loc.getAddress()
+                && this.name.equals(this.loc.getName())
+                && (this.decoderType == null ? this.loc.getDecoderTypeLabel() == null : this.decoderType.equals(this.loc.getDecoderTypeLabel()));
+        }
+    }
+
+    // Entries by dense id; null where an id is free
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<Locomotive, Entry> byLoc = new IdentityHashMap<>();
+    private final List<Integer> freeIds = new ArrayList<>();
+
+    // Gram -> ids of the locomotives containing it in any field
+    private final Map<String, BitSet> grams = new HashMap<>();
+
+    // Railway -> ids
+    private final Map<String, BitSet> railways = new HashMap<>();
+
+    // Ids of locomotives with a start year, sorted by start year; rebuilt when stale
+    private int[] byStartYear = new int[0];
+    private boolean yearsStale = false;
+
+    public LocomotiveCatalog()
+    {
+    }
+
+    /**
+     * Builds a catalog of the given locomotives
+     * @param locs
+     */
+    public LocomotiveCatalog(Collection<? extends Locomotive> locs)
+    {
+        this.sync(locs);
+    }
+
+    /**
+     * Lowercases text for case-insensitive matching
+     * @param s
+     * @return
+     */
+    private static String normalize(String s)
+    {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Brings the catalog in line with the locomotive database: adds new locomotives, re-indexes changed
+     * ones, and drops the ones no longer present.  Unchanged locomotives cost one comparison each.
+     * @param locs
+     * @return the number of locomotives added, re-indexed or dropped
+     */
+    synchronized public int sync(Collection<? extends Locomotive> locs)
+    {
+        int changed = 0;
+        Set<Locomotive> present = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (Locomotive l : locs)
+        {
+            if (l == null) continue;
+
+            present.add(l);
+
+            Entry e = this.byLoc.get(l);
+
+            if (e == null || !e.isCurrent())
+            {
+                this.update(l);
+                changed++;
+            }
+        }
+
+        if (present.size() < this.byLoc.size())
+        {
+            for (Locomotive l : new ArrayList<>(this.byLoc.keySet()))
+            {
+                if (!present.contains(l))
+                {
+                    this.remove(l);
+                    changed++;
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Indexes a locomotive, or re-indexes it after a change
+     * @param l
+     */
+    synchronized public void update(Locomotive l)
+    {
+        Entry old = this.byLoc.get(l);
+        int id;
+
+        if (old != null)
+        {
+            this.unindex(old);
+            id = old.id;
+        }
+        else if (!this.freeIds.isEmpty())
+        {
+            id = this.freeIds.remove(this.freeIds.size() - 1);
+        }
+        else
+        {
+            id = this.entries.size();
+            this.entries.add(null);
+        }
+
+        Entry e = new Entry(l, id);
+        this.entries.set(id, e);
+        this.byLoc.put(l, e);
+
+        for (String field : e.fields)
+        {
+            forEachGram(field, g -> this.grams.computeIfAbsent(g, k -> new BitSet()).set(id));
+        }
+
+        if (!e.railway.isEmpty())
+        {
+            this.railways.computeIfAbsent(e.railway, k -> new BitSet()).set(id);
+        }
+
+        this.yearsStale = true;
+    }
+
+    /**
+     * Drops a locomotive from the catalog
+     * @param l
+     */
+    synchronized public void remove(Locomotive l)
+    {
+        Entry e = this.byLoc.remove(l);
+
+        if (e != null)
+        {
+            this.unindex(e);
+            this.entries.set(e.id, null);
+            this.freeIds.add(e.id);
+            this.yearsStale = true;
+        }
+    }
+
+    /**
+     * Clears an entry's bits from the postings
+     * @param e
+     */
+    private void unindex(Entry e)
+    {
+        for (String field : e.fields)
+        {
+            forEachGram(field, g -> clearBit(this.grams, g, e.id));
+        }
+
+        if (!e.railway.isEmpty())
+        {
+            clearBit(this.railways, e.railway, e.id);
+        }
+    }
+
+    private static void clearBit(Map<String, BitSet> postings, String key, int id)
+    {
+        BitSet b = postings.get(key);
+
+        if (b != null)
+        {
+            b.clear(id);
+
+            if (b.isEmpty())
+            {
+                postings.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Calls back with every substring of text of up to GRAM_LENGTH characters
+     * @param text
+     * @param action
+     */
+    private static void forEachGram(String text, Consumer<String> action)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            for (int len = 1; len <= GRAM_LENGTH && i + len <= text.length(); len++)
+            {
+                action.accept(text.substring(i, i + len));
+            }
+        }
+    }
+
+    /**
+     * Number of locomotives indexed
+     * @return
+     */
+    synchronized public int size()
+    {
+        return this.byLoc.size();
+    }
+
+    /**
+     * Locomotives whose name, address, decoder type or railway contains the query, ignoring case
+     * @param query
+     * @return an identity-based set; every locomotive for an empty query
+     */
+    synchronized public Set<Locomotive> search(String query)
+    {
+        Set<Locomotive> out = Collections.newSetFromMap(new IdentityHashMap<>());
+        String q = normalize(query == null ? "" : query);
+
+        if (q.isEmpty())
+        {
+            out.addAll(this.byLoc.keySet());
+            return out;
+        }
+
+        BitSet candidates;
+
+        if (q.length() <= GRAM_LENGTH)
+        {
+            // The posting set of a short query is exactly its answer
+            candidates = this.grams.get(q);
+
+            if (candidates == null)
+            {
+                return out;
+            }
+        }
+        else
+        {
+            candidates = null;
+
+            for (int i = 0; i + GRAM_LENGTH <= q.length(); i++)
+            {
+                BitSet b = this.grams.get(q.substring(i, i + GRAM_LENGTH));
+
+                if (b == null)
+                {
+                    return out;
+                }
+
+                if (candidates == null)
+                {
+                    candidates = (BitSet) b.clone();
+                }
+                else
+                {
+                    candidates.and(b);
+                }
+            }
+        }
+
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1))
+        {
+            Entry e = this.entries.get(id);
+
+            // Grams can come from different fields, so a long query is confirmed against each one
+            if (q.length() <= GRAM_LENGTH || matchesAnyField(e, q))
+            {
+                out.add(e.loc);
+            }
+        }
+
+        return out;
+    }
+
+    private static boolean matchesAnyField(Entry e, String q)
+    {
+        for (String field : e.fields)
+        {
+            if (field.contains(q))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Rebuilds the start-year order if anything changed since it was last built
+     */
+    private void refreshYears()
+    {
+        if (!this.yearsStale)
+        {
+            return;
+        }
+
+        List<Entry> dated = new ArrayList<>();
+
+        for (Entry e : this.entries)
+        {
+            if (e != null && e.startYear != 0)
+            {
+                dated.add(e);
+            }
+        }
+
+        dated.sort((a, b) -> Integer.compare(a.startYear, b.startYear));
+
+        this.byStartYear = new int[dated.size()];
+
+        for (int i = 0; i < dated.size(); i++)
+        {
+            this.byStartYear[i] = dated.get(i).id;
+        }
+
+        this.yearsStale = false;
+    }
+
+    /**
+     * Ids of the locomotives whose service years overlap a range.  Locomotives with no start year
+     * never match; an end year of 0 means still in service.
+     * @param start
+     * @param end 0 for open-ended
+     * @return
+     */
+    private BitSet overlapping(int start, int end)
+    {
+        this.refreshYears();
+
+        // Everything starting after the range ends is past this point
+        int limit = this.byStartYear.length;
+
+        if (end != 0)
+        {
+            int lo = 0, hi = limit;
+
+            while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+
+                if (this.entries.get(this.byStartYear[mid]).startYear <= end)
+                {
+                    lo = mid + 1;
+                }
+                else
+                {
+                    hi = mid;
+                }
+            }
+
+            limit = lo;
+        }
+
+        BitSet out = new BitSet();
+
+        for (int i = 0; i < limit; i++)
+        {
+            Entry e = this.entries.get(this.byStartYear[i]);
+
+            if (e.endYear == 0 || e.endYear >= start)
+            {
+                out.set(e.id);
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Locomotives whose service years overlap the range
+     * @param start
+     * @param end 0 for open-ended
+     * @return an identity-based set
+     */
+    synchronized public Set<Locomotive> inService(int start, int end)
+    {
+        return this.toSet(this.overlapping(start, end));
+    }
+
+    private Set<Locomotive> toSet(BitSet ids)
+    {
+        Set<Locomotive> out = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1))
+        {
+            out.add(this.entries.get(id).loc);
+        }
+
+        return out;
+    }
+
+    /**
+     * Finds other locomotives with a similar profile to the specified locomotive, preferring either a
+     * random pick or those that have run least
+     * @param target
+     * @param maxResults
+     * @param railroads
+     * @param candidates the locomotives to choose from
+     * @param randomize shuffle the candidates rather than taking the least run first
+     * @return
+     */
+    public List<Locomotive> findSimilar(Locomotive target, int maxResults,
+        List<String> railroads, List<? extends Locomotive> candidates, boolean randomize)
+    {
+        List<Locomotive> ordered = new ArrayList<>(candidates);
+
+        if (randomize)
+        {
+            Collections.shuffle(ordered);
+        }
+        else
+        {
+            ordered.sort(Comparator.comparingLong(Locomotive::getTotalRuntime));
+        }
+
+        return this.findSimilar(target, maxResults, railroads, ordered);
+    }
+
+    /**
+     * Finds other locomotives with a similar profile to the specified locomotive: service years that
+     * overlap its own, and one of the given railways if any are given.  A candidate without a start
+     * year never matches, and one without an end year is still in service.
+     * @param target
+     * @param maxResults
+     * @param railroads
+     * @param candidates the locomotives to choose from, in order of preference
+     * @return
+     */
+    synchronized public List<Locomotive> findSimilar(Locomotive target, int maxResults,
+        List<String> railroads, List<? extends Locomotive> candidates)
+    {
+        LocomotiveNotes targetNotes = target.getStructuredNotes();
+
+        if (targetNotes.getStartYear() == 0 && (railroads == null || railroads.isEmpty()))
+        {
+            return Collections.emptyList(); // No meaningful range to compare against
+        }
+
+        // Candidates outside the catalog, or edited since it was last synced, are indexed first
+        for (Locomotive l : candidates)
+        {
+            if (l != null)
+            {
+                Entry e = this.byLoc.get(l);
+
+                if (e == null || !e.isCurrent())
+                {
+                    this.update(l);
+                }
+            }
+        }
+
+        BitSet match = this.overlapping(targetNotes.getStartYear(), targetNotes.getEndYear());
+
+        if (railroads != null && !railroads.isEmpty())
+        {
+            BitSet anyRailway = new BitSet();
+
+            for (String r : railroads)
+            {
+                BitSet b = this.railways.get(normalize(r));
+
+                if (b != null)
+                {
+                    anyRailway.or(b);
+                }
+            }
+
+            match.and(anyRailway);
+        }
+
+        List<Locomotive> matches = new ArrayList<>();
+
+        for (Locomotive l : candidates)
+        {
+            if (l == target || l == null) continue;
+
+            if (match.get(this.byLoc.get(l).id))
+            {
+                matches.add(l);
+                if (matches.size() >= maxResults) break;
+            }
+        }
+
+        return matches;
+    }
+}
@@ -12,13 +12,22 @@ public class LocomotiveNotes
     private final int endYear;
     private final String railway;
     private final String notes;
+    
+    // The string this was parsed from, if any
+    private final String source;
 
     public LocomotiveNotes(int startYear, int endYear, String railway, String notes)
+    {
+        this(startYear, endYear, railway, notes, null);
+    }
+
+    private LocomotiveNotes(int startYear, int endYear, String railway, String notes, String source)
     {
         this.startYear = startYear;
         this.endYear = endYear;
         this.railway = railway;
         this.notes = notes;
+        this.source = source;
     }
 
     public JSONObject toJson()
@@ -40,13 +49,14 @@ public class LocomotiveNotes
                 obj.optInt("startYear", 0),
                 obj.optInt("endYear", 0),
                 obj.optString("railway", ""),
-                obj.optString("notes", "")
+                obj.optString("notes", ""),
+                jsonString
             );
         }
         catch (JSONException e)
         {
             // Fallback for legacy plain text
-            return new LocomotiveNotes(0, 0, "", jsonString);
+            return new LocomotiveNotes(0, 0, "", jsonString, jsonString);
         }
     }
 
@@ -69,4 +79,13 @@ public class LocomotiveNotes
     {
         return notes;
     }
+    
+    /**
+     * The exact string this was parsed from, so that a cached copy can tell whether it is still current
+     * @return null if this was not parsed
+     */
+    public String getSource()
+    {
+        return source;
+    }
 }
\ No newline at end of file
@@ -55,6 +55,7 @@ abstract public class Route
     public void addAccessory(int address, Accessory.accessoryDecoderType protocol, boolean setting)
     {
         this.route.add(RouteCommand.RouteCommandAccessory(address, protocol, setting));
+        this.routeChanged();
     }
     
     /**
@@ -64,6 +65,7 @@ abstract public class Route
     public void addItem(RouteCommand rc)
     {
         this.route.add(rc);
+        this.routeChanged();
     }
     
     /**
@@ -73,6 +75,7 @@ abstract public class Route
     public void removeItem(RouteCommand rc)
     {
         this.route.remove(rc);
+        this.routeChanged();
     }
     
     /**
@@ -82,6 +85,15 @@ abstract public class Route
     public final void setRoute(List<RouteCommand> rcl)
     {
         this.route = rcl;
+        this.routeChanged();
+    }
+
+    /**
+     * Called whenever the command list changes.  Can run from the constructor, before a subclass has
+     * initialized its own fields.
+     */
+    protected void routeChanged()
+    {
     }
     
     /**
@@ -139,6 +151,7 @@ abstract public class Route
                 if (rc.isRoute() && oldName.equals(rc.getName()))
                 {
                     rc.setName(newName);
+                    this.routeChanged();
                 }
             }
         }
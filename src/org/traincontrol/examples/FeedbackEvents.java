@@ -1,6 +1,6 @@
 package org.traincontrol.examples;
 
-import org.traincontrol.base.Locomotive;
+import org.traincontrol.base.EventHub;
 import static org.traincontrol.marklin.MarklinControlStation.init;
 import javax.swing.JOptionPane;
 import org.traincontrol.marklin.MarklinControlStation;
@@ -14,77 +14,72 @@ public class FeedbackEvents
         private static void execCode(MarklinControlStation data) throws Exception
         {
             data.log("Custom code running...");
-           
-            // Locs currently have all the utility functions, so pick a random loc
-            Locomotive loc = data.getLocByName(data.getLocList().get(0));
+            
+            // Each rule is a subscription rather than a thread: the callback runs each time the sensor
+            // clears after being occupied, on the event hub's delivery threads
+            EventHub events = data.getEvents();
             
             // Entering bottom main station
-            new Thread(() -> {
-                while (loc.waitForOccupiedThenClear("1030") != null)
+            events.onFeedback("1030", false, e -> {
+                data.log("Entering bottom main");
+
+                if (data.getFeedbackState("9"))
                 {
-                    data.log("Entering bottom main");
-                    
-                    if (data.getFeedbackState("9"))
+                    data.getAccessoryByName("Signal 86").red();
+                    data.getAccessoryByName("Signal 87").green();
+
+                    if (data.getFeedbackState("10"))
                     {
-                        data.getAccessoryByName("Signal 86").red();
-                        data.getAccessoryByName("Signal 87").green();
-                        
-                        if (data.getFeedbackState("10"))
-                        {
-                            data.getAccessoryByName("Switch 1").straight();
-                            data.getAccessoryByName("Switch 60").turn();
-                        }
-                        else
-                        {
-                            data.getAccessoryByName("Switch 1").straight();
-                            data.getAccessoryByName("Switch 60").straight();
-                        }
+                        data.getAccessoryByName("Switch 1").straight();
+                        data.getAccessoryByName("Switch 60").turn();
                     }
                     else
                     {
-                        data.getAccessoryByName("Signal 87").red();
-                        data.getAccessoryByName("Signal 86").green();
-                        data.getAccessoryByName("Switch 1").turn();
+                        data.getAccessoryByName("Switch 1").straight();
+                        data.getAccessoryByName("Switch 60").straight();
                     }
-                }    
-            }).start();
+                }
+                else
+                {
+                    data.getAccessoryByName("Signal 87").red();
+                    data.getAccessoryByName("Signal 86").green();
+                    data.getAccessoryByName("Switch 1").turn();
+                }
+            });
             
             // Entering bottom secondary station
-            new Thread(() -> {
-                while (loc.waitForOccupiedThenClear("2015") != null)
-                {
-                    data.log("Entering bottom secondary");
+            events.onFeedback("2015", false, e -> {
+                data.log("Entering bottom secondary");
 
-                    if (data.getFeedbackState("1009"))
-                    {
-                        data.getAccessoryByName("Switch 12").turn();
-                        data.getAccessoryByName("Switch 52").turn();
-                        data.getAccessoryByName("Signal 39").red();
-                    }
-                    else
-                    {
-                        data.getAccessoryByName("Switch 12").straight();
-                        data.getAccessoryByName("Signal 39").green();
-                    }
-                }    
-            }).start();
+                if (data.getFeedbackState("1009"))
+                {
+                    data.getAccessoryByName("Switch 12").turn();
+                    data.getAccessoryByName("Switch 52").turn();
+                    data.getAccessoryByName("Signal 39").red();
+                }
+                else
+                {
+                    data.getAccessoryByName("Switch 12").straight();
+                    data.getAccessoryByName("Signal 39").green();
+                }
+            });
             
             // Entering top station
-            new Thread(() -> {
-                while (loc.waitForOccupiedThenClear("2013") != null)
-                {
-                    data.log("Entering top");
+            events.onFeedback("2013", false, e -> {
+                data.log("Entering top");
 
-                    if (data.getFeedbackState("1022") || data.getFeedbackState("1012"))
-                    {
-                        data.getAccessoryByName("Switch 9").straight();
-                    }
-                    else
-                    {
-                        data.getAccessoryByName("Switch 9").turn();
-                    }
-                }    
-            }).start();        
+                if (data.getFeedbackState("1022") || data.getFeedbackState("1012"))
+                {
+                    data.getAccessoryByName("Switch 9").straight();
+                }
+                else
+                {
+                    data.getAccessoryByName("Switch 9").turn();
+                }
+            });
+            
+            // A one-shot: wait for the first train into the top station without holding a thread
+            events.whenOccupied("2013").thenAccept(e -> data.log("First train at the top station"));
         }
     
 	/**
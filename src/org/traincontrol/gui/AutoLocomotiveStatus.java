@@ -107,10 +107,10 @@ public final class AutoLocomotiveStatus extends javax.swing.JPanel
      *
      * getPossiblePaths is synchronized on the Layout and walks the whole graph; getTimetableStartingPoint
      * is synchronized too, and this panel reads it three times per repaint.  On the event thread both
-     * are a hazard, and not because of their own cost: configureAndLockPath holds that monitor across
-     * its per-command sleeps - half a second to two seconds per path - so the interface freezes for as
-     * long as a train is having its switches thrown.  In semi-autonomous operation with two or more
-     * trains that is reachable at every arrival.
+     * are a hazard, and not only because of their own cost: configureAndLockPath used to hold that
+     * monitor across its per-command sleeps - half a second to two seconds per path - so the interface
+     * froze for as long as a train was having its switches thrown.  Any other long holder of the
+     * monitor would do the same.
      *
      * Safe off the event thread because it touches no Swing state: it asks the layout questions and
      * keeps the answers for updateState to draw.
@@ -398,10 +398,9 @@ final class HomeLocomotiveMenu
 
         if (proceed != JOptionPane.YES_OPTION) return;
 
-        // Off the event thread: setHomeLocomotive is synchronized on the Layout, and
-        // configureAndLockPath holds that monitor through CONFIGURE_SLEEP per accessory command - so
-        // confirming this while autonomy is driving would freeze the UI for a path's whole
-        // configuration.  The exclusion and the repaint follow the write rather than racing it.
+        // Off the event thread: setHomeLocomotive is synchronized on the Layout, which autonomy holds
+        // for as long as a path check or a timetable update takes - and configureAndLockPath used to
+        // hold it through a whole path's configuration.  The exclusion and the repaint follow the write rather than racing it.
         new Thread(() ->
         {
             try
@@ -426,9 +425,8 @@ final class HomeLocomotiveMenu
         if (refuseWhileBusy(ui, dialogParent)) return;
 
         // Off the event thread, and everything after the write marshalled back onto it.
-        // setHomeLocomotive is synchronized on the Layout, and configureAndLockPath holds that monitor
-        // through CONFIGURE_SLEEP per accessory command - so writing from the EDT freezes the UI for a
-        // whole path's configuration whenever autonomy happens to be driving.
+        // setHomeLocomotive is synchronized on the Layout, which autonomy holds for its path checks -
+        // so writing from the EDT stalls the UI whenever autonomy happens to be driving.
         new Thread(() ->
         {
             try
@@ -16,11 +16,8 @@ import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import javax.swing.BorderFactory;
@@ -37,6 +34,7 @@ import org.traincontrol.base.Accessory;
 import static org.traincontrol.gui.LayoutGrid.LAYOUT_STATION_PREFIX;
 import org.traincontrol.base.LayoutDiagram;
 import org.traincontrol.base.LayoutDiagramComponent;
+import org.traincontrol.base.LayoutDiagramHistory;
 import org.traincontrol.util.I18n;
 
 /**
@@ -86,9 +84,8 @@ public class LayoutEditor extends PositionAwareJFrame
     // When true, the diagram does not get repainted, i.e. during bulk operations
     private boolean pauseRepaint = false;
     
-    // Undo history
-    Deque<List<LayoutDiagramComponent>> previousLayoutComponents = new ConcurrentLinkedDeque<>();
-    Deque<List<LayoutDiagramComponent>> previousLayoutComponentsRedo = new ConcurrentLinkedDeque<>();
+    // Undo history, kept as the cells each edit changed
+    private final LayoutDiagramHistory history;
 
     public static final int MAX_UNDO_HISTORY = 100;
     
@@ -115,6 +112,7 @@ public class LayoutEditor extends PositionAwareJFrame
         this.parent = ui;
         this.size = size;
         this.layout = l;
+        this.history = new LayoutDiagramHistory(l, MAX_UNDO_HISTORY);
         
         // Mirror address preference
         this.showAddressCheckbox.setSelected(l.getShowAddress());
@@ -418,9 +416,9 @@ public class LayoutEditor extends PositionAwareJFrame
             if (target == null) return;
 
             // A press and release on the SAME square is a click, not a drag.  Executing there cut the
-            // tile and dropped it straight back, which changes no diagram - but snapshotLayout runs
-            // first, so merely clicking a tile pushed an undo entry, cleared the redo stack, and left
-            // the editor asking whether to save work the user had not done.
+            // tile and dropped it straight back, which changes no diagram - but the editor used to
+            // snapshot the page first, so merely clicking a tile pushed an undo entry, cleared the redo
+            // stack, and left the editor asking whether to save work the user had not done.
             if (source != null && target == source)
             {
                 resetClipboard();
@@ -511,8 +509,21 @@ public class LayoutEditor extends PositionAwareJFrame
      */
     synchronized public void executeTool(LayoutLabel label, bulk bulkFlag)
     {     
-        this.snapshotLayout();
+        // One edit however many tiles it moves, so a drag or a bulk copy undoes in one step
+        this.beginEdit();
         
+        try
+        {
+            this.executeToolEdit(label, bulkFlag);
+        }
+        finally
+        {
+            this.commitEdit();
+        }
+    }
+    
+    synchronized private void executeToolEdit(LayoutLabel label, bulk bulkFlag)
+    {
         if (bulkFlag == bulk.COL)
         {
             int startCol = this.lastX;
@@ -563,7 +574,6 @@ public class LayoutEditor extends PositionAwareJFrame
                 }
                 
                 this.resetClipboard();
-                refreshGrid();
             }
         }
         else if (bulkFlag == bulk.ROW)
@@ -616,7 +626,6 @@ public class LayoutEditor extends PositionAwareJFrame
                 }
                 
                 this.resetClipboard(); // this will only allow us to copy the row/col once.  if we don't want to do this, we need to manually put the original tile back on the clipboard, and specify the tool
-                refreshGrid();
             }
         }
         else
@@ -677,8 +686,6 @@ public class LayoutEditor extends PositionAwareJFrame
                         
         // Re-highlight copied tile
         this.clearBordersFromChildren(this.grid.getContainer());
-        
-        refreshGrid();
     }
     
     public LayoutDiagram getMarklinLayout()
@@ -743,13 +750,11 @@ public class LayoutEditor extends PositionAwareJFrame
 
         if (lc != null)
         {       
+            // Joins the edit already open during a bulk copy or move
+            this.beginEdit();
+            
             try
             {
-                if (!this.pauseRepaint)
-                {
-                    this.snapshotLayout();
-                }
-
                 layout.addComponent(null, getX(label), getY(label));
                 this.resetClipboard();
             }
@@ -760,8 +765,10 @@ public class LayoutEditor extends PositionAwareJFrame
                 // editor calls this per placement, and a dialog per failed tile would be worse.
                 this.parent.getModel().log(ex);
             }
-
-            refreshGrid();
+            finally
+            {
+                this.commitEdit();
+            }
         }
     }
         
@@ -775,13 +782,16 @@ public class LayoutEditor extends PositionAwareJFrame
         
         if (lc != null)
         {    
-            this.snapshotLayout();
-
-            lc.rotate();
+            this.beginEdit();
 
             try
             {
-                layout.addComponent(lc, grid.getCoordinates(label)[0], grid.getCoordinates(label)[1]);
+                // Changed on a copy: the history remembers the cell as it was when first placed over,
+                // so the tile still in it must not be rotated underneath it
+                LayoutDiagramComponent rotated = new LayoutDiagramComponent(lc);
+                rotated.rotate();
+                
+                layout.addComponent(rotated, grid.getCoordinates(label)[0], grid.getCoordinates(label)[1]);
             }
             catch (IOException ex)
             {
@@ -790,8 +800,10 @@ public class LayoutEditor extends PositionAwareJFrame
                 // editor calls this per placement, and a dialog per failed tile would be worse.
                 this.parent.getModel().log(ex);
             }
-
-            refreshGrid();
+            finally
+            {
+                this.commitEdit();
+            }
         }
     }
     
@@ -815,27 +827,31 @@ public class LayoutEditor extends PositionAwareJFrame
                 lc.getLabel() // Default value
             );
             
+            this.resetClipboard();
+            
             if (newText != null)
             {
-                this.snapshotLayout();
-
-                lc.setLabel(newText);
-            }
+                this.beginEdit();
 
-            try
-            {
-                layout.addComponent(lc, grid.getCoordinates(label)[0], grid.getCoordinates(label)[1]);
-                this.resetClipboard();
-            }
-            catch (IOException ex)
-            {
-                // A tile edit that fails should say so.  This was silent, so the component simply did
-                // not appear and nothing explained why.  Logged rather than shown as a dialog: the
-                // editor calls this per placement, and a dialog per failed tile would be worse.
-                this.parent.getModel().log(ex);
+                try
+                {
+                    LayoutDiagramComponent edited = new LayoutDiagramComponent(lc);
+                    edited.setLabel(newText);
+                    
+                    layout.addComponent(edited, grid.getCoordinates(label)[0], grid.getCoordinates(label)[1]);
+                }
+                catch (IOException ex)
+                {
+                    // A tile edit that fails should say so.  This was silent, so the component simply did
+                    // not appear and nothing explained why.  Logged rather than shown as a dialog: the
+                    // editor calls this per placement, and a dialog per failed tile would be worse.
+                    this.parent.getModel().log(ex);
+                }
+                finally
+                {
+                    this.commitEdit();
+                }
             }
-
-            refreshGrid();
         }
     }
     
@@ -898,14 +914,15 @@ public class LayoutEditor extends PositionAwareJFrame
 
                     if (selectedOption != null)
                     {
-                        this.snapshotLayout();
-
-                        lc.setLabel(LAYOUT_STATION_PREFIX + selectedOption);
+                        this.beginEdit();
 
                         try
                         {
+                            LayoutDiagramComponent edited = new LayoutDiagramComponent(lc);
+                            edited.setLabel(LAYOUT_STATION_PREFIX + selectedOption);
+                            
                             layout.addComponent(
-                                lc,
+                                edited,
                                 grid.getCoordinates(label)[0],
                                 grid.getCoordinates(label)[1]
                             );
@@ -918,8 +935,10 @@ public class LayoutEditor extends PositionAwareJFrame
                                 I18n.t("layout.ui.errorAddStationComponent")
                             );
                         }
-
-                        refreshGrid();
+                        finally
+                        {
+                            this.commitEdit();
+                        }
                     }
                 }
             }
@@ -989,16 +1008,24 @@ public class LayoutEditor extends PositionAwareJFrame
                 // Process the input when OK is clicked
                 if (result == JOptionPane.OK_OPTION)
                 {
-                    this.snapshotLayout();
-                    
-                    // Retrieve the address from LayoutEditorAddressPopup and use it
-                    int newAddress = Integer.parseInt(addressPopup.getAddress());
-                    lc.setLogicalAddress(newAddress, addressPopup.getProtocol(), addressPopup.getGreenButton().isSelected());
+                    this.beginEdit();
                     
-                    layout.addComponent(lc, grid.getCoordinates(label)[0], grid.getCoordinates(label)[1]);
-                    lc.setProtocol(addressPopup.getProtocol());
-                    
-                    this.resetClipboard();
+                    try
+                    {
+                        // Retrieve the address from LayoutEditorAddressPopup and use it
+                        int newAddress = Integer.parseInt(addressPopup.getAddress());
+                        LayoutDiagramComponent edited = new LayoutDiagramComponent(lc);
+                        edited.setLogicalAddress(newAddress, addressPopup.getProtocol(), addressPopup.getGreenButton().isSelected());
+                        edited.setProtocol(addressPopup.getProtocol());
+
+                        layout.addComponent(edited, grid.getCoordinates(label)[0], grid.getCoordinates(label)[1]);
+
+                        this.resetClipboard();
+                    }
+                    finally
+                    {
+                        this.commitEdit();
+                    }
                 }
             }
             catch (Exception ex)
@@ -1006,8 +1033,6 @@ public class LayoutEditor extends PositionAwareJFrame
                 JOptionPane.showMessageDialog(this, I18n.f("error.generic", ex.getMessage()));
                 this.parent.getModel().log(ex);
             }
-
-            refreshGrid();
         }
     }
     
@@ -1047,15 +1072,13 @@ public class LayoutEditor extends PositionAwareJFrame
     
     public void shiftUp()
     {
-        this.snapshotLayout();
+        this.beginEdit();
         
         try
         {
             if (lastHoveredY > -1)
             {
                 layout.shiftUp(lastHoveredY);
-
-                refreshGrid();
             }
         }
         catch (Exception e)
@@ -1063,19 +1086,21 @@ public class LayoutEditor extends PositionAwareJFrame
             this.parent.getModel().log(e.getMessage());
             this.parent.getModel().log(e);
         }
+        finally
+        {
+            this.commitEdit();
+        }
     }
     
     public void shiftDown()
     {
-        this.snapshotLayout();
+        this.beginEdit();
         
         try
         {
             if (lastHoveredY > -1)
             {
                 layout.shiftDown(lastHoveredY);
-
-                refreshGrid();
             }
         }
         catch (Exception e)
@@ -1083,19 +1108,21 @@ public class LayoutEditor extends PositionAwareJFrame
             this.parent.getModel().log(e.getMessage());
             this.parent.getModel().log(e);
         }
+        finally
+        {
+            this.commitEdit();
+        }
     }
     
     public void shiftLeft()
     {
-        this.snapshotLayout();
-
+        this.beginEdit();
+        
         try
         {
             if (lastHoveredX > -1)
             {
                 layout.shiftLeft(lastHoveredX);
-
-                refreshGrid();
             }
         }
         catch (Exception e)
@@ -1103,19 +1130,21 @@ public class LayoutEditor extends PositionAwareJFrame
             this.parent.getModel().log(e.getMessage());
             this.parent.getModel().log(e);
         }
+        finally
+        {
+            this.commitEdit();
+        }
     }
     
     public void shiftRight()
     {
-        this.snapshotLayout();
-
+        this.beginEdit();
+        
         try
         {
             if (lastHoveredX > -1)
             {
                 layout.shiftRight(lastHoveredX);
-
-                refreshGrid();
             }
         }
         catch (Exception e)
@@ -1123,6 +1152,10 @@ public class LayoutEditor extends PositionAwareJFrame
             this.parent.getModel().log(e.getMessage());
             this.parent.getModel().log(e);
         }
+        finally
+        {
+            this.commitEdit();
+        }
     }
 
     public void addRowsAndColumns(int rows, int cols)
@@ -1136,17 +1169,21 @@ public class LayoutEditor extends PositionAwareJFrame
             return;
         }
         
+        this.beginEdit();
+        
         try
         {
             layout.addRowsAndColumns(rows, cols);
-            
-            refreshGrid();
         }
         catch (Exception e)
         {
             this.parent.getModel().log(e.getMessage());
             this.parent.getModel().log(e);
         }
+        finally
+        {
+            this.commitEdit();
+        }
     }
     
     /**
@@ -1259,12 +1296,17 @@ public class LayoutEditor extends PositionAwareJFrame
 
             if (confirmation == JOptionPane.YES_OPTION)
             {
-                this.snapshotLayout();
+                this.beginEdit();
                 
-                layout.clear();
-                this.resetClipboard();
-
-                refreshGrid();
+                try
+                {
+                    layout.clear();
+                    this.resetClipboard();
+                }
+                finally
+                {
+                    this.commitEdit();
+                }
             }
         }
         catch (Exception e)
@@ -1279,15 +1321,17 @@ public class LayoutEditor extends PositionAwareJFrame
      */
     synchronized private void drawGrid()
     {        
-        // Ensures the grid is a minimum size.  This will automatically initialize the grid if the track diagram is blank
-        if (this.layout.getSx() < DEFAULT_NEW_SIZE_COLS || this.layout.getSy() < DEFAULT_NEW_SIZE_ROWS)
-        {
-            this.addRowsAndColumns(DEFAULT_NEW_SIZE_ROWS - this.layout.getSy(),
-                    DEFAULT_NEW_SIZE_COLS - this.layout.getSx());            
-        }
-        
         try
         {       
+            // Ensures the grid is a minimum size.  This will automatically initialize the grid if the track diagram is blank.
+            // Straight to the diagram: padding a page out for editing is not something to undo
+            if (this.layout.getSx() < DEFAULT_NEW_SIZE_COLS || this.layout.getSy() < DEFAULT_NEW_SIZE_ROWS)
+            {
+                this.layout.addRowsAndColumns(DEFAULT_NEW_SIZE_ROWS - this.layout.getSy(),
+                        DEFAULT_NEW_SIZE_COLS - this.layout.getSx());            
+            }
+            
+
             grid = new LayoutGrid(this.layout, size,
                 this.ExtLayoutPanel, 
                 this,
@@ -1311,7 +1355,7 @@ public class LayoutEditor extends PositionAwareJFrame
      */
     public boolean canUndo()
     {
-        return !this.previousLayoutComponents.isEmpty();
+        return this.history.canUndo();
     }
     
     /**
@@ -1320,73 +1364,72 @@ public class LayoutEditor extends PositionAwareJFrame
      */
     public boolean canRedo()
     {
-        return !this.previousLayoutComponentsRedo.isEmpty();
+        return this.history.canRedo();
     }
     
     /**
-     * Creates a copy of the current layout
-     * @return 
+     * Opens an undoable edit, or joins the one already open
      */
-    private List<LayoutDiagramComponent> deepCopyLayout()
+    private void beginEdit()
     {
-        List<LayoutDiagramComponent> history = new ArrayList<>();
-        
-        for (LayoutDiagramComponent lc : this.layout.getAll())
+        this.history.begin();
+    }
+    
+    /**
+     * Closes an edit.  The outermost close records it and repaints the cells it changed.
+     */
+    private void commitEdit()
+    {
+        try
         {
-            try
-            {
-                history.add(new LayoutDiagramComponent(lc));
-            }
-            catch (IOException ex)
-            {
-                this.parent.getModel().log(ex);
-            }
+            this.repaintCells(this.history.commit());
+        }
+        catch (IOException ex)
+        {
+            this.parent.getModel().log(ex);
         }
-        
-        return history;
     }
     
     /**
-     * Saves a previous version of the layout
+     * Repaints the cells an edit changed.  The whole grid is rebuilt only when the page changed size,
+     * or when a changed cell has text or an address drawn over it - those are separate labels laid over
+     * the grid, not part of the tile.
+     * @param edit 
      */
-    synchronized private void snapshotLayout()
-    {        
-        // Enforce size limit
-        if (this.previousLayoutComponents.size() >= LayoutEditor.MAX_UNDO_HISTORY)
+    private void repaintCells(LayoutDiagramHistory.Edit edit)
+    {
+        if (edit == null || this.pauseRepaint)
         {
-            this.previousLayoutComponents.removeLast();
+            return;
         }
-                
-        this.previousLayoutComponents.push(deepCopyLayout());
-        this.previousLayoutComponentsRedo.clear();
+        
+        if (edit.isResized() || this.grid == null)
+        {
+            this.refreshGrid();
+            return;
+        }
+        
+        javax.swing.SwingUtilities.invokeLater(() ->
+        {
+            if (this.grid.updateCells(this.layout, edit))
+            {
+                this.clearBordersFromChildren(this.grid.getContainer());
+            }
+            else
+            {
+                this.refreshGrid();
+            }
+        });
     }
     
     /**
-     * Restores previous layout state
+     * Reverts the latest edit
      */
     synchronized public void undo()
     {
         try
         {     
-            if (!this.previousLayoutComponents.isEmpty())
-            {         
-                List<LayoutDiagramComponent> history = this.previousLayoutComponents.pop();
-                this.previousLayoutComponentsRedo.push(deepCopyLayout());
-                
-                // Delete all existing components
-                for (LayoutDiagramComponent lc : this.layout.getAll())
-                {
-                    layout.addComponent(null, lc.getX(), lc.getY());
-                }
-
-                // Placed previous components
-                for (LayoutDiagramComponent lc : history)
-                {
-                    layout.addComponent(lc, lc.getX(), lc.getY());
-                }
-                                
-                this.refreshGrid();
-            }
+            this.repaintCells(this.history.undo());
         }
         catch (IOException ex)
         {
@@ -1395,37 +1438,13 @@ public class LayoutEditor extends PositionAwareJFrame
     }
     
     /**
-     * Restores previous layout state
+     * Reapplies the latest edit undone
      */
     synchronized public void redo()
     {
         try
         {     
-            if (!this.previousLayoutComponentsRedo.isEmpty())
-            {         
-                List<LayoutDiagramComponent> history = this.previousLayoutComponentsRedo.pop();
-                this.previousLayoutComponents.push(deepCopyLayout());
-                
-                // Enforce undo limit
-                if (this.previousLayoutComponents.size() >= LayoutEditor.MAX_UNDO_HISTORY)
-                {
-                    this.previousLayoutComponents.removeLast();
-                }
-                
-                // Delete all existing components
-                for (LayoutDiagramComponent lc : this.layout.getAll())
-                {
-                    layout.addComponent(null, lc.getX(), lc.getY());
-                }
-
-                // Placed previous components
-                for (LayoutDiagramComponent lc : history)
-                {
-                    layout.addComponent(lc, lc.getX(), lc.getY());
-                }
-                                
-                this.refreshGrid();
-            }
+            this.repaintCells(this.history.redo());
         }
         catch (IOException ex)
         {
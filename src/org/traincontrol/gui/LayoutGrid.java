@@ -19,6 +19,7 @@ import javax.swing.JPanel;
 import org.traincontrol.base.Accessory;
 import org.traincontrol.base.LayoutDiagram;
 import org.traincontrol.base.LayoutDiagramComponent;
+import org.traincontrol.base.LayoutDiagramHistory;
 import org.traincontrol.base.Locomotive;
 import org.traincontrol.util.I18n;
 
@@ -29,6 +30,8 @@ import org.traincontrol.util.I18n;
 public class LayoutGrid
 {
     private LayoutLabel[][] grid;
+    private final int offsetX;
+    private final int offsetY;
     public final int maxWidth;
     public final int maxHeight;
     
@@ -61,8 +64,8 @@ public class LayoutGrid
     public LayoutGrid(LayoutDiagram layout, int size, JPanel parent, Container master, boolean popup, TrainControlUI ui)
     {          
         // Calculate boundaries
-        int offsetX = layout.getMinx();
-        int offsetY = layout.getMiny();
+        offsetX = layout.getMinx();
+        offsetY = layout.getMiny();
 
         int width = layout.getMaxx() - layout.getMinx() + 1;
         int height = layout.getMaxy() - layout.getMiny() + 1;
@@ -111,6 +114,15 @@ public class LayoutGrid
         maxHeight = height * size;
                
         grid = new LayoutLabel[width][height];
+        
+        // One pass over the chunks the drawn area covers.  This used to look up every cell on its own,
+        // which on a large sparse page mostly found nothing.
+        LayoutDiagramComponent[][] placed = new LayoutDiagramComponent[width][height];
+        
+        for (LayoutDiagramComponent c : layout.getComponentsIn(offsetX, offsetY, width - 1, height - 1))
+        {
+            placed[c.getX() - offsetX][c.getY() - offsetY] = c;
+        }
                        
         for(int y = 0; y < height; y++)
         {
@@ -129,7 +141,7 @@ public class LayoutGrid
                 }
                 // End GBC fix
                 
-                LayoutDiagramComponent c = layout.getComponent(x + offsetX, y  + offsetY);
+                LayoutDiagramComponent c = placed[x][y];
                                 
                 // The edit value ensures that the icon is disabled in edit mode, and it disables clickability/events
                 grid[x][y] = new LayoutLabel(c, master, size, ui, layout.getEdit());
@@ -316,29 +328,7 @@ public class LayoutGrid
                 }
                                                                               
                 // Set references for each tile accessory
-                if (c != null)
-                {
-                    // If popup is true, LayoutLabel.isParentVisible will be used to clean up stale label references
-                    if ((c.isSwitch() || c.isSignal()) && c.getAccessory() != null)
-                    {
-                        c.getAccessory().addTile(grid[x][y]);
-                    }
-                    
-                    if (c.isFeedback() && c.getFeedback() != null)
-                    {
-                        c.getFeedback().addTile(grid[x][y]);
-                    }
-                    
-                    if (c.isThreeWay() && c.getAccessory2() != null)
-                    {
-                        c.getAccessory2().addTile(grid[x][y]); 
-                    }          
-                    
-                    if (c.isRoute() && c.getRoute() != null)
-                    {
-                        c.getRoute().addTile(grid[x][y]);
-                    }
-                }
+                linkTile(c, grid[x][y]);
             }
         }     
         
@@ -348,6 +338,93 @@ public class LayoutGrid
         } 
     } 
     
+    /**
+     * Registers a tile with the accessory, sensor or route it shows, so their changes repaint it
+     * @param c
+     * @param tile 
+     */
+    private static void linkTile(LayoutDiagramComponent c, LayoutLabel tile)
+    {
+        if (c != null)
+        {
+            // If popup is true, LayoutLabel.isParentVisible will be used to clean up stale label references
+            if ((c.isSwitch() || c.isSignal()) && c.getAccessory() != null)
+            {
+                c.getAccessory().addTile(tile);
+            }
+
+            if (c.isFeedback() && c.getFeedback() != null)
+            {
+                c.getFeedback().addTile(tile);
+            }
+
+            if (c.isThreeWay() && c.getAccessory2() != null)
+            {
+                c.getAccessory2().addTile(tile); 
+            }          
+
+            if (c.isRoute() && c.getRoute() != null)
+            {
+                c.getRoute().addTile(tile);
+            }
+        }
+    }
+    
+    /**
+     * True if a component has text or an address drawn over its tile.  Those are separate labels
+     * placed over the grid, so a tile carrying one cannot be changed on its own.
+     * @param layout
+     * @param c
+     * @return 
+     */
+    private static boolean hasOverlay(LayoutDiagram layout, LayoutDiagramComponent c)
+    {
+        return c != null && (
+            (ALLOW_TEXT_ANYWHERE && c.hasLabel() || !ALLOW_TEXT_ANYWHERE && c.isText())
+            || (layout.getShowAddress() && !c.isText() && c.isClickable())
+        );
+    }
+    
+    /**
+     * Puts the components an edit changed into their tiles, leaving every other tile as it is.  For the
+     * editor, whose tiles take the same events whatever they show.
+     * @param layout
+     * @param edit
+     * @return false, changing nothing, if the grid has to be rebuilt instead: the page has changed
+     * shape since it was drawn, or a changed cell has, or had, text or an address over it
+     */
+    public boolean updateCells(LayoutDiagram layout, LayoutDiagramHistory.Edit edit)
+    {
+        if (layout.getMinx() != offsetX || layout.getMiny() != offsetY
+            || layout.getMaxx() - layout.getMinx() + 2 != grid.length
+            || grid.length == 0 || layout.getMaxy() - layout.getMiny() + 2 != grid[0].length)
+        {
+            return false;
+        }
+        
+        for (int i = 0; i < edit.getCellCount(); i++)
+        {
+            LayoutLabel tile = getValueAt(edit.getX(i) - offsetX, edit.getY(i) - offsetY);
+            
+            if (tile == null || hasOverlay(layout, tile.getComponent()) 
+                || hasOverlay(layout, layout.getComponent(edit.getX(i), edit.getY(i))))
+            {
+                return false;
+            }
+        }
+        
+        for (int i = 0; i < edit.getCellCount(); i++)
+        {
+            LayoutLabel tile = getValueAt(edit.getX(i) - offsetX, edit.getY(i) - offsetY);
+            LayoutDiagramComponent c = layout.getComponent(edit.getX(i), edit.getY(i));
+            
+            tile.setComponent(c);
+            linkTile(c, tile);
+        }
+        
+        return true;
+    }
+    
     /**
      * Return the container that was generated
      * @return 
@@ -552,4 +552,27 @@ public final class LayoutLabel extends JLabel
     {
         return component;
     }
+    
+    /**
+     * Shows a different component on this tile.  Only for the editor, whose tiles are wired the same
+     * whatever they show; outside it the mouse handling depends on the component.
+     * @param c the new component, or null for an empty tile
+     */
+    public void setComponent(LayoutDiagramComponent c)
+    {
+        this.component = c;
+        this.imageName = null;
+        
+        // Text is drawn over the grid rather than on the tile, so text and empty tiles show nothing
+        if (c == null || c.isText())
+        {
+            this.lastIcon = null;
+            this.setIcon(new EmptyIcon(size, size));
+            this.repaint();
+        }
+        else
+        {
+            this.setImage(true);
+        }
+    }
 }
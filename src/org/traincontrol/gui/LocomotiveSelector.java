@@ -4,12 +4,20 @@ import org.traincontrol.base.Locomotive;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
-import java.awt.FlowLayout;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.swing.JCheckBox;
 import javax.swing.JPanel;
+import org.traincontrol.base.LocomotiveCatalog;
 import org.traincontrol.model.ViewListener;
 
 /**
@@ -26,6 +34,35 @@ public final class LocomotiveSelector extends javax.swing.JFrame
     
     // How quickly we scroll through the window
     private static final int SCROLL_SPEED = 25;
+    
+    // Size of each LocomotiveSelectorItem, as set in its form
+    private static final int ITEM_WIDTH = 142;
+    private static final int ITEM_HEIGHT = 114;
+    
+    // Rows built beyond the visible ones, so that scrolling a little does not show blank space
+    private static final int OVERSCAN_ROWS = 1;
+    
+    // Items kept after scrolling out of view, so that scrolling back does not reload their images
+    private static final int ITEM_CACHE_SIZE = 150;
+    
+    // Every locomotive, sorted by name
+    private List<Locomotive> allLocs = Collections.emptyList();
+    
+    // The locomotives matching the filter, in the same order
+    private List<Locomotive> shownLocs = Collections.emptyList();
+    
+    // Search index the filter is answered from
+    private LocomotiveCatalog catalog;
+    
+    // Item components by locomotive, least recently shown first
+    private final Map<Locomotive, LocomotiveSelectorItem> itemCache = new LinkedHashMap<Locomotive, LocomotiveSelectorItem>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Locomotive, LocomotiveSelectorItem> eldest)
+        {
+            return this.size() > ITEM_CACHE_SIZE;
+        }
+    };
         
     /**
      * Creates new form LocomotiveSelector
@@ -38,6 +75,10 @@ public final class LocomotiveSelector extends javax.swing.JFrame
         this.parent = ui;
 
         initComponents();
+        
+        // Items are placed by layoutVisibleItems, and only for the rows in view
+        this.MainLocList.setLayout(null);
+        this.LocScroller.getViewport().addChangeListener(e -> this.layoutVisibleItems());
     }
     
     /**
@@ -83,23 +124,17 @@ public final class LocomotiveSelector extends javax.swing.JFrame
     {
         javax.swing.SwingUtilities.invokeLater(() -> 
         {
-            this.MainLocList.removeAll();
-
-            this.MainLocList.setLayout(new FlowLayout(FlowLayout.LEFT, PADDING, PADDING));
-
             List<Locomotive> locs = this.model.getLocomotives();
             locs.sort((Locomotive l1, Locomotive l2) ->
             {
                 return l1.getName().compareTo(l2.getName());
             });
             
-            for (Locomotive l : locs)
-            {
-                LocomotiveSelectorItem loc = new LocomotiveSelectorItem(l, this);
-
-                this.MainLocList.add(loc);
-                loc.setVisible(true);
-            }
+            this.allLocs = locs;
+            this.catalog = this.model.getLocomotiveCatalog();
+            
+            // Names and addresses are fixed when an item is built, so anything renamed needs a new one
+            this.itemCache.clear();
 
             // this.LocFilterBox.setText("");
             filterLocList();     
@@ -110,25 +145,88 @@ public final class LocomotiveSelector extends javax.swing.JFrame
     {
         javax.swing.SwingUtilities.invokeLater(() ->
         {
-            String filter = this.LocFilterBox.getText().toLowerCase();
+            if (this.catalog == null)
+            {
+                this.catalog = this.model.getLocomotiveCatalog();
+            }
+            
+            // This used to build an item for every locomotive up front, then lowercase and scan every
+            // item's name and address on each keystroke, which stuttered with a few hundred locomotives
+            String filter = this.LocFilterBox.getText();
+            Set<Locomotive> matches = this.catalog.search(filter);
+            List<Locomotive> shown = new ArrayList<>();
         
-            for (Component b : this.MainLocList.getComponents())
+            for (Locomotive l : this.allLocs)
             {
-                LocomotiveSelectorItem bb = (LocomotiveSelectorItem) b;
-                if ("".equals(filter) || bb.getText().toLowerCase().contains(filter) || bb.getAddr().toLowerCase().contains(filter))
-                {
-                    b.setVisible(true);
-                }
-                else
+                if (matches.contains(l))
                 {
-                    b.setVisible(false);
+                    shown.add(l);
                 }
             }
+            
+            this.shownLocs = shown;
 
             updateScrollArea();
         });
     }
     
+    /**
+     * Number of item columns that fit the current width
+     * @return 
+     */
+    private int getColumnCount()
+    {
+        return Math.max(1, (this.LocScroller.getViewport().getWidth() - PADDING) / (ITEM_WIDTH + PADDING));
+    }
+    
+    /**
+     * Places item components for the rows in view, and removes the rest
+     */
+    private void layoutVisibleItems()
+    {
+        int cols = this.getColumnCount();
+        int rowHeight = ITEM_HEIGHT + PADDING;
+        Rectangle view = this.LocScroller.getViewport().getViewRect();
+        
+        int firstRow = Math.max(0, (view.y - PADDING) / rowHeight - OVERSCAN_ROWS);
+        int lastRow = (view.y + view.height) / rowHeight + OVERSCAN_ROWS;
+        
+        int first = Math.min(this.shownLocs.size(), firstRow * cols);
+        int last = Math.min(this.shownLocs.size(), (lastRow + 1) * cols);
+        
+        Set<Component> wasShown = new HashSet<>(Arrays.asList(this.MainLocList.getComponents()));
+        
+        this.MainLocList.removeAll();
+        
+        for (int i = first; i < last; i++)
+        {
+            Locomotive l = this.shownLocs.get(i);
+            LocomotiveSelectorItem item = this.itemCache.get(l);
+            
+            if (item == null)
+            {
+                item = new LocomotiveSelectorItem(l, this);
+                this.itemCache.put(l, item);
+            }
+            else if (!wasShown.contains(item))
+            {
+                // Mappings may have changed while it was out of view
+                item.refreshToolTip();
+            }
+            
+            item.setBounds(
+                PADDING + (i % cols) * (ITEM_WIDTH + PADDING),
+                PADDING + (i / cols) * rowHeight,
+                ITEM_WIDTH, ITEM_HEIGHT
+            );
+            
+            this.MainLocList.add(item);
+            item.setVisible(true);
+        }
+        
+        this.MainLocList.repaint();
+    }
+    
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -421,36 +519,23 @@ public final class LocomotiveSelector extends javax.swing.JFrame
     {
         try
         {
-            if (this.MainLocList.getComponentCount() > 0 && this.MainLocList.getComponent(0).getWidth() > 0)
-            {            
-                Integer cols = (this.LocScroller.getWidth() + PADDING) / this.MainLocList.getComponent(0).getWidth();
-                
-                Integer itemH = this.MainLocList.getComponent(0).getHeight();
-                Integer totalItems = 0;
-                
-                for (Component c: this.MainLocList.getComponents())
-                {
-                    if (c.isVisible())
-                    {
-                        totalItems += 1;
-                    }
-                }
-                
-                Integer rows = (int) Math.ceil((double) totalItems / (double) cols) ;
+            int cols = this.getColumnCount();
+            int rows = (int) Math.ceil((double) this.shownLocs.size() / (double) cols);
 
-                this.MainLocList.setPreferredSize(new Dimension(this.getWidth(), ( rows * ( itemH + PADDING) ) + (int) (itemH * 1.5) ));
-                     
-                // This determines the scolling speed
-                if (this.LocScroller.getVerticalScrollBar() != null)
-                {
-                    this.LocScroller.getVerticalScrollBar().setUnitIncrement(SCROLL_SPEED);
-                    this.LocScroller.repaint();
-                }
-            }  
+            // Sized for every matching locomotive, although only the rows in view have components
+            this.MainLocList.setPreferredSize(new Dimension(this.LocScroller.getViewport().getWidth(), 
+                ( rows * ( ITEM_HEIGHT + PADDING) ) + (int) (ITEM_HEIGHT * 1.5) ));
+
+            // This determines the scolling speed
+            if (this.LocScroller.getVerticalScrollBar() != null)
+            {
+                this.LocScroller.getVerticalScrollBar().setUnitIncrement(SCROLL_SPEED);
+                this.LocScroller.repaint();
+            }
             
-            refreshToolTips();
             this.MainLocList.revalidate();
-            this.MainLocList.repaint();
+            layoutVisibleItems();
+            refreshToolTips();
         }
         catch (Exception e)
         {
@@ -466,6 +551,7 @@ public final class LocomotiveSelector extends javax.swing.JFrame
         // Update all tooltips
         javax.swing.SwingUtilities.invokeLater(() ->
         {
+            // Items out of view are brought up to date when they are next shown
             for (Component c: this.MainLocList.getComponents())
             {
                 ((LocomotiveSelectorItem) c).refreshToolTip();
@@ -0,0 +1,137 @@
+package org.traincontrol.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Map;
+import javax.swing.BorderFactory;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.DefaultTableModel;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.base.ConfirmationLatency;
+import org.traincontrol.model.ViewListener;
+import org.traincontrol.util.I18n;
+import org.traincontrol.util.LatencyHistogram;
+
+/**
+ * Live view of command round-trip latency, per command type and per decoder protocol
+ * @author Adam
+ */
+public class NetworkDiagnostics extends JDialog
+{
+    private static final long serialVersionUID = 1L;
+
+    // How often the table is refreshed
+    private static final int REFRESH_INTERVAL_MS = 1000;
+
+    private final ViewListener model;
+    private final DefaultTableModel tableModel;
+    private final JLabel summary;
+    private final Timer refreshTimer;
+
+    /**
+     * Constructor
+     * @param parent
+     * @param model
+     */
+    public NetworkDiagnostics(TrainControlUI parent, ViewListener model)
+    {
+        super(parent, I18n.t("ui.diagnostics.title"), false);
+
+        this.model = model;
+
+        this.tableModel = new DefaultTableModel(new Object[]
+        {
+            I18n.t("ui.diagnostics.colCommand"),
+            I18n.t("ui.diagnostics.colSamples"),
+            I18n.t("ui.diagnostics.colP50"),
+            I18n.t("ui.diagnostics.colP99"),
+            I18n.t("ui.diagnostics.colMax")
+        }, 0)
+        {
+            @Override
+            public boolean isCellEditable(int row, int column)
+            {
+                return false;
+            }
+        };
+
+        JTable table = new JTable(this.tableModel);
+        table.setFillsViewportHeight(true);
+
+        this.summary = new JLabel(" ");
+        this.summary.setBorder(BorderFactory.createEmptyBorder(4, 6, 4, 6));
+
+        this.getContentPane().setLayout(new BorderLayout());
+        this.getContentPane().add(new JScrollPane(table), BorderLayout.CENTER);
+        this.getContentPane().add(this.summary, BorderLayout.SOUTH);
+        this.setPreferredSize(new Dimension(520, 360));
+        this.pack();
+        this.setLocationRelativeTo(parent);
+        this.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+
+        this.refreshTimer = new Timer(REFRESH_INTERVAL_MS, e -> this.refresh());
+
+        // The timer holds a reference to this window, so it has to be stopped or the dialog is never
+        // collected and keeps polling the model after it has been closed
+        this.addWindowListener(new WindowAdapter()
+        {
+            @Override
+            public void windowClosed(WindowEvent e)
+            {
+                refreshTimer.stop();
+            }
+        });
+
+        this.refresh();
+        this.refreshTimer.start();
+    }
+
+    /**
+     * Reloads the table from the model
+     */
+    private void refresh()
+    {
+        Map<String, LatencyHistogram.Snapshot> stats = this.model.getCommandLatencyStats();
+
+        this.tableModel.setRowCount(0);
+
+        for (Map.Entry<String, LatencyHistogram.Snapshot> e : stats.entrySet())
+        {
+            LatencyHistogram.Snapshot s = e.getValue();
+
+            this.tableModel.addRow(new Object[]
+            {
+                e.getKey(),
+                s.getCount(),
+                String.format("%.1f", s.getP50()),
+                String.format("%.1f", s.getP99()),
+                String.format("%.1f", s.getMax())
+            });
+        }
+
+        // Decoders path validation has found slow or unreliable, measured over their last confirmations
+        // rather than the last minute
+        for (Accessory acc : this.model.getSlowAccessories())
+        {
+            ConfirmationLatency c = acc.getConfirmationLatency();
+
+            this.tableModel.addRow(new Object[]
+            {
+                I18n.f("ui.diagnostics.slowDecoder", acc.getName(), c.getTimeouts()),
+                c.getSampleCount(),
+                String.format("%.1f", c.getPercentileMs(0.5)),
+                String.format("%.1f", c.getPercentileMs(0.99)),
+                String.format("%.1f", c.getMaxMs())
+            });
+        }
+
+        this.summary.setText((stats.isEmpty() ? I18n.t("ui.diagnostics.noData") : I18n.t("ui.diagnostics.window"))
+            + " " + I18n.f("ui.diagnostics.duplicates", this.model.getNumDuplicateMessagesDropped()));
+    }
+}
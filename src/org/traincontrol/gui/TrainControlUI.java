@@ -136,9 +136,13 @@ import org.traincontrol.base.RenameProposals;
 import org.traincontrol.base.Route;
 import static org.traincontrol.marklin.MarklinControlStation.RAW_VERSION;
 import org.traincontrol.base.LayoutDiagram;
+import org.traincontrol.base.EventHub;
 import org.traincontrol.util.Conversion;
 import org.traincontrol.util.I18n;
+import org.traincontrol.util.ImagePyramid;
+import org.traincontrol.util.ImagePyramidCache;
 import org.traincontrol.util.ImageUtil;
+import org.traincontrol.util.LatencyHistogram;
 import org.traincontrol.util.Util;
 
 /**
@@ -281,6 +285,9 @@ public class TrainControlUI extends PositionAwareJFrame implements View
     
     // View listener (model) reference
     private ViewListener model;
+    
+    // Our subscription to the model's layout page events, cancelled when the window goes
+    private EventHub.Subscription layoutSubscription;
 
     // Set when the operator asks trains to stop, so a staging run that ends short of home because they
     // asked it to is not reported as a failure.  Volatile: written on the EDT, read on the run thread.
@@ -1796,6 +1803,25 @@ public class TrainControlUI extends PositionAwareJFrame implements View
                 
         // Add list of layouts to tab
         this.LayoutList.setModel(new DefaultComboBoxModel(listener.getLayoutList().toArray()));
+        
+        // A sync while no track diagram is shown - the first one of a new setup, or after switching to
+        // the Central Station's layout - shows the new pages as soon as they are imported.  Once
+        // something is shown, the sync's caller refreshes as it always has.
+        if (this.layoutSubscription != null)
+        {
+            this.layoutSubscription.cancel();
+        }
+        
+        this.layoutSubscription = this.model.getEvents().subscribe(EventHub.Kind.LAYOUT, null, e ->
+        {
+            javax.swing.SwingUtilities.invokeLater(() ->
+            {
+                if (this.LayoutList.getModel().getSize() == 0)
+                {
+                    this.initializeTrackDiagram(false);
+                }
+            });
+        });
                 
         // Display keyboard
         this.switchKeyboard(this.keyboardNumber);
@@ -1814,6 +1840,16 @@ public class TrainControlUI extends PositionAwareJFrame implements View
             I18n.t("ui.labelNotConnectedToCentralStation")
         );
 
+        // Per-command latency breakdown
+        this.latencyLabel.addMouseListener(new MouseAdapter()
+        {
+            @Override
+            public void mouseClicked(MouseEvent e)
+            {
+                new NetworkDiagnostics(TrainControlUI.this, model).setVisible(true);
+            }
+        });
+
         // Start with true to ensure keyboard events register properly
         // If we don't do this, initializing the UI from the EDT will cause issues
         setAlwaysOnTop(true);
@@ -1977,7 +2013,7 @@ public class TrainControlUI extends PositionAwareJFrame implements View
                                 latencyLabel.setForeground(Color.red);
                             });
                             
-                            checkAutoLayoutLatency(PING_INTERVAL);
+                            checkAutoLayoutLatency(PING_INTERVAL, true);
                         }
                         
                         model.sendPing(false);
@@ -2128,11 +2164,34 @@ public class TrainControlUI extends PositionAwareJFrame implements View
      * @param latency 
      */
     private void checkAutoLayoutLatency(double latency)
+    {
+        this.checkAutoLayoutLatency(latency, false);
+    }
+
+    /**
+     * Turns off the power in autonomy mode when the set latency limit is exceeded
+     * @param latency the ping round trip
+     * @param connectionLost the ping went unanswered, so the accessory figures are no longer current
+     */
+    private void checkAutoLayoutLatency(double latency, boolean connectionLost)
     {
         if (model.getPowerState())
         {
             Layout l = model.getAutoLayout();
 
+            // One ping every few seconds says little about how quickly turnouts are actually answering.
+            // With the accessory guard on, the p99 of real accessory round trips replaces it once there
+            // are enough of them to mean something.  A lost connection still trips on the ping alone.
+            if (l != null && l.isAccessoryLatencyGuard() && !connectionLost)
+            {
+                LatencyHistogram.Snapshot acc = model.getAccessoryLatencyStats();
+
+                if (acc.getCount() >= Layout.ACCESSORY_LATENCY_MIN_SAMPLES)
+                {
+                    latency = acc.getP99();
+                }
+            }
+
             if (l != null && l.isRunning() && l.getMaxLatency() > 0 && latency > l.getMaxLatency())
             {
                 this.model.logf(
@@ -2618,7 +2677,7 @@ public class TrainControlUI extends PositionAwareJFrame implements View
      * Repaints the locomotive keyboard
      * @param forceUpdateLoc 
      */
-    private synchronized void repaintMappings(List<Locomotive> forceUpdateLoc, boolean updateIcon)
+    private synchronized void repaintMappings(List<? extends Locomotive> forceUpdateLoc, boolean updateIcon)
     {         
         this.MappingRenderer.submit(() -> 
         { 
@@ -2912,16 +2971,12 @@ public class TrainControlUI extends PositionAwareJFrame implements View
         
         if (!TrainControlUI.getImageCache().containsKey(key))
         {
-            Image img = ImageIO.read(new URL(url));
+            // Downloaded and decoded once per URL; each size is resampled from the nearest mip level
+            Image img = ImagePyramidCache.getShared().getScaledToWidth(url, () -> ImageIO.read(new URL(url)), size);
             
             if (img != null)
             {
-                float aspect = (float) img.getHeight(null) / (float) img.getWidth(null);
-                TrainControlUI.getImageCache().put(key, 
-                    // img.getScaledInstance(size, (int) (size * aspect), 1)
-                    // Higher quality scaling
-                    ImageUtil.getScaledImage(ImageUtil.toTransparentBufferedImage(img), size, (int) (size * aspect))
-                );
+                TrainControlUI.getImageCache().put(key, img);
             }
         }
 
@@ -2942,11 +2997,11 @@ public class TrainControlUI extends PositionAwareJFrame implements View
         
         if (!TrainControlUI.getImageCache().containsKey(key))
         {
-            Image img = ImageIO.read(new URL(url));
+            ImagePyramid img = ImagePyramidCache.getShared().get(url, () -> ImageIO.read(new URL(url)));
             
             if (img != null)
             {
-                float aspect = (float) img.getHeight(null) / (float) img.getWidth(null);
+                float aspect = (float) img.getHeight() / (float) img.getWidth();
                 
                 // Limit maximum height
                 if (size * aspect > maxHeight)
@@ -2954,11 +3009,7 @@ public class TrainControlUI extends PositionAwareJFrame implements View
                     size = (int) (size * (maxHeight / (size * aspect)));
                 }
                 
-                TrainControlUI.getImageCache().put(key, 
-                    // img.getScaledInstance(size, (int) (size * aspect), 1)
-                    // Higher quality scaling
-                    ImageUtil.getScaledImage(ImageUtil.toTransparentBufferedImage(img), size, (int) (size * aspect))
-                );
+                TrainControlUI.getImageCache().put(key, img.getScaled(size, (int) (size * aspect)));
             }
         }
 
@@ -3074,7 +3125,7 @@ public class TrainControlUI extends PositionAwareJFrame implements View
     }
         
     @Override
-    synchronized public void repaintLoc(boolean force, List<Locomotive> updatedLocs)
+    synchronized public void repaintLoc(boolean force, List<? extends Locomotive> updatedLocs)
     {     
         // Prevent concurrent calls
         for (Future<?> f : this.locFutures)
@@ -3353,7 +3404,7 @@ public class TrainControlUI extends PositionAwareJFrame implements View
      * @param l
      * @return 
      */
-    private Map<JButton, Locomotive> currentLocMapping(List<Locomotive> l)
+    private Map<JButton, Locomotive> currentLocMapping(List<? extends Locomotive> l)
     {
         Map<JButton, Locomotive> result = new HashMap<>();
         
@@ -3675,6 +3726,7 @@ public class TrainControlUI extends PositionAwareJFrame implements View
         preArrivalSpeedReduction = new javax.swing.JSlider();
         jLabel50 = new javax.swing.JLabel();
         atomicRoutes = new javax.swing.JCheckBox();
+        lookahead = new javax.swing.JCheckBox();
         turnOffFunctionsOnArrival = new javax.swing.JCheckBox();
         simulate = new javax.swing.JCheckBox();
         turnOnFunctionsOnDeparture = new javax.swing.JCheckBox();
@@ -6149,6 +6201,16 @@ public class TrainControlUI extends PositionAwareJFrame implements View
             }
         });
 
+        lookahead.setFont(new java.awt.Font("Segoe UI", 0, 14)); // NOI18N
+        lookahead.setText(bundle.getString("ui.main.lookahead")); // NOI18N
+        lookahead.setToolTipText(bundle.getString("ui.main.tooltip.lookahead")); // NOI18N
+        lookahead.setFocusable(false);
+        lookahead.addMouseListener(new java.awt.event.MouseAdapter() {
+            public void mouseReleased(java.awt.event.MouseEvent evt) {
+                lookaheadMouseReleased(evt);
+            }
+        });
+
         turnOffFunctionsOnArrival.setFont(new java.awt.Font("Segoe UI", 0, 14)); // NOI18N
         turnOffFunctionsOnArrival.setText(bundle.getString("ui.main.turnOffFuncArrival")); // NOI18N
         turnOffFunctionsOnArrival.setToolTipText(bundle.getString("ui.main.tooltip.turnOffFuncArrival")); // NOI18N
@@ -6251,6 +6313,7 @@ public class TrainControlUI extends PositionAwareJFrame implements View
                                 .addComponent(turnOnFunctionsOnDeparture, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                                 .addComponent(preArrivalSpeedReduction, javax.swing.GroupLayout.PREFERRED_SIZE, 230, javax.swing.GroupLayout.PREFERRED_SIZE))
                             .addComponent(atomicRoutes)
+                            .addComponent(lookahead)
                             .addComponent(turnOffFunctionsOnArrival)
                             .addComponent(jLabel50))
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
@@ -6297,6 +6360,8 @@ public class TrainControlUI extends PositionAwareJFrame implements View
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                         .addComponent(atomicRoutes)
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(lookahead)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                         .addComponent(turnOffFunctionsOnArrival))
                     .addGroup(jPanel3Layout.createSequentialGroup()
                         .addComponent(jLabel53)
@@ -9817,6 +9882,21 @@ public class TrainControlUI extends PositionAwareJFrame implements View
         }
     }//GEN-LAST:event_LocControlPanelKeyPressed
 
+    /**
+     * Also stops listening to the model, which can outlive this window
+     */
+    @Override
+    public void dispose()
+    {
+        if (this.layoutSubscription != null)
+        {
+            this.layoutSubscription.cancel();
+            this.layoutSubscription = null;
+        }
+        
+        super.dispose();
+    }
+
     private void WindowClosed(java.awt.event.WindowEvent evt)//GEN-FIRST:event_WindowClosed
     {//GEN-HEADEREND:event_WindowClosed
         // Auto-save confirmation
@@ -10784,10 +10864,9 @@ public class TrainControlUI extends PositionAwareJFrame implements View
                 sourceLocs.retainAll(this.getModel().getAutoLayout().getLocomotivesToRun());
             }
             
-            boolean randomize = randomOrder.isSelected();
-
-            List<Locomotive> matches = Locomotive.findSimilarLocomotives(
-                searchLoc, count, railroads, sourceLocs, randomize
+            // Answered from the model's catalog index rather than by reparsing every locomotive's notes
+            List<Locomotive> matches = this.model.getLocomotiveCatalog().findSimilar(
+                searchLoc, count, railroads, sourceLocs, randomOrder.isSelected()
             );
 
             if (matches.isEmpty())
@@ -11770,10 +11849,7 @@ public class TrainControlUI extends PositionAwareJFrame implements View
                 
                 new Thread(() ->
                 {
-                    for (String s : this.model.getLocList())
-                    {
-                        this.model.syncLocomotive(s);
-                    }
+                    this.model.syncLocomotives(this.model.getLocList());
                     
                     this.syncMenuItem.setEnabled(true);
                     this.functionsMenu.setEnabled(true);
@@ -12088,6 +12164,21 @@ public class TrainControlUI extends PositionAwareJFrame implements View
         }
     }//GEN-LAST:event_atomicRoutesMouseReleased
 
+    private void lookaheadMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_lookaheadMouseReleased
+        if (!this.isAutoLayoutRunning())
+        {
+            try
+            {
+                this.model.getAutoLayout().setLookahead(this.lookahead.isSelected());
+            }
+            catch (Exception e)
+            {
+                JOptionPane.showMessageDialog(this, e.getMessage());
+                loadAutoLayoutSettings();
+            }
+        }
+    }//GEN-LAST:event_lookaheadMouseReleased
+
     private void preArrivalSpeedReductionMouseReleased(java.awt.event.MouseEvent evt) {//GEN-FIRST:event_preArrivalSpeedReductionMouseReleased
         if (!this.isAutoLayoutRunning())
         {
@@ -13191,9 +13282,10 @@ public class TrainControlUI extends PositionAwareJFrame implements View
                 // while different trains move.
                 //
                 // Called from this thread rather than from the block above: repaintTimetable takes the
-                // Layout monitor before it marshals, and the first entry's configureAndLockPath is
-                // about to hold that monitor for the length of its switch-throwing.  Marshalled, the
-                // wait landed on the EDT and froze the UI for it - roughly a coin toss, once per run.
+                // Layout monitor before it marshals, and the first entry's configureAndLockPath used to
+                // hold that monitor for the length of its switch-throwing.  Marshalled, the wait landed
+                // on the EDT and froze the UI for it - roughly a coin toss, once per run.  The monitor
+                // is now held only for the occupancy check, but it is still taken here, off the EDT.
                 // The method does its own marshalling, so the wrapper was never needed here.
                 this.repaintTimetable();
 
@@ -14970,6 +15062,7 @@ public class TrainControlUI extends PositionAwareJFrame implements View
         this.maxActiveTrains.setValue(this.model.getAutoLayout().getMaxActiveTrains());
         this.simulate.setSelected(this.model.getAutoLayout().isSimulate());
         this.atomicRoutes.setSelected(this.model.getAutoLayout().isAtomicRoutes());
+        this.lookahead.setSelected(this.model.getAutoLayout().isLookahead());
         this.turnOffFunctionsOnArrival.setSelected(this.model.getAutoLayout().isTurnOffFunctionsOnArrival());
         this.turnOnFunctionsOnDeparture.setSelected(this.model.getAutoLayout().isTurnOnFunctionsOnDeparture());
         this.maximumLatency.setValue(this.model.getAutoLayout().getMaxLatency());        
@@ -15544,9 +15637,10 @@ public class TrainControlUI extends PositionAwareJFrame implements View
     {
         // The snapshot must not be taken on the EDT.
         //
-        // getTimetableSnapshot holds the Layout monitor, and configureAndLockPath holds that same
-        // monitor across its per-command sleeps - half a second to two seconds on an ordinary path,
-        // deliberately, because locking a path has to be atomic.  This method runs at every path start
+        // getTimetableSnapshot holds the Layout monitor, and configureAndLockPath used to hold that same
+        // monitor across its per-command sleeps - half a second to two seconds on an ordinary path.  It
+        // now holds it only to check and mark occupancy (PathReservations covers the sleeps), but the
+        // monitor still has other long holders, and the reasoning below still applies to them.  This method runs at every path start
         // and end, so with two or more trains one locomotive is regularly mid-configuration when
         // another’s callback lands here: taken inside the invokeLater, the whole UI froze for the
         // length of someone else’s switch-throwing, over and over.
@@ -15692,9 +15786,9 @@ public class TrainControlUI extends PositionAwareJFrame implements View
             //
             // But the search inside it is synchronized on the Layout and walks the whole graph, once
             // per panel, and this method is fired at EVERY path start and end.  On the EDT that is not
-            // merely slow: configureAndLockPath holds the same monitor across its per-command sleeps,
-            // so an arrival that overlaps another train's configuration freezes the interface until
-            // that train's switches are thrown.  Semi-autonomous operation with two or more trains
+            // merely slow: configureAndLockPath used to hold the same monitor across its per-command
+            // sleeps, so an arrival that overlaps another train's configuration froze the interface
+            // until that train's switches were thrown.  Semi-autonomous operation with two or more trains
             // reaches it routinely, which is the mode this release's own fixes exist to polish.
             //
             // So both halves go where they belong rather than both going to one place.
@@ -16376,6 +16470,7 @@ public class TrainControlUI extends PositionAwareJFrame implements View
     private javax.swing.JMenu locomotiveControlMenu;
     private javax.swing.JMenu locomotiveMenu;
     private javax.swing.JPanel logPanel;
+    private javax.swing.JCheckBox lookahead;
     private javax.swing.JMenuBar mainMenuBar;
     private javax.swing.JSlider maxActiveTrains;
     private javax.swing.JSlider maxDelay;
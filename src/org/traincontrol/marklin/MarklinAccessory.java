@@ -149,7 +149,7 @@ public class MarklinAccessory extends Accessory
             return;
         }
                       
-        if (m.getCommand().equals(CS2Message.CMD_ACC_SWITCH))
+        if (m.getCommand() == CS2Message.CMD_ACC_SWITCH)
         {
             if (m.getLength() >= 6)
             {
@@ -174,20 +174,16 @@ public class MarklinAccessory extends Accessory
                 }
 
                 // Any echo is an acknowledgement from the Central Station, whether or not it moved the
-                // accessory - so it confirms the position, and it has to wake the waiter either way.
+                // accessory - so it confirms the position, and it has to complete waiters either way.
                 // Both of these used to happen only when the state changed, which left an accessory
                 // commanded to the position it was already in confirmed by nothing at all, and left
                 // autonomy path validation asleep until its timeout even though the CS had answered.
-                // Set before the notify so a woken waiter sees it.
+                // Set before confirmed() so a completed waiter sees it.
                 this.actuationConfirmed = true;
 
-                // Wake anyone waiting for a CS-confirmed actuation (e.g. autonomy path validation).
-                // A dedicated monitor (not Locomotive.accessoryMonitor) so existing accessoryMonitor
-                // waiters are undisturbed, and it fires only now that the confirmed state is current.
-                synchronized (Accessory.actuationConfirmedMonitor)
-                {
-                    Accessory.actuationConfirmedMonitor.notifyAll();
-                }
+                // Completes whoever waits on this accessory (e.g. autonomy path validation), and times
+                // the decoder's answer
+                this.confirmed();
 
                 this.updateTiles(false);
                                                 
@@ -200,6 +196,20 @@ public class MarklinAccessory extends Accessory
         }
     }
     
+    /**
+     * Keeps compiled route conditions current
+     * @param was
+     * @param state 
+     */
+    @Override
+    protected void stateUpdated(boolean was, boolean state)
+    {
+        if (this.network != null)
+        {
+            this.network.getConditionEngine().accessoryChanged(this.address + 1, this.decoderType, state);
+        }
+    }
+    
     @Override
     synchronized public Accessory setSwitched(boolean state)
     {
@@ -216,18 +226,15 @@ public class MarklinAccessory extends Accessory
             // this.network.getGUI().repaintSwitches();
         }
         
-        this.network.exec(new CS2Message(
-            CS2Message.CMD_ACC_SWITCH,
-            new byte[]
-            {
-              (byte) (UID >> 24), 
-              (byte) (UID >> 16), 
-              (byte) (UID >> 8), 
-              (byte) UID,
-              (byte) (this.switched ? 0 : 1), // The state of the accessory
-              1                               // 1 means power on
-            }
-        ));
+        CS2Message m = CS2Message.encode(CS2Message.CMD_ACC_SWITCH, 6)
+            .putUID(UID)
+            .put(4, this.switched ? 0 : 1)  // The state of the accessory
+            .put(5, 1);                     // 1 means power on
+
+        // Before exec, which can echo the command back before it returns
+        this.commanded();
+        this.network.exec(m);
+        m.release();
                 
         return this;
     }
@@ -0,0 +1,371 @@
+package org.traincontrol.marklin;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.traincontrol.base.Locomotive;
+import org.traincontrol.base.Locomotive.locDirection;
+import org.traincontrol.marklin.udp.CS2Message;
+
+/**
+ * Sends commands to a locomotive and the locomotives linked to it as one unit.
+ *
+ * The head used to pass each command through by calling the same method on every member from inside
+ * its own synchronized method, and each member then sent its own frame.  Every speed change therefore
+ * nested one lock per member inside the head's, held them in map order rather than any global order,
+ * and went out as separate sends that any other thread's frames could fall between - autonomy changes
+ * speed at every edge and pre-arrival point, so on a four-engine consist that was four times the
+ * traffic and four lock acquisitions on its hottest path, with the engines starting at visibly
+ * different moments.
+ *
+ * Here each command computes every member's scaled speed and direction in one pass, under the locks of
+ * the head and all of its members taken in a fixed order (by UID, then name), and hands all of the
+ * resulting frames to the transmit path as one batch that is sent back to back.  Two threads commanding
+ * overlapping consists always lock in the same order and so cannot deadlock.  The time from the first
+ * frame of a batch to the last is recorded as its skew.
+ *
+ * The CS2 protocol has no frame addressing a software consist, so a batch is the nearest thing to one;
+ * a Central Station multi-unit is already a single locomotive and sends a single frame.
+ *
+ * @author Adam
+ */
+public class MarklinConsist
+{
+    // Fixed lock order across every consist
+    private static final Comparator<MarklinLocomotive> LOCK_ORDER =
+        Comparator.comparingInt(MarklinLocomotive::getIntUID)
+            .thenComparing(Locomotive::getName)
+            .thenComparingInt(System::identityHashCode);
+
+    private final MarklinLocomotive head;
+
+    // Statistics, written under the head's lock
+    private volatile long lastSkewNanos = 0;
+    private volatile long maxSkewNanos = 0;
+    private volatile long batchCount = 0;
+    private volatile long frameCount = 0;
+
+    MarklinConsist(MarklinLocomotive head)
+    {
+        this.head = head;
+    }
+
+    /**
+     * Every member's speed from the head's: scaled by the absolute multiplier, rounded away from the
+     * head's speed, and clamped to 100.
+     * @param speed
+     * @param multiplier
+     * @return
+     */
+    public static int memberSpeed(int speed, double multiplier)
+    {
+        double scaledSpeed = speed * Math.abs(multiplier);
+        int roundedSpeed;
+
+        if (Math.abs(multiplier) > 1)
+        {
+            roundedSpeed = (int) Math.ceil(scaledSpeed);
+        }
+        else
+        {
+            roundedSpeed = (int) Math.floor(scaledSpeed);
+        }
+
+        // Clamped, because multipliers up to 2 are accepted and the scaled value can therefore
+        // exceed the 0-100 range _setSpeed will store.  _setSpeed IGNORES an out-of-range value
+        // rather than clamping it, and the member then transmits its previous speed - so past the
+        // threshold (67 for a 1.5x member) the member silently froze while the head kept
+        // accelerating, and the two engines of one consist pulled against each other.
+        return Math.min(roundedSpeed, 100);
+    }
+
+    /**
+     * A member's direction from the head's: reversed when its multiplier is negative
+     * @param direction
+     * @param multiplier
+     * @return
+     */
+    public static locDirection memberDirection(locDirection direction, double multiplier)
+    {
+        if (multiplier < 0)
+        {
+            return direction == locDirection.DIR_FORWARD ? locDirection.DIR_BACKWARD : locDirection.DIR_FORWARD;
+        }
+
+        return direction;
+    }
+
+    public void setSpeed(int speed)
+    {
+        this.run(members ->
+        {
+            List<CS2Message> batch = new ArrayList<>();
+
+            // Force last known direction if this is the first command to move
+            if (this.head.needsDirection())
+            {
+                this.stageDirection(members, this.head.getDirection(), batch);
+            }
+
+            for (Map.Entry<MarklinLocomotive, Double> entry : members.entrySet())
+            {
+                entry.getKey().stageSpeed(memberSpeed(speed, entry.getValue()), batch);
+            }
+
+            this.head.stageSpeed(speed, batch);
+
+            return batch;
+        });
+    }
+
+    public void setDirection(locDirection direction)
+    {
+        this.run(members ->
+        {
+            List<CS2Message> batch = new ArrayList<>();
+
+            this.stageDirection(members, direction, batch);
+
+            return batch;
+        });
+    }
+
+    public void setF(int fNumber, boolean state)
+    {
+        this.run(members ->
+        {
+            List<CS2Message> batch = new ArrayList<>();
+
+            for (MarklinLocomotive member : members.keySet())
+            {
+                member.stageF(fNumber, state, batch);
+            }
+
+            if (this.head.validF(fNumber) && this.head.needsDirection())
+            {
+                this.stageDirection(members, this.head.getDirection(), batch);
+            }
+
+            this.head.stageF(fNumber, state, batch);
+
+            return batch;
+        });
+    }
+
+    public void stop()
+    {
+        this.run(members ->
+        {
+            List<CS2Message> batch = new ArrayList<>();
+
+            for (MarklinLocomotive member : members.keySet())
+            {
+                member.stageStop(batch);
+            }
+
+            this.head.stageStop(batch);
+
+            return batch;
+        });
+    }
+
+    /**
+     * Resends the head's state, and the state each member derives from it: its scaled speed, its
+     * direction, and the head's functions (those the head lacks keep the member's own).  Only what
+     * differs from what the Central Station last reported is sent - this used to resend all of it -
+     * and the direction goes first, since the Central Station zeroes the speed when it changes.
+     */
+    public void syncFromState()
+    {
+        this.run(members ->
+        {
+            List<CS2Message> batch = new ArrayList<>();
+            int speed = this.head.getSpeed();
+            locDirection direction = this.head.getDirection();
+
+            for (Map.Entry<MarklinLocomotive, Double> entry : members.entrySet())
+            {
+                MarklinLocomotive member = entry.getKey();
+                List<Boolean> functions = new ArrayList<>();
+
+                for (int i = 0; i < member.getNumF(); i++)
+                {
+                    functions.add(i < this.head.getNumF() ? this.head.getF(i) : member.getF(i));
+                }
+
+                stageStale(member, memberSpeed(speed, entry.getValue()), memberDirection(direction, entry.getValue()), functions, batch);
+            }
+
+            List<Boolean> functions = new ArrayList<>();
+
+            for (int i = 0; i < this.head.getNumF(); i++)
+            {
+                functions.add(this.head.getF(i));
+            }
+
+            stageStale(this.head, speed, direction, functions, batch);
+
+            return batch;
+        });
+    }
+
+    /**
+     * Stages the state of one locomotive that differs from what the Central Station last reported
+     * @param loc
+     * @param speed
+     * @param direction
+     * @param functions
+     * @param batch
+     */
+    private static void stageStale(MarklinLocomotive loc, int speed, locDirection direction, List<Boolean> functions, List<CS2Message> batch)
+    {
+        boolean turned = loc.getReportedDirection() != direction;
+
+        if (turned)
+        {
+            loc.stageDirection(direction, batch);
+        }
+
+        // Turning zeroes the speed
+        if (loc.getReportedSpeed() != speed || turned && speed > 0)
+        {
+            loc.stageSpeed(speed, batch);
+        }
+
+        for (int i = 0; i < functions.size(); i++)
+        {
+            if (!loc.isFReported(i) || loc.getReportedF(i) != functions.get(i))
+            {
+                loc.stageF(i, functions.get(i), batch);
+            }
+        }
+    }
+
+    private void stageDirection(Map<MarklinLocomotive, Double> members, locDirection direction, List<CS2Message> batch)
+    {
+        for (Map.Entry<MarklinLocomotive, Double> entry : members.entrySet())
+        {
+            entry.getKey().stageDirection(memberDirection(direction, entry.getValue()), batch);
+        }
+
+        this.head.stageDirection(direction, batch);
+    }
+
+    /**
+     * Locks the head and its members in the fixed order, stages a command's frames, and sends them
+     * @param command given the members and their multipliers, updates their state and returns the frames
+     */
+    private void run(Function<Map<MarklinLocomotive, Double>, List<CS2Message>> command)
+    {
+        while (true)
+        {
+            Map<MarklinLocomotive, Double> members = this.snapshot();
+            List<MarklinLocomotive> order = new ArrayList<>(members.keySet());
+            order.add(this.head);
+            order.sort(LOCK_ORDER);
+
+            boolean[] done = {false};
+
+            this.locked(order, 0, () ->
+            {
+                // Membership is only changed under the head's lock, which is now held; if it changed
+                // between the snapshot and here, the locks held are the wrong ones - start over
+                if (!members.equals(this.snapshot()))
+                {
+                    return;
+                }
+
+                this.send(command.apply(members));
+                done[0] = true;
+            });
+
+            if (done[0])
+            {
+                return;
+            }
+        }
+    }
+
+    private Map<MarklinLocomotive, Double> snapshot()
+    {
+        Map<MarklinLocomotive, Double> members = new LinkedHashMap<>();
+
+        synchronized (this.head)
+        {
+            for (Map.Entry<Locomotive, Double> entry : this.head.getLinkedLocomotives().entrySet())
+            {
+                members.put((MarklinLocomotive) entry.getKey(), entry.getValue());
+            }
+        }
+
+        return members;
+    }
+
+    private void locked(List<MarklinLocomotive> order, int i, Runnable r)
+    {
+        if (i == order.size())
+        {
+            r.run();
+        }
+        else
+        {
+            synchronized (order.get(i))
+            {
+                this.locked(order, i + 1, r);
+            }
+        }
+    }
+
+    private void send(List<CS2Message> batch)
+    {
+        if (batch.isEmpty())
+        {
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        this.head.getModel().exec(batch);
+
+        long skew = System.nanoTime() - start;
+
+        // The frames are encoded; nothing holds on to them once sent
+        CS2Message.release(batch);
+
+        this.lastSkewNanos = skew;
+        this.maxSkewNanos = Math.max(this.maxSkewNanos, skew);
+        this.frameCount += batch.size();
+        this.batchCount++;
+    }
+
+    /**
+     * Time from the first frame of the last command to its last frame
+     * @return
+     */
+    public long getLastSkewNanos()
+    {
+        return this.lastSkewNanos;
+    }
+
+    public long getMaxSkewNanos()
+    {
+        return this.maxSkewNanos;
+    }
+
+    /**
+     * Commands sent, each as one batch
+     * @return
+     */
+    public long getBatchCount()
+    {
+        return this.batchCount;
+    }
+
+    public long getFrameCount()
+    {
+        return this.frameCount;
+    }
+}
@@ -24,6 +24,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -31,9 +33,11 @@ import java.util.Objects;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
@@ -44,9 +48,14 @@ import javax.swing.JOptionPane;
 import javax.swing.JTextField;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.traincontrol.automation.Edge;
 import org.traincontrol.automation.Layout;
 import org.traincontrol.base.Accessory;
+import org.traincontrol.base.ConfirmationLatency;
+import org.traincontrol.base.ConditionEngine;
+import org.traincontrol.base.EventHub;
 import org.traincontrol.base.Locomotive;
+import org.traincontrol.base.LocomotiveCatalog;
 import org.traincontrol.base.Locomotive.decoderType;
 import org.traincontrol.base.NodeExpression;
 import org.traincontrol.base.RemoteDeviceCollection;
@@ -55,15 +64,22 @@ import org.traincontrol.base.Route;
 import org.traincontrol.base.RouteCommand;
 import org.traincontrol.gui.TrainControlUI;
 import org.traincontrol.marklin.file.CS2File;
+import org.traincontrol.marklin.file.CS2Snapshot;
+import org.traincontrol.marklin.file.CS2SyncState;
 import org.traincontrol.base.udp.CANMessage;
 import org.traincontrol.marklin.udp.CS2Message;
 import org.traincontrol.marklin.udp.CSDetect;
+import org.traincontrol.marklin.udp.CommandLatencyMonitor;
+import org.traincontrol.marklin.udp.FrameDeduplicator;
 import org.traincontrol.marklin.udp.NetworkProxy;
 import org.traincontrol.model.ModelListener;
 import org.traincontrol.model.View;
 import org.traincontrol.model.ViewListener;
 import org.traincontrol.util.Conversion;
 import org.traincontrol.util.I18n;
+import org.traincontrol.util.KeyedLaneExecutor;
+import org.traincontrol.util.LatencyHistogram;
+import org.traincontrol.util.UIDIndex;
 import org.traincontrol.util.Util;
 import static org.traincontrol.util.Util.escapeCsv;
 
@@ -118,11 +134,20 @@ public class MarklinControlStation implements ViewListener, ModelListener
     // Layouts
     private final RemoteDeviceCollection<LayoutDiagram, String> layoutDB;
     
-    // Mapping for int UID -> string UID
-    // volatile: written by rebuildLocIdCache() (synchronized) but read unsynchronized on the
-    // message-processor thread in receiveMessage().  The volatile store/load gives the reader a
-    // happens-before edge so it always sees a fully-built map (see rebuildLocIdCache).
-    private volatile HashMap<Integer, List<String>> locIdCache;
+    // Mapping for int UID -> locomotives and accessories, used to resolve every inbound CAN echo.
+    // volatile: written by rebuildLocIndex()/rebuildAccIndex() under deviceIndexLock but read
+    // unsynchronized on the message-processor lanes in receiveMessage().  The volatile store/load
+    // gives the reader a happens-before edge so it always sees a fully-built index.  Null means the
+    // index is out of date and is rebuilt by the next reader.
+    private volatile UIDIndex<MarklinLocomotive> locIndex;
+    private volatile UIDIndex<MarklinAccessory> accIndex;
+    
+    // Search index over the locomotive database, for the selector and similar-locomotive search
+    private final LocomotiveCatalog locCatalog = new LocomotiveCatalog();
+    
+    // Orders index rebuilds against invalidation.  Deliberately not this, which is held for the whole
+    // of a CS2 sync - a CAN lane needing a rebuild would otherwise stall behind it.
+    private final Object deviceIndexLock = new Object();
 
     // Network proxy reference
     private final NetworkProxy NetworkInterface;
@@ -130,6 +155,11 @@ public class MarklinControlStation implements ViewListener, ModelListener
     // File parser class
     private CS2File fileParser;
 
+    // What the syncs so far applied from the Central Station, so that the next can skip what is unchanged
+    private final CS2SyncState syncState = new CS2SyncState();
+    private final Map<String, Long> lastSyncTimings = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<CS2Snapshot.recordType, CS2SyncState.ChangeSet> lastSyncChanges = new ConcurrentHashMap<>();
+
     // Serialises layout refreshes.  Deliberately not the station's own monitor - see refreshLayouts
     private final Object layoutRefreshLock = new Object();
     
@@ -156,15 +186,43 @@ public class MarklinControlStation implements ViewListener, ModelListener
     private Layout autoLayout;
     
     // Number of network messages processed
-    private int numMessagesProcessed = 0;
+    private final AtomicInteger numMessagesProcessed = new AtomicInteger();
     
     // Ping metrics
     private long pingStart;
     private double lastLatency;
 
-    // Thread pools for network messages
-    CS2Message lastPacket;
-    private ExecutorService locMessageProcessor = Executors.newFixedThreadPool(1);
+    // Round-trip timing of every command we send, matched against its echo
+    private final CommandLatencyMonitor latencyMonitor = new CommandLatencyMonitor();
+    
+    // Paced, stale-only locomotive state sync
+    private final MarklinStateSync stateSync = new MarklinStateSync(this::exec);
+    
+    // How long a bulk locomotive sync may take before what is still unanswered is given up on
+    public static final long LOCOMOTIVE_SYNC_TIMEOUT_MS = 120000;
+    
+    // Drops the second copy of the frames the CS3 sends twice
+    private final FrameDeduplicator deduplicator = new FrameDeduplicator();
+
+    // Thread pools for network messages.  Locomotive and accessory frames are spread across lanes by
+    // UID, so each device's frames stay in order while one slow locomotive repaint no longer holds up
+    // the accessory confirmations autonomy path validation is waiting for.  Power frames are barriers
+    // across every lane.  Feedback keeps
+    // its own single thread: sensors are read in relation to one another, and reordering two of them
+    // could show a train passing them backwards.
+    private final KeyedLaneExecutor deviceMessageProcessor = new KeyedLaneExecutor("CAN dispatch", e -> this.log(e));
+
+    // Runs routes on a shared timer and pool, rather than a sleeping thread per route
+    private final RouteEngine routeEngine = new RouteEngine(this);
+
+    // Each route's accessories and duration, and which routes conflict
+    private final RouteCompiler routeCompiler = new RouteCompiler(this);
+    
+    // Route conditions compiled against sensor and accessory state, and kept current as it changes
+    private final ConditionEngine conditionEngine = new ConditionEngine(this);
+    
+    // Sensor, accessory, locomotive, power and milestone events, for programmatic control
+    private final EventHub events = new EventHub(e -> this.log(e));
     private ExecutorService feedbackMessageProcessor = Executors.newFixedThreadPool(1);
     private ExecutorService systemMessageProcessor = Executors.newFixedThreadPool(1);
     
@@ -229,6 +287,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
                 if (!newAccessory.isValidAddress())
                 {
                     this.accDB.delete(newAccessory.getName());
+                    this.invalidateAccIndex();
                     this.logf("acc.deletedInvalid", newAccessory.getName());
                 }
             }
@@ -409,12 +468,12 @@ public class MarklinControlStation implements ViewListener, ModelListener
             }
         }
 
+        // Every page is fetched and parsed before any is linked or added, so a page that fails leaves
+        // neither a partial set of pages nor the accessories of the pages before it.  Pages used to be
+        // added as each arrived, and a failed import from a local folder then fell back to the Central
+        // Station on top of the pages it had already added.
         for (LayoutDiagram l : fileParser.parseLayout(accs))
         {
-            this.layoutDB.add(l, l.getName(), l.getName());
-
-            this.logf("layout.imported", l.getName());
-
             for (LayoutDiagramComponent c : l.getAll())
             {
                 if (c.isSwitch() || c.isSignal() || c.isUncoupler())
@@ -536,6 +595,12 @@ public class MarklinControlStation implements ViewListener, ModelListener
                     c.setRoute(r);
                 }
             }
+            
+            this.layoutDB.add(l, l.getName(), l.getName());
+
+            this.logf("layout.imported", l.getName());
+            
+            this.events.publish(EventHub.Kind.LAYOUT, l.getName(), true, l);
         }
         
         // Prune stale feedback
@@ -548,6 +613,9 @@ public class MarklinControlStation implements ViewListener, ModelListener
                     MarklinFeedback fb = this.feedbackDB.getById(feedbackId);
                     this.logf("layout.pruningFeedbackMissingLayout", fb.getName());
                     this.feedbackDB.delete(fb.getName());
+                    
+                    // Reads as unset from here on, as getFeedbackState has it
+                    this.conditionEngine.feedbackChanged(fb.getUID(), false);
                 }
             }
         }
@@ -628,6 +696,8 @@ public class MarklinControlStation implements ViewListener, ModelListener
             // Layout specifies settings for routes
             if (this.autoLayout.isActivateRoutes())
             {
+                Map<String, String> autonomyAccessories = this.getAutonomyAccessoryKeys();
+
                 // Disable or enable routes
                 for (MarklinRoute r : this.getRoutes())
                 {
@@ -650,6 +720,8 @@ public class MarklinControlStation implements ViewListener, ModelListener
                                 r.executeAutoRoute();
                                 this.logf("route.autolayoutEnabledRoute", r.getId() + ". " + r.getName());
                             }
+
+                            this.warnIfRouteDisturbsAutonomy(r, autonomyAccessories);
                         }
                         else
                         {
@@ -661,6 +733,57 @@ public class MarklinControlStation implements ViewListener, ModelListener
         }
     }
     
+    /**
+     * The accessories autonomy sets along its edges, by route compiler accessory key
+     * @return key -> accessory name
+     */
+    private Map<String, String> getAutonomyAccessoryKeys()
+    {
+        Map<String, String> keys = new HashMap<>();
+
+        for (Edge e : this.autoLayout.getEdges())
+        {
+            for (String name : e.getConfigCommands().keySet())
+            {
+                MarklinAccessory acc = this.getAccessoryByName(name);
+
+                if (acc != null)
+                {
+                    keys.put(RouteCompiler.accessoryKey(acc.getDecoderType(), acc.getAddress() + 1), name);
+                }
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * Logs the accessories a route firing on its own would set under autonomy's locomotives
+     * @param r
+     * @param autonomyAccessories see getAutonomyAccessoryKeys
+     */
+    private void warnIfRouteDisturbsAutonomy(MarklinRoute r, Map<String, String> autonomyAccessories)
+    {
+        RouteCompiler.Footprint fp = this.routeCompiler.getFootprint(r.getName());
+
+        if (fp == null || autonomyAccessories.isEmpty()) return;
+
+        List<String> shared = new ArrayList<>();
+
+        for (String key : fp.getAccessories().keySet())
+        {
+            if (autonomyAccessories.containsKey(key))
+            {
+                shared.add(autonomyAccessories.get(key));
+            }
+        }
+
+        if (!shared.isEmpty())
+        {
+            this.logf("route.autolayoutRouteSharesAccessories", r.getId() + ". " + r.getName(), String.join(", ", shared));
+        }
+    }
+
     /**
      * Gets cumulative locomotive runtime for the number of days specified from the current date
      * @param days
@@ -995,206 +1118,341 @@ public class MarklinControlStation implements ViewListener, ModelListener
                 this.logf("log.csTypeDetectionError", e.toString());
             }
                                        
+            this.lastSyncTimings.clear();
+            long start = System.nanoTime();
+            
             // Import layout
             this.syncLayoutsFromConfiguredSource();
+            start = this.syncPhase("layouts", start);
             
-            // Import locomotives
-            List<MarklinRoute> parsedRoutes;
-            
-            if (this.isCS3)
-            {
-                parsedRoutes = fileParser.parseRoutesCS3();
-            }
-            else
+            num = this.importFromCentralStation(start);
+        }
+        catch (Exception e)
+        {
+            this.logf("loc.dbSyncFailed");
+            this.log(e);
+             
+            return -1;
+        }
+        
+        this.rebuildLocIndex();
+                
+        this.logf("loc.syncCompleted");
+        
+        return num;
+    }
+    
+    /**
+     * Imports the Central Station's routes and locomotives, applying only the records that changed since
+     * the last sync.
+     *
+     * Every sync used to download the route, accessory and locomotive databases - the CS3's locomotive
+     * database twice, once to resolve routes and once for locomotives - then parse all of them and run
+     * every route and locomotive through the reconciliation below, however little had changed.  Now
+     * each document is downloaded once and fingerprinted; an unchanged document whose records are all
+     * still present locally is not even parsed, and otherwise only the records whose fingerprint changed,
+     * or whose local counterpart went missing, are parsed and reconciled.  See CS2SyncState.
+     *
+     * @param start when the phase before this one ended
+     * @return the number of routes and locomotives added
+     * @throws Exception 
+     */
+    private int importFromCentralStation(long start) throws Exception
+    {
+        int num = 0;
+        
+        CS2Snapshot snapshot = CS2Snapshot.fetch(this.fileParser, this.isCS3);
+        start = this.syncPhase("fetch", start);
+        
+        // Routes
+        CS2SyncState.ChangeSet routeChanges = this.syncState.diff(snapshot, CS2Snapshot.recordType.ROUTE,
+            a -> this.localRouteState(a.getName(), Integer.valueOf(a.getId())).equals(a.getLocal())
+        );
+        start = this.syncPhase("routes.diff", start);
+        
+        List<MarklinRoute> parsedRoutes = snapshot.parseRoutes(routeChanges.getToApply());
+        start = this.syncPhase("routes.parse", start);
+        
+        Map<String, CS2SyncState.Applied> routeResult = new HashMap<>();
+        Set<String> parsedRouteKeys = new HashSet<>();
+        
+        // Import routes
+        for (MarklinRoute r : parsedRoutes)
+        {
+            // Other existing route with same name but different ID
+            if (this.routeDB.hasName(r.getName()) && r.getId() != this.routeDB.getByName(r.getName()).getId())
             {
-                parsedRoutes = fileParser.parseRoutes();
+                this.logf("route.deletingDuplicateName", r.getName());
+                
+                this.deleteRoute(r.getName());
             }
             
-            // Unlock all routes in case they have been deleted
-            for (MarklinRoute r : this.getRoutes())
-            {
-                r.setLocked(false);
+            // Delete route if it has changed
+            if (this.routeDB.hasId(r.getId()) 
+                    && (!r.getRoute().equals(this.routeDB.getById(r.getId()).getRoute()) 
+                        || r.getS88() != this.routeDB.getById(r.getId()).getS88()
+                        || r.getTriggerType() != this.routeDB.getById(r.getId()).getTriggerType()
+                        || !Objects.equals(r.getConditions(), this.routeDB.getById(r.getId()).getConditions())
+                    ) 
+            )
+            {   
+                this.logf("route.deletingDuplicateId", this.routeDB.getById(r.getId()).getName());
+                this.deleteRoute(this.routeDB.getById(r.getId()).getName());
             }
             
-            // Import routes
-            for (MarklinRoute r : parsedRoutes)
+            if (!this.routeDB.hasId(r.getId()))
             {
-                // Other existing route with same name but different ID
-                if (this.routeDB.hasName(r.getName()) && r.getId() != this.routeDB.getByName(r.getName()).getId())
+                // Only report and count the route if it was actually added
+                if (newRoute(r))
                 {
-                    this.logf("route.deletingDuplicateName", r.getName());
-                    
-                    this.deleteRoute(r.getName());
-                }
-                
-                // Delete route if it has changed
-                if (this.routeDB.hasId(r.getId()) 
-                        && (!r.getRoute().equals(this.routeDB.getById(r.getId()).getRoute()) 
-                            || r.getS88() != this.routeDB.getById(r.getId()).getS88()
-                            || r.getTriggerType() != this.routeDB.getById(r.getId()).getTriggerType()
-                            || !Objects.equals(r.getConditions(), this.routeDB.getById(r.getId()).getConditions())
-                        ) 
-                )
-                {   
-                    this.logf("route.deletingDuplicateId", this.routeDB.getById(r.getId()).getName());
-                    this.deleteRoute(this.routeDB.getById(r.getId()).getName());
+                    this.logf("route.added", r.getName());
+                    num++;
                 }
-                
-                if (!this.routeDB.hasId(r.getId()))
-                {
-                    // Only report and count the route if it was actually added
-                    if (newRoute(r))
-                    {
-                        this.logf("route.added", r.getName());
-                        num++;
-                    }
-                    else
-                    {
-                        this.logf("route.notAdded", r.getName());
-                    }
-                }
-                
-                // Routes from the Central Station are not editable
-                if (this.routeDB.getById(r.getId()) != null)
+                else
                 {
-                    this.routeDB.getById(r.getId()).setLocked(true);
+                    this.logf("route.notAdded", r.getName());
                 }
             }
             
-            // Import locomotives
-            List<MarklinLocomotive> parsedLocs;
-            
-            if (this.isCS3)
+            // Routes from the Central Station are not editable
+            if (this.routeDB.getById(r.getId()) != null)
             {
-                parsedLocs = fileParser.parseLocomotivesCS3();
+                this.routeDB.getById(r.getId()).setLocked(true);
             }
-            else
+            
+            String key = String.valueOf(r.getId());
+            parsedRouteKeys.add(key);
+            routeResult.put(key, CS2SyncState.applied(r.getName(), key, this.localRouteState(r.getName(), r.getId())));
+        }
+        
+        if (!routeChanges.isDocumentUnchanged())
+        {
+            // Unlock routes that are no longer on the Central Station, in case they have been deleted.
+            // This used to unlock every route and relock those parsed; unchanged routes are no longer
+            // parsed, so those that were not are unlocked instead.
+            Set<String> remote = snapshot.getRecordFingerprints(CS2Snapshot.recordType.ROUTE).keySet();
+            Set<String> toApply = new HashSet<>(routeChanges.getToApply());
+            
+            for (MarklinRoute r : this.getRoutes())
             {
-                parsedLocs = fileParser.parseLocomotives();
+                String key = String.valueOf(r.getId());
+                
+                if (!remote.contains(key) || (toApply.contains(key) && !parsedRouteKeys.contains(key)))
+                {
+                    r.setLocked(false);
+                }
             }
+        }
+        
+        this.syncState.commit(snapshot, CS2Snapshot.recordType.ROUTE, routeChanges, routeResult, Collections.emptySet());
+        start = this.syncPhase("routes.apply", start);
+        
+        // Locomotives
+        CS2SyncState.ChangeSet locChanges = this.syncState.diff(snapshot, CS2Snapshot.recordType.LOCOMOTIVE,
+            a -> this.localLocState(a.getName(), a.getId()).equals(a.getLocal())
+        );
+        start = this.syncPhase("locomotives.diff", start);
+        
+        List<MarklinLocomotive> parsedLocs = snapshot.parseLocomotives(locChanges.getToApply());
+        start = this.syncPhase("locomotives.parse", start);
+        
+        Map<String, CS2SyncState.Applied> locResult = new HashMap<>();
+        Set<String> locDeferred = new HashSet<>();
                          
-            for (MarklinLocomotive l : parsedLocs)
+        for (MarklinLocomotive l : parsedLocs)
+        {
+            // Add new locomotives
+            if (!this.locDB.hasId(l.getUID()))
             {
-                // Add new locomotives
-                if (!this.locDB.hasId(l.getUID()))
+                if (this.locDB.hasName(l.getName()))
                 {
-                    if (this.locDB.hasName(l.getName()))
-                    {
-                        // Show message that we did not sync a loc with a duplicate name
-                        this.logf("loc.importSkippedDuplicateName", l.getName());
-                    }
-                    else
-                    {
-                        this.logf("loc.addedFromCentralStation",
-                            l.getDecoderTypeLabel(),
-                            l.getName(),
-                            l.getAddress(),
-                            Conversion.intToHex(l.getIntUID()));
-
-                        newLocomotive(l.getName(), l.getAddress(), l.getDecoderType(), l.getFunctionTypes(), l.getFunctionTriggerTypes());
-                        num++;
-                    }
+                    // Show message that we did not sync a loc with a duplicate name
+                    this.logf("loc.importSkippedDuplicateName", l.getName());
                 }
-                
-                // We already have this locomotive, with the same decoder type, but different address.  Update the address and UID in database
-                if (this.locDB.getByName(l.getName()) != null 
-                    && this.locDB.getByName(l.getName()).getAddress() != l.getAddress()
-                    && this.locDB.getByName(l.getName()).getDecoderType() == l.getDecoderType()
-                )
+                else
                 {
-                    // Deferred while anything is running.  setAddress changes which decoder this
-                    // locomotive commands, so applying it mid-run sends every subsequent speed and
-                    // function command to a different engine while the graph goes on tracking this one
-                    // - and the train already moving keeps moving, now unaddressable.  A rename and a
-                    // manual address change are both refused while running; a sync had no such guard
-                    // and is triggered automatically from a dozen places, so the check belongs here.
-                    //
-                    // This used to cite hash drift as the reason as well.  That reason is gone: a
-                    // locomotive hashes by identity, so no mutation moves it out of the collections
-                    // holding it - see the note on MarklinLocomotive.hashCode.  Do not re-add repair
-                    // machinery here to satisfy it.
-                    if (this.isAutonomyRunning())
-                    {
-                        this.logf("loc.addressUpdateDeferredWhileRunning", l.getName());
-                    }
-                    else
-                    {
-                        String oldAddr = this.getLocAddress(l.getName());
-                        this.locDB.getByName(l.getName()).setAddress(l.getAddress(), l.getDecoderType());
+                    this.logf("loc.addedFromCentralStation",
+                        l.getDecoderTypeLabel(),
+                        l.getName(),
+                        l.getAddress(),
+                        Conversion.intToHex(l.getIntUID()));
+
+                    newLocomotive(l.getName(), l.getAddress(), l.getDecoderType(), l.getFunctionTypes(), l.getFunctionTriggerTypes());
+                    num++;
+                }
+            }
+            
+            // We already have this locomotive, with the same decoder type, but different address.  Update the address and UID in database
+            if (this.locDB.getByName(l.getName()) != null 
+                && this.locDB.getByName(l.getName()).getAddress() != l.getAddress()
+                && this.locDB.getByName(l.getName()).getDecoderType() == l.getDecoderType()
+            )
+            {
+                // Deferred while anything is running.  setAddress changes which decoder this
+                // locomotive commands, so applying it mid-run sends every subsequent speed and
+                // function command to a different engine while the graph goes on tracking this one
+                // - and the train already moving keeps moving, now unaddressable.  A rename and a
+                // manual address change are both refused while running; a sync had no such guard
+                // and is triggered automatically from a dozen places, so the check belongs here.
+                //
+                // This used to cite hash drift as the reason as well.  That reason is gone: a
+                // locomotive hashes by identity, so no mutation moves it out of the collections
+                // holding it - see the note on MarklinLocomotive.hashCode.  Do not re-add repair
+                // machinery here to satisfy it.
+                if (this.isAutonomyRunning())
+                {
+                    this.logf("loc.addressUpdateDeferredWhileRunning", l.getName());
+                    locDeferred.add(l.getName());
+                }
+                else
+                {
+                    String oldAddr = this.getLocAddress(l.getName());
+                    this.locDB.getByName(l.getName()).setAddress(l.getAddress(), l.getDecoderType());
 
-                        // Update DB entry
-                        MarklinLocomotive existingLoc = this.locDB.getByName(l.getName());
-                        this.locDB.delete(l.getName());
-                        this.locDB.add(existingLoc, existingLoc.getName(), existingLoc.getUID());
+                    // Update DB entry
+                    MarklinLocomotive existingLoc = this.locDB.getByName(l.getName());
+                    this.locDB.delete(l.getName());
+                    this.locDB.add(existingLoc, existingLoc.getName(), existingLoc.getUID());
 
-                        this.logf("loc.addressUpdated",
-                            existingLoc.getName(),
-                            oldAddr,
-                            this.getLocAddress(existingLoc.getName()));
+                    this.logf("loc.addressUpdated",
+                        existingLoc.getName(),
+                        oldAddr,
+                        this.getLocAddress(existingLoc.getName()));
 
-                        // The same repair changeLocAddress performs, for the same reason
-                        for (Locomotive other : getLocomotives())
+                    // The same repair changeLocAddress performs, for the same reason
+                    for (Locomotive other : getLocomotives())
+                    {
+                        if (other.hasLinkedLocomotives())
                         {
-                            if (other.hasLinkedLocomotives())
-                            {
-                                other.preSetLinkedLocomotives(other.getLinkedLocomotiveNames());
-                                other.setLinkedLocomotives();
-                            }
+                            other.preSetLinkedLocomotives(other.getLinkedLocomotiveNames());
+                            other.setLinkedLocomotives();
                         }
                     }
                 }
-                
-                // Update function types if they have changed
-                if (this.locDB.hasId(l.getUID()) &&
-                        (!Arrays.equals(this.locDB.getById(l.getUID()).getFunctionTypes(), l.getFunctionTypes())
-                        || !Arrays.equals(this.locDB.getById(l.getUID()).getFunctionTriggerTypes(), l.getFunctionTriggerTypes()))
-                )
-                {
-                    if (this.locDB.getById(l.getUID()).isCustomFunctions())
-                    {
-                        this.logf("loc.functionTypesMismatchIgnoredUI", l.getName());
-                    }
-                    else
-                    {
-                        this.locDB.getById(l.getUID()).setFunctionTypes(l.getFunctionTypes(), l.getFunctionTriggerTypes());
-
-                        this.logf("loc.functionTypesUpdated", l.getName());
-                    }
-                }
-                              
-                // Always adopt the remote icon.  This used to skip while a local override existed -
-                // a guard protecting the override back when it LIVED in imageURL.  The override moved
-                // to its own field with getImageURL falling back, so skipping only starved the
-                // fallback: a custom icon restored from the database starts with no imageURL, the
-                // guard kept it that way, and clearing the icon offline landed on nothing - the
-                // UC-C12 scenario again, one restart later.
-                if (this.locDB.getById(l.getUID()) != null && l.getImageURL() != null)
+            }
+            
+            // Update function types if they have changed
+            if (this.locDB.hasId(l.getUID()) &&
+                    (!Arrays.equals(this.locDB.getById(l.getUID()).getFunctionTypes(), l.getFunctionTypes())
+                    || !Arrays.equals(this.locDB.getById(l.getUID()).getFunctionTriggerTypes(), l.getFunctionTriggerTypes()))
+            )
+            {
+                if (this.locDB.getById(l.getUID()).isCustomFunctions())
                 {
-                    this.locDB.getById(l.getUID()).setImageURL(l.getImageURL());                         
+                    this.logf("loc.functionTypesMismatchIgnoredUI", l.getName());
                 }
-                
-                // Set multi unit info
-                if (this.locDB.getById(l.getUID()) != null)
+                else
                 {
-                    this.locDB.getById(l.getUID()).setModelMultiUnitLocomotives(l.getModelMultiUnitLocomotiveNames());
+                    this.locDB.getById(l.getUID()).setFunctionTypes(l.getFunctionTypes(), l.getFunctionTriggerTypes());
+
+                    this.logf("loc.functionTypesUpdated", l.getName());
                 }
             }
-        }
-        catch (Exception e)
-        {
-            this.logf("loc.dbSyncFailed");
-            this.log(e);
-             
-            return -1;
+                          
+            // Always adopt the remote icon.  This used to skip while a local override existed -
+            // a guard protecting the override back when it LIVED in imageURL.  The override moved
+            // to its own field with getImageURL falling back, so skipping only starved the
+            // fallback: a custom icon restored from the database starts with no imageURL, the
+            // guard kept it that way, and clearing the icon offline landed on nothing - the
+            // UC-C12 scenario again, one restart later.
+            if (this.locDB.getById(l.getUID()) != null && l.getImageURL() != null)
+            {
+                this.locDB.getById(l.getUID()).setImageURL(l.getImageURL());                         
+            }
+            
+            // Set multi unit info
+            if (this.locDB.getById(l.getUID()) != null)
+            {
+                this.locDB.getById(l.getUID()).setModelMultiUnitLocomotives(l.getModelMultiUnitLocomotiveNames());
+            }
+            
+            if (!locDeferred.contains(l.getName()))
+            {
+                locResult.put(l.getName(), CS2SyncState.applied(l.getName(), l.getUID(), this.localLocState(l.getName(), l.getUID())));
+            }
         }
         
-        this.rebuildLocIdCache();
-                
-        this.logf("loc.syncCompleted");
+        this.syncState.commit(snapshot, CS2Snapshot.recordType.LOCOMOTIVE, locChanges, locResult, locDeferred);
+        this.syncPhase("locomotives.apply", start);
+        
+        this.lastSyncChanges.put(CS2Snapshot.recordType.ROUTE, routeChanges);
+        this.lastSyncChanges.put(CS2Snapshot.recordType.LOCOMOTIVE, locChanges);
+        
+        this.logf("log.csDBSyncRoutes", routeChanges.getAdded().size(), routeChanges.getChanged().size(),
+            routeChanges.getRemoved().size(), routeChanges.getUnchanged());
+        this.logf("log.csDBSyncLocomotives", locChanges.getAdded().size(), locChanges.getChanged().size(),
+            locChanges.getRemoved().size(), locChanges.getUnchanged());
+        this.logf("log.csDBSyncTimings", this.lastSyncTimings.entrySet().stream()
+            .map(e -> e.getKey() + " " + e.getValue())
+            .collect(Collectors.joining(", ")));
         
         return num;
     }
     
+    /**
+     * The local locomotives a Central Station locomotive is reconciled against - the one of its name
+     * and the one of its UID - as they stand.  Identities are included because a locomotive deleted
+     * and recreated locally has lost what the sync applied to it.
+     * @param name
+     * @param uid
+     * @return 
+     */
+    private String localLocState(String name, String uid)
+    {
+        MarklinLocomotive byName = this.locDB.getByName(name);
+        MarklinLocomotive byId = this.locDB.getById(uid);
+        
+        return (byName == null ? "-" : System.identityHashCode(byName) + "/" + byName.getUID() + "/" + byName.getDecoderType())
+            + "|" + (byId == null ? "-" : System.identityHashCode(byId) + "/" + byId.getName());
+    }
+    
+    /**
+     * The local routes a Central Station route is reconciled against, as they stand
+     * @param name
+     * @param id
+     * @return 
+     */
+    private String localRouteState(String name, int id)
+    {
+        MarklinRoute byId = this.routeDB.getById(id);
+        MarklinRoute byName = this.routeDB.getByName(name);
+        
+        return (byId == null ? "-" : System.identityHashCode(byId) + "/" + byId.getName() + "/" + byId.isLocked())
+            + "|" + (byName == null ? "-" : System.identityHashCode(byName) + "/" + byName.getId());
+    }
+    
+    /**
+     * Records how long a phase of the sync took
+     * @param phase
+     * @param start when the phase began
+     * @return when it ended
+     */
+    private long syncPhase(String phase, long start)
+    {
+        long now = System.nanoTime();
+        this.lastSyncTimings.put(phase, (now - start) / 1000000);
+        
+        return now;
+    }
+    
+    /**
+     * How long each phase of the last sync with the Central Station took, in ms
+     * @return 
+     */
+    public Map<String, Long> getLastSyncTimings()
+    {
+        return Collections.unmodifiableMap(this.lastSyncTimings);
+    }
+    
+    /**
+     * What the last sync with the Central Station found changed, by record type
+     * @return 
+     */
+    public Map<CS2Snapshot.recordType, CS2SyncState.ChangeSet> getLastSyncChanges()
+    {
+        return Collections.unmodifiableMap(this.lastSyncChanges);
+    }
+    
     /**
      * Deletes the current layout from the model
      *
@@ -1233,6 +1491,104 @@ public class MarklinControlStation implements ViewListener, ModelListener
         }
     }
     
+    /**
+     * Queries the Central Station for the state of many locomotives: only what it has not reported this
+     * session, paced so that it can answer all of it - see MarklinStateSync
+     * @param names 
+     */
+    @Override
+    public void syncLocomotives(List<String> names)
+    {
+        if (!this.on)
+        {
+            this.logf("loc.syncOffline");
+            return;
+        }
+
+        List<MarklinLocomotive> locs = new ArrayList<>();
+
+        for (String name : names)
+        {
+            MarklinLocomotive l = this.locDB.getByName(name);
+
+            if (l != null)
+            {
+                locs.add(l);
+            }
+        }
+
+        this.logf("loc.syncingAll", locs.size());
+
+        try
+        {
+            MarklinStateSync.Progress result = this.stateSync.query(locs, LOCOMOTIVE_SYNC_TIMEOUT_MS);
+
+            this.logf("loc.syncDone", result.getElapsedMillis(), result.getAnswered(), result.getTotal(),
+                result.getFramesSent(), result.getBackoffs());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Sends the Central Station the state of many locomotives, and of the locomotives linked to them,
+     * where it differs from what it last reported - paced as a query is, see MarklinStateSync
+     * @param names 
+     */
+    public void pushLocomotives(List<String> names)
+    {
+        if (!this.on)
+        {
+            this.logf("loc.syncOffline");
+            return;
+        }
+
+        Set<MarklinLocomotive> locs = new LinkedHashSet<>();
+
+        for (String name : names)
+        {
+            MarklinLocomotive l = this.locDB.getByName(name);
+
+            if (l != null)
+            {
+                locs.add(l);
+
+                synchronized (l)
+                {
+                    for (Locomotive member : l.getLinkedLocomotives().keySet())
+                    {
+                        locs.add((MarklinLocomotive) member);
+                    }
+                }
+            }
+        }
+
+        this.logf("loc.pushingAll", locs.size());
+
+        try
+        {
+            MarklinStateSync.Progress result = this.stateSync.push(locs, LOCOMOTIVE_SYNC_TIMEOUT_MS);
+
+            this.logf("loc.syncDone", result.getElapsedMillis(), result.getAnswered(), result.getTotal(),
+                result.getFramesSent(), result.getBackoffs());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * The locomotive state sync, for its progress and budget
+     * @return 
+     */
+    public MarklinStateSync getStateSync()
+    {
+        return this.stateSync;
+    }
+    
     /**
      * Sets debug state
      * @param state 
@@ -1545,6 +1901,43 @@ public class MarklinControlStation implements ViewListener, ModelListener
         return this.routeDB.getById(id);
     }
     
+    /**
+     * The engine routes are executed on - running routes, their timings and conflicts
+     * @return 
+     */
+    public RouteEngine getRouteEngine()
+    {
+        return this.routeEngine;
+    }
+
+    /**
+     * What each route does to the layout, and which routes set an accessory differently
+     * @return 
+     */
+    public RouteCompiler getRouteCompiler()
+    {
+        return this.routeCompiler;
+    }
+    
+    /**
+     * Route conditions, compiled and kept current as sensors and accessories change
+     * @return 
+     */
+    public ConditionEngine getConditionEngine()
+    {
+        return this.conditionEngine;
+    }
+    
+    /**
+     * Subscriptions to sensor, accessory, locomotive, power, milestone and layout page events - see EventHub
+     * @return 
+     */
+    @Override
+    public EventHub getEvents()
+    {
+        return this.events;
+    }
+    
     /**
      * Adds a new route from file
      * @param r 
@@ -1561,6 +1954,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
         if (!this.routeDB.hasId(r.getId()) && !this.routeDB.hasName(r.getName().trim()))
         {
             this.routeDB.add(r, r.getName().trim(), r.getId());
+            this.routeCompiler.invalidate(r.getName().trim());
             return true;
         }
         else
@@ -1596,6 +1990,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
         if (!this.routeDB.hasId(id) && !this.routeDB.hasName(name))
         {
             this.routeDB.add(new MarklinRoute(this, name, id, route, s88, s88Trigger, routeEnabled, conditions), name, id);    
+            this.routeCompiler.invalidate(name);
             return true;
         }
         else
@@ -1631,6 +2026,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
         if (!this.routeDB.hasName(name))
         {
             this.routeDB.add(new MarklinRoute(this, name, newId, route, s88, s88Trigger, routeEnabled, conditions), name, newId);  
+            this.routeCompiler.invalidate(name);
                         
             return true;
         }
@@ -1766,6 +2162,9 @@ public class MarklinControlStation implements ViewListener, ModelListener
                 
         this.feedbackDB.add(newFb, newFb.getName(), newFb.getUID());
         
+        // A sensor created without a message never passes through setState
+        this.conditionEngine.feedbackChanged(newFb.getUID(), newFb.isSet());
+        
         return newFb;
     }
     
@@ -1820,28 +2219,75 @@ public class MarklinControlStation implements ViewListener, ModelListener
     }
     
     /**
-     * Rebuilds our mapping between locomotive names and CS2 UIDs (needed due to the potential for duplicate MM2 addresses)
+     * Rebuilds our mapping between CS2 UIDs and locomotives (a list due to the potential for duplicate MM2 addresses)
+     * @return the new index
      */
-    synchronized private void rebuildLocIdCache()
+    private UIDIndex<MarklinLocomotive> rebuildLocIndex()
     {
-        // Build the new cache fully in a local map, then publish it in a single volatile write.
-        // Unsynchronized readers must never see a half-populated map: the volatile store below
-        // happens-before their volatile read, so they observe either the complete old map or the
-        // complete new one - never one that is being mutated.
-        HashMap<Integer, List<String>> newCache = new HashMap<>();
-
-        for (MarklinLocomotive l : this.locDB.getItems())
+        // Built fully before the single volatile write that publishes it, so unsynchronized readers
+        // observe either the complete old index or the complete new one - never one being filled in.
+        // This used to be a HashMap<Integer, List<String>> of names, so every echo boxed its UID and
+        // then did a second, synchronized locDB lookup per name, allocating a fresh list each time.
+        synchronized (this.deviceIndexLock)
         {
-            int id = l.getIntUID();
-            if (!newCache.containsKey(id))
-            {
-                newCache.put(id, new LinkedList<>());
-            }
-
-            newCache.get(id).add(l.getUID());
+            UIDIndex<MarklinLocomotive> index = UIDIndex.build(this.locDB.getItems(), MarklinLocomotive::getIntUID);
+            this.locIndex = index;
+            return index;
         }
-
-        this.locIdCache = newCache;
+    }
+    
+    /**
+     * Rebuilds our mapping between CS2 UIDs and accessories
+     * @return the new index
+     */
+    private UIDIndex<MarklinAccessory> rebuildAccIndex()
+    {
+        synchronized (this.deviceIndexLock)
+        {
+            UIDIndex<MarklinAccessory> index = UIDIndex.build(this.accDB.getItems(), MarklinAccessory::getUID);
+            this.accIndex = index;
+            return index;
+        }
+    }
+    
+    /**
+     * Marks the locomotive index out of date, for bulk additions where rebuilding after each one would
+     * be quadratic.  The next inbound message rebuilds it.
+     */
+    private void invalidateLocIndex()
+    {
+        // Under the lock so that a rebuild which read the database before the change cannot publish
+        // its stale result after this
+        synchronized (this.deviceIndexLock)
+        {
+            this.locIndex = null;
+        }
+    }
+    
+    /**
+     * Marks the accessory index out of date.  The next inbound message rebuilds it.
+     */
+    private void invalidateAccIndex()
+    {
+        synchronized (this.deviceIndexLock)
+        {
+            this.accIndex = null;
+        }
+    }
+    
+    /**
+     * The duplicate frame filter, whose windows can be adjusted per command class
+     * @return 
+     */
+    public FrameDeduplicator getFrameDeduplicator()
+    {
+        return this.deduplicator;
+    }
+    
+    @Override
+    public long getNumDuplicateMessagesDropped()
+    {
+        return this.deduplicator.getDroppedCount();
     }
     
     /**
@@ -1851,7 +2297,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
     @Override
     public int getNumMessagesProcessed()
     {
-        return this.numMessagesProcessed;
+        return this.numMessagesProcessed.get();
     }
     
     /**
@@ -1881,31 +2327,33 @@ public class MarklinControlStation implements ViewListener, ModelListener
         
         CS2Message message = (CS2Message) msg;
         
-        synchronized (this)
+        // CS3 seems to send respones packets twice.  Ignore the second.  This used to compare each
+        // frame with the previous one only, under synchronized (this) - so interleaved repeats
+        // (A, B, A', B') were processed twice, and the reader thread queued behind anything else
+        // holding the lock, such as a whole CS2 sync.
+        if (this.deduplicator.isDuplicate(message))
         {
-            // CS3 seems to send respones packets twice.  Ignore the second.
-            if (lastPacket != null && 
-                    (message.isAccessoryCommand() || message.isLocCommand() || message.isFeedbackCommand()) && 
-                    message.equals(lastPacket)
-            )
-            {
-                if (this.debug && DEBUG_LOG_NETWORK)
-                {
-                    this.logf("network.skippingDuplicatePacket", message.toString());
-                }
-                
-                return;
-            }
-        
-            numMessagesProcessed +=1;
-            
-            // Prints out each message
             if (this.debug && DEBUG_LOG_NETWORK)
             {
-                this.log(numMessagesProcessed + " " + message.toString());
+                this.logf("network.skippingDuplicatePacket", message.toString());
             }
-            
-            lastPacket = message;
+
+            return;
+        }
+
+        int processed = this.numMessagesProcessed.incrementAndGet();
+
+        // Prints out each message
+        if (this.debug && DEBUG_LOG_NETWORK)
+        {
+            this.log(processed + " " + message.toString());
+        }
+
+        // Timed here on the reader thread, before the frame queues behind other work on an executor,
+        // so the figure is the Central Station's turnaround and not our own backlog
+        if (message.getResponse())
+        {
+            this.latencyMonitor.echoed(message);
         }
                 
         // Send the message to the appropriate listener
@@ -1928,45 +2376,39 @@ public class MarklinControlStation implements ViewListener, ModelListener
         // Only worry about the message if it's a response
         else if (message.isLocCommand() && message.getResponse())
         {            
-            this.locMessageProcessor.submit(() ->
+            this.deviceMessageProcessor.submit(message.extractUID(), () ->
             {
-                Integer id = message.extractUID();
+                int id = message.extractUID();
 
-                // Built on demand, exactly as exec() already does.  The cache is only populated by a
-                // SUCCESSFUL sync, while the UDP reader is started regardless - so a Central Station
-                // that answers CAN but not its web server left this null, and the NPE was captured by
-                // this executor's discarded Future and surfaced nowhere.  Every locomotive state
-                // update was dropped in silence, and the UI showed stale speeds until a later sync.
-                if (this.locIdCache == null) rebuildLocIdCache();
+                // Built on demand, exactly as exec() already does.  The index is otherwise only built
+                // by a SUCCESSFUL sync, while the UDP reader is started regardless - so a Central
+                // Station that answers CAN but not its web server left this null, and the NPE was
+                // captured by this executor's discarded Future and surfaced nowhere.  Every locomotive
+                // state update was dropped in silence, and the UI showed stale speeds until a later sync.
+                UIDIndex<MarklinLocomotive> index = this.locIndex;
+                if (index == null) index = rebuildLocIndex();
 
-                List<String> locs = this.locIdCache.get(id);
+                // The index holds the locomotives themselves, so there is no second lookup by name
+                // that could find one deleted in between.  A locomotive deleted since the index was
+                // built is still parsed into until the rebuild in deleteLoc lands, which is harmless.
+                List<MarklinLocomotive> locs = index.get(id);
 
                 if (locs != null)
                 {
                     if (!locs.isEmpty())
                     {
-                        List<Locomotive> locList = new ArrayList<>();
-
-                        for (String l : locs)
+                        for (MarklinLocomotive loc : locs)
                         {
-                            MarklinLocomotive loc = this.locDB.getById(l);
-
-                            // Null if the locomotive was deleted between locIdCache being read above
-                            // and this lookup.  The resulting NPE was captured by the executor's
-                            // Future and never surfaced anywhere, so the whole message was dropped in
-                            // silence - including the updates for any other locomotives on this UID.
-                            if (loc != null)
-                            {
-                                locList.add(loc);
-                                loc.parseMessage(message);
-                            }
+                            loc.parseMessage(message);
+                            this.events.publish(EventHub.Kind.LOCOMOTIVE, loc.getName(), loc.getSpeed() > 0, loc);
                         }
 
                         if (this.view != null)
                         {
                             // repaintLoc() already hands off to its own executor + invokeLater,
                             // so no wrapper thread is needed (avoids a thread spawn per loco response).
-                            this.view.repaintLoc(false, locList);
+                            // It only reads the list, so the index's unmodifiable one is passed as is.
+                            this.view.repaintLoc(false, locs);
                         }
                     }
                     else
@@ -1978,7 +2420,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
         }
         else if (message.isAccessoryCommand() && message.getResponse())
         {
-            this.locMessageProcessor.submit(() ->
+            this.deviceMessageProcessor.submit(message.extractUID(), () ->
             {
                 int id = message.extractUID();
 
@@ -1987,11 +2429,15 @@ public class MarklinControlStation implements ViewListener, ModelListener
                 // them - restoreState deletes accessories with an invalid address while the CAN
                 // listener is already running - and the resulting NPE would be swallowed by the
                 // executor's Future, dropping the update in silence.
-                MarklinAccessory accessory = this.accDB.getById(id);
+                UIDIndex<MarklinAccessory> index = this.accIndex;
+                if (index == null) index = rebuildAccIndex();
+                
+                MarklinAccessory accessory = index.getFirst(id);
 
                 if (accessory != null)
                 {
                     accessory.parseMessage(message);
+                    this.events.publish(EventHub.Kind.ACCESSORY, accessory.getName(), accessory.isSwitched(), accessory);
 
                     if (this.view != null)
                     {
@@ -2006,7 +2452,10 @@ public class MarklinControlStation implements ViewListener, ModelListener
            (message.getSubCommand() == CS2Message.CMD_SYSSUB_GO || message.getSubCommand() == CS2Message.CMD_SYSSUB_STOP)
         )
         {
-            this.locMessageProcessor.submit(() ->
+            // A barrier across every lane, not a lane of its own.  This used to be keyed on the frame's
+            // UID, which is 0 for a system frame, so a locomotive or accessory frame the Central
+            // Station sent after the power went off could be handled before it, on another lane.
+            this.deviceMessageProcessor.submitBarrier(() ->
             {
                 if (message.getSubCommand() == CS2Message.CMD_SYSSUB_GO)
                 {
@@ -2081,6 +2530,72 @@ public class MarklinControlStation implements ViewListener, ModelListener
     {
         return this.lastLatency;
     }
+
+    /**
+     * Returns the executor that dispatches locomotive, accessory and power messages, for its per-lane
+     * queue depth and task timing
+     * @return
+     */
+    public KeyedLaneExecutor getMessageDispatcher()
+    {
+        return this.deviceMessageProcessor;
+    }
+
+    /**
+     * Returns the command round-trip latency monitor
+     * @return
+     */
+    public CommandLatencyMonitor getCommandLatencyMonitor()
+    {
+        return this.latencyMonitor;
+    }
+
+    /**
+     * Round-trip latency over the last minute, per command type and per decoder protocol
+     * @return
+     */
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getCommandLatencyStats()
+    {
+        return this.latencyMonitor.getSnapshots();
+    }
+
+    /**
+     * Accessory command round-trip latency over the last minute
+     * @return
+     */
+    @Override
+    public LatencyHistogram.Snapshot getAccessoryLatencyStats()
+    {
+        return this.latencyMonitor.getHistogram(CommandLatencyMonitor.commandType.ACCESSORY).getSnapshot();
+    }
+
+    /**
+     * Accessories whose decoders confirm slowly or time out often during path validation - those
+     * timing out most often first, then the slowest
+     * @return
+     */
+    @Override
+    public List<Accessory> getSlowAccessories()
+    {
+        List<Accessory> out = new ArrayList<>();
+
+        for (MarklinAccessory acc : this.accDB.getItems())
+        {
+            ConfirmationLatency c = acc.getConfirmationLatency();
+
+            if (c.isSlow() || c.isUnreliable())
+            {
+                out.add(acc);
+            }
+        }
+
+        out.sort(Comparator.comparingDouble((Accessory a) -> a.getConfirmationLatency().getTimeoutRate())
+            .thenComparingDouble(a -> a.getConfirmationLatency().getPercentileMs(0.99))
+            .reversed());
+
+        return out;
+    }
     
     /**
      * Executes a command
@@ -2090,6 +2605,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
     {
         if (on)
         {
+            this.latencyMonitor.sent(m);
             this.NetworkInterface.sendMessage(m);
         }
         else
@@ -2100,7 +2616,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
 
                 if (DEBUG_SIMULATE_PACKETS)
                 {
-                    if (this.locIdCache == null) rebuildLocIdCache();
+                    if (this.locIndex == null) rebuildLocIndex();
 
                     this.receiveMessage(new CS2Message(
                             m.getCommand(), 
@@ -2110,13 +2626,49 @@ public class MarklinControlStation implements ViewListener, ModelListener
         }
     }
         
+    /**
+     * Executes several commands back to back, with no other thread's commands between them
+     * @param batch 
+     */
+    public void exec(List<CS2Message> batch)
+    {
+        if (on)
+        {
+            for (CS2Message m : batch)
+            {
+                this.latencyMonitor.sent(m);
+            }
+            
+            this.NetworkInterface.sendMessages(batch);
+        }
+        else
+        {
+            for (CS2Message m : batch)
+            {
+                this.exec(m);
+            }
+        }
+    }
+        
     /**
      * Enables or disables network communication
      * @param on 
      */
     public void setNetworkCommState(boolean on)
     {
-        this.on = on;   
+        boolean reconnected = on && !this.on;
+        
+        this.on = on;
+        
+        // Commands given while transmission was off changed our state but never reached the Central
+        // Station, so once it is back on, send it whatever it has not reported
+        if (reconnected && !this.locDB.getItems().isEmpty())
+        {
+            Thread push = new Thread(() -> this.pushLocomotives(this.getLocList()));
+            push.setName("Locomotive state push");
+            push.setDaemon(true);
+            push.start();
+        }
     }
     
     @Override
@@ -2190,10 +2742,10 @@ public class MarklinControlStation implements ViewListener, ModelListener
         {
             this.pingStart = System.nanoTime();
         
-            this.exec(new CS2Message(
-                CS2Message.CAN_CMD_PING,
-                new byte[0]
-            ));
+            CS2Message m = CS2Message.encode(CS2Message.CAN_CMD_PING, 0);
+            
+            this.exec(m);
+            m.release();
         }
     }
     
@@ -2284,7 +2836,11 @@ public class MarklinControlStation implements ViewListener, ModelListener
      */
     @Override
     public void stop()
-    {	    	    
+    {
+        // An emergency stop also ends routes part way through, so none of them carries on switching
+        // or starting trains once the power is back on.  A route whose own command this is runs on.
+        this.routeEngine.cancelAll();
+        
         this.exec(new CS2Message(
             CS2Message.CMD_SYSTEM,
             new byte[]
@@ -2331,7 +2887,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
         
         this.locDB.add(newLoc, name, newLoc.getUID());
         
-        this.rebuildLocIdCache();
+        this.rebuildLocIndex();
         
         return newLoc; 
     }
@@ -2350,6 +2906,9 @@ public class MarklinControlStation implements ViewListener, ModelListener
         
         this.locDB.add(newLoc, name, newLoc.getUID());
         
+        // Called once per locomotive during a sync, which rebuilds at the end
+        this.invalidateLocIndex();
+        
         return newLoc; 
     }
     
@@ -2376,6 +2935,9 @@ public class MarklinControlStation implements ViewListener, ModelListener
             
             this.locDB.add(newLoc, newLoc.getName(), newLoc.getUID());
             
+            // Called once per locomotive when restoring state
+            this.invalidateLocIndex();
+            
             return newLoc; 
         }
         else
@@ -2425,6 +2987,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
         MarklinAccessory newAccessory = new MarklinAccessory(this, address, type, decoderType, name, state, numActuations);
         
         this.accDB.add(newAccessory, name, newAccessory.getUID());
+        this.invalidateAccIndex();
         
         if (!newAccessory.isValidAddress())
         {
@@ -2486,7 +3049,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
         
         this.locDB.add(l, l.getName(), l.getUID());
         
-        this.rebuildLocIdCache();
+        this.rebuildLocIndex();
         
         this.logf("loc.addressChanged", l.getName(), newAddress, newDecoderType.name());
         
@@ -2547,6 +3110,18 @@ public class MarklinControlStation implements ViewListener, ModelListener
         return out;
     }
     
+    /**
+     * The search index over the locomotive database, brought up to date with any additions, deletions
+     * and edits since it was last requested
+     * @return 
+     */
+    @Override
+    public LocomotiveCatalog getLocomotiveCatalog()
+    {
+        this.locCatalog.sync(this.locDB.getItems());
+        return this.locCatalog;
+    }
+    
     /**
      * Same as getLocomotives, but without casting
      * @return 
@@ -2588,7 +3163,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
                 }
             }
 
-            this.rebuildLocIdCache();
+            this.rebuildLocIndex();
         }
 
         return res;
@@ -2645,7 +3220,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
             
             this.locDB.add(l, newName, l.getUID());
             
-            this.rebuildLocIdCache();
+            this.rebuildLocIndex();
             
             // Nothing else to repair by identity: a locomotive hashes by identity, so renaming one
             // cannot move it out of the consists, exclusion sets or run lists that hold it.  This used
@@ -2764,6 +3339,7 @@ public class MarklinControlStation implements ViewListener, ModelListener
             }
             
             this.routeDB.delete(r.getName());
+            this.routeCompiler.invalidate(r.getName());
         }        
     }
     
@@ -2937,11 +3513,19 @@ public class MarklinControlStation implements ViewListener, ModelListener
      */
     private void setPowerState(boolean state)
     {
+        boolean changed;
+        
         synchronized(this)
         {
+            changed = this.powerState != state;
             this.powerState = state;
             notifyAll();
         }
+        
+        if (changed)
+        {
+            this.events.publish(EventHub.Kind.POWER, null, state, null);
+        }
     }
     
     /**
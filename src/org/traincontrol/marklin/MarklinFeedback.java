@@ -1,5 +1,6 @@
 package org.traincontrol.marklin;
 
+import org.traincontrol.base.EventHub;
 import org.traincontrol.base.Feedback;
 import org.traincontrol.base.RemoteDevice;
 import org.traincontrol.gui.LayoutLabel;
@@ -110,7 +111,7 @@ public class MarklinFeedback extends Feedback
      * @param val 
      */
     @Override
-    public void setState(boolean val)
+    synchronized public void setState(boolean val)
     {
         this._setState(val);
         
@@ -129,6 +130,28 @@ public class MarklinFeedback extends Feedback
         this.updateTiles();
     }
     
+    /**
+     * Keeps compiled route conditions current, and reports the edge to event subscribers.  Whether
+     * the state changed is decided as it is stored: comparing with isSet before the write let two
+     * updates racing to the same value both publish an edge, and two racing to opposite values lose
+     * one.
+     * @param was
+     * @param set 
+     */
+    @Override
+    protected void stateUpdated(boolean was, boolean set)
+    {
+        if (this.network != null)
+        {
+            this.network.getConditionEngine().feedbackChanged(this.UID, set);
+            
+            if (was != set)
+            {
+                this.network.getEvents().publish(EventHub.Kind.FEEDBACK, this.getName(), set, this);
+            }
+        }
+    }
+    
     /**
      * Returns the feedback identifier
      * @return 
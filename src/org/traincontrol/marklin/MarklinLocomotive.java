@@ -63,6 +63,17 @@ public class MarklinLocomotive extends Locomotive
     private final Map <Locomotive, Double> linkedLocomotives = new LinkedHashMap<>();     
     private Map <String, Double> preLinkedLocomotives;
     
+    // Sends this locomotive's commands, and its linked locomotives', as one batch
+    private final MarklinConsist consist = new MarklinConsist(this);
+    
+    // What the Central Station last reported for this locomotive, kept by parseMessage for
+    // MarklinStateSync.  -1, null and a clear bit in reportedF mean not reported since the address
+    // was last set.  Written under this locomotive's lock, read without it.
+    private volatile int reportedSpeed = -1;
+    private volatile locDirection reportedDirection = null;
+    private volatile long reportedF = 0;
+    private volatile long reportedFState = 0;
+    
     // For informational purposes, this is the list of locomotives in a central station (not a TrainControl) multi unit
     private Map <String, Double> centralStationMultiUnitLocomotiveNames;
     
@@ -425,6 +436,7 @@ public class MarklinLocomotive extends Locomotive
             this.type = newDecoderType;
             this.address = newAddress;
             this.UID = calculateUID();
+            this.forgetReportedState();
 
             // Resize function arrays if needed
             functionTypes = Arrays.copyOf(functionTypes, getMaxNumF(newDecoderType)); 
@@ -520,7 +532,7 @@ public class MarklinLocomotive extends Locomotive
             return;
         }
                       
-        if (m.getCommand().equals(CS2Message.CMD_LOCO_DIRECTION))
+        if (m.getCommand() == CS2Message.CMD_LOCO_DIRECTION)
         {
             if (m.getLength() == 5)
             {
@@ -534,9 +546,11 @@ public class MarklinLocomotive extends Locomotive
                     if (this.getDirection() == locDirection.DIR_BACKWARD)
                     {
                         this._setSpeed(0);
+                        this.reportedSpeed = 0;
                     }
                     
                     this._setDirection(locDirection.DIR_FORWARD);
+                    this.reportedDirection = locDirection.DIR_FORWARD;
                 }
                 else if (direction == 2)
                 {
@@ -544,9 +558,11 @@ public class MarklinLocomotive extends Locomotive
                     if (this.getDirection() == locDirection.DIR_FORWARD)
                     {
                         this._setSpeed(0);
+                        this.reportedSpeed = 0;
                     }
                     
                     this._setDirection(locDirection.DIR_BACKWARD);
+                    this.reportedDirection = locDirection.DIR_BACKWARD;
                 }
                 
                 this.network.logf(
@@ -556,7 +572,7 @@ public class MarklinLocomotive extends Locomotive
                 );
             }
         }
-        else if (m.getCommand().equals(CS2Message.CMD_LOCO_FUNCTION))
+        else if (m.getCommand() == CS2Message.CMD_LOCO_FUNCTION)
         {
             if (m.getLength() == 6)
             {
@@ -565,6 +581,12 @@ public class MarklinLocomotive extends Locomotive
                 
                 this._setF(fNumber, fValue);
                 
+                if (this.validF(fNumber))
+                {
+                    this.reportedF |= 1L << fNumber;
+                    this.reportedFState = fValue ? this.reportedFState | 1L << fNumber : this.reportedFState & ~(1L << fNumber);
+                }
+                
                 this.network.logf(
                     "loc.settingFunction",
                     this.getName(),
@@ -573,7 +595,7 @@ public class MarklinLocomotive extends Locomotive
                 );
             }
         }
-        else if (m.getCommand().equals(CS2Message.CMD_LOCO_VELOCITY))
+        else if (m.getCommand() == CS2Message.CMD_LOCO_VELOCITY)
         {
             if (m.getLength() == 6)
             {
@@ -584,6 +606,7 @@ public class MarklinLocomotive extends Locomotive
                 speed /= 10;
                 
                 this._setSpeed(speed);
+                this.reportedSpeed = speed;
                 
                 this.network.logf(
                     "loc.settingSpeed",
@@ -599,7 +622,7 @@ public class MarklinLocomotive extends Locomotive
      * @return 
      */
     @Override
-    synchronized public Locomotive instantStop()
+    public Locomotive instantStop()
     {
         if (this.type == MarklinLocomotive.decoderType.MM2)
         {
@@ -612,182 +635,134 @@ public class MarklinLocomotive extends Locomotive
     }
     
     @Override
-    synchronized public Locomotive stop()
-    {        
-        // Pass through commands
-        for (Locomotive l : this.linkedLocomotives.keySet())
-        {
-            l.stop();
-        }
-        
-        // Send stop command
-        this.network.exec(new CS2Message(
-            CS2Message.CMD_SYSTEM,
-            new byte[]
-            {
-              (byte) (UID >> 24), 
-              (byte) (UID >> 16), 
-              (byte) (UID >> 8), 
-              (byte) UID,
-              CS2Message.CMD_SYSSUB_TRAINSTOP
-            }
-        ));
-        
-        // Added code to guarantee state sync
-        if (this.getSpeed() > 0)
-        {
-            this.setSpeed(0);
-        }
+    public Locomotive stop()
+    {
+        this.consist.stop();
         
         return this;
     }
     
     @Override
-    synchronized public Locomotive syncFromNetwork()
+    public Locomotive syncFromNetwork()
     {
+        // The members are queried outside this locomotive's lock.  Querying them while holding it
+        // locked the head before each member, against MarklinConsist, which locks by UID - so a sync
+        // racing any consist command with a member whose UID is below the head's could deadlock
+        List<Locomotive> members;
+        
+        synchronized (this)
+        {
+            members = new ArrayList<>(this.linkedLocomotives.keySet());
+        }
+        
         // Pass through commands
-        for (Locomotive l : this.linkedLocomotives.keySet())
+        for (Locomotive l : members)
         {
             l.syncFromNetwork();
         }
         
-        // Query speed
-        this.network.exec(new CS2Message(
-            CS2Message.CMD_LOCO_VELOCITY,
-            new byte[]
-            {
-              (byte) (UID >> 24), 
-              (byte) (UID >> 16), 
-              (byte) (UID >> 8), 
-              (byte) UID
-            }
-        ));
-                
-        // Query functions
-        for (byte i = 0; i < this.getNumF(); i++)
+        synchronized (this)
         {
-            this.network.exec(new CS2Message(
-                CS2Message.CMD_LOCO_FUNCTION,
-                new byte[]
-                {
-                  (byte) (UID >> 24), 
-                  (byte) (UID >> 16), 
-                  (byte) (UID >> 8), 
-                  (byte) UID,
-                  i
-                }
-            ));
-        }
-                
-        // Query direction
-        this.network.exec(new CS2Message(
-            CS2Message.CMD_LOCO_DIRECTION,
-            new byte[]
+            // Query speed
+            this.execQuery(CS2Message.encode(CS2Message.CMD_LOCO_VELOCITY, 4).putUID(UID));
+
+            // Query functions
+            for (byte i = 0; i < this.getNumF(); i++)
             {
-              (byte) (UID >> 24), 
-              (byte) (UID >> 16), 
-              (byte) (UID >> 8), 
-              (byte) UID
+                this.execQuery(CS2Message.encode(CS2Message.CMD_LOCO_FUNCTION, 5).putUID(UID).put(4, i));
             }
-        ));
+
+            // Query direction
+            this.execQuery(CS2Message.encode(CS2Message.CMD_LOCO_DIRECTION, 4).putUID(UID));
+        }
         
         return this;
     }
 
+    /**
+     * Sends an encoded frame and releases it
+     * @param m 
+     */
+    private void execQuery(CS2Message m)
+    {
+        this.network.exec(m);
+        m.release();
+    }
+
     @Override
-    synchronized public Locomotive syncFromState()
+    public Locomotive syncFromState()
     {
-        // Pass through commands
-        for (Locomotive l : this.linkedLocomotives.keySet())
-        {
-            l.syncFromState();
-        }
-        
-        // Send out speed command
-        this.setSpeed(this.getSpeed());
+        this.consist.syncFromState();
         
-        // Send out function command
-        for (int i = 0; i < this.getNumF(); i++)
-        {
-            this.setF(i, this.getF(i));
-        }
+        return this;
+    }
+    
+    @Override
+    public Locomotive setSpeed(int speed)
+    {
+        this.consist.setSpeed(speed);
         
-        // Send out direction command
-        this.setDirection(this.getDirection());
+        return this;
+    }
+
+    @Override
+    public Locomotive setDirection(locDirection direction)
+    {
+        this.consist.setDirection(direction);
         
         return this;
     }
     
     @Override
-    synchronized public Locomotive setSpeed(int speed)
+    public Locomotive setF(int fNumber, boolean state)
     {
-        // Pass through commands
-        for (Map.Entry<Locomotive, Double> entry : this.linkedLocomotives.entrySet())
-        {
-            double scaledSpeed = speed * Math.abs(entry.getValue()); 
-            int roundedSpeed;
-            
-            if (Math.abs(entry.getValue()) > 1)
-            {
-                roundedSpeed = (int) Math.ceil(scaledSpeed);
-            }
-            else
-            {
-                roundedSpeed = (int) Math.floor(scaledSpeed);
-            }
-
-            // Clamped, because multipliers up to 2 are accepted and the scaled value can therefore
-            // exceed the 0-100 range _setSpeed will store.  _setSpeed IGNORES an out-of-range value
-            // rather than clamping it, and the member then transmits its previous speed - so past the
-            // threshold (67 for a 1.5x member) the member silently froze while the head kept
-            // accelerating, and the two engines of one consist pulled against each other.
-            roundedSpeed = Math.min(roundedSpeed, 100);
-
-            entry.getKey().setSpeed(roundedSpeed);
-        }
+        this.consist.setF(fNumber, state);
         
+        return this;        
+    }
+    
+    /**
+     * The head and its members, commanded together
+     * @return 
+     */
+    public MarklinConsist getConsist()
+    {
+        return this.consist;
+    }
+    
+    /* Staging, for MarklinConsist: each updates this locomotive's state and adds its frame to a batch.
+       Called with this locomotive's lock held.  The frames are encoded, and released once sent. */
+    
+    /**
+     * True until the first command to move, which must send the last known direction first
+     * @return 
+     */
+    boolean needsDirection()
+    {
+        return this.lastStartTime == 0;
+    }
+    
+    void stageSpeed(int speed, List<CS2Message> batch)
+    {
         // Force last known direction if this is the first command to move
         if (this.lastStartTime == 0)
         {
-            this.setDirection(this.getDirection());
+            this.stageDirection(this.getDirection(), batch);
         }
                 
         super._setSpeed(speed);
         
         int newSpeed = this.getSpeed() * 10;
      
-        this.network.exec(new CS2Message(
-            CS2Message.CMD_LOCO_VELOCITY,
-            new byte[]
-            {
-              (byte) (UID >> 24), 
-              (byte) (UID >> 16), 
-              (byte) (UID >> 8), 
-              (byte) UID,
-              (byte) (newSpeed >> 8),
-              (byte) newSpeed
-            }
-        ));	
-        
-        return this;
+        batch.add(CS2Message.encode(CS2Message.CMD_LOCO_VELOCITY, 6)
+            .putUID(UID)
+            .put(4, newSpeed >> 8)
+            .put(5, newSpeed)
+        );
     }
-
-    @Override
-    synchronized public Locomotive setDirection(locDirection direction)
+    
+    void stageDirection(locDirection direction, List<CS2Message> batch)
     {
-        // Pass through commands
-        for (Map.Entry<Locomotive, Double> entry : this.linkedLocomotives.entrySet())
-        {
-            if (entry.getValue() < 0)
-            {
-                entry.getKey().setDirection(direction == locDirection.DIR_FORWARD ? locDirection.DIR_BACKWARD : locDirection.DIR_FORWARD);
-            }
-            else
-            {
-                entry.getKey().setDirection(direction);
-            }
-        }
-        
         // Mark that we have alreay corrected the locomotive direction 
         if (this.lastStartTime == 0)
         {
@@ -798,55 +773,84 @@ public class MarklinLocomotive extends Locomotive
         
         int newDirection = (direction == locDirection.DIR_FORWARD ? 1 : 2);
         
-        this.network.exec(new CS2Message(
-            CS2Message.CMD_LOCO_DIRECTION,
-            new byte[]
-            {
-              (byte) (UID >> 24), 
-              (byte) (UID >> 16), 
-              (byte) (UID >> 8), 
-              (byte) UID,
-              (byte) newDirection
-            }
-        ));
-        
-        return this;
+        batch.add(CS2Message.encode(CS2Message.CMD_LOCO_DIRECTION, 5)
+            .putUID(UID)
+            .put(4, newDirection)
+        );
     }
     
-    @Override
-    synchronized public Locomotive setF(int fNumber, boolean state)
+    void stageF(int fNumber, boolean state, List<CS2Message> batch)
     {
-        // Pass through commands
-        for (Locomotive l : this.linkedLocomotives.keySet())
-        {
-            l.setF(fNumber, state);
-        }
-        
         if (this.validF(fNumber))
         {
             // Force last known direction if this is the first command to move
             if (this.lastStartTime == 0)
             {
-                this.setDirection(this.getDirection());
+                this.stageDirection(this.getDirection(), batch);
             }
             
             super._setF(fNumber, state);
         
-            this.network.exec(new CS2Message(
-                CS2Message.CMD_LOCO_FUNCTION,
-                new byte[]
-                {
-                  (byte) (UID >> 24), 
-                  (byte) (UID >> 16), 
-                  (byte) (UID >> 8), 
-                  (byte) UID,
-                  (byte) fNumber,
-                  (byte) (state ? 1 : 0)
-                }
-            ));
+            batch.add(CS2Message.encode(CS2Message.CMD_LOCO_FUNCTION, 6)
+                .putUID(UID)
+                .put(4, fNumber)
+                .put(5, state ? 1 : 0)
+            );
         }
+    }
+    
+    void stageStop(List<CS2Message> batch)
+    {
+        // Send stop command
+        batch.add(CS2Message.encode(CS2Message.CMD_SYSTEM, 5)
+            .putUID(UID)
+            .put(4, CS2Message.CMD_SYSSUB_TRAINSTOP)
+        );
         
-        return this;        
+        // Added code to guarantee state sync
+        if (this.getSpeed() > 0)
+        {
+            this.stageSpeed(0, batch);
+        }
+    }
+    
+    /* State last reported by the Central Station, for MarklinStateSync */
+    
+    /**
+     * @return the speed last reported, or -1 if none has been
+     */
+    int getReportedSpeed()
+    {
+        return this.reportedSpeed;
+    }
+    
+    /**
+     * @return the direction last reported, or null if none has been
+     */
+    locDirection getReportedDirection()
+    {
+        return this.reportedDirection;
+    }
+    
+    boolean isFReported(int fNumber)
+    {
+        return (this.reportedF & 1L << fNumber) != 0;
+    }
+    
+    boolean getReportedF(int fNumber)
+    {
+        return (this.reportedFState & 1L << fNumber) != 0;
+    }
+    
+    /**
+     * Marks all of this locomotive's state as not reported, so that the next sync queries all of it
+     */
+    synchronized void forgetReportedState()
+    {
+        this.reportedSpeed = -1;
+        this.reportedDirection = null;
+        this.reportedF = 0;
+        this.reportedFState = 0;
     }
     
     @Override
@@ -1081,8 +1085,8 @@ public class MarklinLocomotive extends Locomotive
     public int setLinkedLocomotives() 
     {       
         // Staged in a local map and swapped in one step, rather than clearing the live map and
-        // refilling it in place.  setSpeed and setDirection iterate linkedLocomotives under this
-        // locomotive's monitor; rebuilding it unsynchronised let a fan-out land mid-rebuild and either
+        // refilling it in place.  MarklinConsist reads linkedLocomotives under this locomotive's
+        // monitor; rebuilding it unsynchronised let a fan-out land mid-rebuild and either
         // throw ConcurrentModificationException or command the head alone.  That was tolerable while
         // only the multi-unit dialog rebuilt consists - a deliberate action on a consist the user is
         // editing - but a Central Station sync now rebuilds them too, automatically, and a consist can
@@ -1251,7 +1255,7 @@ public class MarklinLocomotive extends Locomotive
     /**
      * Removes a locomotive from this one's multi-unit, if it is a member.
      *
-     * synchronized, on the same lock setSpeed and setDirection hold: those iterate
+     * synchronized, on the same lock MarklinConsist holds while it commands the consist: it reads
      * linkedLocomotives, which is a plain LinkedHashMap, so removing from it on another thread -
      * deleting a locomotive while its consist is being driven - could otherwise throw
      * ConcurrentModificationException part-way through a fan-out, leaving some members commanded
@@ -16,6 +16,7 @@ import java.util.stream.Collectors;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.traincontrol.base.Accessory;
+import org.traincontrol.base.ConditionEngine;
 import org.traincontrol.base.NodeExpression;
 
 /**
@@ -39,10 +40,14 @@ public class MarklinRoute extends Route
     private final Set<LayoutLabel> tiles;
     
     // Extra delay between route commands
-    private static final int DEFAULT_SLEEP_MS = 150;
+    static final int DEFAULT_SLEEP_MS = 150;
+
+    // Levels of other routes a route may trigger.  A route triggered from another route may not
+    // trigger any more.
+    public static final int MAX_NESTING = 1;
 
     // What a route command's delay must be for the *next* command to land THREEWAY_DELAY_MS later -
-    // the gap the track diagram already leaves between a three-way's two commands.  execRoute sleeps
+    // the gap the track diagram already leaves between a three-way's two commands.  gapAfter waits
     // SLEEP_INTERVAL plus the command's own delay, hence the subtraction.
     //
     // Used by the two builders that can space a pair: the CS3 route importer and the route editor's
@@ -51,7 +56,7 @@ public class MarklinRoute extends Route
     // states - and command capture records what the diagram sent, carrying no delay of its own.
     // Without it a pair fires DEFAULT_SLEEP_MS apart, inside the margin the diagram path was tuned to.
     //
-    // Has to exceed DEFAULT_SLEEP_MS to have any effect: execRoute honours a command's own delay
+    // Has to exceed DEFAULT_SLEEP_MS to have any effect: gapAfter honours a command's own delay
     // only when it is the larger of the two.  It does, with room to spare - but lowering
     // THREEWAY_DELAY_MS far enough would make this silently inert rather than merely shorter.
     public static final int THREEWAY_ROUTE_DELAY_MS =
@@ -211,57 +216,76 @@ public class MarklinRoute extends Route
                     this.getName()
                 );          
                 
-                while (this.enabled)
+                // Compiled once for the life of the monitor, and kept current by the condition engine as
+                // sensors and accessories change, so a trigger reads it rather than walking the tree
+                ConditionEngine.Compiled compiled = null;
+                
+                try
                 {
-                    if (this.triggerType == s88Triggers.CLEAR_THEN_OCCUPIED)
-                    {
-                        loc.waitForClearThenOccupied(this.getS88String());
-                    }
-                    else
+                    while (this.enabled)
                     {
-                        loc.waitForOccupiedThenClear(this.getS88String());
-                    }
+                        if (this.triggerType == s88Triggers.CLEAR_THEN_OCCUPIED)
+                        {
+                            loc.waitForClearThenOccupied(this.getS88String());
+                        }
+                        else
+                        {
+                            loc.waitForOccupiedThenClear(this.getS88String());
+                        }
                     
-                    // Exit if the state changed
-                    if (!this.enabled) return;
-
-                    // Anything that goes wrong here must not end the loop.  This runs on a bare thread
-                    // with no handler, so an escaping exception would silently stop this route from
-                    // watching its sensor for the rest of the session, while it still reports itself
-                    // as enabled.  Log it and wait for the next trigger instead.
-                    try
-                    {
-                        // Check the condition
-                        if (this.hasConditions() && !this.conditions.evaluate(network))
+                        // Exit if the state changed
+                        if (!this.enabled) return;
+
+                        // Anything that goes wrong here must not end the loop.  This runs on a bare thread
+                        // with no handler, so an escaping exception would silently stop this route from
+                        // watching its sensor for the rest of the session, while it still reports itself
+                        // as enabled.  Log it and wait for the next trigger instead.
+                        try
                         {
+                            // Check the condition.  Recompiled if the legacy add methods replaced it.
+                            NodeExpression current = this.conditions;
+                        
+                            if (current != null && (compiled == null || compiled.getSource() != current))
+                            {
+                                this.network.getConditionEngine().release(compiled);
+                                compiled = this.network.getConditionEngine().compile(current);
+                            }
+                        
+                            if (current != null && !compiled.evaluate(network))
+                            {
+                                this.network.logf(
+                                    "route.s88ConditionFailed",
+                                    this.getName()
+                                );
+                                continue;
+                            }
+
                             this.network.logf(
-                                "route.s88ConditionFailed",
+                                "route.s88Triggered",
                                 this.getName()
                             );
-                            continue;
-                        }
 
-                        this.network.logf(
-                            "route.s88Triggered",
-                            this.getName()
-                        );
-
-                        this.execRoute(true);
-                    }
-                    catch (Exception e)
-                    {
-                        // Not "condition failed": this catch also covers execRoute, so the failure may
-                        // have nothing to do with the conditions.  It exists so that no exception can
-                        // silently end the monitor thread - naming the wrong cause defeats the point of
-                        // logging it.
-                        this.network.logf(
-                            "route.s88MonitorFailed",
-                            this.getName()
-                        );
+                            this.execRoute(true);
+                        }
+                        catch (Exception e)
+                        {
+                            // Not "condition failed": this catch also covers execRoute, so the failure may
+                            // have nothing to do with the conditions.  It exists so that no exception can
+                            // silently end the monitor thread - naming the wrong cause defeats the point of
+                            // logging it.
+                            this.network.logf(
+                                "route.s88MonitorFailed",
+                                this.getName()
+                            );
 
-                        this.network.log(e);
+                            this.network.log(e);
+                        }
                     }
                 }
+                finally
+                {
+                    this.network.getConditionEngine().release(compiled);
+                }
             });
 
             this.monitorThread.start();
@@ -318,7 +342,7 @@ public class MarklinRoute extends Route
     @Override
     public void execRoute(boolean auto)
     {
-        execRoute(auto, 1);
+        execRoute(auto, MAX_NESTING);
     }
     
     /**
@@ -337,219 +361,186 @@ public class MarklinRoute extends Route
             return;
         }
         
-        // Must be a thread for the UI to update correctly
-        new Thread(() -> 
+        // Scheduled on the network's route engine rather than a thread of its own.  The engine runs
+        // the commands on a shared timer, can cancel the route part way, and takes care of the
+        // executing flag and the tiles.
+        this.network.getRouteEngine().start(this, auto, recursionLimit);
+    }
+    
+    /**
+     * How long a route waits after a command before the next one
+     * @param rc
+     * @return ms
+     */
+    public static long gapAfter(RouteCommand rc)
+    {
+        return MarklinControlStation.SLEEP_INTERVAL
+            + (rc.getDelay() > MarklinRoute.DEFAULT_SLEEP_MS ? rc.getDelay() : MarklinRoute.DEFAULT_SLEEP_MS);
+    }
+    
+    /**
+     * Runs one command of this route.  Called by the route engine.
+     * @param rc
+     * @param auto - was the route triggered automatically?
+     * @param recursionLimit - the maximum number of other routes that can be triggered from this route
+     */
+    void execCommand(RouteCommand rc, boolean auto, int recursionLimit)
+    {
+        if (rc.isAccessory())
         {
-            if (this.setExecuting())
-            {   
+            int idd = rc.getAddress();
+            boolean state = rc.getSetting();
+
+            this.network.setAccessoryState(idd, rc.getProtocol(), state);
+        }
+        else if (rc.isStop())
+        {                        
+            // Only send stop command once
+            if (this.network.getPowerState())
+            {
                 this.network.logf(
-                    "route.executing",
+                    "route.powerTurnedOffCondition",
                     this.getName()
                 );
-                
-                // This will highlight icons in the UI
-                this.updateTiles();
-
-                // try/finally so that stopExecuting always runs.  setExecuting is the re-entrancy
-                // guard: if a command threw, the flag stayed set and every later attempt to run this
-                // route silently returned false for the rest of the session.
-                try
+                this.network.stop();
+            
+                if (auto && this.network.getGUI() != null)
                 {
-                    for (RouteCommand rc : this.route)
-                    {
-                        if (rc != null)
-                        {
-                            if (rc.isAccessory())
-                            {
-                                int idd = rc.getAddress();
-                                boolean state = rc.getSetting();
-
-                                this.network.setAccessoryState(idd, rc.getProtocol(), state);
-                            }
-                            else if (rc.isStop())
-                            {                        
-                                // Only send stop command once
-                                if (this.network.getPowerState())
-                                {
-                                    this.network.logf(
-                                        "route.powerTurnedOffCondition",
-                                        this.getName()
-                                    );
-                                    this.network.stop();
-                                
-                                    if (auto && this.network.getGUI() != null)
-                                    {
-                                        this.network.getGUI().emergencyStopTriggered(this);
-                                    }
-                                }
-                                else
-                                {
-                                    this.network.logf(
-                                        "route.conditionFiredPowerAlreadyOff",
-                                        this.getName()
-                                    );
-                                }
-                            }
-                            else if (rc.isFunctionsOff())
-                            {
-                                this.network.logf(
-                                    "route.turningOffFunctions",
-                                    this.getName()
-                                );
-                            
-                                this.network.allFunctionsOff();
-                            }
-                            else if (rc.isAutonomyLightsOn())
-                            {
-                                if (this.network.hasAutoLayout())
-                                {
-                                    this.network.logf(
-                                        "route.turningOnAutonomyLights",
-                                        this.getName()
-                                    );
-
-                                    this.network.lightsOn(this.network.getAutoLayout().getLocomotivesToRun().stream().map(Locomotive::getName).collect(Collectors.toList()));
-                                }
-                            }
-                            else if (rc.isLightsOn())
-                            {
-                                this.network.logf(
-                                    "route.turningOnAllLights",
-                                    this.getName()
-                                );
+                    this.network.getGUI().emergencyStopTriggered(this);
+                }
+            }
+            else
+            {
+                this.network.logf(
+                    "route.conditionFiredPowerAlreadyOff",
+                    this.getName()
+                );
+            }
+        }
+        else if (rc.isFunctionsOff())
+        {
+            this.network.logf(
+                "route.turningOffFunctions",
+                this.getName()
+            );
+        
+            this.network.allFunctionsOff();
+        }
+        else if (rc.isAutonomyLightsOn())
+        {
+            if (this.network.hasAutoLayout())
+            {
+                this.network.logf(
+                    "route.turningOnAutonomyLights",
+                    this.getName()
+                );
 
-                                this.network.lightsOn(this.network.getLocList());  
-                            }
-                            else if (rc.isLocomotiveSpeed())
-                            {
-                                MarklinLocomotive loc = this.network.getLocByName(rc.getName());
-                            
-                                if (loc != null)
-                                {
-                                    if (rc.getSpeed() < 0)
-                                    {
-                                        loc.instantStop();
-                                    }
-                                    else
-                                    {
-                                        loc.setSpeed(rc.getSpeed());
-                                    }
-                                }
-                                else
-                                {
-                                    this.network.logf(
-                                        "route.warningLocomotiveNotExist",
-                                        rc.getName()
-                                    );
-                                }
-                            }
-                            else if (rc.isLocomotiveDirection())
-                            {
-                                MarklinLocomotive loc = this.network.getLocByName(rc.getName());
-                            
-                                if (loc != null)
-                                {
-                                    loc.setDirection(rc.getDirection());
-                                }
-                                else
-                                {
-                                    this.network.logf(
-                                        "route.warningLocomotiveNotExist",
-                                        rc.getName()
-                                    );
-                                }
-                            }
-                            else if (rc.isFunction())
-                            {
-                                MarklinLocomotive loc = this.network.getLocByName(rc.getName());
-                            
-                                if (loc != null)
-                                {
-                                    loc.setF(rc.getFunction(), rc.getSetting());
-                                }
-                                else
-                                {
-                                    this.network.logf(
-                                        "route.warningLocomotiveNotExistCalledFrom",
-                                        rc.getName(),
-                                        this.getName()
-                                    );
-                                }
-                            }
-                            else if (rc.isRoute())
-                            {
-                                MarklinRoute r = this.network.getRoute(rc.getName());
-                            
-                                if (r == this)
-                                {
-                                    this.network.logf(
-                                        "route.warningCommandSelfReference",
-                                        rc.getName()
-                                    );
-                                }
-                                else
-                                {                      
-                                    if (r != null)
-                                    {
-                                        if (!this.equals(r))
-                                        {
-                                             // We allow the route to recurse at most once
-                                            r.execRoute(false, recursionLimit - 1);
-                                        }
-                                        else
-                                        {
-                                            this.network.logf(
-                                                "route.warningCannotInvokeSelf",
-                                                rc.getName()
-                                            );
-                                        }
-                                    }
-                                    else
-                                    {
-                                        this.network.logf(
-                                            "route.warningRouteNotExistCalledFrom",
-                                            rc.getName(),
-                                            this.getName()
-                                        );
-                                    }
-                                }
-                            }
+                this.network.lightsOn(this.network.getAutoLayout().getLocomotivesToRun().stream().map(Locomotive::getName).collect(Collectors.toList()));
+            }
+        }
+        else if (rc.isLightsOn())
+        {
+            this.network.logf(
+                "route.turningOnAllLights",
+                this.getName()
+            );
 
-                            try
-                            {
-                                if (rc.getDelay() > MarklinRoute.DEFAULT_SLEEP_MS)
-                                {
-                                    this.network.logf(
-                                        "route.delay",
-                                        rc.getDelay()
-                                    );                                
-                                    Thread.sleep(MarklinControlStation.SLEEP_INTERVAL + rc.getDelay());
-                                }
-                                else
-                                {
-                                    Thread.sleep(MarklinControlStation.SLEEP_INTERVAL + MarklinRoute.DEFAULT_SLEEP_MS);
-                                }    
-                            } 
-                            catch (InterruptedException ex)
-                            {
-                                Thread.currentThread().interrupt();
-                            }
-                        }
+            this.network.lightsOn(this.network.getLocList());  
+        }
+        else if (rc.isLocomotiveSpeed())
+        {
+            MarklinLocomotive loc = this.network.getLocByName(rc.getName());
+        
+            if (loc != null)
+            {
+                if (rc.getSpeed() < 0)
+                {
+                    loc.instantStop();
+                }
+                else
+                {
+                    loc.setSpeed(rc.getSpeed());
+                }
+            }
+            else
+            {
+                this.network.logf(
+                    "route.warningLocomotiveNotExist",
+                    rc.getName()
+                );
+            }
+        }
+        else if (rc.isLocomotiveDirection())
+        {
+            MarklinLocomotive loc = this.network.getLocByName(rc.getName());
+        
+            if (loc != null)
+            {
+                loc.setDirection(rc.getDirection());
+            }
+            else
+            {
+                this.network.logf(
+                    "route.warningLocomotiveNotExist",
+                    rc.getName()
+                );
+            }
+        }
+        else if (rc.isFunction())
+        {
+            MarklinLocomotive loc = this.network.getLocByName(rc.getName());
+        
+            if (loc != null)
+            {
+                loc.setF(rc.getFunction(), rc.getSetting());
+            }
+            else
+            {
+                this.network.logf(
+                    "route.warningLocomotiveNotExistCalledFrom",
+                    rc.getName(),
+                    this.getName()
+                );
+            }
+        }
+        else if (rc.isRoute())
+        {
+            MarklinRoute r = this.network.getRoute(rc.getName());
+        
+            if (r == this)
+            {
+                this.network.logf(
+                    "route.warningCommandSelfReference",
+                    rc.getName()
+                );
+            }
+            else
+            {                      
+                if (r != null)
+                {
+                    if (!this.equals(r))
+                    {
+                         // We allow the route to recurse at most once
+                        r.execRoute(false, recursionLimit - 1);
                     }
-
+                    else
+                    {
+                        this.network.logf(
+                            "route.warningCannotInvokeSelf",
+                            rc.getName()
+                        );
+                    }
+                }
+                else
+                {
                     this.network.logf(
-                        "route.executed",
+                        "route.warningRouteNotExistCalledFrom",
+                        rc.getName(),
                         this.getName()
                     );
                 }
-                finally
-                {
-                    this.stopExecuting();
-
-                    this.updateTiles();
-                }
             }
-        }).start();
+        }
     }
     
     /**
@@ -616,6 +607,7 @@ public class MarklinRoute extends Route
             if (rc.hasAddress() && rc.getAddress() == key)
             {
                 rc.setDelay(delayMs);
+                this.routeChanged();
                 return;
             }
         }
@@ -631,6 +623,21 @@ public class MarklinRoute extends Route
     public void removeItem(RouteCommand rc)
     {
         this.route.remove(rc);
+        this.routeChanged();
+    }
+
+    /**
+     * Has the route compiler work this route out again
+     */
+    @Override
+    protected void routeChanged()
+    {
+        // Null while the superclass constructor sets the route; the control station invalidates a
+        // route once it is added
+        if (this.network != null)
+        {
+            this.network.getRouteCompiler().invalidate(this.getName());
+        }
     }
     
     /**
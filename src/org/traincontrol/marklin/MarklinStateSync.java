@@ -0,0 +1,471 @@
+package org.traincontrol.marklin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import org.traincontrol.base.Locomotive.locDirection;
+import org.traincontrol.marklin.udp.CS2Message;
+
+/**
+ * Brings locomotive state and the Central Station's into line, sending only what is stale and no
+ * faster than the Central Station keeps up.
+ *
+ * Synchronizing used to mean syncFromNetwork on every locomotive: a velocity query, a query for every
+ * function (32 for MFX) and a direction query each, sent as fast as the loop could run.  Across a few
+ * hundred locomotives that is tens of thousands of frames in a burst, far more than the Central Station
+ * answers, so many were dropped - and the state they were meant to fetch was then simply missing.
+ * Pushing state back, syncFromState, re-sent every speed, function and direction whether or not it
+ * differed.
+ *
+ * The Central Station reports every change to a locomotive, whoever makes it, so what it has reported
+ * this session is current.  Each locomotive keeps what was last reported (see parseMessage), and here a
+ * query asks only for state never reported, and a push sends only state that differs from what was
+ * reported.  Frames are paced against a budget of frames per second.  When more than a window's worth
+ * go unanswered the rate is halved, and it climbs back while answers keep up; a frame still unanswered
+ * after a while is sent again, a few times at most.  Progress and the total time are reported as it
+ * goes.
+ *
+ * A query runs from syncLocomotives, and a push from pushLocomotives and whenever transmission is turned
+ * back on (see MarklinControlStation.setNetworkCommState).  One sync runs at a time.
+ *
+ * @author Adam
+ */
+public class MarklinStateSync
+{
+    // Default frames per second
+    public static final int DEFAULT_BUDGET = 250;
+
+    // Default frames that may be awaiting an answer before the rate is cut
+    public static final int DEFAULT_WINDOW = 64;
+
+    // The rate is never cut below this
+    public static final int MIN_RATE = 10;
+
+    // A frame unanswered for this long is sent again
+    public static final long RESEND_AFTER_MS = 750;
+
+    // Times a frame is sent before it is given up on
+    public static final int MAX_ATTEMPTS = 3;
+
+    // How often the rate may climb back, and by what fraction of the budget
+    private static final long RECOVER_EVERY_NANOS = 100_000_000L;
+    private static final int RECOVER_STEPS = 10;
+
+    private static enum stateType {SPEED, DIRECTION, FUNCTION};
+
+    /**
+     * Progress of a sync.  Immutable; getProgress returns a fresh one.
+     */
+    public static final class Progress
+    {
+        private final int total;
+        private final int answered;
+        private final int unanswered;
+        private final long framesSent;
+        private final int backoffs;
+        private final int rate;
+        private final long elapsedMillis;
+        private final boolean finished;
+
+        Progress(int total, int answered, int unanswered, long framesSent, int backoffs, int rate, long elapsedMillis, boolean finished)
+        {
+            this.total = total;
+            this.answered = answered;
+            this.unanswered = unanswered;
+            this.framesSent = framesSent;
+            this.backoffs = backoffs;
+            this.rate = rate;
+            this.elapsedMillis = elapsedMillis;
+            this.finished = finished;
+        }
+
+        /**
+         * Items of state found stale, each one frame
+         * @return
+         */
+        public int getTotal()
+        {
+            return this.total;
+        }
+
+        public int getAnswered()
+        {
+            return this.answered;
+        }
+
+        /**
+         * Items given up on, once finished
+         * @return
+         */
+        public int getUnanswered()
+        {
+            return this.unanswered;
+        }
+
+        /**
+         * Frames sent, including those sent again
+         * @return
+         */
+        public long getFramesSent()
+        {
+            return this.framesSent;
+        }
+
+        /**
+         * Times the rate was cut because answers lagged
+         * @return
+         */
+        public int getBackoffs()
+        {
+            return this.backoffs;
+        }
+
+        /**
+         * Frames per second at the time
+         * @return
+         */
+        public int getRate()
+        {
+            return this.rate;
+        }
+
+        public long getElapsedMillis()
+        {
+            return this.elapsedMillis;
+        }
+
+        public boolean isFinished()
+        {
+            return this.finished;
+        }
+
+        /**
+         * Fraction answered, 0 to 1
+         * @return
+         */
+        public double getFraction()
+        {
+            return this.total == 0 ? 1.0 : (double) this.answered / this.total;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.answered + "/" + this.total + " in " + this.elapsedMillis + " ms, " + this.framesSent
+                + " frames, " + this.unanswered + " unanswered, " + this.backoffs + " backoffs";
+        }
+    }
+
+    /**
+     * One item of one locomotive's state, and the frame that queries or sets it
+     */
+    private static final class Item
+    {
+        private final MarklinLocomotive loc;
+        private final stateType type;
+        private final int f;
+        private long sentAt;
+        private int attempts = 0;
+
+        Item(MarklinLocomotive loc, stateType type, int f)
+        {
+            this.loc = loc;
+            this.type = type;
+            this.f = f;
+        }
+
+        /**
+         * True once the Central Station has reported this state - for a push, reported it as ours
+         */
+        boolean isDone(boolean push)
+        {
+            switch (this.type)
+            {
+                case SPEED:
+                    return push ? this.loc.getReportedSpeed() == this.loc.getSpeed() : this.loc.getReportedSpeed() >= 0;
+                case DIRECTION:
+                    return push ? this.loc.getReportedDirection() == this.loc.getDirection() : this.loc.getReportedDirection() != null;
+                default:
+                    return this.loc.isFReported(this.f) && (!push || this.loc.getReportedF(this.f) == this.loc.getF(this.f));
+            }
+        }
+
+        CS2Message frame(boolean push)
+        {
+            int uid = this.loc.getIntUID();
+            byte[] id = {(byte) (uid >> 24), (byte) (uid >> 16), (byte) (uid >> 8), (byte) uid};
+
+            switch (this.type)
+            {
+                case SPEED:
+                    if (!push) return new CS2Message(CS2Message.CMD_LOCO_VELOCITY, id);
+                    int speed = this.loc.getSpeed() * 10;
+                    return new CS2Message(CS2Message.CMD_LOCO_VELOCITY, new byte[] {id[0], id[1], id[2], id[3], (byte) (speed >> 8), (byte) speed});
+                case DIRECTION:
+                    if (!push) return new CS2Message(CS2Message.CMD_LOCO_DIRECTION, id);
+                    return new CS2Message(CS2Message.CMD_LOCO_DIRECTION, new byte[] {id[0], id[1], id[2], id[3], (byte) (this.loc.goingForward() ? 1 : 2)});
+                default:
+                    if (!push) return new CS2Message(CS2Message.CMD_LOCO_FUNCTION, new byte[] {id[0], id[1], id[2], id[3], (byte) this.f});
+                    return new CS2Message(CS2Message.CMD_LOCO_FUNCTION, new byte[] {id[0], id[1], id[2], id[3], (byte) this.f, (byte) (this.loc.getF(this.f) ? 1 : 0)});
+            }
+        }
+    }
+
+    private final Consumer<CS2Message> transmit;
+    private volatile int budget = DEFAULT_BUDGET;
+    private volatile int window = DEFAULT_WINDOW;
+
+    // Progress of the sync running, or the last one
+    private volatile int total = 0;
+    private volatile int answered = 0;
+    private volatile int unanswered = 0;
+    private volatile long framesSent = 0;
+    private volatile int backoffs = 0;
+    private volatile int rate = DEFAULT_BUDGET;
+    private volatile long startedAt = 0;
+    private volatile long finishedAt = 0;
+    private volatile boolean finished = true;
+
+    /**
+     * @param transmit sends one frame to the Central Station
+     */
+    public MarklinStateSync(Consumer<CS2Message> transmit)
+    {
+        this.transmit = transmit;
+    }
+
+    /**
+     * Sets the pacing
+     * @param framesPerSecond the most frames sent per second
+     * @param window the most frames awaiting an answer before the rate is cut
+     */
+    public void setBudget(int framesPerSecond, int window)
+    {
+        if (framesPerSecond < MIN_RATE || window < 1)
+        {
+            throw new IllegalArgumentException("Invalid sync budget " + framesPerSecond + " / " + window);
+        }
+
+        this.budget = framesPerSecond;
+        this.window = window;
+    }
+
+    public int getBudget()
+    {
+        return this.budget;
+    }
+
+    public int getWindow()
+    {
+        return this.window;
+    }
+
+    /**
+     * Queries the state of each locomotive the Central Station has not yet reported
+     * @param locs
+     * @param timeoutMillis
+     * @return the final progress
+     * @throws InterruptedException
+     */
+    public Progress query(Collection<MarklinLocomotive> locs, long timeoutMillis) throws InterruptedException
+    {
+        return this.run(locs, false, timeoutMillis);
+    }
+
+    /**
+     * Sends the state of each locomotive that differs from what the Central Station last reported
+     * @param locs
+     * @param timeoutMillis
+     * @return the final progress
+     * @throws InterruptedException
+     */
+    public Progress push(Collection<MarklinLocomotive> locs, long timeoutMillis) throws InterruptedException
+    {
+        return this.run(locs, true, timeoutMillis);
+    }
+
+    /**
+     * Marks all of these locomotives' state as not reported, so that the next query asks for all of it
+     * @param locs
+     */
+    public void forget(Collection<MarklinLocomotive> locs)
+    {
+        for (MarklinLocomotive loc : locs)
+        {
+            loc.forgetReportedState();
+        }
+    }
+
+    /**
+     * The stale items, in the order they are sent: direction first, since the Central Station zeroes
+     * the speed when the direction changes
+     */
+    private static List<Item> plan(Collection<MarklinLocomotive> locs, boolean push)
+    {
+        List<Item> items = new ArrayList<>();
+
+        for (MarklinLocomotive loc : locs)
+        {
+            Item direction = new Item(loc, stateType.DIRECTION, 0);
+            Item speed = new Item(loc, stateType.SPEED, 0);
+
+            if (!direction.isDone(push)) items.add(direction);
+            if (!speed.isDone(push)) items.add(speed);
+
+            for (int f = 0; f < loc.getNumF(); f++)
+            {
+                Item function = new Item(loc, stateType.FUNCTION, f);
+
+                if (!function.isDone(push)) items.add(function);
+            }
+        }
+
+        return items;
+    }
+
+    synchronized private Progress run(Collection<MarklinLocomotive> locs, boolean push, long timeoutMillis) throws InterruptedException
+    {
+        List<Item> items = plan(locs, push);
+        Deque<Item> toSend = new ArrayDeque<>(items);
+        List<Item> inFlight = new ArrayList<>();
+
+        this.total = items.size();
+        this.answered = 0;
+        this.unanswered = 0;
+        this.framesSent = 0;
+        this.backoffs = 0;
+        this.rate = this.budget;
+        this.startedAt = System.nanoTime();
+        this.finished = false;
+
+        long deadline = this.startedAt + timeoutMillis * 1_000_000L;
+        long nextSend = this.startedAt;
+        long lastRecovery = this.startedAt;
+        boolean lagging = false;
+        int given = 0;
+
+        try
+        {
+            while (!toSend.isEmpty() || !inFlight.isEmpty())
+            {
+                long now = System.nanoTime();
+
+                if (now >= deadline)
+                {
+                    break;
+                }
+
+                // Retire what has been answered, and send again what has waited too long
+                for (Iterator<Item> it = inFlight.iterator(); it.hasNext();)
+                {
+                    Item item = it.next();
+
+                    if (item.isDone(push))
+                    {
+                        it.remove();
+                        this.answered++;
+                    }
+                    else if (now - item.sentAt > RESEND_AFTER_MS * 1_000_000L)
+                    {
+                        it.remove();
+
+                        if (item.attempts < MAX_ATTEMPTS)
+                        {
+                            toSend.addFirst(item);
+                        }
+                        else
+                        {
+                            given++;
+                        }
+                    }
+                }
+
+                // Answers lagging: cut the rate once per episode, and send nothing more until they catch up
+                int window = this.window;
+
+                if (inFlight.size() >= window)
+                {
+                    if (!lagging)
+                    {
+                        lagging = true;
+                        this.backoffs++;
+                        this.rate = Math.max(MIN_RATE, this.rate / 2);
+                    }
+
+                    Thread.sleep(1);
+                    continue;
+                }
+
+                if (lagging && inFlight.size() <= window / 2)
+                {
+                    lagging = false;
+                    lastRecovery = now;
+                }
+
+                // Keeping up: climb back towards the budget
+                if (!lagging && this.rate < this.budget && now - lastRecovery >= RECOVER_EVERY_NANOS)
+                {
+                    this.rate = Math.min(this.budget, this.rate + Math.max(1, this.budget / RECOVER_STEPS));
+                    lastRecovery = now;
+                }
+
+                long interval = 1_000_000_000L / this.rate;
+
+                // Time not spent sending is not saved up for a burst later
+                nextSend = Math.max(nextSend, now - interval);
+
+                while (!toSend.isEmpty() && nextSend <= now && inFlight.size() < window)
+                {
+                    Item item = toSend.poll();
+
+                    // Answered since it was queued to be sent again, or changed back by someone else
+                    if (item.isDone(push))
+                    {
+                        this.answered++;
+                        continue;
+                    }
+
+                    item.attempts++;
+                    item.sentAt = now;
+                    inFlight.add(item);
+
+                    this.transmit.accept(item.frame(push));
+                    this.framesSent++;
+                    nextSend += interval;
+                }
+
+                long wait = Math.min(nextSend - System.nanoTime(), 1_000_000L);
+
+                if (wait > 0)
+                {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                }
+            }
+        }
+        finally
+        {
+            this.unanswered = given + toSend.size() + inFlight.size();
+            this.finishedAt = System.nanoTime();
+            this.finished = true;
+        }
+
+        return this.getProgress();
+    }
+
+    /**
+     * Progress of the sync running now, or of the last one
+     * @return
+     */
+    public Progress getProgress()
+    {
+        boolean done = this.finished;
+        long end = done ? this.finishedAt : System.nanoTime();
+
+        return new Progress(this.total, this.answered, this.unanswered, this.framesSent, this.backoffs,
+            this.rate, this.startedAt == 0 ? 0 : (end - this.startedAt) / 1_000_000L, done);
+    }
+}
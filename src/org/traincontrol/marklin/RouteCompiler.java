@@ -0,0 +1,489 @@
+package org.traincontrol.marklin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.base.RouteCommand;
+
+/**
+ * Works out ahead of time what each route will do to the layout: every accessory it sets, including
+ * those set by the routes it triggers, and how long it runs.  Keeps a matrix of which routes set an
+ * accessory differently from which, so that whether two routes can run together is one lookup.
+ *
+ * A route's accessories used to be discovered only while the route engine ran it, and two routes
+ * compared by walking both command lists each time a route started.  Nothing could ask beforehand
+ * whether two routes get along, or which routes touch the turnouts autonomy drives.
+ *
+ * Routes are compiled lazily: an edit only marks the route, and every route that triggers it, for
+ * recompilation, so importing hundreds of routes does not rebuild the matrix hundreds of times.  The
+ * first query after an edit recompiles what was marked and updates only those rows.
+ *
+ * Routes are identified by name, as route commands refer to them.  A route triggered by name that does
+ * not exist yet is remembered, and whoever triggers it is recompiled once it is added.
+ *
+ * @author Adam
+ */
+public class RouteCompiler
+{
+    private final MarklinControlStation network;
+
+    // Per route name
+    private final Map<String, Footprint> footprints = new HashMap<>();
+
+    // Route name -> routes whose footprint includes it, itself included
+    private final Map<String, Set<String>> dependents = new HashMap<>();
+
+    // Accessory key -> route name -> the setting that route leaves it in
+    private final Map<String, Map<String, Boolean>> byAccessory = new HashMap<>();
+
+    // Route name -> route name -> accessories the two set differently.  Symmetric; no empty rows.
+    private final Map<String, Map<String, Set<String>>> conflicts = new HashMap<>();
+
+    // Routes to recompile before the next query
+    private final Set<String> dirty = new HashSet<>();
+    private boolean allDirty = true;
+
+    private long compilations = 0;
+
+    /**
+     * Everything one route does to the layout
+     */
+    public static final class Footprint
+    {
+        private final String route;
+        private final Map<String, Boolean> accessories;
+        private final Set<String> routes;
+        private final boolean cyclic;
+        private final long plannedMs;
+        private final long expectedMs;
+
+        private Footprint(String route, Map<String, Boolean> accessories, Set<String> routes, boolean cyclic,
+            long plannedMs, long expectedMs)
+        {
+            this.route = route;
+            this.accessories = Collections.unmodifiableMap(accessories);
+            this.routes = Collections.unmodifiableSet(routes);
+            this.cyclic = cyclic;
+            this.plannedMs = plannedMs;
+            this.expectedMs = expectedMs;
+        }
+
+        public String getRoute()
+        {
+            return this.route;
+        }
+
+        /**
+         * Accessory key -> the setting the route leaves it in, its own commands and those of the
+         * routes it triggers, in the order they are sent
+         * @return
+         */
+        public Map<String, Boolean> getAccessories()
+        {
+            return this.accessories;
+        }
+
+        /**
+         * Every route name this one reaches, itself first - including names that do not exist
+         * @return
+         */
+        public Set<String> getRoutes()
+        {
+            return this.routes;
+        }
+
+        /**
+         * Whether the route triggers itself, directly or through another route
+         * @return
+         */
+        public boolean isCyclic()
+        {
+            return this.cyclic;
+        }
+
+        /**
+         * The sum of the route's own delays - what the route engine plans for it
+         * @return ms
+         */
+        public long getPlannedMs()
+        {
+            return this.plannedMs;
+        }
+
+        /**
+         * Until the last command of the route, or of any route it triggers, has run.  Triggered routes
+         * run alongside the rest of this one, so this is the later of the two ends, not their sum.
+         * @return ms
+         */
+        public long getExpectedMs()
+        {
+            return this.expectedMs;
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.route + " " + this.accessories + " " + this.expectedMs + " ms";
+        }
+    }
+
+    /**
+     * Constructor
+     * @param network
+     */
+    public RouteCompiler(MarklinControlStation network)
+    {
+        this.network = network;
+    }
+
+    /**
+     * How route commands and the compiler identify an accessory
+     * @param rc an accessory command
+     * @return
+     */
+    public static String accessoryKey(RouteCommand rc)
+    {
+        return accessoryKey(rc.getProtocol(), rc.getAddress());
+    }
+
+    /**
+     * How route commands and the compiler identify an accessory
+     * @param protocol
+     * @param address logical address, as route commands carry it (one above the raw address)
+     * @return
+     */
+    public static String accessoryKey(Accessory.accessoryDecoderType protocol, int address)
+    {
+        return protocol + " " + address;
+    }
+
+    /**
+     * Marks a route for recompilation, together with every route that triggers it.  Call after
+     * adding, editing or deleting it.
+     * @param routeName
+     */
+    public synchronized void invalidate(String routeName)
+    {
+        if (routeName == null) return;
+
+        this.dirty.add(routeName);
+
+        Set<String> deps = this.dependents.get(routeName);
+
+        if (deps != null)
+        {
+            this.dirty.addAll(deps);
+        }
+    }
+
+    /**
+     * Marks every route for recompilation
+     */
+    public synchronized void invalidateAll()
+    {
+        this.allDirty = true;
+    }
+
+    /**
+     * A route's footprint
+     * @param routeName
+     * @return null if there is no such route
+     */
+    public synchronized Footprint getFootprint(String routeName)
+    {
+        this.refresh();
+
+        return this.footprints.get(routeName);
+    }
+
+    /**
+     * Whether two routes can run together without setting an accessory differently
+     * @param a route name
+     * @param b route name
+     * @return
+     */
+    public synchronized boolean isCompatible(String a, String b)
+    {
+        return this.getConflicts(a, b).isEmpty();
+    }
+
+    /**
+     * The accessories two routes set differently
+     * @param a route name
+     * @param b route name
+     * @return empty if none, or if either route does not exist
+     */
+    public synchronized Set<String> getConflicts(String a, String b)
+    {
+        this.refresh();
+
+        Map<String, Set<String>> row = this.conflicts.get(a);
+        Set<String> keys = row != null ? row.get(b) : null;
+
+        return keys != null ? Collections.unmodifiableSet(new LinkedHashSet<>(keys)) : Collections.emptySet();
+    }
+
+    /**
+     * Every route that sets an accessory differently from this one, with the accessories
+     * @param routeName
+     * @return
+     */
+    public synchronized Map<String, Set<String>> getConflicts(String routeName)
+    {
+        this.refresh();
+
+        Map<String, Set<String>> out = new LinkedHashMap<>();
+        Map<String, Set<String>> row = this.conflicts.get(routeName);
+
+        if (row != null)
+        {
+            for (Map.Entry<String, Set<String>> e : row.entrySet())
+            {
+                out.put(e.getKey(), Collections.unmodifiableSet(new LinkedHashSet<>(e.getValue())));
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * The routes that set an accessory, with the setting each leaves it in
+     * @param accessoryKey see accessoryKey
+     * @return
+     */
+    public synchronized Map<String, Boolean> getRoutesSetting(String accessoryKey)
+    {
+        this.refresh();
+
+        Map<String, Boolean> routes = this.byAccessory.get(accessoryKey);
+
+        return routes != null ? new HashMap<>(routes) : Collections.emptyMap();
+    }
+
+    /**
+     * Routes compiled so far
+     * @return
+     */
+    public synchronized long getCompilations()
+    {
+        return this.compilations;
+    }
+
+    /**
+     * Recompiles what edits have marked, and updates the matrix rows of those routes only
+     */
+    private void refresh()
+    {
+        if (this.allDirty)
+        {
+            this.allDirty = false;
+            this.dirty.clear();
+
+            this.footprints.clear();
+            this.dependents.clear();
+            this.byAccessory.clear();
+            this.conflicts.clear();
+
+            for (MarklinRoute r : this.network.getRoutes())
+            {
+                this.dirty.add(r.getName());
+            }
+        }
+
+        if (this.dirty.isEmpty()) return;
+
+        List<String> changed = new ArrayList<>(this.dirty);
+        this.dirty.clear();
+
+        for (String name : changed)
+        {
+            this.remove(name);
+        }
+
+        List<Footprint> compiled = new ArrayList<>();
+
+        for (String name : changed)
+        {
+            if (this.network.getRoute(name) == null) continue;
+
+            Footprint fp = this.compile(name);
+            compiled.add(fp);
+
+            this.footprints.put(name, fp);
+
+            for (String reached : fp.routes)
+            {
+                this.dependents.computeIfAbsent(reached, k -> new HashSet<>()).add(name);
+            }
+
+            for (Map.Entry<String, Boolean> acc : fp.accessories.entrySet())
+            {
+                this.byAccessory.computeIfAbsent(acc.getKey(), k -> new HashMap<>()).put(name, acc.getValue());
+            }
+        }
+
+        // Only once all of them are indexed, so two changed routes find each other
+        for (Footprint fp : compiled)
+        {
+            for (Map.Entry<String, Boolean> acc : fp.accessories.entrySet())
+            {
+                for (Map.Entry<String, Boolean> other : this.byAccessory.get(acc.getKey()).entrySet())
+                {
+                    if (!other.getKey().equals(fp.route) && !other.getValue().equals(acc.getValue()))
+                    {
+                        this.addConflict(fp.route, other.getKey(), acc.getKey());
+                        this.addConflict(other.getKey(), fp.route, acc.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+    private void addConflict(String a, String b, String accessoryKey)
+    {
+        this.conflicts.computeIfAbsent(a, k -> new HashMap<>())
+            .computeIfAbsent(b, k -> new LinkedHashSet<>())
+            .add(accessoryKey);
+    }
+
+    /**
+     * Takes a route's old footprint out of every index
+     * @param name
+     */
+    private void remove(String name)
+    {
+        Footprint old = this.footprints.remove(name);
+
+        if (old == null) return;
+
+        for (String reached : old.routes)
+        {
+            Set<String> deps = this.dependents.get(reached);
+
+            if (deps != null && deps.remove(name) && deps.isEmpty())
+            {
+                this.dependents.remove(reached);
+            }
+        }
+
+        for (String key : old.accessories.keySet())
+        {
+            Map<String, Boolean> routes = this.byAccessory.get(key);
+
+            if (routes != null && routes.remove(name) != null && routes.isEmpty())
+            {
+                this.byAccessory.remove(key);
+            }
+        }
+
+        Map<String, Set<String>> row = this.conflicts.remove(name);
+
+        if (row != null)
+        {
+            for (String other : row.keySet())
+            {
+                Map<String, Set<String>> theirs = this.conflicts.get(other);
+
+                if (theirs != null && theirs.remove(name) != null && theirs.isEmpty())
+                {
+                    this.conflicts.remove(other);
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks a route the way the route engine will run it
+     * @param name
+     * @return
+     */
+    private Footprint compile(String name)
+    {
+        Map<String, Boolean> accessories = new LinkedHashMap<>();
+        Set<String> routes = new LinkedHashSet<>();
+        boolean[] cyclic = {false};
+        Deque<String> stack = new ArrayDeque<>();
+
+        routes.add(name);
+        stack.push(name);
+
+        long[] timing = this.walk(this.network.getRoute(name), MarklinRoute.MAX_NESTING, accessories, routes, cyclic, stack);
+
+        this.compilations++;
+
+        return new Footprint(name, accessories, routes, cyclic[0], timing[0], timing[1]);
+    }
+
+    /**
+     * Adds one route's commands to a footprint, following the routes it triggers
+     * @param route
+     * @param depth levels of routes this one may still trigger - as execRoute limits them, since the
+     *              route engine refuses to go deeper
+     * @param accessories
+     * @param routes
+     * @param cyclic set when a route on the stack is triggered again
+     * @param stack the routes being walked, outermost last
+     * @return {planned, expected} ms
+     */
+    private long[] walk(MarklinRoute route, int depth, Map<String, Boolean> accessories, Set<String> routes,
+        boolean[] cyclic, Deque<String> stack)
+    {
+        long offset = 0;
+        long end = 0;
+
+        for (RouteCommand rc : new ArrayList<>(route.getRoute()))
+        {
+            if (rc == null) continue;
+
+            if (rc.isAccessory())
+            {
+                String key = accessoryKey(rc);
+
+                // Re-inserted so that the order is the order the commands are sent
+                accessories.remove(key);
+                accessories.put(key, rc.getSetting());
+            }
+            else if (rc.isRoute() && rc.getName() != null)
+            {
+                if (stack.contains(rc.getName()))
+                {
+                    // The engine refuses a route that is already executing, so a cycle ends here
+                    cyclic[0] = true;
+                }
+                else if (depth > 0)
+                {
+                    // Remembered even when it does not exist, so adding it recompiles this route
+                    routes.add(rc.getName());
+
+                    MarklinRoute nested = this.network.getRoute(rc.getName());
+
+                    if (nested == null)
+                    {
+                        offset += MarklinRoute.gapAfter(rc);
+                        continue;
+                    }
+
+                    stack.push(rc.getName());
+                    long[] nestedTiming = this.walk(nested, depth - 1, accessories, routes, cyclic, stack);
+                    stack.pop();
+
+                    // Started when this command runs, then runs alongside
+                    end = Math.max(end, offset + nestedTiming[1]);
+                }
+            }
+
+            offset += MarklinRoute.gapAfter(rc);
+        }
+
+        return new long[] {offset, Math.max(offset, end)};
+    }
+}
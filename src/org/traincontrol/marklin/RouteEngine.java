@@ -0,0 +1,445 @@
+package org.traincontrol.marklin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.traincontrol.base.RouteCommand;
+import org.traincontrol.util.HashedTimerWheel;
+
+/**
+ * Executes routes as timed schedules on a shared timer, rather than one sleeping thread each.
+ *
+ * A route used to be a new Thread that ran a command, slept, ran the next, and so on - ten routes
+ * fired at the start of a session were ten sleeping threads, none of which anything could stop short
+ * of the route finishing.  Here a route is compiled into its commands and the gap after each, and each
+ * command is scheduled on a hashed timer wheel once the one before it has run.  The commands
+ * themselves run on a small pool, so many routes proceed side by side without a thread apiece, and a
+ * route in flight can be cancelled: its next command is simply never scheduled.
+ *
+ * A route is also checked against the others running when it starts, by the route compiler's conflict
+ * matrix.  Two routes asking one accessory for different settings at the same time is almost always a
+ * layout configuration mistake, and whichever lands last wins - so it is logged, naming both.
+ *
+ * @author Adam
+ */
+public class RouteEngine
+{
+    // Threads that run route commands.  Commands are short network writes, so a few are plenty.
+    public static final int WORKERS = 4;
+
+    private final MarklinControlStation network;
+    private final ExecutorService workers;
+    private final HashedTimerWheel timer;
+
+    // Executions started and not yet finished or cancelled
+    private final Set<Execution> running = ConcurrentHashMap.newKeySet();
+
+    // Per route name: timings of its executions so far
+    private final Map<String, RouteTiming> timings = new ConcurrentHashMap<>();
+
+    private final AtomicLong conflicts = new AtomicLong();
+
+    // The execution whose command the current worker thread is running, if any
+    private static final ThreadLocal<Execution> CURRENT = new ThreadLocal<>();
+
+    /**
+     * Execution statistics for one route
+     */
+    public static final class RouteTiming
+    {
+        private int runs = 0;
+        private int cancelled = 0;
+        private long lastDurationMs = 0;
+        private long lastPlannedMs = 0;
+        private long maxLatenessMs = 0;
+
+        private synchronized void record(Execution e, long durationMs)
+        {
+            if (e.isCancelled())
+            {
+                this.cancelled++;
+            }
+            else
+            {
+                this.runs++;
+            }
+
+            this.lastDurationMs = durationMs;
+            this.lastPlannedMs = e.getPlannedMs();
+            this.maxLatenessMs = Math.max(this.maxLatenessMs, e.getMaxLatenessMs());
+        }
+
+        /** Executions that ran to the end */
+        public synchronized int getRuns()
+        {
+            return this.runs;
+        }
+
+        /** Executions cancelled part way */
+        public synchronized int getCancelled()
+        {
+            return this.cancelled;
+        }
+
+        /** How long the most recent execution took, start to finish */
+        public synchronized long getLastDurationMs()
+        {
+            return this.lastDurationMs;
+        }
+
+        /** How long the most recent execution should have taken, by its delays alone */
+        public synchronized long getLastPlannedMs()
+        {
+            return this.lastPlannedMs;
+        }
+
+        /** The latest any command has run after it was due, over all executions */
+        public synchronized long getMaxLatenessMs()
+        {
+            return this.maxLatenessMs;
+        }
+    }
+
+    /**
+     * One run of a route
+     */
+    public final class Execution
+    {
+        private final MarklinRoute route;
+        private final boolean auto;
+        private final int recursionLimit;
+        private final List<RouteCommand> commands;
+
+        // The execution whose command started this one, if any
+        private final Execution parent;
+
+        private final long startNanos = System.nanoTime();
+        private final long plannedMs;
+        private volatile long maxLatenessMs = 0;
+
+        private int next = 0;
+        private volatile boolean cancelled = false;
+        private volatile boolean finished = false;
+        private volatile boolean failed = false;
+        private volatile HashedTimerWheel.Timeout pending;
+
+        private Execution(MarklinRoute route, boolean auto, int recursionLimit, Execution parent)
+        {
+            this.route = route;
+            this.auto = auto;
+            this.recursionLimit = recursionLimit;
+            this.parent = parent;
+            this.commands = new ArrayList<>();
+
+            long planned = 0;
+
+            for (RouteCommand rc : route.getRoute())
+            {
+                if (rc == null) continue;
+
+                this.commands.add(rc);
+                planned += MarklinRoute.gapAfter(rc);
+            }
+
+            this.plannedMs = planned;
+        }
+
+        public MarklinRoute getRoute()
+        {
+            return this.route;
+        }
+
+        /**
+         * Stops the route before its next command.  A command already running is allowed to finish.
+         * @return false if it had already finished or been cancelled
+         */
+        public boolean cancel()
+        {
+            synchronized (this)
+            {
+                if (this.finished || this.cancelled) return false;
+
+                this.cancelled = true;
+            }
+
+            HashedTimerWheel.Timeout t = this.pending;
+
+            // If the timer had already handed the next step to a worker, that step sees the flag and
+            // finishes instead
+            if (t != null && t.cancel())
+            {
+                this.finish();
+            }
+
+            return true;
+        }
+
+        public boolean isCancelled()
+        {
+            return this.cancelled;
+        }
+
+        public boolean isFinished()
+        {
+            return this.finished;
+        }
+
+        /** The sum of the route's delays - what the whole run should take */
+        public long getPlannedMs()
+        {
+            return this.plannedMs;
+        }
+
+        /** The latest any command of this run has executed after it was due */
+        public long getMaxLatenessMs()
+        {
+            return this.maxLatenessMs;
+        }
+
+        /**
+         * Runs the next command, then schedules the one after it.  The gap that follows a command is
+         * only known once it has run - a command to another route may take any time - so commands are
+         * chained rather than all placed on the wheel up front.
+         */
+        private void step(long dueNanos)
+        {
+            if (this.cancelled)
+            {
+                this.finish();
+                return;
+            }
+
+            this.maxLatenessMs = Math.max(this.maxLatenessMs,
+                TimeUnit.NANOSECONDS.toMillis(Math.max(0, System.nanoTime() - dueNanos)));
+
+            // The pause after the last command is kept: it is what used to hold the route's executing
+            // flag for that long, and a route re-triggered inside it is still refused
+            if (this.next >= this.commands.size())
+            {
+                this.finish();
+                return;
+            }
+
+            RouteCommand rc = this.commands.get(this.next++);
+
+            CURRENT.set(this);
+
+            try
+            {
+                this.route.execCommand(rc, this.auto, this.recursionLimit);
+            }
+            catch (Exception e)
+            {
+                // As before, a command that throws ends the route there
+                network.log(e);
+                this.failed = true;
+                this.finish();
+                return;
+            }
+            finally
+            {
+                CURRENT.remove();
+            }
+
+            long gap = MarklinRoute.gapAfter(rc);
+
+            if (rc.getDelay() > MarklinRoute.DEFAULT_SLEEP_MS)
+            {
+                network.logf("route.delay", rc.getDelay());
+            }
+
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(gap);
+
+            synchronized (this)
+            {
+                if (this.cancelled)
+                {
+                    this.finish();
+                    return;
+                }
+
+                this.pending = timer.schedule(() -> this.step(due), gap);
+            }
+        }
+
+        private void finish()
+        {
+            synchronized (this)
+            {
+                if (this.finished) return;
+
+                this.finished = true;
+            }
+
+            running.remove(this);
+
+            long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNanos);
+
+            timings.computeIfAbsent(this.route.getName(), k -> new RouteTiming()).record(this, durationMs);
+
+            if (this.cancelled)
+            {
+                network.logf("route.cancelled", this.route.getName());
+            }
+            else if (!this.failed)
+            {
+                network.logf("route.executed", this.route.getName());
+            }
+
+            this.route.stopExecuting();
+            this.route.updateTiles();
+        }
+    }
+
+    /**
+     * Constructor
+     * @param network
+     */
+    public RouteEngine(MarklinControlStation network)
+    {
+        AtomicInteger count = new AtomicInteger();
+
+        this.network = network;
+        this.workers = Executors.newFixedThreadPool(WORKERS, r ->
+        {
+            Thread t = new Thread(r, "Route engine " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.timer = new HashedTimerWheel("Route timer", this.workers);
+    }
+
+    /**
+     * Starts a route.  Returns at once; the route runs in the background.
+     * @param route
+     * @param auto was the route triggered automatically?
+     * @param recursionLimit how many more levels of routes this one may trigger
+     * @return the execution, or null if the route was already executing
+     */
+    public Execution start(MarklinRoute route, boolean auto, int recursionLimit)
+    {
+        if (!route.setExecuting()) return null;
+
+        Execution e = new Execution(route, auto, recursionLimit, CURRENT.get());
+
+        // Compared by footprint, which includes the routes each triggers - so a route started by
+        // another was already compared, as part of it, when that one started
+        if (e.parent == null)
+        {
+            RouteCompiler compiler = this.network.getRouteCompiler();
+
+            for (Execution other : this.running)
+            {
+                if (other.parent != null) continue;
+
+                for (String acc : compiler.getConflicts(route.getName(), other.route.getName()))
+                {
+                    this.conflicts.incrementAndGet();
+
+                    this.network.logf(
+                        "route.warningAccessoryConflict",
+                        route.getName(),
+                        other.route.getName(),
+                        acc
+                    );
+                }
+            }
+        }
+
+        this.running.add(e);
+
+        this.network.logf(
+            "route.executing",
+            route.getName()
+        );
+
+        // This will highlight icons in the UI
+        route.updateTiles();
+
+        long now = System.nanoTime();
+
+        synchronized (e)
+        {
+            e.pending = this.timer.schedule(() -> e.step(now), 0);
+        }
+
+        return e;
+    }
+
+    /**
+     * Cancels every route in flight, except the one whose command is calling this and the routes that
+     * triggered it - a route that turns the power off still gets to finish, even from a nested route.
+     * @return the number cancelled
+     */
+    public int cancelAll()
+    {
+        int n = 0;
+        List<Execution> callers = new ArrayList<>();
+
+        for (Execution e = CURRENT.get(); e != null; e = e.parent)
+        {
+            callers.add(e);
+        }
+
+        for (Execution e : new ArrayList<>(this.running))
+        {
+            if (!callers.contains(e) && e.cancel()) n++;
+        }
+
+        return n;
+    }
+
+    /**
+     * Cancels a route in flight
+     * @param routeName
+     * @return false if it was not running
+     */
+    public boolean cancel(String routeName)
+    {
+        boolean any = false;
+
+        for (Execution e : new ArrayList<>(this.running))
+        {
+            if (e.route.getName().equals(routeName) && e.cancel()) any = true;
+        }
+
+        return any;
+    }
+
+    /**
+     * Routes executing right now
+     * @return
+     */
+    public List<Execution> getRunning()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(this.running));
+    }
+
+    /**
+     * Timings for a route, or null if it has never finished a run
+     * @param routeName
+     * @return
+     */
+    public RouteTiming getTiming(String routeName)
+    {
+        return this.timings.get(routeName);
+    }
+
+    /**
+     * How many times two routes running together have asked an accessory for different settings
+     * @return
+     */
+    public long getConflictCount()
+    {
+        return this.conflicts.get();
+    }
+}
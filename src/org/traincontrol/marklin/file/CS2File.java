@@ -9,6 +9,12 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import org.traincontrol.base.Locomotive;
 import org.traincontrol.marklin.MarklinControlStation;
@@ -35,6 +41,9 @@ public final class CS2File
     // network, but reads are given time to transfer potentially large database files.
     public static final int CONNECT_TIMEOUT_MS = 2000;
     public static final int READ_TIMEOUT_MS = 15000;
+    
+    // Layout pages fetched at once.  Kept low: the Central Station's web server is not a fast one
+    public static final int LAYOUT_PAGE_THREADS = 4;
 
     // IP address for our HTTP requests
     private final String IP;
@@ -46,6 +55,9 @@ public final class CS2File
     // Can be overriden by files on the local filesystem (if using a CS3, etc)
     private String layoutDataLoc;
     
+    // Concurrent layout page fetches
+    private int layoutPageThreads = LAYOUT_PAGE_THREADS;
+    
     // Cache CS3 mags
     private final Map<Integer, JSONObject> magList;
     private final Map<String, JSONObject> locList;
@@ -81,6 +93,15 @@ public final class CS2File
         return "http://" + this.IP;
     }
     
+    /**
+     * How many layout pages to fetch at once; 1 fetches them one after the other
+     * @param threads 
+     */
+    public void setLayoutPageThreads(int threads)
+    {
+        this.layoutPageThreads = Math.max(1, threads);
+    }
+    
     /**
      * Sets the layout data location to a custom local path)
      * @param path 
@@ -1053,32 +1074,57 @@ public final class CS2File
     }
     
     /**
-     * Fetches a CS3 accessory DB entry based on its id
-     * @param searchId
+     * Indexes a CS3 accessory and locomotive DB by id, once per document.
+     * 
+     * Route parsing used to look each referenced accessory and locomotive up with a linear scan of the
+     * whole array, caching hits in maps that were never cleared - so every miss cost a full scan, and
+     * after the Central Station renamed or readdressed something, later imports by the same parser kept
+     * resolving to the old record.
      * @param mags
-     * @return 
+     * @param locs 
      */
-    private JSONObject getCS3MagById(int searchId, JSONArray mags)
+    private void indexCS3(JSONArray mags, JSONArray locs)
     {
-        // Cache accessories by ID
-        if (this.magList.containsKey(searchId))
-        {
-            return this.magList.get(searchId);
-        }
+        this.magList.clear();
+        this.locList.clear();
         
         for (int i = 0 ; i < mags.length(); i++)
         {
-            JSONObject obj = mags.getJSONObject(i);
+            JSONObject obj = mags.optJSONObject(i);
             
-            if (searchId == obj.getInt("id"))
+            // The first record with a given id wins, as the scan's did
+            if (obj != null && obj.has("id"))
             {
-                this.magList.put(searchId, obj);
-                
-                return obj;
+                try
+                {
+                    this.magList.putIfAbsent(obj.getInt("id"), obj);
+                }
+                catch (JSONException e)
+                {
+                    // Not a numeric id - could never have matched
+                }
             }
         }
         
-        return null;   
+        for (int i = 0 ; i < locs.length(); i++)
+        {
+            JSONObject obj = locs.optJSONObject(i);
+            
+            if (obj != null && obj.has("internname"))
+            {
+                this.locList.putIfAbsent(obj.optString("internname"), obj);
+            }
+        }
+    }
+    
+    /**
+     * Fetches a CS3 accessory DB entry based on its id
+     * @param searchId
+     * @return 
+     */
+    private JSONObject getCS3MagById(int searchId)
+    {
+        return this.magList.get(searchId);
     }
     
     /**
@@ -1086,27 +1132,9 @@ public final class CS2File
      * @param searchId
      * @return 
      */
-    private JSONObject getCS3LocById(String searchId, JSONArray locs)
+    private JSONObject getCS3LocById(String searchId)
     {
-        // Cache accessories by ID
-        if (this.locList.containsKey(searchId))
-        {
-            return this.locList.get(searchId);
-        }
-        
-        for (int i = 0 ; i < locs.length(); i++)
-        {
-            JSONObject obj = locs.getJSONObject(i);
-            
-            if (searchId.equals(obj.getString("internname")))
-            {
-                this.locList.put(searchId, obj);
-                
-                return obj;
-            }
-        }
-        
-        return null;   
+        return this.locList.get(searchId);
     }
     
     /**
@@ -1123,6 +1151,8 @@ public final class CS2File
             logMessage(I18n.f("route.warningNoLocomotivesProvidedCs3"));
         }
         
+        this.indexCS3(mags, locs);
+        
         List<MarklinRoute> out = new ArrayList<>();
         
         if (routeList != null && routeList instanceof JSONArray)
@@ -1145,9 +1175,9 @@ public final class CS2File
                         {
                             String locName = null;
 
-                            if (this.getCS3LocById(item.getString("lok"), locs) != null)
+                            if (this.getCS3LocById(item.getString("lok")) != null)
                             {
-                                locName = this.getCS3LocById(item.getString("lok"), locs).getString("name");
+                                locName = this.getCS3LocById(item.getString("lok")).getString("name");
                             }
 
                             if (locName != null)
@@ -1182,9 +1212,9 @@ public final class CS2File
                         {
                             String locName = null;
 
-                            if (this.getCS3LocById(item.getString("lok"), locs) != null)
+                            if (this.getCS3LocById(item.getString("lok")) != null)
                             {
-                                locName = this.getCS3LocById(item.getString("lok"), locs).getString("name");
+                                locName = this.getCS3LocById(item.getString("lok")).getString("name");
                             }
 
                             if (locName != null)
@@ -1222,9 +1252,9 @@ public final class CS2File
                         {
                             String locName = null;
 
-                            if (this.getCS3LocById(item.getString("lok"), locs) != null)
+                            if (this.getCS3LocById(item.getString("lok")) != null)
                             {
-                                locName = this.getCS3LocById(item.getString("lok"), locs).getString("name");
+                                locName = this.getCS3LocById(item.getString("lok")).getString("name");
                             }
 
                             if (locName != null)
@@ -1256,7 +1286,7 @@ public final class CS2File
                         else if (item.has("typ") && "mag".equals(item.getString("typ")) && item.has("magnetartikel"))
                         {
                             // To get the address, we need to look up this accessory in the accessory DB
-                            JSONObject accessory = getCS3MagById(item.getInt("magnetartikel"), mags); 
+                            JSONObject accessory = getCS3MagById(item.getInt("magnetartikel")); 
 
                             if (accessory != null)
                             {
@@ -1485,6 +1515,18 @@ public final class CS2File
      * @return
      */
     public List<MarklinLocomotive> parseLocomotivesCS3(JSONArray locomotiveList)
+    {
+        return parseLocomotivesCS3(locomotiveList, loc -> true);
+    }
+    
+    /**
+     * Parses some of the locomotives from the CS3 API.  Multi-units are still resolved against every
+     * locomotive in the list.
+     * @param locomotiveList
+     * @param include which records to parse
+     * @return
+     */
+    public List<MarklinLocomotive> parseLocomotivesCS3(JSONArray locomotiveList, Predicate<JSONObject> include)
     {
         List<MarklinLocomotive> out = new ArrayList<>();
         
@@ -1513,6 +1555,11 @@ public final class CS2File
             try
             {
                 JSONObject loc = locomotiveList.getJSONObject(i);
+                
+                if (!include.test(loc))
+                {
+                    continue;
+                }
 
                 Integer uid = Integer.decode(loc.getString("uid"));
 
@@ -1858,7 +1905,16 @@ public final class CS2File
             layoutsDir.mkdirs();
         }
         
+        // Concurrently, as parseLayout does.  Two names that sanitise to the same file would now be
+        // written at once, so only the last of them is fetched - the one whose content it used to end with.
+        Map<String, String> byFile = new HashMap<>();
+        
         for (String layoutName : parseLayoutList())
+        {
+            byFile.put(sanitizeFilename(layoutName), layoutName);
+        }
+        
+        forEachPage(new ArrayList<>(byFile.values()), layoutName ->
         {
             // Sanitised, and matching what getLayoutURL will look for when this folder is read back.
             // The remote fetch above is unaffected: it goes through sanitizeURL on the http branch.
@@ -1873,7 +1929,9 @@ public final class CS2File
                     writer.newLine();
                 }
             }
-        }
+            
+            return layoutFile;
+        }, layoutFile -> {});
         
         // Download the accessory file      
         File magsFile = new File(configDir, "magnetartikel.cs2");
@@ -2087,194 +2145,288 @@ public final class CS2File
     }
     
     /**
-     * Processes a layout
-     * @param accDB
-     * @return
+     * A unit of work on one layout page
+     * @param <T> 
+     */
+    private interface PageTask<T>
+    {
+        public T run(String name) throws Exception;
+    }
+    
+    /**
+     * Receives the result of a PageTask
+     * @param <T> 
+     */
+    private interface PageSink<T>
+    {
+        public void accept(T result) throws Exception;
+    }
+    
+    /**
+     * Runs a task for every layout page on a bounded pool, and hands the results to the caller's thread
+     * in page order, each as soon as it and every page before it are done.
+     * 
+     * Pages used to be fetched and parsed one after the other, so a CS3 with 25 pages over Wi-Fi had
+     * nothing to show until the 25th round trip completed.  Fetching is nearly all waiting, so a few
+     * concurrent requests take roughly the time of the slowest few; results are still delivered in the
+     * same order as before.  The first failure is thrown, as it was, and the pages not yet started are
+     * cancelled.
+     * @param <T>
+     * @param names
+     * @param task
+     * @param delivered
      * @throws Exception 
      */
-    public List<LayoutDiagram> parseLayout(List<MarklinAccessory> accDB) throws Exception
+    private <T> void forEachPage(List<String> names, PageTask<T> task, PageSink<T> delivered) throws Exception
     {
-        List<String> names = this.parseLayoutList();
+        if (names.isEmpty())
+        {
+            return;
+        }
         
-        List<LayoutDiagram> out = new ArrayList<>();
+        AtomicInteger n = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(this.layoutPageThreads, names.size()), r ->
+        {
+            Thread t = new Thread(r, "Layout page loader " + n.incrementAndGet());
+            t.setDaemon(true);
+            
+            return t;
+        });
         
-        for (String name : names)
-        { 
-            String url = getLayoutURL(name);
+        try
+        {
+            List<Future<T>> futures = new ArrayList<>();
             
-            if (control.isDebug())
+            for (String name : names)
             {
-                control.logf(
-                    "layout.loadingFromUrl",
-                    url
-                );            
+                futures.add(pool.submit(() -> task.run(name)));
             }
             
-            List<Map<String, String> > l = parseFile(fetchURL(url));
-                        
-            Map<Integer, MarklinAccessory> addressMap = accDB.stream()
-                .collect(Collectors.toMap(
-                        MarklinAccessory::getAddress, 
-                        accessory -> accessory,
-                        (existing, replacement) -> existing // uncouplers will have the same ID
-                ));
-            
-            int maxX = 0;
-            int maxY = 0;
-            
-            for (Map<String, String> m : l)
+            for (Future<T> f : futures)
             {
-                if ("element".equals(m.get("_type")))
+                try
                 {
-                    Integer coord = 0;
-
-                    if (m.get("id") != null)
-                    {
-                        coord = Integer.valueOf(m.get("id").replace("0x", ""), 16);
-                    }
-                    else
+                    delivered.accept(f.get());
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof Exception)
                     {
-                        logMessage(
-                            I18n.f("layout.warningElementNoCoordinateInfoAssumingZeroZero", m),
-                            null,
-                            true
-                        );
+                        throw (Exception) e.getCause();
                     }
                     
-                    Integer x = coord % 256;
-                    Integer y = (coord >> 8) % 256;
+                    throw e;
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+    
+    /**
+     * Processes a layout, fetching and parsing its pages concurrently.  Returns only once every page
+     * has parsed, so a failed page fails the whole layout.
+     * @param accDB
+     * @return
+     * @throws Exception 
+     */
+    public List<LayoutDiagram> parseLayout(List<MarklinAccessory> accDB) throws Exception
+    {
+        List<String> names = this.parseLayoutList();
+        
+        // Built once.  It used to be rebuilt for every page.
+        Map<Integer, MarklinAccessory> addressMap = accDB.stream()
+            .collect(Collectors.toMap(
+                    MarklinAccessory::getAddress, 
+                    accessory -> accessory,
+                    (existing, replacement) -> existing // uncouplers will have the same ID
+            ));
+        
+        List<LayoutDiagram> out = new ArrayList<>();
+        
+        forEachPage(names, name -> parseLayoutPage(name, addressMap), out::add);
+        
+        return out;
+    }
+    
+    /**
+     * Fetches and parses one layout page
+     * @param name
+     * @param addressMap accessories by address
+     * @return
+     * @throws Exception 
+     */
+    private LayoutDiagram parseLayoutPage(String name, Map<Integer, MarklinAccessory> addressMap) throws Exception
+    {
+        String url = getLayoutURL(name);
+        
+        if (control != null && control.isDebug())
+        {
+            control.logf(
+                "layout.loadingFromUrl",
+                url
+            );            
+        }
+        
+        List<Map<String, String> > l = parseFile(fetchURL(url));
+                    
+        int maxX = 0;
+        int maxY = 0;
+        
+        for (Map<String, String> m : l)
+        {
+            if ("element".equals(m.get("_type")))
+            {
+                Integer coord = 0;
 
-                    if (x > maxX)
-                    {
-                        maxX = x;
-                    }
+                if (m.get("id") != null)
+                {
+                    coord = Integer.valueOf(m.get("id").replace("0x", ""), 16);
+                }
+                else
+                {
+                    logMessage(
+                        I18n.f("layout.warningElementNoCoordinateInfoAssumingZeroZero", m),
+                        null,
+                        true
+                    );
+                }
+                
+                Integer x = coord % 256;
+                Integer y = (coord >> 8) % 256;
 
-                    if (y > maxY)
-                    {
-                        maxY = y;
-                    }
+                if (x > maxX)
+                {
+                    maxX = x;
+                }
+
+                if (y > maxY)
+                {
+                    maxY = y;
                 }
             }
-            
-            LayoutDiagram layout = new LayoutDiagram(name, maxX + 1, maxY + 1, url, this.control);
-                        
-            for (Map<String, String> m : l)
+        }
+        
+        LayoutDiagram layout = new LayoutDiagram(name, maxX + 1, maxY + 1, url, this.control);
+                    
+        for (Map<String, String> m : l)
+        {
+            if ("element".equals(m.get("_type")))
             {
-                if ("element".equals(m.get("_type")))
+                Integer coord = 0;
+                
+                if (m.get("id") != null)
                 {
-                    Integer coord = 0;
-                    
-                    if (m.get("id") != null)
-                    {
-                        coord = Integer.valueOf(m.get("id").replace("0x", ""), 16);
-                    }
+                    coord = Integer.valueOf(m.get("id").replace("0x", ""), 16);
+                }
 
-                    Integer x = coord % 256;
-                    Integer y = (coord >> 8) % 256;
-                    
-                    Integer orient = 0;
-                    Integer state = 0;
-                    String type = m.get("typ");
-                    
-                    // Handle missing type
-                    if (type == null)
-                    {
-                        if (m.get("text") != null)
-                        {
-                            type = "text";
-                        }
-                        else
-                        {
-                            type = "unknown";
-                        }
-                    }
-                    
-                    Integer rawAddress = 0;
-                    
-                    try
-                    {
-                        rawAddress = Integer.valueOf(m.get("artikel"));
-                    }
-                    catch (NumberFormatException e)
-                    {
-                        if (!"text".equals(type))
-                        {
-                            logMessage(
-                                I18n.f("layout.errorComponentNoAddressAtCoordinates", type, x, y)
-                            );
-                        }
-                    }
-                    
-                    Integer address = rawAddress;
-                    
-                    if (!"fahrstrasse".equals(type))
+                Integer x = coord % 256;
+                Integer y = (coord >> 8) % 256;
+                
+                Integer orient = 0;
+                Integer state = 0;
+                String type = m.get("typ");
+                
+                // Handle missing type
+                if (type == null)
+                {
+                    if (m.get("text") != null)
                     {
-                        if (address % 2 == 0)
-                        {
-                            address = (address / 2);
-                        }
-                        else
-                        {
-                            address = (address - 1) / 2;
-                        }
+                        type = "text";
                     }
-                                        
-                    if (m.get("drehung") != null)
+                    else
                     {
-                        orient = Integer.valueOf(m.get("drehung")); 
+                        type = "unknown";
                     }
-                   
-                    if (m.get("zustand") != null)
+                }
+                
+                Integer rawAddress = 0;
+                
+                try
+                {
+                    rawAddress = Integer.valueOf(m.get("artikel"));
+                }
+                catch (NumberFormatException e)
+                {
+                    if (!"text".equals(type))
                     {
-                        state = Integer.valueOf(m.get("zustand"));
+                        logMessage(
+                            I18n.f("layout.errorComponentNoAddressAtCoordinates", type, x, y)
+                        );
                     }
-                    
-                    // Workaround for incorrectly oriented semaphore signals, which are rotated +90 degrees in the CS2 UI
-                    if (type.contains("_f_"))
+                }
+                
+                Integer address = rawAddress;
+                
+                if (!"fahrstrasse".equals(type))
+                {
+                    if (address % 2 == 0)
                     {
-                        orient = Math.floorMod(orient - 1, 4);
+                        address = (address / 2);
                     }
-                    
-                    Accessory.accessoryDecoderType protocol = Accessory.accessoryDecoderType.MM2;
-                    
-                    // Read protocol from mags file
-                    if (addressMap.get(address) != null)
+                    else
                     {
-                        protocol = addressMap.get(address).getDecoderType();
+                        address = (address - 1) / 2;
                     }
-                    
-                    // Custom - read protocol from the local layout files
-                    if (m.get("prot") != null)
+                }
+                                    
+                if (m.get("drehung") != null)
+                {
+                    orient = Integer.valueOf(m.get("drehung")); 
+                }
+               
+                if (m.get("zustand") != null)
+                {
+                    state = Integer.valueOf(m.get("zustand"));
+                }
+                
+                // Workaround for incorrectly oriented semaphore signals, which are rotated +90 degrees in the CS2 UI
+                if (type.contains("_f_"))
+                {
+                    orient = Math.floorMod(orient - 1, 4);
+                }
+                
+                Accessory.accessoryDecoderType protocol = Accessory.accessoryDecoderType.MM2;
+                
+                // Read protocol from mags file
+                if (addressMap.get(address) != null)
+                {
+                    protocol = addressMap.get(address).getDecoderType();
+                }
+                
+                // Custom - read protocol from the local layout files
+                if (m.get("prot") != null)
+                {
+                    if (MarklinAccessory.stringToAccessoryDecoderType(m.get("prot")) != null)
                     {
-                        if (MarklinAccessory.stringToAccessoryDecoderType(m.get("prot")) != null)
-                        {
-                            protocol = MarklinAccessory.stringToAccessoryDecoderType(m.get("prot"));
-                        }
-                        else
-                        {
-                            logMessage(
-                                I18n.f("acc.errorUnknownProtocol", m.get("prot"))
-                            );
-                        }
+                        protocol = MarklinAccessory.stringToAccessoryDecoderType(m.get("prot"));
                     }
-                    
-                    // This will fail for unknown components.  Catch errors?
-                    if (getComponentType(type, address) != null)
+                    else
                     {
-                        layout.addComponent(
-                           getComponentType(type, address),
-                           x, y, orient, state, address, rawAddress, protocol, m.get("text")
+                        logMessage(
+                            I18n.f("acc.errorUnknownProtocol", m.get("prot"))
                         );
                     }
                 }
+                
+                // Resolved once.  It used to be called twice per element, and logs unsupported types
+                LayoutDiagramComponent.componentType componentType = getComponentType(type, address);
+                
+                if (componentType != null)
+                {
+                    layout.addComponent(
+                       componentType,
+                       x, y, orient, state, address, rawAddress, protocol, m.get("text")
+                    );
+                }
             }
-            
-            layout.checkBounds();
-            
-            out.add(layout);
         }
         
-        return out;
+        layout.checkBounds();
+        
+        return layout;
     }
 
     /**
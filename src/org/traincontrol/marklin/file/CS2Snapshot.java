@@ -0,0 +1,452 @@
+package org.traincontrol.marklin.file;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.traincontrol.marklin.MarklinAccessory;
+import org.traincontrol.marklin.MarklinLocomotive;
+import org.traincontrol.marklin.MarklinRoute;
+
+/**
+ * The Central Station's locomotive, accessory and route databases as downloaded for one sync, with a
+ * fingerprint for each document and for each locomotive and route in it.
+ *
+ * Documents are kept as downloaded and parsed only when something asks for their records, so a sync
+ * that finds a document unchanged never parses it.  Records are keyed by locomotive name and route id,
+ * the same keys the local databases use.  A route's fingerprint covers what it is resolved against as
+ * well as its own text - the accessories, and on a CS3 the names of the locomotives it references - so
+ * renaming a locomotive on the Central Station changes the routes that name it.
+ *
+ * @author Adam
+ */
+public final class CS2Snapshot
+{
+    public static enum recordType {LOCOMOTIVE, ROUTE};
+
+    private final CS2File parser;
+    private final boolean cs3;
+    private final boolean cs3v260;
+
+    // As downloaded
+    private final String locText;
+    private final String routeText;
+    private final String magText;
+
+    private final Map<recordType, String> fingerprints = new LinkedHashMap<>();
+
+    // Parsed on demand
+    private List<Map<String, String>> cs2Locs;
+    private List<Map<String, String>> cs2Routes;
+    private List<MarklinAccessory> cs2Mags;
+    private JSONArray cs3Locs;
+    private JSONArray cs3Routes;
+    private JSONArray cs3Mags;
+    private final Map<recordType, Map<String, Object>> records = new LinkedHashMap<>();
+    private final Map<recordType, Map<String, String>> recordFingerprints = new LinkedHashMap<>();
+
+    private CS2Snapshot(CS2File parser, boolean cs3, boolean cs3v260, String locText, String routeText, String magText)
+    {
+        this.parser = parser;
+        this.cs3 = cs3;
+        this.cs3v260 = cs3v260;
+        this.locText = locText;
+        this.routeText = routeText;
+        this.magText = magText;
+
+        this.fingerprints.put(recordType.LOCOMOTIVE, fingerprint(locText));
+        this.fingerprints.put(recordType.ROUTE, fingerprint(routeText + '\0' + magText + '\0' + (cs3 ? locText : "")));
+    }
+
+    /**
+     * Downloads the databases
+     * @param parser
+     * @param cs3
+     * @return
+     * @throws Exception
+     */
+    public static CS2Snapshot fetch(CS2File parser, boolean cs3) throws Exception
+    {
+        if (cs3)
+        {
+            // Probed once - see parseRoutesCS3
+            boolean is260 = parser.isCS3Version260OrAbove();
+
+            return new CS2Snapshot(parser, true, is260,
+                read(parser.getCS3LocDBUrl(is260 ? 260 : 250)),
+                read(parser.getCS3RouteDBUrl()),
+                read(parser.getCS3MagDBUrl())
+            );
+        }
+
+        return new CS2Snapshot(parser, false, false,
+            read(parser.getLocURL()),
+            read(parser.getRouteURL()),
+            read(parser.getMagURL(false))
+        );
+    }
+
+    private static String read(String url) throws Exception
+    {
+        try (BufferedReader in = CS2File.fetchURL(url))
+        {
+            StringBuilder sb = new StringBuilder();
+            String line;
+
+            while ((line = in.readLine()) != null)
+            {
+                sb.append(line).append('\n');
+            }
+
+            return sb.toString();
+        }
+    }
+
+    private static BufferedReader reader(String text)
+    {
+        return new BufferedReader(new StringReader(text));
+    }
+
+    /**
+     * A content hash
+     * @param text
+     * @return
+     */
+    public static String fingerprint(String text)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder out = new StringBuilder(digest.length * 2);
+
+            for (byte b : digest)
+            {
+                out.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+
+            return out.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A JSON value as text with its keys in sorted order, so that equal records read the same however
+     * their keys were ordered
+     */
+    private static void canonical(Object value, StringBuilder out)
+    {
+        if (value instanceof JSONObject)
+        {
+            JSONObject o = (JSONObject) value;
+            List<String> keys = new ArrayList<>(o.keySet());
+            Collections.sort(keys);
+
+            out.append('{');
+
+            for (String key : keys)
+            {
+                out.append(JSONObject.quote(key)).append(':');
+                canonical(o.get(key), out);
+                out.append(',');
+            }
+
+            out.append('}');
+        }
+        else if (value instanceof JSONArray)
+        {
+            out.append('[');
+
+            for (Object item : (JSONArray) value)
+            {
+                canonical(item, out);
+                out.append(',');
+            }
+
+            out.append(']');
+        }
+        else if (value instanceof String)
+        {
+            out.append(JSONObject.quote((String) value));
+        }
+        else
+        {
+            out.append(value);
+        }
+    }
+
+    private static String canonical(Object value)
+    {
+        StringBuilder out = new StringBuilder();
+        canonical(value, out);
+
+        return out.toString();
+    }
+
+    public boolean isCS3()
+    {
+        return this.cs3;
+    }
+
+    /**
+     * Fingerprint of the documents a record type is read from
+     * @param type
+     * @return
+     */
+    public String getFingerprint(recordType type)
+    {
+        return this.fingerprints.get(type);
+    }
+
+    /**
+     * Each record's fingerprint, by key, in document order
+     * @param type
+     * @return
+     * @throws Exception
+     */
+    public Map<String, String> getRecordFingerprints(recordType type) throws Exception
+    {
+        this.index();
+
+        return Collections.unmodifiableMap(this.recordFingerprints.get(type));
+    }
+
+    /**
+     * Parses the documents and fingerprints their records, once
+     */
+    private void index() throws Exception
+    {
+        if (!this.records.isEmpty())
+        {
+            return;
+        }
+
+        Map<String, Object> locs = new LinkedHashMap<>();
+        Map<String, Object> routes = new LinkedHashMap<>();
+        Map<String, String> locPrints = new LinkedHashMap<>();
+        Map<String, String> routePrints = new LinkedHashMap<>();
+
+        if (this.cs3)
+        {
+            this.cs3Locs = CS2File.parseJSONArray(reader(this.locText));
+            this.cs3Mags = CS2File.parseJSONArray(reader(this.magText));
+            this.cs3Routes = this.cs3v260 ? CS2File.parseJSONArray(reader(this.routeText))
+                : CS2File.parseJSONObject(reader(this.routeText)).getJSONArray("automatics");
+
+            // Multi-units and routes name locomotives by their internal name
+            Map<String, String> internalNames = new TreeMap<>();
+
+            for (int i = 0; i < this.cs3Locs.length(); i++)
+            {
+                JSONObject loc = this.cs3Locs.optJSONObject(i);
+
+                if (loc != null && loc.has("internname"))
+                {
+                    internalNames.put(loc.optString("internname"), loc.optString("name"));
+                }
+            }
+
+            String names = internalNames.toString();
+            String magPrint = fingerprint(this.magText);
+
+            for (int i = 0; i < this.cs3Locs.length(); i++)
+            {
+                JSONObject loc = this.cs3Locs.optJSONObject(i);
+
+                if (loc != null)
+                {
+                    String key = unique(locs, loc.optString("name"));
+                    locs.put(key, loc);
+                    locPrints.put(key, fingerprint(canonical(loc) + (loc.has("traktion") ? names : "")));
+                }
+            }
+
+            for (int i = 0; i < this.cs3Routes.length(); i++)
+            {
+                JSONObject route = this.cs3Routes.optJSONObject(i);
+
+                if (route != null)
+                {
+                    String key = unique(routes, routeKey(route.opt("id")));
+                    routes.put(key, route);
+                    routePrints.put(key, fingerprint(canonical(route) + magPrint + names));
+                }
+            }
+        }
+        else
+        {
+            this.cs2Locs = CS2File.parseFile(reader(this.locText));
+            this.cs2Routes = CS2File.parseFile(reader(this.routeText));
+            this.cs2Mags = this.parser.parseMags(CS2File.parseFile(reader(this.magText)));
+
+            String magPrint = fingerprint(this.magText);
+
+            for (Map<String, String> m : this.cs2Locs)
+            {
+                if ("lokomotive".equals(m.get("_type")))
+                {
+                    String key = unique(locs, m.get("name") != null ? m.get("name") : "");
+                    locs.put(key, m);
+                    locPrints.put(key, fingerprint(new TreeMap<>(m).toString()));
+                }
+            }
+
+            for (Map<String, String> m : this.cs2Routes)
+            {
+                if ("fahrstrasse".equals(m.get("_type")))
+                {
+                    String key = unique(routes, routeKey(m.get("id")));
+                    routes.put(key, m);
+                    routePrints.put(key, fingerprint(new TreeMap<>(m).toString() + magPrint));
+                }
+            }
+        }
+
+        this.records.put(recordType.LOCOMOTIVE, locs);
+        this.records.put(recordType.ROUTE, routes);
+        this.recordFingerprints.put(recordType.LOCOMOTIVE, locPrints);
+        this.recordFingerprints.put(recordType.ROUTE, routePrints);
+    }
+
+    /**
+     * A route's key: its id as the parsed route will report it
+     * @param id
+     * @return
+     */
+    public static String routeKey(Object id)
+    {
+        if (id == null)
+        {
+            return "";
+        }
+
+        try
+        {
+            return String.valueOf(Integer.parseInt(String.valueOf(id).trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            return String.valueOf(id);
+        }
+    }
+
+    /**
+     * A key not yet used: a duplicate name or id gets a suffix, and therefore never matches a local
+     * locomotive or route, so it is parsed every time just as it used to be
+     */
+    private static String unique(Map<String, Object> used, String key)
+    {
+        if (!used.containsKey(key))
+        {
+            return key;
+        }
+
+        int n = 2;
+
+        while (used.containsKey(key + "#" + n))
+        {
+            n++;
+        }
+
+        return key + "#" + n;
+    }
+
+    private List<Object> select(recordType type, Collection<String> keys) throws Exception
+    {
+        this.index();
+
+        Map<String, Object> all = this.records.get(type);
+        List<Object> out = new ArrayList<>();
+
+        for (String key : keys)
+        {
+            if (all.containsKey(key))
+            {
+                out.add(all.get(key));
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Parses only the given locomotives
+     * @param keys
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    public List<MarklinLocomotive> parseLocomotives(Collection<String> keys) throws Exception
+    {
+        List<Object> selected = this.select(recordType.LOCOMOTIVE, keys);
+
+        if (selected.isEmpty())
+        {
+            return new ArrayList<>();
+        }
+
+        if (this.cs3)
+        {
+            // The whole document is passed, because multi-units are resolved against all of it
+            Set<Object> include = Collections.newSetFromMap(new IdentityHashMap<>());
+            include.addAll(selected);
+
+            return this.parser.parseLocomotivesCS3(this.cs3Locs, include::contains);
+        }
+
+        List<Map<String, String>> list = new ArrayList<>();
+
+        for (Object o : selected)
+        {
+            list.add((Map<String, String>) o);
+        }
+
+        return this.parser.parseLocomotives(list);
+    }
+
+    /**
+     * Parses only the given routes
+     * @param keys
+     * @return
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    public List<MarklinRoute> parseRoutes(Collection<String> keys) throws Exception
+    {
+        List<Object> selected = this.select(recordType.ROUTE, keys);
+
+        if (selected.isEmpty())
+        {
+            return new ArrayList<>();
+        }
+
+        if (this.cs3)
+        {
+            return this.parser.parseRoutesCS3(new JSONArray(selected), this.cs3Mags, this.cs3Locs);
+        }
+
+        List<Map<String, String>> list = new ArrayList<>();
+
+        for (Object o : selected)
+        {
+            list.add((Map<String, String>) o);
+        }
+
+        return this.parser.parseRoutes(list, this.cs2Mags);
+    }
+}
@@ -0,0 +1,274 @@
+package org.traincontrol.marklin.file;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import org.traincontrol.marklin.file.CS2Snapshot.recordType;
+
+/**
+ * What the last syncs with the Central Station applied, record by record, so that the next one can
+ * skip whatever has not changed since.
+ *
+ * Every sync used to re-parse all of the Central Station's locomotives and routes and run each one
+ * through the full reconciliation against the local database, however little had changed - on a
+ * large roster, nearly all of a sync's time, spent re-deriving what was already there.
+ *
+ * Alongside each record is the local state it was applied against: the local locomotive or route of
+ * its name, and the one of its id.  A record is applied again when that state changes, e.g. after a
+ * locomotive was deleted locally, or after the local one whose name blocked its import was renamed -
+ * the outcome could differ, so it is worked out again exactly as before.  A record whose update was
+ * deliberately put off - an address change while autonomy runs - is tried again by every sync until it
+ * is applied.  A record that failed to parse is not retried until it changes, since the same text
+ * would fail the same way.
+ *
+ * Records removed from the Central Station are reported but, as before, not deleted locally.
+ *
+ * @author Adam
+ */
+public final class CS2SyncState
+{
+    /**
+     * The local entity a record was applied to - a locomotive's name and UID, or a route's name and id -
+     * and the local state it left behind, for telling later whether that state was changed.  No name for
+     * a record that did not parse.
+     */
+    public static final class Applied
+    {
+        private final String fingerprint;
+        private final String name;
+        private final String id;
+        private final String local;
+
+        private Applied(String fingerprint, String name, String id, String local)
+        {
+            this.fingerprint = fingerprint;
+            this.name = name;
+            this.id = id;
+            this.local = local;
+        }
+
+        public String getName()
+        {
+            return this.name;
+        }
+
+        public String getId()
+        {
+            return this.id;
+        }
+
+        public String getLocal()
+        {
+            return this.local;
+        }
+    }
+
+    /**
+     * The records of one type that a sync has to apply, by key
+     */
+    public static final class ChangeSet
+    {
+        private final List<String> added = new ArrayList<>();
+        private final List<String> changed = new ArrayList<>();
+        private final List<String> removed = new ArrayList<>();
+        private int unchanged = 0;
+        private boolean documentUnchanged = false;
+
+        /**
+         * New records, and those whose local entity has gone missing
+         * @return
+         */
+        public List<String> getAdded()
+        {
+            return Collections.unmodifiableList(this.added);
+        }
+
+        public List<String> getChanged()
+        {
+            return Collections.unmodifiableList(this.changed);
+        }
+
+        /**
+         * Records applied before and no longer on the Central Station
+         * @return
+         */
+        public List<String> getRemoved()
+        {
+            return Collections.unmodifiableList(this.removed);
+        }
+
+        public int getUnchanged()
+        {
+            return this.unchanged;
+        }
+
+        /**
+         * Whether the documents were identical to the last sync's, in which case none were parsed
+         * @return
+         */
+        public boolean isDocumentUnchanged()
+        {
+            return this.documentUnchanged;
+        }
+
+        /**
+         * Everything to parse and apply
+         * @return
+         */
+        public List<String> getToApply()
+        {
+            List<String> out = new ArrayList<>(this.added);
+            out.addAll(this.changed);
+
+            return out;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "added " + this.added + ", changed " + this.changed + ", removed " + this.removed
+                + ", unchanged " + this.unchanged + (this.documentUnchanged ? " (document unchanged)" : "");
+        }
+    }
+
+    private final Map<recordType, String> documents = new EnumMap<>(recordType.class);
+    private final Map<recordType, Map<String, Applied>> applied = new EnumMap<>(recordType.class);
+
+    // Whether every record of the last snapshot was applied
+    private final Map<recordType, Boolean> complete = new EnumMap<>(recordType.class);
+
+    /**
+     * Compares a snapshot to what was applied
+     * @param snapshot
+     * @param type
+     * @param present whether the local state a record left is still as it was
+     * @return
+     * @throws Exception
+     */
+    public synchronized ChangeSet diff(CS2Snapshot snapshot, recordType type, Predicate<Applied> present) throws Exception
+    {
+        ChangeSet out = new ChangeSet();
+        Map<String, Applied> last = this.applied.getOrDefault(type, Collections.emptyMap());
+
+        // Same documents, all applied last time, all still there: nothing to parse
+        if (snapshot.getFingerprint(type).equals(this.documents.get(type))
+            && this.complete.getOrDefault(type, false)
+            && last.values().stream().allMatch(a -> a.name == null || present.test(a)))
+        {
+            out.unchanged = last.size();
+            out.documentUnchanged = true;
+
+            return out;
+        }
+
+        Map<String, String> records = snapshot.getRecordFingerprints(type);
+
+        for (Map.Entry<String, String> record : records.entrySet())
+        {
+            Applied a = last.get(record.getKey());
+
+            if (a == null || (a.name != null && !present.test(a)))
+            {
+                out.added.add(record.getKey());
+            }
+            else if (!a.fingerprint.equals(record.getValue()))
+            {
+                out.changed.add(record.getKey());
+            }
+            else
+            {
+                out.unchanged++;
+            }
+        }
+
+        for (String key : last.keySet())
+        {
+            if (!records.containsKey(key))
+            {
+                out.removed.add(key);
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Records the result of applying a change set
+     * @param snapshot
+     * @param type
+     * @param changes the change set that was applied
+     * @param result the local entity each applied record now matches, by key
+     * @param deferred records parsed but deliberately not applied, to be tried again
+     * @throws Exception
+     */
+    public synchronized void commit(CS2Snapshot snapshot, recordType type, ChangeSet changes,
+        Map<String, Applied> result, Collection<String> deferred) throws Exception
+    {
+        if (changes.isDocumentUnchanged())
+        {
+            return;
+        }
+
+        Map<String, Applied> last = this.applied.getOrDefault(type, Collections.emptyMap());
+        Map<String, Applied> next = new LinkedHashMap<>();
+        Set<String> toApply = new HashSet<>(changes.getToApply());
+        boolean all = true;
+
+        for (Map.Entry<String, String> record : snapshot.getRecordFingerprints(type).entrySet())
+        {
+            String key = record.getKey();
+
+            if (!toApply.contains(key) && last.containsKey(key))
+            {
+                next.put(key, last.get(key));
+            }
+            else if (result.containsKey(key))
+            {
+                Applied a = result.get(key);
+                next.put(key, new Applied(record.getValue(), a.name, a.id, a.local));
+            }
+            else if (deferred.contains(key))
+            {
+                all = false;
+            }
+            else
+            {
+                // Did not parse
+                next.put(key, new Applied(record.getValue(), null, null, null));
+            }
+        }
+
+        this.documents.put(type, snapshot.getFingerprint(type));
+        this.applied.put(type, next);
+        this.complete.put(type, all);
+    }
+
+    /**
+     * A record as applied, for commit
+     * @param name
+     * @param id
+     * @param local the local state it left, as the diff's presence check will compute it
+     * @return
+     */
+    public static Applied applied(String name, String id, String local)
+    {
+        return new Applied(null, name, id, local);
+    }
+
+    /**
+     * Forgets everything, so that the next sync applies every record
+     */
+    public synchronized void clear()
+    {
+        this.documents.clear();
+        this.applied.clear();
+        this.complete.clear();
+    }
+}
@@ -1,5 +1,8 @@
 package org.traincontrol.marklin.udp;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
 import org.traincontrol.base.udp.CANMessage;
 import org.traincontrol.util.Conversion;
 
@@ -13,20 +16,29 @@ public class CS2Message extends CANMessage
 
     // The raw 13-byte message sent to/from the Marklin CS2 over the network
     // private byte[] rawMessage;
-    // Message priority as defined in the protocol
-    private Integer priority;
+    // Message priority as defined in the protocol.  These used to be boxed, which allocated an Integer
+    // for every hash above 127 - that is, for every frame sent.
+    private int priority;
     // Command issued
-    private Integer command;
+    private int command;
     // Hash value
-    private Integer hash;
+    private int hash;
     // Response bit
-    private Boolean response;
+    private boolean response;
     // Length of the payload
-    private Integer length;
-    // Data payload
+    private int length;
+    // Data payload.  Null for an encoded frame until asked for, as its payload is in the raw frame.
     private byte[] data;
     // CAN message length
     public static final int MESSAGE_LENGTH = 13;
+    
+    // Encoded frames released for reuse, per thread.  At most this many are kept.
+    private static final int POOL_SIZE = 64;
+    private static final ThreadLocal<ArrayDeque<CS2Message>> pool = ThreadLocal.withInitial(ArrayDeque::new);
+    
+    // Whether this frame came from encode, and whether it has been released since
+    private boolean pooled = false;
+    private boolean released = false;
 
     /* Command constants */
     
@@ -213,6 +225,137 @@ public class CS2Message extends CANMessage
         this.fromCS2Message(0, command, hash, response, data.length, data);
     }
 
+    /**
+     * An empty frame, for the pool
+     */
+    private CS2Message()
+    {
+        this.rawMessage = new byte[MESSAGE_LENGTH];
+        this.pooled = true;
+    }
+    
+    /* Encoding */
+    
+    /**
+     * A frame from the calling thread's pool, with its header written and its payload zeroed
+     *
+     * Commands used to build a payload array, then a message, which copied the payload again into a
+     * new raw frame - three allocations, plus a boxed hash, for every frame sent.  An encoded frame is
+     * written in place, in a raw frame that is reused once the frame is released: the hot command paths
+     * allocate nothing per frame.
+     *
+     * The frame must be released once sent, and not used after that.  A frame that is kept - queued,
+     * or handed to code that may hold on to it - should be constructed instead.
+     *
+     * @param priority
+     * @param command
+     * @param hash
+     * @param response
+     * @param length payload length, up to 8
+     * @return 
+     */
+    public static CS2Message encode(int priority, int command, int hash, boolean response, int length)
+    {
+        CS2Message m = pool.get().pollFirst();
+        
+        if (m == null)
+        {
+            m = new CS2Message();
+        }
+        
+        byte[] raw = m.rawMessage;
+        
+        raw[0] = (byte) ((priority << 4) | ((command >> 7) & 0x01));
+        raw[1] = (byte) ((command << 1) | (response ? 1 : 0));
+        raw[2] = (byte) (hash >> 8);
+        raw[3] = (byte) hash;
+        raw[4] = (byte) length;
+        
+        Arrays.fill(raw, 5, MESSAGE_LENGTH, (byte) 0);
+        
+        m.priority = priority;
+        m.command = command;
+        m.hash = hash & 0xFFFF;
+        m.response = response;
+        m.length = length;
+        m.data = null;
+        m.released = false;
+        
+        return m;
+    }
+    
+    /**
+     * A frame from the calling thread's pool, as the simplified constructor would build it: priority 0,
+     * no response bit, v2 protocol hash
+     * @param command
+     * @param length payload length, up to 8
+     * @return 
+     */
+    public static CS2Message encode(int command, int length)
+    {
+        return encode(0, command, CS2Message.CS2_PROTOCOL_V2, false, length);
+    }
+    
+    /**
+     * Writes a UID into the first four payload bytes, high-order first
+     * @param uid
+     * @return 
+     */
+    public CS2Message putUID(int uid)
+    {
+        return this.put(0, uid >> 24).put(1, uid >> 16).put(2, uid >> 8).put(3, uid);
+    }
+    
+    /**
+     * Writes one payload byte
+     * @param index 0 to 7
+     * @param value its low byte is written
+     * @return 
+     */
+    public CS2Message put(int index, int value)
+    {
+        this.rawMessage[5 + index] = (byte) value;
+        
+        if (this.data != null)
+        {
+            this.data[index] = (byte) value;
+        }
+        
+        return this;
+    }
+    
+    /**
+     * Returns an encoded frame to the calling thread's pool.  Does nothing for a constructed message, or
+     * one already released.
+     */
+    public void release()
+    {
+        if (this.pooled && !this.released)
+        {
+            this.released = true;
+            this.data = null;
+            
+            ArrayDeque<CS2Message> free = pool.get();
+            
+            if (free.size() < POOL_SIZE)
+            {
+                free.addFirst(this);
+            }
+        }
+    }
+    
+    /**
+     * Releases every frame in a batch
+     * @param batch 
+     */
+    public static void release(List<CS2Message> batch)
+    {
+        for (int i = 0; i < batch.size(); i++)
+        {
+            batch.get(i).release();
+        }
+    }
+
     /* Private methods */
     
     /**
@@ -276,18 +419,18 @@ public class CS2Message extends CANMessage
      */
     public boolean equals(CS2Message c)
     {
-        if (!c.getResponse().equals(this.response)
-                || !c.getHash().equals(this.hash)
-                || !c.getLength().equals(this.length)
-                || !c.getPriority().equals(this.priority)
-                || !c.getCommand().equals(this.command))
+        if (c.getResponse() != this.response
+                || c.getHash() != this.hash
+                || c.getLength() != this.length
+                || c.getPriority() != this.priority
+                || c.getCommand() != this.command)
         {
             return false;
         }
 
         for (int i = 0; i < this.length; i++)
         {
-            if (this.data[i] != c.getData()[i])
+            if (this.getDataByte(i) != c.getDataByte(i))
             {
                 return false;
             }
@@ -400,12 +543,8 @@ public class CS2Message extends CANMessage
      */
     public int extractUID()
     {
-        return CS2Message.mergeBytes(
-            new byte[]
-            {
-                this.getData()[0], this.getData()[1], 
-                this.getData()[2], this.getData()[3]
-            });
+        return (this.getDataByte(0) & 0xFF) << 24 | (this.getDataByte(1) & 0xFF) << 16
+            | (this.getDataByte(2) & 0xFF) << 8 | (this.getDataByte(3) & 0xFF);
     }
 
     /**
@@ -415,11 +554,7 @@ public class CS2Message extends CANMessage
      */
     public int extractShortUID()
     {
-        return CS2Message.mergeBytes(
-            new byte[]
-            {
-                this.getData()[2], this.getData()[3]
-            });
+        return (this.getDataByte(2) & 0xFF) << 8 | (this.getDataByte(3) & 0xFF);
     }
     
     /**
@@ -429,16 +564,12 @@ public class CS2Message extends CANMessage
     public int getSubCommand()
     {
         // The sub command is data[4], so five bytes are needed - not four
-        if (this.data.length < 5)
+        if ((this.data != null ? this.data.length : this.length) < 5)
         {
             return -1;
         }
 
-        return CS2Message.mergeBytes(
-            new byte[]
-            {
-                this.getData()[4]
-            });
+        return this.getDataByte(4) & 0xFF;
     }
     
     /**
@@ -472,13 +603,13 @@ public class CS2Message extends CANMessage
             type = "System";
         }
 
-        s += "\nPriority: " + this.priority.toString() + "\n";
+        s += "\nPriority: " + this.priority + "\n";
         s += "Command: " + Conversion.intToHex(this.command) + "\n";
         s += "Type: " + type + "\n";
         s += "Response: " + (this.response == true ? "Yes" : "No") + "\n";
         s += "Hash: " + this.hash + "\n";
         s += "Length: " + this.length + "\n";     
-        s += "Data:   " + Conversion.bytesToHex(this.data) + "\n";
+        s += "Data:   " + Conversion.bytesToHex(this.getData()) + "\n";
         s += "Header: " + Conversion.bytesToHex(new byte[]{
             this.rawMessage[0],
             this.rawMessage[1],
@@ -499,7 +630,7 @@ public class CS2Message extends CANMessage
      *
      * @return
      */
-    public Integer getPriority()
+    public int getPriority()
     {
         return priority;
     }
@@ -509,7 +640,7 @@ public class CS2Message extends CANMessage
      *
      * @return
      */
-    public Integer getCommand()
+    public int getCommand()
     {
         return command;
     }
@@ -519,7 +650,7 @@ public class CS2Message extends CANMessage
      *
      * @return
      */
-    public Integer getHash()
+    public int getHash()
     {
         return hash;
     }
@@ -529,7 +660,7 @@ public class CS2Message extends CANMessage
      *
      * @return
      */
-    public Boolean getResponse()
+    public boolean getResponse()
     {
         return response;
     }
@@ -539,7 +670,7 @@ public class CS2Message extends CANMessage
      *
      * @return
      */
-    public Integer getLength()
+    public int getLength()
     {
         return length;
     }
@@ -551,6 +682,22 @@ public class CS2Message extends CANMessage
      */
     public byte[] getData()
     {
+        if (this.data == null)
+        {
+            this.data = Arrays.copyOfRange(this.rawMessage, 5, 5 + this.length);
+        }
+        
         return data;
     }
+    
+    /**
+     * Get one data byte, without copying the payload as getData does for an encoded frame
+     *
+     * @param index
+     * @return
+     */
+    public byte getDataByte(int index)
+    {
+        return this.data != null ? this.data[index] : this.rawMessage[5 + index];
+    }
 }
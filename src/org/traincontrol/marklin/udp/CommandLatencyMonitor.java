@@ -0,0 +1,295 @@
+package org.traincontrol.marklin.udp;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.traincontrol.marklin.MarklinAccessory;
+import org.traincontrol.marklin.MarklinLocomotive;
+import org.traincontrol.util.LatencyHistogram;
+
+/**
+ * Measures command round-trip latency by matching each outbound command to its Central Station echo.
+ *
+ * The CS answers every locomotive, accessory and system command with the same frame and the response
+ * bit set.  sent() stamps the outbound frame into a fixed-size table keyed by command, UID and (where
+ * the CS echoes it) the sub-command or function number; echoed() looks the response up and records
+ * the elapsed time, once per command type and once per decoder protocol.
+ *
+ * Everything here is lock-free and allocates nothing per frame, since both halves run on the network
+ * paths.  The pending table is direct-mapped: if two outstanding commands hash to the same slot the
+ * later one wins and the earlier goes unmeasured.  That costs a sample, never a wrong one, because the
+ * full key is compared before a match counts.
+ *
+ * @author Adam
+ */
+public class CommandLatencyMonitor
+{
+    // Kinds of command that are timed
+    public static enum commandType {LOCO_SPEED, LOCO_DIRECTION, LOCO_FUNCTION, LOCO_STOP, ACCESSORY, SYSTEM, PING};
+
+    // Protocols commands are grouped by
+    public static enum protocolType {MM2, MFX, DCC, MULTI_UNIT, MM2_ACCESSORY, DCC_ACCESSORY, CENTRAL_STATION};
+
+    // Outstanding commands.  Must be a power of two.
+    private static final int PENDING_SLOTS = 256;
+
+    // An echo arriving later than this is not counted as one - the command was most likely lost and
+    // this is the answer to a later, identical one sent from the Central Station itself
+    public static final long MAX_PENDING_NANOS = 10_000_000_000L;
+
+    // Marks a key slot as holding something, so that the all-zero STOP command is still a valid key
+    private static final long KEY_PRESENT = 1L << 62;
+
+    private final AtomicLongArray pendingKeys = new AtomicLongArray(PENDING_SLOTS);
+    private final AtomicLongArray pendingTimes = new AtomicLongArray(PENDING_SLOTS);
+
+    private final EnumMap<commandType, LatencyHistogram> byCommand = new EnumMap<>(commandType.class);
+    private final EnumMap<protocolType, LatencyHistogram> byProtocol = new EnumMap<>(protocolType.class);
+
+    // Commands sent that were never matched to an echo (overwritten in the table or expired)
+    private final AtomicLong unmatched = new AtomicLong();
+
+    /**
+     * Constructor
+     */
+    public CommandLatencyMonitor()
+    {
+        for (commandType t : commandType.values())
+        {
+            this.byCommand.put(t, new LatencyHistogram());
+        }
+
+        for (protocolType p : protocolType.values())
+        {
+            this.byProtocol.put(p, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Classifies a frame, or returns null if it is not one we time
+     * @param m
+     * @return
+     */
+    static commandType classify(CS2Message m)
+    {
+        int command = m.getCommand();
+
+        if (command == CS2Message.CMD_LOCO_VELOCITY) return commandType.LOCO_SPEED;
+        if (command == CS2Message.CMD_LOCO_DIRECTION) return commandType.LOCO_DIRECTION;
+        if (command == CS2Message.CMD_LOCO_FUNCTION) return commandType.LOCO_FUNCTION;
+        if (command == CS2Message.CMD_ACC_SWITCH) return commandType.ACCESSORY;
+        if (command == CS2Message.CAN_CMD_PING) return commandType.PING;
+
+        if (command == CS2Message.CMD_SYSTEM && m.getLength() >= 5)
+        {
+            return m.getSubCommand() == CS2Message.CMD_SYSSUB_TRAINSTOP ? commandType.LOCO_STOP : commandType.SYSTEM;
+        }
+
+        return null;
+    }
+
+    /**
+     * Works out which protocol a frame addresses
+     * @param type
+     * @param uid
+     * @return
+     */
+    static protocolType protocolOf(commandType type, int uid)
+    {
+        switch (type)
+        {
+            case ACCESSORY:
+                return uid >= MarklinAccessory.DCC_BASE ? protocolType.DCC_ACCESSORY : protocolType.MM2_ACCESSORY;
+            case SYSTEM:
+            case PING:
+                return protocolType.CENTRAL_STATION;
+            default:
+                // Same ordering as MarklinLocomotive.addressFromUID - highest base first
+                if (uid > MarklinLocomotive.DCC_BASE) return protocolType.DCC;
+                if (uid > MarklinLocomotive.MFX_BASE) return protocolType.MFX;
+                if (uid > MarklinLocomotive.MULTI_UNIT_BASE) return protocolType.MULTI_UNIT;
+                return protocolType.MM2;
+        }
+    }
+
+    /**
+     * Builds the key a command and its echo share
+     * @param type
+     * @param m
+     * @return
+     */
+    private static long keyOf(commandType type, CS2Message m)
+    {
+        int detail = 0;
+
+        // A ping goes out without a UID and comes back carrying the responder's, so only the first
+        // answer to it - whoever sends it - can be matched
+        int uid = (type != commandType.PING && m.getLength() >= 4) ? m.extractUID() : 0;
+
+        // The function number and the system sub-command are echoed back, so they tell apart commands
+        // to one UID that are in flight together.  Speed and direction are not: the latest one wins.
+        if ((type == commandType.LOCO_FUNCTION || type == commandType.SYSTEM || type == commandType.LOCO_STOP) && m.getLength() >= 5)
+        {
+            detail = m.getDataByte(4) & 0xFF;
+        }
+
+        return KEY_PRESENT | ((long) (m.getCommand() & 0xFF) << 40) | ((long) detail << 32) | (uid & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Table slot for a key
+     * @param key
+     * @return
+     */
+    private static int slotOf(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 56) & (PENDING_SLOTS - 1);
+    }
+
+    /**
+     * Notes that a command has been transmitted
+     * @param m
+     */
+    public void sent(CS2Message m)
+    {
+        this.sent(m, System.nanoTime());
+    }
+
+    /**
+     * Notes that a command was transmitted at the given time
+     * @param m
+     * @param nanoTime
+     */
+    public void sent(CS2Message m, long nanoTime)
+    {
+        if (m.getResponse()) return;
+
+        commandType type = classify(m);
+
+        if (type == null) return;
+
+        long key = keyOf(type, m);
+        int slot = slotOf(key);
+
+        // Time first, key second: echoed() reads the key first, so a matching key guarantees the time
+        // it then reads belongs to this command or a newer identical one
+        this.pendingTimes.set(slot, nanoTime);
+
+        long previous = this.pendingKeys.getAndSet(slot, key);
+
+        if (previous != 0 && previous != key)
+        {
+            this.unmatched.incrementAndGet();
+        }
+    }
+
+    /**
+     * Matches a response frame to its command and records the latency
+     * @param m
+     * @return the latency in nanoseconds, or -1 if the frame answered nothing we sent
+     */
+    public long echoed(CS2Message m)
+    {
+        return this.echoed(m, System.nanoTime());
+    }
+
+    /**
+     * Matches a response frame received at the given time
+     * @param m
+     * @param nanoTime
+     * @return the latency in nanoseconds, or -1 if the frame answered nothing we sent
+     */
+    public long echoed(CS2Message m, long nanoTime)
+    {
+        if (!m.getResponse()) return -1;
+
+        commandType type = classify(m);
+
+        if (type == null) return -1;
+
+        long key = keyOf(type, m);
+        int slot = slotOf(key);
+
+        // Claimed with a CAS so that the CS3's duplicate echo, or an echo racing a resend, is only
+        // counted once
+        if (this.pendingKeys.get(slot) != key)
+        {
+            return -1;
+        }
+
+        long start = this.pendingTimes.get(slot);
+
+        if (!this.pendingKeys.compareAndSet(slot, key, 0))
+        {
+            return -1;
+        }
+
+        long elapsed = nanoTime - start;
+
+        if (elapsed < 0 || elapsed > MAX_PENDING_NANOS)
+        {
+            this.unmatched.incrementAndGet();
+            return -1;
+        }
+
+        this.byCommand.get(type).record(elapsed);
+        this.byProtocol.get(protocolOf(type, (int) key)).record(elapsed);
+
+        return elapsed;
+    }
+
+    /**
+     * Gets the histogram for one command type
+     * @param type
+     * @return
+     */
+    public LatencyHistogram getHistogram(commandType type)
+    {
+        return this.byCommand.get(type);
+    }
+
+    /**
+     * Gets the histogram for one protocol
+     * @param protocol
+     * @return
+     */
+    public LatencyHistogram getHistogram(protocolType protocol)
+    {
+        return this.byProtocol.get(protocol);
+    }
+
+    /**
+     * Snapshots every command type and protocol that has seen traffic, command types first
+     * @return
+     */
+    public Map<String, LatencyHistogram.Snapshot> getSnapshots()
+    {
+        Map<String, LatencyHistogram.Snapshot> out = new LinkedHashMap<>();
+
+        for (Map.Entry<commandType, LatencyHistogram> e : this.byCommand.entrySet())
+        {
+            LatencyHistogram.Snapshot s = e.getValue().getSnapshot();
+            if (s.getLifetimeCount() > 0) out.put(e.getKey().name(), s);
+        }
+
+        for (Map.Entry<protocolType, LatencyHistogram> e : this.byProtocol.entrySet())
+        {
+            LatencyHistogram.Snapshot s = e.getValue().getSnapshot();
+            if (s.getLifetimeCount() > 0) out.put(e.getKey().name(), s);
+        }
+
+        return out;
+    }
+
+    /**
+     * Number of commands that were never matched to an echo
+     * @return
+     */
+    public long getUnmatchedCount()
+    {
+        return this.unmatched.get();
+    }
+}
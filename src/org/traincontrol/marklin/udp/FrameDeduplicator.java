@@ -0,0 +1,209 @@
+package org.traincontrol.marklin.udp;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Drops CAN frames that repeat one seen a moment earlier.
+ *
+ * The CS3 sends most of its response frames twice.  Each frame's bytes are hashed into a small table
+ * of recently seen frames, and a frame whose hash is already there - and was recorded within the
+ * window for its command class - is reported as a duplicate.  Because the table remembers several
+ * frames rather than only the last one, interleaved repeats (A, B, A', B') are caught as well.
+ *
+ * Lock-free: each table slot is a single long holding a hash tag and a timestamp, updated by CAS, so
+ * the network reader never waits on anything else.
+ *
+ * @author Adam
+ */
+public class FrameDeduplicator
+{
+    /**
+     * The command classes that can be given their own window
+     */
+    public enum frameClass {ACCESSORY, LOCOMOTIVE, FEEDBACK, SYSTEM, OTHER}
+
+    // Default window for the classes the CS3 repeats.  Its second copy follows within a few ms.
+    public static final int DEFAULT_WINDOW_MS = 50;
+
+    // Slots are searched in groups of this many, so a few frames hashing alike do not evict each other
+    private static final int BUCKET_SIZE = 4;
+
+    // Total slots - comfortably more than the frames that can arrive within one window
+    private static final int TABLE_SIZE = 256;
+
+    // Upper 32 bits: hash tag (never 0, which marks an empty slot).  Lower 32 bits: time in ms.
+    private final AtomicLongArray slots = new AtomicLongArray(TABLE_SIZE);
+
+    // Per class: window in ms, 0 = never deduplicated
+    private final AtomicIntegerArray windows = new AtomicIntegerArray(frameClass.values().length);
+
+    // Per class: duplicates dropped
+    private final AtomicLongArray dropped = new AtomicLongArray(frameClass.values().length);
+
+    /**
+     * Constructor.  Accessory, locomotive and feedback frames are deduplicated; system and other
+     * frames, which the CS3 does not repeat and which may legitimately repeat, are not.
+     */
+    public FrameDeduplicator()
+    {
+        this.setWindow(frameClass.ACCESSORY, DEFAULT_WINDOW_MS);
+        this.setWindow(frameClass.LOCOMOTIVE, DEFAULT_WINDOW_MS);
+        this.setWindow(frameClass.FEEDBACK, DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * Sets how long after a frame an identical one counts as its duplicate
+     * @param c
+     * @param windowMs 0 to never drop frames of this class
+     */
+    public final void setWindow(frameClass c, int windowMs)
+    {
+        if (windowMs < 0)
+        {
+            throw new IllegalArgumentException("Window cannot be negative");
+        }
+
+        this.windows.set(c.ordinal(), windowMs);
+    }
+
+    /**
+     * The window for a command class, in ms
+     * @param c
+     * @return
+     */
+    public int getWindow(frameClass c)
+    {
+        return this.windows.get(c.ordinal());
+    }
+
+    /**
+     * The class a frame's window is taken from
+     * @param m
+     * @return
+     */
+    public static frameClass classOf(CS2Message m)
+    {
+        if (m.isAccessoryCommand()) return frameClass.ACCESSORY;
+        if (m.isLocCommand()) return frameClass.LOCOMOTIVE;
+        if (m.isFeedbackCommand()) return frameClass.FEEDBACK;
+        if (m.isSysCommand()) return frameClass.SYSTEM;
+        return frameClass.OTHER;
+    }
+
+    /**
+     * Checks a frame against those recently seen, and records it
+     * @param m
+     * @return true if the frame is a duplicate and should be dropped
+     */
+    public boolean isDuplicate(CS2Message m)
+    {
+        return this.isDuplicate(m, System.nanoTime() / 1000000);
+    }
+
+    /**
+     * Checks a frame against those recently seen, and records it
+     * @param m
+     * @param nowMillis a monotonic clock in ms
+     * @return true if the frame is a duplicate and should be dropped
+     */
+    public boolean isDuplicate(CS2Message m, long nowMillis)
+    {
+        frameClass c = classOf(m);
+        int window = this.windows.get(c.ordinal());
+
+        if (window == 0)
+        {
+            return false;
+        }
+
+        long h = hash(m);
+        long tag = (h >>> 32) | 1;
+        int now = (int) nowMillis;
+        int base = (int) h & (TABLE_SIZE - 1) & ~(BUCKET_SIZE - 1);
+        long entry = (tag << 32) | (now & 0xFFFFFFFFL);
+
+        while (true)
+        {
+            int victim = base;
+            long victimValue = 0;
+            long victimAge = -1;
+
+            for (int i = base; i < base + BUCKET_SIZE; i++)
+            {
+                long v = this.slots.get(i);
+
+                // Elapsed time in int arithmetic, so the clock wrapping after 49 days does no harm
+                long age = v == 0 ? Long.MAX_VALUE : (now - (int) v) & 0xFFFFFFFFL;
+
+                if (v != 0 && (v >>> 32) == tag && age <= window)
+                {
+                    this.dropped.incrementAndGet(c.ordinal());
+                    return true;
+                }
+
+                // Replace the empty or oldest slot
+                if (age > victimAge)
+                {
+                    victim = i;
+                    victimValue = v;
+                    victimAge = age;
+                }
+            }
+
+            // If another thread changed the slot in the meantime, it may have just recorded this very
+            // frame - so look again rather than overwrite
+            if (this.slots.compareAndSet(victim, victimValue, entry))
+            {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the frame header and the payload bytes in use
+     * @param m
+     * @return
+     */
+    private static long hash(CS2Message m)
+    {
+        byte[] raw = m.getRawMessage();
+        int len = Math.min(raw.length, 5 + (raw.length > 4 ? raw[4] & 0x0F : 0));
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < len; i++)
+        {
+            h ^= raw[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+
+        // FNV's low bits are weak for short inputs; fold the high half in before they pick the bucket
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * Duplicates dropped for one command class
+     * @param c
+     * @return
+     */
+    public long getDroppedCount(frameClass c)
+    {
+        return this.dropped.get(c.ordinal());
+    }
+
+    /**
+     * Duplicates dropped in total
+     * @return
+     */
+    public long getDroppedCount()
+    {
+        long total = 0;
+
+        for (frameClass c : frameClass.values())
+        {
+            total += this.dropped.get(c.ordinal());
+        }
+
+        return total;
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.List;
 import org.traincontrol.base.udp.CANMessage;
 import org.traincontrol.model.ModelListener;
 
@@ -29,6 +30,9 @@ public class NetworkProxy
     
     // Model listener class reference
     private ModelListener model;
+    
+    // Reused for every frame sent, under this object's lock: a packet used to be allocated per frame
+    private final DatagramPacket packet;
 
     /**
      * Constructor
@@ -42,6 +46,7 @@ public class NetworkProxy
         this.socket = new DatagramSocket(NetworkProxy.RX_PORT);
         this.transmitIP = transmitIP;
         this.transmitPort = NetworkProxy.TX_PORT;       
+        this.packet = new DatagramPacket(new byte[0], 0, transmitIP, this.transmitPort);
     }
     
     /**
@@ -88,6 +93,23 @@ public class NetworkProxy
     	return this.sendMessage(m.getRawMessage());
     }
    
+    /**
+     * Sends messages back to back; no other message is sent between them
+     * @param messages
+     * @return true if all were sent
+     */
+    synchronized public boolean sendMessages(List<? extends CANMessage> messages)
+    {
+        boolean sent = true;
+
+        for (CANMessage m : messages)
+        {
+            sent &= this.sendMessage(m.getRawMessage());
+        }
+
+        return sent;
+    }
+   
     // Private methods
         
     /**
@@ -98,9 +120,8 @@ public class NetworkProxy
      */
     synchronized private boolean sendMessage(byte[] message)
     {    	
-	// Generate a packet containing the message
-    	DatagramPacket packet = new DatagramPacket(message, message.length, 
-            transmitIP, transmitPort);
+	// Point the packet at the message
+    	this.packet.setData(message, 0, message.length);
         
     	// Transmit
         try
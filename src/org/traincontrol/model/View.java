@@ -15,7 +15,7 @@ public interface View
      * Regenerates locomotive display after a change occurred
      */
     public void repaintLoc();
-    public void repaintLoc(boolean force, List<Locomotive> locs);
+    public void repaintLoc(boolean force, List<? extends Locomotive> locs);
 
     /**
      * Regenerates a switch display
@@ -7,15 +7,18 @@ import java.util.Set;
 import java.util.TreeMap;
 import org.traincontrol.automation.Layout;
 import org.traincontrol.base.Accessory;
+import org.traincontrol.base.EventHub;
 import org.traincontrol.base.Feedback;
 import org.traincontrol.base.Locomotive;
 import org.traincontrol.base.Locomotive.decoderType;
+import org.traincontrol.base.LocomotiveCatalog;
 import org.traincontrol.base.NodeExpression;
 import org.traincontrol.base.RenameProposals;
 import org.traincontrol.base.RouteCommand;
 import org.traincontrol.base.LayoutDiagram;
 import org.traincontrol.base.Route;
 import org.traincontrol.base.udp.CANMessage;
+import org.traincontrol.util.LatencyHistogram;
 
 /**
  * Model functionality in the eyes of the GUI
@@ -57,11 +60,13 @@ public interface ViewListener
     public void lightsOn(List<String> locomotives);
     public void log(String s);
     public void log(Exception e);
+    public EventHub getEvents();
     public void stopAllLocs();
     public int syncWithCS2();
     public List<String> getLayoutList();
     public LayoutDiagram getLayout(String name);
     public void syncLocomotive(String name);
+    public void syncLocomotives(List<String> names);
     public boolean isFeedbackSet(String name);
     public boolean getFeedbackState(String name);
     public boolean setFeedbackState(String name, boolean state); // for simulation purposes
@@ -99,9 +104,39 @@ public interface ViewListener
     public String exportRoutes() throws IllegalArgumentException, IllegalAccessException, NoSuchFieldException, Exception;
     public void importRoutes(String json);
     public List<Locomotive> getLocomotives();
+    
+    /**
+     * Search index over the locomotive database, up to date as of this call
+     * @return
+     */
+    public LocomotiveCatalog getLocomotiveCatalog();
     public void changeLocAddress(String locName, int newAddress, decoderType newDecoderType) throws Exception;
     public void sendPing(boolean force);
     public long getTimeSinceLastPing();
+
+    /**
+     * Command round-trip latency over the last minute, keyed by command type and then by protocol
+     * @return
+     */
+    public Map<String, LatencyHistogram.Snapshot> getCommandLatencyStats();
+
+    /**
+     * Accessory command round-trip latency over the last minute
+     * @return
+     */
+    public LatencyHistogram.Snapshot getAccessoryLatencyStats();
+
+    /**
+     * Accessories whose decoders confirm slowly or time out often, worst first
+     * @return
+     */
+    public List<Accessory> getSlowAccessories();
+    
+    /**
+     * Repeated Central Station frames dropped as duplicates so far
+     * @return
+     */
+    public long getNumDuplicateMessagesDropped();
     public TreeMap<String, Long> getDailyRuntimeStats(int days, long offset);
     public TreeMap<String, Integer> getDailyCountStats(int days, long offset);
     public int getTotalLocStats(int days, long offset);
@@ -0,0 +1,277 @@
+package org.traincontrol.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks after a delay, from one timer thread, however many are waiting.
+ *
+ * Timeouts are hashed into a ring of buckets by the tick they are due on; a single thread advances
+ * around the ring and hands whatever has come due to an executor.  Scheduling and cancelling are
+ * constant time, and a thousand pending timeouts cost a thousand small objects rather than a thousand
+ * sleeping threads.  The price is resolution: a task runs on the first tick at or after its deadline,
+ * so up to one tick late.
+ *
+ * The timer thread is started on first use and is a daemon.  It parks while nothing is pending rather
+ * than ticking an empty wheel.
+ *
+ * @author Adam
+ */
+public class HashedTimerWheel
+{
+    public static final int DEFAULT_TICK_MS = 5;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private final String name;
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] buckets;
+    private final int mask;
+    private final Executor executor;
+
+    // Added from any thread; moved into the buckets by the timer thread on its next tick
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+
+    // Scheduled, and neither run nor cancelled yet
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final long startNanos = System.nanoTime();
+    private volatile Thread worker;
+    private volatile boolean shutdown = false;
+
+    /**
+     * A scheduled task, which can be cancelled until it has started
+     */
+    public final class Timeout
+    {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadlineNanos)
+        {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Stops the task from running
+         * @return false if it had already been handed to the executor, or was already cancelled
+         */
+        public boolean cancel()
+        {
+            if (!this.state.compareAndSet(PENDING, CANCELLED)) return false;
+
+            HashedTimerWheel.this.pending.decrementAndGet();
+
+            return true;
+        }
+
+        public boolean isCancelled()
+        {
+            return this.state.get() == CANCELLED;
+        }
+
+        public boolean isExpired()
+        {
+            return this.state.get() == EXPIRED;
+        }
+
+        /**
+         * When the task is due, on the System.nanoTime clock
+         * @return
+         */
+        public long getDeadlineNanos()
+        {
+            return this.deadlineNanos;
+        }
+    }
+
+    /**
+     * Constructor with the default resolution
+     * @param name timer thread name
+     * @param executor runs the tasks as they come due
+     */
+    public HashedTimerWheel(String name, Executor executor)
+    {
+        this(name, DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE, executor);
+    }
+
+    /**
+     * Constructor
+     * @param name timer thread name
+     * @param tickMs resolution
+     * @param wheelSize buckets, rounded up to a power of two
+     * @param executor runs the tasks as they come due
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimerWheel(String name, int tickMs, int wheelSize, Executor executor)
+    {
+        if (tickMs < 1 || wheelSize < 1)
+        {
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        }
+
+        int size = Integer.highestOneBit(wheelSize);
+
+        if (size < wheelSize) size <<= 1;
+
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.buckets = (ArrayDeque<Timeout>[]) new ArrayDeque<?>[size];
+        this.mask = size - 1;
+        this.executor = executor;
+
+        for (int i = 0; i < size; i++)
+        {
+            this.buckets[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Runs a task after a delay
+     * @param task
+     * @param delayMs
+     * @return a handle to cancel it with
+     */
+    public Timeout schedule(Runnable task, long delayMs)
+    {
+        if (this.shutdown)
+        {
+            throw new IllegalStateException("Timer " + this.name + " has been shut down");
+        }
+
+        Timeout t = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs)));
+
+        this.pending.incrementAndGet();
+        this.incoming.add(t);
+        this.start();
+
+        LockSupport.unpark(this.worker);
+
+        return t;
+    }
+
+    /**
+     * Stops the timer thread.  Pending tasks never run.
+     */
+    public void shutdown()
+    {
+        this.shutdown = true;
+
+        Thread t = this.worker;
+
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    private synchronized void start()
+    {
+        if (this.worker != null) return;
+
+        this.worker = new Thread(this::run, this.name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    private void run()
+    {
+        long tick = 0;
+
+        while (!this.shutdown)
+        {
+            // Idle: wait for schedule() rather than ticking through empty buckets, then carry on from
+            // the tick that is current now.  Anything still in a bucket is cancelled, so the skipped
+            // ticks had nothing to do.
+            if (this.pending.get() == 0)
+            {
+                LockSupport.park(this);
+                tick = Math.max(tick, (System.nanoTime() - this.startNanos) / this.tickNanos);
+                continue;
+            }
+
+            // Sleep to the end of this tick, measured from the start rather than from the last wakeup,
+            // so that time spent below does not accumulate as drift
+            long tickEnd = this.startNanos + (tick + 1) * this.tickNanos;
+            long wait;
+
+            while ((wait = tickEnd - System.nanoTime()) > 0 && !this.shutdown)
+            {
+                LockSupport.parkNanos(wait);
+            }
+
+            this.transferIncoming(tick);
+            this.expire(this.buckets[(int) (tick & this.mask)], tickEnd);
+
+            tick++;
+        }
+    }
+
+    /**
+     * Places newly scheduled timeouts in the bucket for the tick they are due on
+     */
+    private void transferIncoming(long tick)
+    {
+        Timeout t;
+
+        while ((t = this.incoming.poll()) != null)
+        {
+            if (t.isCancelled()) continue;
+
+            long due = (t.deadlineNanos - this.startNanos + this.tickNanos - 1) / this.tickNanos - 1;
+
+            // Already overdue: the bucket being expired right now
+            long ticks = Math.max(due, tick);
+
+            t.remainingRounds = (ticks - tick) / this.buckets.length;
+            this.buckets[(int) (ticks & this.mask)].add(t);
+        }
+    }
+
+    /**
+     * Hands every timeout in a bucket that is due this round to the executor
+     */
+    private void expire(ArrayDeque<Timeout> bucket, long tickEnd)
+    {
+        for (Iterator<Timeout> it = bucket.iterator(); it.hasNext();)
+        {
+            Timeout t = it.next();
+
+            if (t.isCancelled())
+            {
+                it.remove();
+            }
+            else if (t.remainingRounds <= 0 && t.deadlineNanos <= tickEnd)
+            {
+                it.remove();
+
+                if (t.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED))
+                {
+                    this.pending.decrementAndGet();
+                    this.executor.execute(t.task);
+                }
+            }
+            else
+            {
+                t.remainingRounds--;
+            }
+        }
+    }
+
+    /**
+     * Timeouts scheduled and not yet run or cancelled
+     * @return
+     */
+    public int getPendingCount()
+    {
+        return this.pending.get();
+    }
+}
@@ -0,0 +1,218 @@
+package org.traincontrol.util;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One decoded image and its mip levels: the source, then copies of it halved again and again, each
+ * level averaged down from the one above it.
+ *
+ * A size is served from the smallest level at least that large, with one final bilinear resample.
+ * That resample never shrinks by more than half, so it is cheap and does not alias the way scaling a
+ * large image straight down to a small one does.  Sizes above the source are scaled up from it.
+ *
+ * Levels are shared by every caller and must not be drawn on.  What getScaled returns is a level
+ * itself when the size matches one exactly.
+ *
+ * @author Adam
+ */
+public final class ImagePyramid
+{
+    private final List<BufferedImage> levels;
+    private final long bytes;
+
+    /**
+     * @param source decoded image, in any format
+     */
+    public ImagePyramid(Image source)
+    {
+        List<BufferedImage> out = new ArrayList<>();
+
+        BufferedImage level = toARGB(source);
+        out.add(level);
+
+        while (level.getWidth() >= 2 && level.getHeight() >= 2)
+        {
+            level = halve(level);
+            out.add(level);
+        }
+
+        long total = 0;
+
+        for (BufferedImage l : out)
+        {
+            total += 4L * l.getWidth() * l.getHeight();
+        }
+
+        this.levels = Collections.unmodifiableList(out);
+        this.bytes = total;
+    }
+
+    private static BufferedImage toARGB(Image img)
+    {
+        if (img instanceof BufferedImage && ((BufferedImage) img).getType() == BufferedImage.TYPE_INT_ARGB)
+        {
+            return (BufferedImage) img;
+        }
+
+        BufferedImage out = new BufferedImage(img.getWidth(null), img.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+
+        Graphics2D g = out.createGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+
+        return out;
+    }
+
+    /**
+     * Averages each 2x2 block into one pixel, weighting colour by alpha so that transparent pixels do
+     * not darken the edges.  An odd last row or column is averaged with itself.
+     * @param in
+     * @return
+     */
+    static BufferedImage halve(BufferedImage in)
+    {
+        int w = in.getWidth();
+        int h = in.getHeight();
+        int nw = Math.max(1, w / 2);
+        int nh = Math.max(1, h / 2);
+
+        int[] src = in.getRGB(0, 0, w, h, null, 0, w);
+        int[] dst = new int[nw * nh];
+
+        for (int y = 0; y < nh; y++)
+        {
+            int y0 = Math.min(2 * y, h - 1) * w;
+            int y1 = Math.min(2 * y + 1, h - 1) * w;
+
+            for (int x = 0; x < nw; x++)
+            {
+                int x0 = Math.min(2 * x, w - 1);
+                int x1 = Math.min(2 * x + 1, w - 1);
+
+                int p00 = src[y0 + x0];
+                int p01 = src[y0 + x1];
+                int p10 = src[y1 + x0];
+                int p11 = src[y1 + x1];
+
+                int a00 = p00 >>> 24;
+                int a01 = p01 >>> 24;
+                int a10 = p10 >>> 24;
+                int a11 = p11 >>> 24;
+                int a = a00 + a01 + a10 + a11;
+
+                if (a == 0)
+                {
+                    continue;
+                }
+
+                int r = (((p00 >> 16) & 0xFF) * a00 + ((p01 >> 16) & 0xFF) * a01
+                    + ((p10 >> 16) & 0xFF) * a10 + ((p11 >> 16) & 0xFF) * a11 + a / 2) / a;
+                int g = (((p00 >> 8) & 0xFF) * a00 + ((p01 >> 8) & 0xFF) * a01
+                    + ((p10 >> 8) & 0xFF) * a10 + ((p11 >> 8) & 0xFF) * a11 + a / 2) / a;
+                int b = ((p00 & 0xFF) * a00 + (p01 & 0xFF) * a01
+                    + (p10 & 0xFF) * a10 + (p11 & 0xFF) * a11 + a / 2) / a;
+
+                dst[y * nw + x] = ((a + 2) / 4) << 24 | r << 16 | g << 8 | b;
+            }
+        }
+
+        BufferedImage out = new BufferedImage(nw, nh, BufferedImage.TYPE_INT_ARGB);
+        out.setRGB(0, 0, nw, nh, dst, 0, nw);
+
+        return out;
+    }
+
+    public int getWidth()
+    {
+        return this.levels.get(0).getWidth();
+    }
+
+    public int getHeight()
+    {
+        return this.levels.get(0).getHeight();
+    }
+
+    /**
+     * Levels, largest (the source) first
+     * @return
+     */
+    public List<BufferedImage> getLevels()
+    {
+        return this.levels;
+    }
+
+    /**
+     * Memory held by all levels
+     * @return
+     */
+    public long getBytes()
+    {
+        return this.bytes;
+    }
+
+    /**
+     * The smallest level at least this large, or the source if none is
+     * @param width
+     * @param height
+     * @return
+     */
+    public BufferedImage getLevel(int width, int height)
+    {
+        BufferedImage best = this.levels.get(0);
+
+        for (BufferedImage l : this.levels)
+        {
+            if (l.getWidth() < width || l.getHeight() < height)
+            {
+                break;
+            }
+
+            best = l;
+        }
+
+        return best;
+    }
+
+    /**
+     * The image at a size
+     * @param width
+     * @param height
+     * @return
+     */
+    public BufferedImage getScaled(int width, int height)
+    {
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+
+        BufferedImage level = this.getLevel(width, height);
+
+        if (level.getWidth() == width && level.getHeight() == height)
+        {
+            return level;
+        }
+
+        return ImageUtil.getScaledImage(level, width, height);
+    }
+
+    /**
+     * The image at a width, keeping its aspect ratio
+     * @param width
+     * @return
+     */
+    public BufferedImage getScaledToWidth(int width)
+    {
+        if (width == this.getWidth())
+        {
+            return this.levels.get(0);
+        }
+
+        float aspect = (float) this.getHeight() / (float) this.getWidth();
+
+        return this.getScaled(width, (int) (width * aspect));
+    }
+}
@@ -0,0 +1,252 @@
+package org.traincontrol.util;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Image pyramids by source - a resource path or a URL - shared across the UI, least recently used
+ * first out once they exceed a memory cap.
+ *
+ * Every size of a tile or locomotive image used to start again from the source: read and decoded it,
+ * then scaled the full-size image down.  Zooming a page or opening it at another size did that once
+ * per tile.  Now each source is decoded once, the first time any size of it is asked for, and every
+ * size after that is a resample of the nearest level.
+ *
+ * Concurrent requests for a source not yet loaded wait for the one decode rather than each starting
+ * their own.  The pyramid most recently added is never evicted, even when it alone exceeds the cap.
+ *
+ * @author Adam
+ */
+public final class ImagePyramidCache
+{
+    // Default memory cap: every tile icon many times over, plus a couple of dozen large locomotive images
+    public static final long DEFAULT_CAPACITY = 32L * 1024 * 1024;
+
+    private static final ImagePyramidCache shared = new ImagePyramidCache(DEFAULT_CAPACITY);
+
+    /**
+     * Decodes a source
+     */
+    public interface Decoder
+    {
+        /**
+         * @return the image, or null if it cannot be decoded
+         * @throws IOException
+         */
+        Image decode() throws IOException;
+    }
+
+    private final Map<String, ImagePyramid> pyramids = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, FutureTask<ImagePyramid>> loading = new HashMap<>();
+
+    private long capacity;
+    private long bytes = 0;
+    private long decodes = 0;
+    private long hits = 0;
+    private long evictions = 0;
+
+    /**
+     * @param capacity memory cap, in bytes
+     */
+    public ImagePyramidCache(long capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * The cache the UI shares
+     * @return
+     */
+    public static ImagePyramidCache getShared()
+    {
+        return shared;
+    }
+
+    /**
+     * A source's pyramid, decoding it if it is not cached
+     * @param key identifies the source
+     * @param decoder
+     * @return null if the source did not decode
+     * @throws IOException
+     */
+    public ImagePyramid get(String key, Decoder decoder) throws IOException
+    {
+        FutureTask<ImagePyramid> task;
+        boolean owner = false;
+
+        synchronized (this)
+        {
+            ImagePyramid p = this.pyramids.get(key);
+
+            if (p != null)
+            {
+                this.hits++;
+                return p;
+            }
+
+            task = this.loading.get(key);
+
+            if (task == null)
+            {
+                task = new FutureTask<>(() ->
+                {
+                    Image img = decoder.decode();
+
+                    return img != null ? new ImagePyramid(img) : null;
+                });
+
+                this.loading.put(key, task);
+                this.decodes++;
+                owner = true;
+            }
+        }
+
+        ImagePyramid p = null;
+
+        try
+        {
+            if (owner)
+            {
+                task.run();
+            }
+
+            p = task.get();
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException) e.getCause();
+            }
+
+            throw new IOException(e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        finally
+        {
+            if (owner)
+            {
+                synchronized (this)
+                {
+                    this.loading.remove(key);
+
+                    if (p != null)
+                    {
+                        this.put(key, p);
+                    }
+                }
+            }
+        }
+
+        return p;
+    }
+
+    /**
+     * A source at a width, keeping its aspect ratio
+     * @param key
+     * @param decoder
+     * @param width
+     * @return null if the source did not decode
+     * @throws IOException
+     */
+    public BufferedImage getScaledToWidth(String key, Decoder decoder, int width) throws IOException
+    {
+        ImagePyramid p = this.get(key, decoder);
+
+        return p != null ? p.getScaledToWidth(width) : null;
+    }
+
+    private void put(String key, ImagePyramid p)
+    {
+        ImagePyramid old = this.pyramids.put(key, p);
+
+        if (old != null)
+        {
+            this.bytes -= old.getBytes();
+        }
+
+        this.bytes += p.getBytes();
+        this.evict();
+    }
+
+    private void evict()
+    {
+        while (this.bytes > this.capacity && this.pyramids.size() > 1)
+        {
+            Map.Entry<String, ImagePyramid> eldest = this.pyramids.entrySet().iterator().next();
+
+            this.bytes -= eldest.getValue().getBytes();
+            this.pyramids.remove(eldest.getKey());
+            this.evictions++;
+        }
+    }
+
+    /**
+     * Changes the memory cap, evicting as needed
+     * @param capacity bytes
+     */
+    public synchronized void setCapacity(long capacity)
+    {
+        this.capacity = capacity;
+        this.evict();
+    }
+
+    public synchronized long getCapacity()
+    {
+        return this.capacity;
+    }
+
+    /**
+     * Memory held by the cached pyramids
+     * @return
+     */
+    public synchronized long getBytes()
+    {
+        return this.bytes;
+    }
+
+    public synchronized int size()
+    {
+        return this.pyramids.size();
+    }
+
+    public synchronized boolean contains(String key)
+    {
+        return this.pyramids.containsKey(key);
+    }
+
+    /**
+     * Sources decoded since the cache was created
+     * @return
+     */
+    public synchronized long getDecodes()
+    {
+        return this.decodes;
+    }
+
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    public synchronized void clear()
+    {
+        this.pyramids.clear();
+        this.bytes = 0;
+    }
+}
@@ -0,0 +1,312 @@
+package org.traincontrol.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * A set of single-threaded lanes that tasks are assigned to by key.
+ *
+ * Everything submitted under one key runs on the same lane, in submission order, so per-device
+ * ordering is exactly what a single thread would give.  Different keys are spread across the lanes
+ * and proceed in parallel, so one slow device can only hold up the others that happen to share its
+ * lane - not all of them.
+ *
+ * A barrier task is ordered against every key at once: it runs after everything submitted before it,
+ * and before anything submitted after it.
+ *
+ * Each lane reports how many tasks are waiting on it and the longest any single task has taken, which
+ * is what to look at when a lane is falling behind.
+ *
+ * @author Adam
+ */
+public class KeyedLaneExecutor
+{
+    // Bounds on the automatic lane count
+    public static final int MIN_LANES = 2;
+    public static final int MAX_LANES = 8;
+
+    private final ExecutorService[] lanes;
+
+    // Tasks queued or running, per lane
+    private final AtomicIntegerArray depth;
+
+    // High-water mark of depth, per lane
+    private final AtomicIntegerArray maxDepth;
+
+    // Longest single task, per lane, in nanoseconds
+    private final AtomicLongArray maxTaskNanos;
+
+    // Tasks completed, per lane
+    private final AtomicLongArray completed;
+
+    // Where exceptions thrown by tasks are reported
+    private final Consumer<Exception> errorHandler;
+
+    /**
+     * Constructor, sized to the processors available
+     * @param name thread name prefix
+     * @param errorHandler receives any exception a task throws
+     */
+    public KeyedLaneExecutor(String name, Consumer<Exception> errorHandler)
+    {
+        this(name, defaultLaneCount(), errorHandler);
+    }
+
+    /**
+     * Constructor
+     * @param name thread name prefix
+     * @param numLanes
+     * @param errorHandler receives any exception a task throws
+     */
+    public KeyedLaneExecutor(String name, int numLanes, Consumer<Exception> errorHandler)
+    {
+        if (numLanes < 1)
+        {
+            throw new IllegalArgumentException("At least one lane is required");
+        }
+
+        this.lanes = new ExecutorService[numLanes];
+        this.depth = new AtomicIntegerArray(numLanes);
+        this.maxDepth = new AtomicIntegerArray(numLanes);
+        this.maxTaskNanos = new AtomicLongArray(numLanes);
+        this.completed = new AtomicLongArray(numLanes);
+        this.errorHandler = errorHandler;
+
+        for (int i = 0; i < numLanes; i++)
+        {
+            final int lane = i;
+
+            this.lanes[i] = Executors.newSingleThreadExecutor(r ->
+            {
+                Thread t = new Thread(r, name + " " + lane);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * One lane per processor, within MIN_LANES and MAX_LANES.  The tasks are short and mostly wait on
+     * locks and the EDT, so there is nothing to gain from more lanes than cores.
+     * @return
+     */
+    public static int defaultLaneCount()
+    {
+        return Math.max(MIN_LANES, Math.min(MAX_LANES, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * The lane a key maps to
+     * @param key
+     * @return
+     */
+    public int laneOf(int key)
+    {
+        // Device UIDs are sequential addresses on top of a protocol base, so the low bits are the
+        // useful ones - but mix them anyway so that a stride matching the lane count cannot pile every
+        // device onto one lane
+        int h = key * 0x9E3779B1;
+        h ^= (h >>> 16);
+
+        return (h & 0x7FFFFFFF) % this.lanes.length;
+    }
+
+    /**
+     * Queues a task behind everything previously submitted under the same key
+     * @param key
+     * @param task
+     */
+    public void submit(int key, Runnable task)
+    {
+        synchronized (this.lanes)
+        {
+            this.enqueue(this.laneOf(key), task);
+        }
+    }
+
+    /**
+     * Queues a task behind everything previously submitted under any key, and holds back everything
+     * submitted after it, under any key, until it has run.  For the messages whose effect every device
+     * depends on - the power going off - which no single lane orders against the rest.
+     *
+     * Every lane is parked while the task runs, so this is for rare messages only.
+     * @param task
+     */
+    public void submitBarrier(Runnable task)
+    {
+        CountDownLatch arrived = new CountDownLatch(this.lanes.length - 1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        // Under the same lock as submit, so no lane can take a task in between and run it on the wrong
+        // side of the barrier
+        synchronized (this.lanes)
+        {
+            for (int i = 1; i < this.lanes.length; i++)
+            {
+                this.enqueue(i, () ->
+                {
+                    arrived.countDown();
+                    awaitUninterruptibly(done);
+                });
+            }
+
+            // Lane 0 runs the task once every other lane has finished what was ahead of the barrier
+            this.enqueue(0, () ->
+            {
+                try
+                {
+                    awaitUninterruptibly(arrived);
+                    task.run();
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            });
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch)
+    {
+        boolean interrupted = false;
+
+        while (true)
+        {
+            try
+            {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a task on a lane, keeping that lane's figures
+     * @param lane
+     * @param task
+     */
+    private void enqueue(int lane, Runnable task)
+    {
+        int queued = this.depth.incrementAndGet(lane);
+        this.updateMax(this.maxDepth, lane, queued);
+
+        this.lanes[lane].execute(() ->
+        {
+            long start = System.nanoTime();
+
+            try
+            {
+                task.run();
+            }
+            catch (Exception e)
+            {
+                // A plain executor would capture this in a discarded Future, and it would surface
+                // nowhere at all
+                if (this.errorHandler != null)
+                {
+                    this.errorHandler.accept(e);
+                }
+            }
+            finally
+            {
+                long elapsed = System.nanoTime() - start;
+
+                this.maxTaskNanos.accumulateAndGet(lane, elapsed, Math::max);
+                this.completed.incrementAndGet(lane);
+                this.depth.decrementAndGet(lane);
+            }
+        });
+    }
+
+    /**
+     * Raises a per-lane maximum
+     * @param array
+     * @param lane
+     * @param value
+     */
+    private void updateMax(AtomicIntegerArray array, int lane, int value)
+    {
+        int current;
+
+        while ((current = array.get(lane)) < value)
+        {
+            if (array.compareAndSet(lane, current, value))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Number of lanes
+     * @return
+     */
+    public int getLaneCount()
+    {
+        return this.lanes.length;
+    }
+
+    /**
+     * Tasks queued or running on a lane right now
+     * @param lane
+     * @return
+     */
+    public int getQueueDepth(int lane)
+    {
+        return this.depth.get(lane);
+    }
+
+    /**
+     * The deepest a lane's queue has been
+     * @param lane
+     * @return
+     */
+    public int getMaxQueueDepth(int lane)
+    {
+        return this.maxDepth.get(lane);
+    }
+
+    /**
+     * The longest any one task on a lane has taken, in milliseconds
+     * @param lane
+     * @return
+     */
+    public double getMaxTaskTime(int lane)
+    {
+        return this.maxTaskNanos.get(lane) / 1000000.0;
+    }
+
+    /**
+     * Tasks a lane has finished
+     * @param lane
+     * @return
+     */
+    public long getCompletedCount(int lane)
+    {
+        return this.completed.get(lane);
+    }
+
+    /**
+     * Stops accepting tasks.  Already queued tasks still run.
+     */
+    public void shutdown()
+    {
+        for (ExecutorService lane : this.lanes)
+        {
+            lane.shutdown();
+        }
+    }
+}
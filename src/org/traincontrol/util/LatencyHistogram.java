@@ -0,0 +1,337 @@
+package org.traincontrol.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory, lock-free latency histogram over a sliding time window.
+ *
+ * Samples are recorded in microseconds into logarithmic buckets (eight per power of two, so any
+ * reported percentile is within 12.5% of the true value) and spread across a ring of time slots.  A
+ * slot is recycled once the window has moved past it, so the statistics always describe roughly the
+ * last slots x slotMillis of traffic and the memory used never grows.
+ *
+ * Recording is a handful of atomic increments and never blocks, because it runs on the CAN reader's
+ * path.  The one race this accepts is at a slot boundary: a sample recorded into a slot at the moment
+ * another thread recycles it can be cleared with the old contents.  That loses a sample or two per
+ * slot at most, which is of no consequence for diagnostics and is far cheaper than a lock.
+ *
+ * @author Adam
+ */
+public class LatencyHistogram
+{
+    // Values below this are stored exactly, one bucket each
+    private static final int LINEAR_BUCKETS = 8;
+
+    // Buckets per power of two above the linear range
+    private static final int SUB_BUCKET_BITS = 3;
+
+    // Largest recordable value, in microseconds (about 67 seconds).  Anything above is clamped.
+    private static final int MAX_MAGNITUDE = 26;
+    private static final long MAX_VALUE_US = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+    // Total bucket count
+    public static final int NUM_BUCKETS = LINEAR_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * LINEAR_BUCKETS;
+
+    // Default window: six slots of ten seconds
+    public static final int DEFAULT_SLOTS = 6;
+    public static final long DEFAULT_SLOT_MILLIS = 10000;
+
+    private final int slots;
+    private final long slotMillis;
+
+    // Per-slot bucket counts, laid out slot-major
+    private final AtomicLongArray counts;
+
+    // Per-slot maximum, in microseconds
+    private final AtomicLongArray slotMax;
+
+    // Which period each slot currently holds (time / slotMillis)
+    private final AtomicLongArray slotEpoch;
+
+    // Lifetime totals, not windowed
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMax = new AtomicLong();
+
+    /**
+     * Immutable view of the histogram at one moment
+     */
+    public static class Snapshot
+    {
+        private final long count;
+        private final double p50;
+        private final double p99;
+        private final double max;
+        private final long lifetimeCount;
+        private final double lifetimeMax;
+
+        Snapshot(long count, double p50, double p99, double max, long lifetimeCount, double lifetimeMax)
+        {
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+            this.lifetimeCount = lifetimeCount;
+            this.lifetimeMax = lifetimeMax;
+        }
+
+        /**
+         * Number of samples in the window
+         * @return
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Median over the window, in milliseconds
+         * @return
+         */
+        public double getP50()
+        {
+            return p50;
+        }
+
+        /**
+         * 99th percentile over the window, in milliseconds
+         * @return
+         */
+        public double getP99()
+        {
+            return p99;
+        }
+
+        /**
+         * Largest sample in the window, in milliseconds
+         * @return
+         */
+        public double getMax()
+        {
+            return max;
+        }
+
+        /**
+         * Number of samples ever recorded
+         * @return
+         */
+        public long getLifetimeCount()
+        {
+            return lifetimeCount;
+        }
+
+        /**
+         * Largest sample ever recorded, in milliseconds
+         * @return
+         */
+        public double getLifetimeMax()
+        {
+            return lifetimeMax;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("n=%d p50=%.1fms p99=%.1fms max=%.1fms", count, p50, p99, max);
+        }
+    }
+
+    /**
+     * Constructor with the default one-minute window
+     */
+    public LatencyHistogram()
+    {
+        this(DEFAULT_SLOTS, DEFAULT_SLOT_MILLIS);
+    }
+
+    /**
+     * Constructor
+     * @param slots number of time slots in the window
+     * @param slotMillis length of each slot
+     */
+    public LatencyHistogram(int slots, long slotMillis)
+    {
+        if (slots < 1 || slotMillis < 1)
+        {
+            throw new IllegalArgumentException("Window must have at least one slot of at least 1ms");
+        }
+
+        this.slots = slots;
+        this.slotMillis = slotMillis;
+        this.counts = new AtomicLongArray(slots * NUM_BUCKETS);
+        this.slotMax = new AtomicLongArray(slots);
+        this.slotEpoch = new AtomicLongArray(slots);
+
+        // No slot holds a real period yet
+        for (int i = 0; i < slots; i++)
+        {
+            this.slotEpoch.set(i, -1);
+        }
+    }
+
+    /**
+     * Maps a value in microseconds to its bucket
+     * @param us
+     * @return
+     */
+    static int bucketOf(long us)
+    {
+        if (us < 0) us = 0;
+        if (us > MAX_VALUE_US) us = MAX_VALUE_US;
+
+        if (us < LINEAR_BUCKETS)
+        {
+            return (int) us;
+        }
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(us);
+        int sub = (int) (us >> (magnitude - SUB_BUCKET_BITS)) & (LINEAR_BUCKETS - 1);
+
+        return LINEAR_BUCKETS + (magnitude - SUB_BUCKET_BITS) * LINEAR_BUCKETS + sub;
+    }
+
+    /**
+     * The representative value of a bucket - its midpoint - in microseconds
+     * @param bucket
+     * @return
+     */
+    static long valueOf(int bucket)
+    {
+        if (bucket < LINEAR_BUCKETS)
+        {
+            return bucket;
+        }
+
+        int magnitude = (bucket - LINEAR_BUCKETS) / LINEAR_BUCKETS + SUB_BUCKET_BITS;
+        int sub = (bucket - LINEAR_BUCKETS) % LINEAR_BUCKETS;
+        long lower = ((long) (LINEAR_BUCKETS + sub)) << (magnitude - SUB_BUCKET_BITS);
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+
+        return lower + width / 2;
+    }
+
+    /**
+     * Records a sample
+     * @param nanos the measured latency
+     */
+    public void record(long nanos)
+    {
+        this.record(nanos, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a sample at the given wall clock time
+     * @param nanos the measured latency
+     * @param nowMillis
+     */
+    public void record(long nanos, long nowMillis)
+    {
+        long us = Math.max(0, nanos / 1000);
+        long epoch = nowMillis / this.slotMillis;
+        int slot = (int) (epoch % this.slots);
+
+        long held = this.slotEpoch.get(slot);
+
+        // Recycle the slot if it still holds an older period.  Only the thread that wins the CAS clears
+        // it; a clock that stepped backwards just lands in the slot as it is.
+        if (held < epoch && this.slotEpoch.compareAndSet(slot, held, epoch))
+        {
+            int base = slot * NUM_BUCKETS;
+
+            for (int i = 0; i < NUM_BUCKETS; i++)
+            {
+                this.counts.set(base + i, 0);
+            }
+
+            this.slotMax.set(slot, 0);
+        }
+
+        this.counts.incrementAndGet(slot * NUM_BUCKETS + bucketOf(us));
+        this.slotMax.accumulateAndGet(slot, us, Math::max);
+        this.totalCount.incrementAndGet();
+        this.totalMax.accumulateAndGet(us, Math::max);
+    }
+
+    /**
+     * Summarizes the current window
+     * @return
+     */
+    public Snapshot getSnapshot()
+    {
+        return this.getSnapshot(System.currentTimeMillis());
+    }
+
+    /**
+     * Summarizes the window ending at the given wall clock time
+     * @param nowMillis
+     * @return
+     */
+    public Snapshot getSnapshot(long nowMillis)
+    {
+        long epoch = nowMillis / this.slotMillis;
+        long[] merged = new long[NUM_BUCKETS];
+        long count = 0;
+        long max = 0;
+
+        for (int slot = 0; slot < this.slots; slot++)
+        {
+            long held = this.slotEpoch.get(slot);
+
+            if (held < 0 || held <= epoch - this.slots || held > epoch)
+            {
+                continue;
+            }
+
+            int base = slot * NUM_BUCKETS;
+
+            for (int i = 0; i < NUM_BUCKETS; i++)
+            {
+                long c = this.counts.get(base + i);
+                merged[i] += c;
+                count += c;
+            }
+
+            max = Math.max(max, this.slotMax.get(slot));
+        }
+
+        // A bucket's midpoint can sit above the largest sample actually in it
+        return new Snapshot(
+            count,
+            Math.min(percentile(merged, count, 0.50), max) / 1000.0,
+            Math.min(percentile(merged, count, 0.99), max) / 1000.0,
+            max / 1000.0,
+            this.totalCount.get(),
+            this.totalMax.get() / 1000.0
+        );
+    }
+
+    /**
+     * Finds the value at the given quantile of a merged bucket array
+     * @param buckets
+     * @param count
+     * @param quantile
+     * @return value in microseconds, 0 if empty
+     */
+    private static long percentile(long[] buckets, long count, double quantile)
+    {
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+
+        for (int i = 0; i < buckets.length; i++)
+        {
+            seen += buckets[i];
+
+            if (seen >= rank)
+            {
+                return valueOf(i);
+            }
+        }
+
+        return valueOf(buckets.length - 1);
+    }
+}
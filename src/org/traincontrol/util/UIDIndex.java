@@ -0,0 +1,149 @@
+package org.traincontrol.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Immutable map from a primitive int UID to the devices carrying it.
+ *
+ * Built once from a device collection and then only read, so lookups need no lock and no boxing: the
+ * table is open-addressed over a plain int[] of keys, and each slot holds a ready-made unmodifiable
+ * list of the devices for that UID.  get() therefore allocates nothing, which matters because it is
+ * called for every locomotive and accessory echo the Central Station sends.
+ *
+ * Several devices can share a UID - MM2 addresses can be reused across locomotives - which is why the
+ * value is a list.
+ *
+ * To change the contents, build a new index and publish it through a volatile field; a reader then
+ * sees either the complete old index or the complete new one.
+ *
+ * @author Adam
+ * @param <T>
+ */
+public final class UIDIndex<T>
+{
+    private final int[] keys;
+    private final List<T>[] values;
+    private final int mask;
+    private final int size;
+
+    /**
+     * Builds an index
+     * @param <T>
+     * @param items the devices
+     * @param uidOf how to read a device's UID
+     * @return
+     */
+    public static <T> UIDIndex<T> build(Collection<T> items, ToIntFunction<T> uidOf)
+    {
+        Map<Integer, List<T>> grouped = new LinkedHashMap<>();
+
+        for (T item : items)
+        {
+            if (item != null)
+            {
+                grouped.computeIfAbsent(uidOf.applyAsInt(item), k -> new ArrayList<>(1)).add(item);
+            }
+        }
+
+        return new UIDIndex<>(grouped);
+    }
+
+    /**
+     * An index with nothing in it
+     * @param <T>
+     * @return
+     */
+    public static <T> UIDIndex<T> empty()
+    {
+        return new UIDIndex<>(Collections.emptyMap());
+    }
+
+    @SuppressWarnings("unchecked")
+    private UIDIndex(Map<Integer, List<T>> grouped)
+    {
+        // At most half full, so probe chains stay short
+        int capacity = Integer.highestOneBit(Math.max(4, grouped.size() * 2 - 1)) << 1;
+
+        this.keys = new int[capacity];
+        this.values = (List<T>[]) new List<?>[capacity];
+        this.mask = capacity - 1;
+        this.size = grouped.size();
+
+        for (Map.Entry<Integer, List<T>> e : grouped.entrySet())
+        {
+            int key = e.getKey();
+            int slot = slotOf(key, this.mask);
+
+            while (this.values[slot] != null)
+            {
+                slot = (slot + 1) & this.mask;
+            }
+
+            this.keys[slot] = key;
+            this.values[slot] = Collections.unmodifiableList(e.getValue());
+        }
+    }
+
+    /**
+     * Home slot for a key
+     * @param key
+     * @param mask
+     * @return
+     */
+    private static int slotOf(int key, int mask)
+    {
+        // UIDs are small sequential numbers on top of a protocol base; spread them over the table
+        int h = key * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * The devices carrying a UID
+     * @param key
+     * @return an unmodifiable list, or null if there are none
+     */
+    public List<T> get(int key)
+    {
+        int slot = slotOf(key, this.mask);
+        List<T> v;
+
+        while ((v = this.values[slot]) != null)
+        {
+            if (this.keys[slot] == key)
+            {
+                return v;
+            }
+
+            slot = (slot + 1) & this.mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * The first device carrying a UID - for device types where UIDs are unique
+     * @param key
+     * @return the device, or null if there is none
+     */
+    public T getFirst(int key)
+    {
+        List<T> v = this.get(key);
+
+        return v != null ? v.get(0) : null;
+    }
+
+    /**
+     * Number of distinct UIDs
+     * @return
+     */
+    public int size()
+    {
+        return this.size;
+    }
+}
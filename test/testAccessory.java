@@ -1,4 +1,5 @@
 import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
 import org.traincontrol.marklin.MarklinControlStation;
 import static org.traincontrol.marklin.MarklinControlStation.init;
 import static org.testng.Assert.*;
@@ -13,6 +14,8 @@ import org.traincontrol.base.Accessory;
 import org.traincontrol.base.RouteCommand;
 import org.traincontrol.marklin.MarklinAccessory;
 import org.traincontrol.marklin.udp.CS2Message;
+import org.traincontrol.marklin.udp.FrameDeduplicator;
+import org.traincontrol.util.KeyedLaneExecutor;
 
 /**
  * Use testng 6.14.3
@@ -404,7 +407,7 @@ public class testAccessory
 
         // The echo really does reach a live accessory through receiveMessage.  Setting 0 means turned.
         // Each message below uses a different setting from the one before it, because receiveMessage
-        // discards a packet identical to the previous one.
+        // discards a packet identical to one it has just seen.
         model.receiveMessage(rawAccessoryEcho(uid, 0));
 
         assertTrue(waitUntil(() -> acc.isSwitched()), "the echo must reach the accessory");
@@ -419,12 +422,96 @@ public class testAccessory
         // And the pipeline is still alive afterwards
         MarklinAccessory replacement = model.newSwitch(291, MarklinAccessory.accessoryDecoderType.MM2, false);
 
+        // This echo has the same bytes as the first one, so it must arrive after the deduplication
+        // window or it is taken for the CS3's second copy of it
+        Thread.sleep(2 * FrameDeduplicator.DEFAULT_WINDOW_MS);
+
         model.receiveMessage(rawAccessoryEcho(replacement.getUID(), 0));
 
         assertTrue(waitUntil(() -> replacement.isSwitched()),
             "a later echo must still be delivered after one arrived for a deleted accessory");
     }
 
+    /**
+     * An accessory echo the Central Station sent after turning the power off is handled after the
+     * power-off.  System frames used to be keyed on their UID, which is 0, so they had a lane of their
+     * own: with that lane busy, the accessory echo behind the power-off ran first.
+     */
+    @Test(timeOut = 30000)
+    public void testDeviceFrameWaitsForPowerOff() throws Exception
+    {
+        Field field = MarklinControlStation.class.getDeclaredField("deviceMessageProcessor");
+        field.setAccessible(true);
+        KeyedLaneExecutor lanes = (KeyedLaneExecutor) field.get(model);
+
+        // An accessory whose frames run on a different lane from the one a UID of 0 maps to
+        int address = 293;
+        MarklinAccessory acc;
+
+        while (true)
+        {
+            clearAccessoryAddress(address);
+            acc = model.newSwitch(address, MarklinAccessory.accessoryDecoderType.MM2, false);
+
+            if (lanes.laneOf(acc.getUID()) != lanes.laneOf(0)) break;
+
+            accDb().delete(acc.getName());
+            address++;
+        }
+
+        model.receiveMessage(rawPower(CS2Message.CMD_SYSSUB_GO));
+        assertTrue(waitUntil(() -> model.getPowerState()), "precondition: the power is on");
+
+        // Hold up the lane the power frames used to run on, as a slow handler would
+        CountDownLatch release = new CountDownLatch(1);
+
+        lanes.submit(0, () ->
+        {
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        MarklinAccessory switched = acc;
+
+        try
+        {
+            model.receiveMessage(rawPower(CS2Message.CMD_SYSSUB_STOP));
+            model.receiveMessage(rawAccessoryEcho(acc.getUID(), 0));
+
+            Thread.sleep(300);
+
+            assertFalse(acc.isSwitched(), "the accessory echo must not overtake the power-off ahead of it");
+            assertTrue(model.getPowerState());
+        }
+        finally
+        {
+            release.countDown();
+        }
+
+        assertTrue(waitUntil(() -> switched.isSwitched()), "the echo is handled once the power-off is");
+        assertFalse(model.getPowerState());
+
+        model.receiveMessage(rawPower(CS2Message.CMD_SYSSUB_GO));
+        assertTrue(waitUntil(() -> model.getPowerState()));
+        accDb().delete(acc.getName());
+    }
+
+    /**
+     * A power frame as the Central Station reports it
+     */
+    private static CS2Message rawPower(int sub)
+    {
+        CS2Message m = new CS2Message(CS2Message.CMD_SYSTEM, new byte[] {0, 0, 0, 0, (byte) sub});
+
+        return new CS2Message(m.getCommand(), m.getHash(), true, m.getData());
+    }
+
     /**
      * Builds the CAN accessory echo the Central Station sends back for an accessory command.
      * Setting 0 means turned, 1 means straight (see MarklinAccessory.parseMessage).
@@ -0,0 +1,300 @@
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.traincontrol.marklin.MarklinControlStation;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.base.ConfirmationLatency;
+import org.traincontrol.base.RemoteDeviceCollection;
+import org.traincontrol.marklin.MarklinAccessory;
+import org.traincontrol.marklin.udp.CS2Message;
+
+/**
+ * Accessory confirmation: each waiter is completed by its own accessory's echo at the state it waits
+ * for, and each decoder's confirmation latency is learned into the budget path validation gives it.
+ *
+ * Runs against the simulated model.
+ */
+public class testAccessoryConfirmation
+{
+    public static MarklinControlStation model;
+
+    private static final long MS = 1_000_000L;
+
+    private final int minSamples = ConfirmationLatency.MIN_SAMPLES;
+    private final double margin = ConfirmationLatency.MARGIN;
+    private final long minTimeout = ConfirmationLatency.MIN_TIMEOUT_MS;
+
+    @SuppressWarnings("unchecked")
+    private static RemoteDeviceCollection<MarklinAccessory, Integer> accDb() throws Exception
+    {
+        Field accDbField = MarklinControlStation.class.getDeclaredField("accDB");
+        accDbField.setAccessible(true);
+
+        return (RemoteDeviceCollection<MarklinAccessory, Integer>) accDbField.get(model);
+    }
+
+    /**
+     * A switch at an address nothing else uses, as a fresh installation would create it
+     */
+    private static MarklinAccessory freshSwitch(int logicalAddress) throws Exception
+    {
+        accDb().delete("Switch " + logicalAddress);
+        accDb().delete("Signal " + logicalAddress);
+
+        return model.newSwitch(logicalAddress, MarklinAccessory.accessoryDecoderType.MM2, false);
+    }
+
+    /**
+     * Setting 0 means turned, 1 means straight (see MarklinAccessory.parseMessage)
+     */
+    private static CS2Message accessoryEcho(int uid, int setting)
+    {
+        return new CS2Message(CS2Message.CMD_ACC_SWITCH, new byte[]
+        {
+            (byte) (uid >> 24), (byte) (uid >> 16), (byte) (uid >> 8), (byte) uid,
+            (byte) setting, 1
+        });
+    }
+
+    /**
+     * A waiter completes on its own accessory's echo at the state it waits for, and on nothing else
+     */
+    @Test
+    public void testWaiterCompletesOnItsOwnEcho() throws Exception
+    {
+        MarklinAccessory a = freshSwitch(281);
+        MarklinAccessory b = freshSwitch(282);
+
+        CompletableFuture<Void> turned = a.awaitConfirmedAt(true);
+        CompletableFuture<Void> straight = a.awaitConfirmedAt(false);
+
+        assertFalse(turned.isDone(), "nothing has been echoed yet");
+
+        // Another accessory's echo is no business of a's waiters
+        b.parseMessage(accessoryEcho(b.getUID(), 0));
+        assertFalse(turned.isDone());
+        assertFalse(straight.isDone());
+
+        // An echo at the other position completes only the waiter for that position
+        a.parseMessage(accessoryEcho(a.getUID(), 1));
+        assertTrue(straight.isDone());
+        assertFalse(turned.isDone());
+
+        a.parseMessage(accessoryEcho(a.getUID(), 0));
+        assertTrue(turned.isDone());
+        assertFalse(turned.isCompletedExceptionally());
+
+        // Already confirmed: complete from the start
+        assertTrue(a.awaitConfirmedAt(true).isDone());
+        assertFalse(a.awaitConfirmedAt(false).isDone());
+    }
+
+    /**
+     * The wait ends when the echo arrives, not when a poll or a timeout next comes round
+     */
+    @Test
+    public void testWaitEndsOnTheEcho() throws Exception
+    {
+        MarklinAccessory a = freshSwitch(283);
+        a.setSwitched(true);
+
+        CompletableFuture<Void> f = a.awaitConfirmedAt(true);
+
+        Thread echo = new Thread(() ->
+        {
+            try
+            {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            a.parseMessage(accessoryEcho(a.getUID(), 0));
+        });
+
+        long start = System.nanoTime();
+        echo.start();
+        f.get(5, TimeUnit.SECONDS);
+        long waited = (System.nanoTime() - start) / MS;
+        echo.join();
+
+        assertTrue(waited >= 40 && waited < 1000, "waited " + waited + " ms for a 50 ms echo");
+
+        // The command-to-echo time was learned
+        assertEquals(a.getConfirmationLatency().getSampleCount(), 1);
+        assertTrue(a.getConfirmationLatency().getPercentileMs(0.5) >= 40);
+    }
+
+    /**
+     * A cancelled waiter is dropped, and a later echo does not trip over it
+     */
+    @Test
+    public void testCancelledWaiter() throws Exception
+    {
+        MarklinAccessory a = freshSwitch(284);
+
+        CompletableFuture<Void> f = a.awaitConfirmedAt(true);
+        assertTrue(f.cancel(false));
+
+        a.parseMessage(accessoryEcho(a.getUID(), 0));
+
+        assertTrue(f.isCancelled());
+        assertTrue(a.isConfirmedAt(true));
+        assertTrue(a.awaitConfirmedAt(true).isDone());
+    }
+
+    /**
+     * The budget is the fixed one until enough has been learned, then p99 times the margin, clamped
+     */
+    @Test
+    public void testLearnedTimeout()
+    {
+        ConfirmationLatency.MIN_SAMPLES = 5;
+        ConfirmationLatency.MARGIN = 3.0;
+        ConfirmationLatency.MIN_TIMEOUT_MS = 200;
+
+        ConfirmationLatency c = new ConfirmationLatency();
+        long t = 1_000 * MS;
+
+        for (int i = 0; i < 4; i++)
+        {
+            c.commanded(t);
+            t += 100 * MS;
+            c.echoed(t);
+        }
+
+        assertEquals(c.getTimeoutMs(3000), 3000, "too few samples to go by");
+
+        c.commanded(t);
+        t += 120 * MS;
+        c.echoed(t);
+
+        assertEquals(c.getSampleCount(), 5);
+        assertEquals(c.getPercentileMs(0.5), 100.0, 0.001);
+        assertEquals(c.getPercentileMs(0.99), 120.0, 0.001);
+        assertEquals(c.getTimeoutMs(3000), 360, "p99 times the margin");
+        assertEquals(c.getTimeoutMs(300), 300, "never more than the fixed budget");
+
+        // A fast decoder still gets the floor
+        ConfirmationLatency fast = new ConfirmationLatency();
+
+        for (int i = 0; i < 10; i++)
+        {
+            fast.commanded(t);
+            t += 5 * MS;
+            fast.echoed(t);
+        }
+
+        assertEquals(fast.getTimeoutMs(3000), 200);
+
+        // An echo nobody commanded is neither a latency nor a confirmation, so it cannot dilute the
+        // timeout rate
+        fast.timedOut();
+        double rate = fast.getTimeoutRate();
+        fast.echoed(t + 10_000 * MS);
+        assertEquals(fast.getSampleCount(), 10);
+        assertEquals(fast.getConfirmations(), 10);
+        assertEquals(fast.getTimeoutRate(), rate, 0.0);
+
+        // A command that timed out still takes its echo if it is merely late, which is how a decoder
+        // that slows down raises its budget again
+        t += 10_000 * MS;
+        fast.commanded(t);
+        fast.timedOut();
+        t += 1_500 * MS;
+        fast.echoed(t);
+        assertEquals(fast.getSampleCount(), 11);
+        assertEquals(fast.getMaxMs(), 1500.0, 0.001);
+
+        // But not once it is so late that the echo is more likely someone else's
+        fast.commanded(t);
+        fast.timedOut();
+        t += (ConfirmationLatency.LATE_LIMIT_MS + 1) * MS;
+        fast.echoed(t);
+        assertEquals(fast.getSampleCount(), 11);
+        assertEquals(fast.getConfirmations(), 11);
+
+        // And the command is settled, so the echo after that is not counted against it either
+        fast.echoed(t + 20 * MS);
+        assertEquals(fast.getSampleCount(), 11);
+
+        // Only the last SAMPLES are remembered, so a decoder that speeds up is trusted again
+        for (int i = 0; i < ConfirmationLatency.SAMPLES; i++)
+        {
+            c.commanded(t);
+            t += 10 * MS;
+            c.echoed(t);
+        }
+
+        assertEquals(c.getSampleCount(), ConfirmationLatency.SAMPLES);
+        assertEquals(c.getMaxMs(), 10.0, 0.001);
+    }
+
+    /**
+     * Slow and unreliable decoders are reported, those timing out most often first
+     */
+    @Test
+    public void testSlowAccessoriesReported() throws Exception
+    {
+        for (Accessory acc : model.getSlowAccessories())
+        {
+            accDb().delete(acc.getName());
+        }
+
+        MarklinAccessory fine = freshSwitch(285);
+        MarklinAccessory slow = freshSwitch(286);
+        MarklinAccessory flaky = freshSwitch(287);
+
+        long t = 1_000 * MS;
+
+        for (int i = 0; i < 10; i++)
+        {
+            fine.getConfirmationLatency().commanded(t);
+            fine.getConfirmationLatency().echoed(t + 20 * MS);
+            slow.getConfirmationLatency().commanded(t);
+            slow.getConfirmationLatency().echoed(t + (ConfirmationLatency.SLOW_MS + 100) * MS);
+            flaky.getConfirmationLatency().commanded(t);
+            flaky.getConfirmationLatency().echoed(t + 20 * MS);
+            t += 1_000 * MS;
+        }
+
+        for (int i = 0; i < 3; i++)
+        {
+            flaky.getConfirmationLatency().timedOut();
+        }
+
+        assertTrue(slow.getConfirmationLatency().isSlow());
+        assertFalse(slow.getConfirmationLatency().isUnreliable());
+        assertTrue(flaky.getConfirmationLatency().isUnreliable());
+        assertEquals(flaky.getConfirmationLatency().getTimeoutRate(), 3.0 / 13, 0.0001);
+
+        List<Accessory> report = model.getSlowAccessories();
+
+        assertEquals(report.size(), 2, report.toString());
+        assertSame(report.get(0), flaky);
+        assertSame(report.get(1), slow);
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        testAccessoryConfirmation.model = init(null, true, false, false, false);
+        model.stop();
+    }
+
+    @AfterMethod
+    public void tearDownMethod() throws Exception
+    {
+        ConfirmationLatency.MIN_SAMPLES = this.minSamples;
+        ConfirmationLatency.MARGIN = this.margin;
+        ConfirmationLatency.MIN_TIMEOUT_MS = this.minTimeout;
+    }
+}
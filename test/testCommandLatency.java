@@ -0,0 +1,174 @@
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.marklin.udp.CS2Message;
+import org.traincontrol.marklin.udp.CommandLatencyMonitor;
+import org.traincontrol.util.LatencyHistogram;
+
+/**
+ * Command round-trip latency: the windowed histogram, and matching outbound commands to their echoes.
+ *
+ * Needs no model, no socket and no display.  Every time is passed in explicitly, so nothing here
+ * depends on how fast the machine running it is.
+ */
+public class testCommandLatency
+{
+    private static final long MS = 1_000_000L;
+
+    /**
+     * A locomotive or accessory frame addressed to a UID
+     */
+    private static CS2Message frame(int command, boolean response, int uid, int... rest)
+    {
+        byte[] data = new byte[4 + rest.length];
+        data[0] = (byte) (uid >> 24);
+        data[1] = (byte) (uid >> 16);
+        data[2] = (byte) (uid >> 8);
+        data[3] = (byte) uid;
+
+        for (int i = 0; i < rest.length; i++)
+        {
+            data[4 + i] = (byte) rest[i];
+        }
+
+        return new CS2Message(command, CS2Message.CS2_PROTOCOL_V2, response, data);
+    }
+
+    /**
+     * Percentiles land within the bucket resolution of the true values
+     */
+    @Test
+    public void testPercentiles()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+        long now = 1_000_000;
+
+        // 1..100 ms
+        for (int i = 1; i <= 100; i++)
+        {
+            h.record(i * MS, now);
+        }
+
+        LatencyHistogram.Snapshot s = h.getSnapshot(now);
+
+        assertEquals(s.getCount(), 100);
+        assertEquals(s.getP50(), 50, 50 * 0.125);
+        assertEquals(s.getP99(), 99, 99 * 0.125);
+        assertEquals(s.getMax(), 100, 0.001, "the maximum is exact, not bucketed");
+        assertTrue(s.getP99() <= s.getMax());
+    }
+
+    /**
+     * Samples fall out of the window once it has moved past them, but stay in the lifetime totals
+     */
+    @Test
+    public void testWindowExpiry()
+    {
+        LatencyHistogram h = new LatencyHistogram(3, 1000);
+
+        h.record(500 * MS, 10_000);
+        assertEquals(h.getSnapshot(10_500).getCount(), 1);
+        assertEquals(h.getSnapshot(12_900).getCount(), 1, "still inside a three-second window");
+        assertEquals(h.getSnapshot(13_000).getCount(), 0, "the window has moved past it");
+
+        // Recording into the recycled slot clears what it held
+        h.record(5 * MS, 13_000);
+        LatencyHistogram.Snapshot s = h.getSnapshot(13_000);
+
+        assertEquals(s.getCount(), 1);
+        assertEquals(s.getMax(), 5, 0.001);
+        assertEquals(s.getLifetimeCount(), 2);
+        assertEquals(s.getLifetimeMax(), 500, 0.001);
+    }
+
+    /**
+     * An empty histogram reports zeros rather than failing
+     */
+    @Test
+    public void testEmpty()
+    {
+        LatencyHistogram.Snapshot s = new LatencyHistogram().getSnapshot();
+
+        assertEquals(s.getCount(), 0);
+        assertEquals(s.getP50(), 0.0);
+        assertEquals(s.getP99(), 0.0);
+    }
+
+    /**
+     * An accessory command is matched to its echo and timed under both its type and its protocol
+     */
+    @Test
+    public void testAccessoryEchoMatched()
+    {
+        CommandLatencyMonitor m = new CommandLatencyMonitor();
+        int uid = 0x3000 + 12;
+
+        m.sent(frame(CS2Message.CMD_ACC_SWITCH, false, uid, 0, 1), 100 * MS);
+
+        assertEquals(m.echoed(frame(CS2Message.CMD_ACC_SWITCH, true, uid, 0, 1), 142 * MS), 42 * MS);
+
+        // The CS3 sends its echo twice - the second must not be counted again
+        assertEquals(m.echoed(frame(CS2Message.CMD_ACC_SWITCH, true, uid, 0, 1), 150 * MS), -1);
+
+        assertEquals(m.getHistogram(CommandLatencyMonitor.commandType.ACCESSORY).getSnapshot().getCount(), 1);
+        assertEquals(m.getHistogram(CommandLatencyMonitor.protocolType.MM2_ACCESSORY).getSnapshot().getCount(), 1);
+        assertEquals(m.getHistogram(CommandLatencyMonitor.protocolType.DCC_ACCESSORY).getSnapshot().getCount(), 0);
+    }
+
+    /**
+     * Echoes of commands sent from elsewhere - another controller, or the CS itself - are ignored
+     */
+    @Test
+    public void testUnsolicitedEchoIgnored()
+    {
+        CommandLatencyMonitor m = new CommandLatencyMonitor();
+
+        assertEquals(m.echoed(frame(CS2Message.CMD_LOCO_VELOCITY, true, 0x4005, 0, 100), 10 * MS), -1);
+        assertTrue(m.getSnapshots().isEmpty());
+    }
+
+    /**
+     * Two functions of one locomotive in flight at once are told apart by function number
+     */
+    @Test
+    public void testFunctionsDistinguished()
+    {
+        CommandLatencyMonitor m = new CommandLatencyMonitor();
+        int uid = 0x4000 + 7;
+
+        m.sent(frame(CS2Message.CMD_LOCO_FUNCTION, false, uid, 1, 1), 0);
+        m.sent(frame(CS2Message.CMD_LOCO_FUNCTION, false, uid, 2, 1), 5 * MS);
+
+        assertEquals(m.echoed(frame(CS2Message.CMD_LOCO_FUNCTION, true, uid, 2, 1), 25 * MS), 20 * MS);
+        assertEquals(m.echoed(frame(CS2Message.CMD_LOCO_FUNCTION, true, uid, 1, 1), 30 * MS), 30 * MS);
+
+        assertEquals(m.getHistogram(CommandLatencyMonitor.protocolType.MFX).getSnapshot().getCount(), 2);
+    }
+
+    /**
+     * A stop command, whose key is all zeros apart from the command, still matches
+     */
+    @Test
+    public void testSystemStopMatched()
+    {
+        CommandLatencyMonitor m = new CommandLatencyMonitor();
+
+        m.sent(frame(CS2Message.CMD_SYSTEM, false, 0, CS2Message.CMD_SYSSUB_STOP), 0);
+
+        assertEquals(m.echoed(frame(CS2Message.CMD_SYSTEM, true, 0, CS2Message.CMD_SYSSUB_STOP), 3 * MS), 3 * MS);
+        assertEquals(m.getHistogram(CommandLatencyMonitor.commandType.SYSTEM).getSnapshot().getCount(), 1);
+    }
+
+    /**
+     * An echo long after its command is not counted as its answer
+     */
+    @Test
+    public void testStaleEchoDiscarded()
+    {
+        CommandLatencyMonitor m = new CommandLatencyMonitor();
+
+        m.sent(frame(CS2Message.CMD_LOCO_DIRECTION, false, 0xc000 + 3, 1), 0);
+
+        assertEquals(m.echoed(frame(CS2Message.CMD_LOCO_DIRECTION, true, 0xc000 + 3, 1), CommandLatencyMonitor.MAX_PENDING_NANOS + MS), -1);
+        assertEquals(m.getUnmatchedCount(), 1);
+    }
+}
@@ -0,0 +1,369 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.base.ConditionEngine;
+import org.traincontrol.base.NodeAnd;
+import org.traincontrol.base.NodeExpression;
+import org.traincontrol.base.NodeGroup;
+import org.traincontrol.base.NodeOr;
+import org.traincontrol.base.NodeRouteCommand;
+import org.traincontrol.base.RouteCommand;
+import org.traincontrol.marklin.MarklinAccessory;
+import org.traincontrol.marklin.MarklinControlStation;
+import org.traincontrol.marklin.MarklinFeedback;
+import org.traincontrol.marklin.udp.CS2Message;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+
+/**
+ * Compiled route conditions: after any sequence of sensor and accessory changes, a compiled condition
+ * reads exactly what walking its tree does, and a change only touches the conditions that read it.
+ *
+ * Runs against the simulated model.
+ */
+public class testConditionEngine
+{
+    private static MarklinControlStation model;
+
+    // Inputs the random conditions draw from
+    private static final int FEEDBACKS = 12;
+    private static final int FIRST_FEEDBACK = 901;
+    private static final int ACCESSORIES = 8;
+    private static final int FIRST_ACCESSORY = 901;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, false);
+
+        for (int i = 0; i < FEEDBACKS; i++)
+        {
+            model.newFeedback(FIRST_FEEDBACK + i, null);
+        }
+    }
+
+    private static NodeExpression leaf(Random r)
+    {
+        if (r.nextBoolean())
+        {
+            return new NodeRouteCommand(RouteCommand.RouteCommandFeedback(FIRST_FEEDBACK + r.nextInt(FEEDBACKS), r.nextBoolean()));
+        }
+
+        return new NodeRouteCommand(RouteCommand.RouteCommandAccessory(FIRST_ACCESSORY + r.nextInt(ACCESSORIES),
+            r.nextBoolean() ? Accessory.accessoryDecoderType.MM2 : Accessory.accessoryDecoderType.DCC, r.nextBoolean()));
+    }
+
+    private static NodeExpression expression(Random r, int depth)
+    {
+        if (depth == 0 || r.nextInt(4) == 0) return leaf(r);
+
+        switch (r.nextInt(3))
+        {
+            case 0:
+                return new NodeAnd(expression(r, depth - 1), expression(r, depth - 1));
+            case 1:
+                return new NodeOr(expression(r, depth - 1), expression(r, depth - 1));
+            default:
+                List<NodeExpression> children = new ArrayList<>();
+
+                for (int i = 1 + r.nextInt(3); i > 0; i--)
+                {
+                    children.add(expression(r, depth - 1));
+                }
+
+                return new NodeGroup(children);
+        }
+    }
+
+    private static void randomChange(Random r)
+    {
+        if (r.nextBoolean())
+        {
+            model.setFeedbackState(Integer.toString(FIRST_FEEDBACK + r.nextInt(FEEDBACKS)), r.nextBoolean());
+        }
+        else
+        {
+            model.setAccessoryState(FIRST_ACCESSORY + r.nextInt(ACCESSORIES),
+                r.nextBoolean() ? Accessory.accessoryDecoderType.MM2 : Accessory.accessoryDecoderType.DCC, r.nextBoolean());
+        }
+    }
+
+    /**
+     * Random conditions, random changes: the compiled value always matches the tree walk
+     */
+    @Test
+    public void testMatchesTreeWalk()
+    {
+        Random r = new Random(34);
+        ConditionEngine engine = model.getConditionEngine();
+        List<NodeExpression> expressions = new ArrayList<>();
+        List<ConditionEngine.Compiled> compiled = new ArrayList<>();
+
+        for (int i = 0; i < 200; i++)
+        {
+            NodeExpression e = expression(r, 5);
+            expressions.add(e);
+            compiled.add(engine.compile(e));
+        }
+
+        for (int step = 0; step < 500; step++)
+        {
+            randomChange(r);
+
+            for (int i = 0; i < expressions.size(); i++)
+            {
+                assertTrue(compiled.get(i).isTracked());
+                assertEquals(compiled.get(i).isSatisfied(), expressions.get(i).evaluate(model),
+                    "step " + step + ": " + NodeExpression.toTextRepresentation(expressions.get(i), model));
+            }
+        }
+
+        for (ConditionEngine.Compiled c : compiled)
+        {
+            engine.release(c);
+        }
+    }
+
+    /**
+     * A change touches only the conditions that read the input, and a released condition no more
+     */
+    @Test
+    public void testOnlyDependentsAreUpdated() throws Exception
+    {
+        ConditionEngine engine = model.getConditionEngine();
+
+        model.setFeedbackState("901", false);
+        model.setFeedbackState("902", false);
+
+        NodeExpression reads901 = NodeExpression.fromTextRepresentation("Feedback 901,1 AND Feedback 901,1", model);
+        NodeExpression reads902 = NodeExpression.fromTextRepresentation("Feedback 902,1", model);
+
+        ConditionEngine.Compiled a = engine.compile(reads901);
+        ConditionEngine.Compiled b = engine.compile(reads902);
+
+        assertFalse(a.isSatisfied());
+
+        long before = engine.getLeafUpdates();
+        model.setFeedbackState("901", true);
+
+        assertTrue(a.isSatisfied());
+        assertFalse(b.isSatisfied());
+        assertEquals(engine.getLeafUpdates() - before, 2, "both leaves of the first condition, nothing else");
+
+        // Setting a sensor to the state it already has touches nothing
+        before = engine.getLeafUpdates();
+        model.setFeedbackState("901", true);
+        assertEquals(engine.getLeafUpdates() - before, 0);
+
+        engine.release(a);
+        before = engine.getLeafUpdates();
+        model.setFeedbackState("901", false);
+        assertEquals(engine.getLeafUpdates() - before, 0);
+
+        engine.release(b);
+    }
+
+    /**
+     * The manual path and the Central Station's setting a sensor at once leave the compiled condition
+     * agreeing with the sensor
+     */
+    @Test(timeOut = 60000)
+    public void testRacingUpdates() throws Exception
+    {
+        ConditionEngine engine = model.getConditionEngine();
+        MarklinFeedback fb = model.newFeedback(913, null);
+        ConditionEngine.Compiled c = engine.compile(NodeExpression.fromTextRepresentation("Feedback 913,1", model));
+
+        // The manual path waits for the Central Station's, which holds the sensor's lock throughout
+        synchronized (fb)
+        {
+            Thread manual = new Thread(() -> fb.setState(!fb.isSet()));
+            manual.start();
+            manual.join(200);
+
+            assertEquals(manual.getState(), Thread.State.BLOCKED, "setState does not take the sensor's lock");
+        }
+
+        for (int round = 0; round < 500; round++)
+        {
+            boolean manual = round % 2 == 0;
+            CyclicBarrier start = new CyclicBarrier(2);
+
+            Thread ui = new Thread(() ->
+            {
+                try
+                {
+                    start.await();
+                    fb.setState(manual);
+                }
+                catch (Exception e)
+                {
+                }
+            });
+
+            Thread cs = new Thread(() ->
+            {
+                try
+                {
+                    start.await();
+                    fb.parseMessage(new CS2Message(CS2Message.CMD_ACC_SENSOR,
+                        new byte[] {0, 0, (byte) (913 >> 8), (byte) 913, 0, (byte) (manual ? 0 : 1), 0, 0}));
+                }
+                catch (Exception e)
+                {
+                }
+            });
+
+            ui.start();
+            cs.start();
+            ui.join();
+            cs.join();
+
+            assertEquals(c.isSatisfied(), fb.isSet(), "round " + round);
+        }
+
+        engine.release(c);
+    }
+
+    /**
+     * A condition compiled while its accessory is being switched reads the state the accessory ends
+     * up with - the engine hears of the switch only once it is stored
+     */
+    @Test(timeOut = 60000)
+    public void testCompileRacingAccessory() throws Exception
+    {
+        ConditionEngine engine = model.getConditionEngine();
+
+        for (int round = 0; round < 200; round++)
+        {
+            // A fresh input each round, so that compiling has to read it
+            int address = 2001 + round;
+            MarklinAccessory acc = model.newSwitch(address, Accessory.accessoryDecoderType.MM2, false);
+            NodeExpression e = new NodeRouteCommand(RouteCommand.RouteCommandAccessory(address, Accessory.accessoryDecoderType.MM2, true));
+            CyclicBarrier start = new CyclicBarrier(2);
+            ConditionEngine.Compiled[] c = {null};
+
+            Thread compiler = new Thread(() ->
+            {
+                try
+                {
+                    start.await();
+                    c[0] = engine.compile(e);
+                }
+                catch (Exception ex)
+                {
+                }
+            });
+
+            Thread switcher = new Thread(() ->
+            {
+                try
+                {
+                    start.await();
+                    acc.setSwitched(true);
+                }
+                catch (Exception ex)
+                {
+                }
+            });
+
+            compiler.start();
+            switcher.start();
+            compiler.join();
+            switcher.join();
+
+            assertEquals(c[0].isSatisfied(), acc.isSwitched(), "round " + round);
+            engine.release(c[0]);
+        }
+    }
+
+    /**
+     * Autoloc leaves are not tracked, and are only evaluated where the tracked ones leave the answer open
+     */
+    @Test
+    public void testUntrackedLeaves() throws Exception
+    {
+        ConditionEngine engine = model.getConditionEngine();
+        String loc = "CE any locomotive";
+
+        NodeExpression e = new NodeOr(
+            new NodeRouteCommand(RouteCommand.RouteCommandFeedback(903, true)),
+            new NodeRouteCommand(RouteCommand.RouteCommandAutoLocomotive(loc, 9999))
+        );
+
+        ConditionEngine.Compiled c = engine.compile(e);
+
+        assertFalse(c.isTracked());
+        assertThrows(IllegalStateException.class, c::isSatisfied);
+
+        // No autonomy: the autoloc leaf is false, as Route.evaluate has it
+        model.setFeedbackState("903", false);
+        assertEquals(c.evaluate(model), e.evaluate(model));
+        assertFalse(c.evaluate(model));
+
+        model.setFeedbackState("903", true);
+        assertTrue(c.evaluate(model));
+
+        engine.release(c);
+    }
+
+    /**
+     * Reported rather than asserted, since it depends on the machine running it
+     */
+    @Test
+    public void testBenchmark()
+    {
+        Random r = new Random(35);
+        ConditionEngine engine = model.getConditionEngine();
+        List<NodeExpression> expressions = new ArrayList<>();
+        List<ConditionEngine.Compiled> compiled = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++)
+        {
+            NodeExpression e = expression(r, 6);
+            expressions.add(e);
+            compiled.add(engine.compile(e));
+        }
+
+        int rounds = 200;
+        long start = System.nanoTime();
+        int a = 0;
+
+        for (int i = 0; i < rounds; i++)
+        {
+            for (ConditionEngine.Compiled c : compiled)
+            {
+                if (c.isSatisfied()) a++;
+            }
+        }
+
+        long compiledNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int b = 0;
+
+        for (int i = 0; i < rounds; i++)
+        {
+            for (NodeExpression e : expressions)
+            {
+                if (e.evaluate(model)) b++;
+            }
+        }
+
+        long walkNanos = System.nanoTime() - start;
+
+        assertEquals(a, b);
+
+        System.out.println(String.format("Conditions: compiled %.2f us/read; tree walk %.2f us/read",
+            compiledNanos / 1000.0 / (rounds * compiled.size()), walkNanos / 1000.0 / (rounds * expressions.size())));
+
+        for (ConditionEngine.Compiled c : compiled)
+        {
+            engine.release(c);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.traincontrol.base.Locomotive;
+import org.traincontrol.marklin.MarklinConsist;
+import org.traincontrol.marklin.MarklinControlStation;
+import org.traincontrol.marklin.MarklinLocomotive;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+
+/**
+ * Consist commands: each is computed for the head and every member in one pass and sent as one batch,
+ * the scaling and direction rules are the ones the per-member fan-out used, and consists sharing a
+ * member can be driven, and relinked, from several threads at once without deadlocking.
+ *
+ * Runs against the simulated model.
+ */
+public class testConsist
+{
+    private static MarklinControlStation model;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, false);
+        model.stop();
+    }
+
+    private static void link(MarklinLocomotive head, Object... membersAndMultipliers)
+    {
+        Map<String, Double> list = new HashMap<>();
+
+        for (int i = 0; i < membersAndMultipliers.length; i += 2)
+        {
+            list.put(((MarklinLocomotive) membersAndMultipliers[i]).getName(), (Double) membersAndMultipliers[i + 1]);
+        }
+
+        head.preSetLinkedLocomotives(list);
+        head.setLinkedLocomotives();
+    }
+
+    private static void deleteAll(String... names)
+    {
+        for (String name : names)
+        {
+            model.deleteLoc(name);
+        }
+    }
+
+    /**
+     * The same rounding and clamping the members always had
+     */
+    @Test
+    public void testMemberSpeed()
+    {
+        assertEquals(MarklinConsist.memberSpeed(10, 1.0), 10);
+        assertEquals(MarklinConsist.memberSpeed(10, -2.0), 20);
+        assertEquals(MarklinConsist.memberSpeed(10, 0.8), 8);
+        assertEquals(MarklinConsist.memberSpeed(15, 0.5), 7, "down below one");
+        assertEquals(MarklinConsist.memberSpeed(15, 1.5), 23, "up above one");
+        assertEquals(MarklinConsist.memberSpeed(80, 1.5), 100, "clamped");
+
+        assertEquals(MarklinConsist.memberDirection(Locomotive.locDirection.DIR_FORWARD, -1.0), Locomotive.locDirection.DIR_BACKWARD);
+        assertEquals(MarklinConsist.memberDirection(Locomotive.locDirection.DIR_BACKWARD, 0.5), Locomotive.locDirection.DIR_BACKWARD);
+    }
+
+    /**
+     * Every command reaches the head and all of its members, scaled, as a single batch
+     */
+    @Test
+    public void testOneBatchPerCommand()
+    {
+        MarklinLocomotive head = model.newDCCLocomotive("Consist head", 4201);
+        MarklinLocomotive m1 = model.newDCCLocomotive("Consist member 1", 4202);
+        MarklinLocomotive m2 = model.newDCCLocomotive("Consist member 2", 4203);
+        MarklinLocomotive m3 = model.newDCCLocomotive("Consist member 3", 4204);
+
+        try
+        {
+            link(head, m1, 1.0, m2, -2.0, m3, 0.8);
+            MarklinConsist consist = head.getConsist();
+            long batches = consist.getBatchCount(), frames = consist.getFrameCount();
+            long memberBatches = m1.getConsist().getBatchCount();
+
+            head.setSpeed(10);
+            assertEquals(consist.getBatchCount() - batches, 1);
+            assertEquals(consist.getFrameCount() - frames, 4, "one speed each");
+
+            assertEquals(head.getSpeed(), 10);
+            assertEquals(m1.getSpeed(), 10);
+            assertEquals(m2.getSpeed(), 20);
+            assertEquals(m3.getSpeed(), 8);
+            assertNotEquals(m2.getDirection(), head.getDirection());
+            assertEquals(m3.getDirection(), head.getDirection());
+
+            head.setSpeed(50);
+            assertEquals(consist.getBatchCount() - batches, 2);
+            assertEquals(consist.getFrameCount() - frames, 8);
+            assertEquals(m2.getSpeed(), 100);
+
+            head.setDirection(Locomotive.locDirection.DIR_BACKWARD);
+            head.setF(1, true);
+            assertEquals(consist.getBatchCount() - batches, 4);
+            assertEquals(consist.getFrameCount() - frames, 16);
+
+            assertEquals(m1.getDirection(), Locomotive.locDirection.DIR_BACKWARD);
+            assertEquals(m2.getDirection(), Locomotive.locDirection.DIR_FORWARD);
+            assertTrue(m1.getF(1) && m2.getF(1) && m3.getF(1) && head.getF(1));
+
+            // Each engine's stop, and its speed zeroed
+            head.stop();
+            assertEquals(consist.getBatchCount() - batches, 5);
+            assertEquals(consist.getFrameCount() - frames, 24);
+            assertEquals(m2.getSpeed(), 0);
+            assertEquals(head.getSpeed(), 0);
+
+            // A member commanded on its own is a consist of one
+            m1.setSpeed(30);
+            assertEquals(consist.getBatchCount() - batches, 5);
+            assertEquals(m1.getConsist().getBatchCount() - memberBatches, 1);
+            assertEquals(m2.getSpeed(), 0);
+
+            head.syncFromState();
+            assertEquals(consist.getBatchCount() - batches, 6);
+            assertEquals(m1.getSpeed(), 0, "members follow the head");
+
+            assertTrue(consist.getLastSkewNanos() > 0);
+            assertTrue(consist.getMaxSkewNanos() >= consist.getLastSkewNanos());
+        }
+        finally
+        {
+            deleteAll("Consist head", "Consist member 1", "Consist member 2", "Consist member 3");
+        }
+    }
+
+    /**
+     * Two consists sharing a member, driven from several threads along with the member itself while
+     * the consists are relinked, neither deadlock nor lose a member's command
+     */
+    @Test(timeOut = 30000)
+    public void testConcurrentConsists() throws Exception
+    {
+        MarklinLocomotive a = model.newDCCLocomotive("Consist A", 4211);
+        MarklinLocomotive b = model.newDCCLocomotive("Consist B", 4212);
+        MarklinLocomotive shared = model.newDCCLocomotive("Consist shared", 4213);
+        MarklinLocomotive other = model.newDCCLocomotive("Consist other", 4214);
+
+        try
+        {
+            link(a, shared, 1.0, other, 1.0);
+            link(b, shared, -1.0);
+
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            List<Thread> threads = new ArrayList<>();
+            MarklinLocomotive[] drivers = {a, b, shared, other};
+
+            for (MarklinLocomotive driver : drivers)
+            {
+                threads.add(new Thread(() ->
+                {
+                    try
+                    {
+                        for (int i = 0; i < 2000; i++)
+                        {
+                            driver.setSpeed(i % 100);
+
+                            if (i % 10 == 0)
+                            {
+                                driver.setDirection(i % 20 == 0 ? Locomotive.locDirection.DIR_FORWARD : Locomotive.locDirection.DIR_BACKWARD);
+                                driver.setF(i % 5, i % 3 == 0);
+                            }
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        error.compareAndSet(null, t);
+                    }
+                }));
+            }
+
+            threads.add(new Thread(() ->
+            {
+                try
+                {
+                    for (int i = 0; i < 200; i++)
+                    {
+                        a.unlinkLocomotive(other);
+                        link(a, shared, 1.0, other, 1.0);
+                    }
+                }
+                catch (Throwable t)
+                {
+                    error.compareAndSet(null, t);
+                }
+            }));
+
+            for (Thread t : threads)
+            {
+                t.start();
+            }
+
+            for (Thread t : threads)
+            {
+                t.join();
+            }
+
+            assertNull(error.get());
+
+            a.setSpeed(40);
+            assertEquals(shared.getSpeed(), 40);
+            assertEquals(other.getSpeed(), 40);
+
+            b.setDirection(Locomotive.locDirection.DIR_FORWARD);
+            assertEquals(shared.getDirection(), Locomotive.locDirection.DIR_BACKWARD);
+        }
+        finally
+        {
+            deleteAll("Consist A", "Consist B", "Consist shared", "Consist other");
+        }
+    }
+
+    /**
+     * A full sync of a consist whose member sorts before its head, racing commands to the consist,
+     * does not deadlock - the sync used to lock the head, then the member, against the consist's order
+     */
+    @Test(timeOut = 30000)
+    public void testSyncRacingCommands() throws Exception
+    {
+        MarklinLocomotive head = model.newDCCLocomotive("Consist sync head", 4222);
+        MarklinLocomotive member = model.newDCCLocomotive("Consist sync member", 4221);
+
+        try
+        {
+            link(head, member, 1.0);
+            assertTrue(member.getIntUID() < head.getIntUID());
+
+            AtomicReference<Throwable> error = new AtomicReference<>();
+
+            // Holding the member, as a consist command does before it takes the head: a sync that
+            // has to wait for the member must not be holding the head meanwhile
+            synchronized (member)
+            {
+                Thread blocked = new Thread(head::syncFromNetwork);
+                blocked.start();
+
+                while (blocked.getState() != Thread.State.BLOCKED)
+                {
+                    Thread.sleep(1);
+                }
+
+                Thread takesHead = new Thread(() ->
+                {
+                    synchronized (head)
+                    {
+                        head.getName();
+                    }
+                });
+
+                takesHead.start();
+                takesHead.join(2000);
+
+                assertFalse(takesHead.isAlive(), "the sync holds the head while waiting for the member");
+            }
+
+            Thread sync = new Thread(() ->
+            {
+                try
+                {
+                    for (int i = 0; i < 2000; i++)
+                    {
+                        head.syncFromNetwork();
+                    }
+                }
+                catch (Throwable t)
+                {
+                    error.compareAndSet(null, t);
+                }
+            });
+
+            Thread drive = new Thread(() ->
+            {
+                try
+                {
+                    for (int i = 0; i < 2000; i++)
+                    {
+                        head.setSpeed(i % 100);
+                    }
+                }
+                catch (Throwable t)
+                {
+                    error.compareAndSet(null, t);
+                }
+            });
+
+            sync.start();
+            drive.start();
+            sync.join();
+            drive.join();
+
+            assertNull(error.get());
+
+            head.setSpeed(30);
+            assertEquals(member.getSpeed(), 30);
+        }
+        finally
+        {
+            deleteAll("Consist sync head", "Consist sync member");
+        }
+    }
+}
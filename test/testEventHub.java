@@ -0,0 +1,342 @@
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.traincontrol.base.EventHub;
+import org.traincontrol.marklin.MarklinControlStation;
+import org.traincontrol.marklin.udp.CS2Message;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+
+/**
+ * Event subscriptions: a sensor's listeners hear that sensor and no other, one-shot futures complete
+ * on the edge they wait for, a publisher delivers no more than was requested, and thousands of rules
+ * share a handful of delivery threads.
+ *
+ * Runs against the simulated model.
+ */
+public class testEventHub
+{
+    private static MarklinControlStation model;
+    private static final String[] sensors = new String[3];
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, false);
+
+        for (int i = 0; i < 3; i++)
+        {
+            sensors[i] = model.newFeedback(47300 + i, null).getName();
+            model.setFeedbackState(sensors[i], false);
+        }
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException
+    {
+        assertTrue(latch.await(5, TimeUnit.SECONDS), "timed out");
+    }
+
+    /**
+     * Callbacks hear only their own sensor, only on a change, and only the edge they asked for
+     */
+    @Test
+    public void testFeedbackCallbacks() throws Exception
+    {
+        String a = sensors[0], b = sensors[1];
+        List<String> heard = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch cleared = new CountDownLatch(1);
+
+        EventHub.Subscription all = model.getEvents().subscribe(EventHub.Kind.FEEDBACK, a, e -> heard.add(e.toString()));
+        EventHub.Subscription clear = model.getEvents().onFeedback(a, false, e -> cleared.countDown());
+
+        model.setFeedbackState(b, true);
+        model.setFeedbackState(a, true);
+        model.setFeedbackState(a, true);
+        model.setFeedbackState(a, false);
+
+        await(cleared);
+        Thread.sleep(100);
+
+        assertEquals(heard, Arrays.asList("FEEDBACK " + a + " true", "FEEDBACK " + a + " false"));
+
+        all.cancel();
+        clear.cancel();
+        model.setFeedbackState(b, false);
+    }
+
+    /**
+     * Threads racing to set a sensor to the same state publish one edge between them, not one each
+     */
+    @Test(timeOut = 60000)
+    public void testRacingSettersPublishOneEdge() throws Exception
+    {
+        String d = model.newFeedback(47310, null).getName();
+        model.setFeedbackState(d, false);
+
+        int rounds = 200, threads = 4;
+        AtomicInteger heard = new AtomicInteger();
+        CountDownLatch all = new CountDownLatch(rounds * 2);
+
+        EventHub.Subscription s = model.getEvents().subscribe(EventHub.Kind.FEEDBACK, d, e -> { heard.incrementAndGet(); all.countDown(); });
+
+        for (int round = 0; round < rounds; round++)
+        {
+            CyclicBarrier start = new CyclicBarrier(threads);
+            List<Thread> setters = new ArrayList<>();
+
+            for (int i = 0; i < threads; i++)
+            {
+                setters.add(new Thread(() ->
+                {
+                    try
+                    {
+                        start.await();
+                        model.setFeedbackState(d, true);
+                    }
+                    catch (Exception e)
+                    {
+                    }
+                }));
+            }
+
+            for (Thread t : setters)
+            {
+                t.start();
+            }
+
+            for (Thread t : setters)
+            {
+                t.join();
+            }
+
+            model.setFeedbackState(d, false);
+        }
+
+        await(all);
+        Thread.sleep(100);
+        s.cancel();
+
+        assertEquals(heard.get(), rounds * 2, "one edge each way per round");
+    }
+
+    /**
+     * One-shots complete on the edge they wait for, and remove themselves once done
+     */
+    @Test
+    public void testFutures() throws Exception
+    {
+        String c = sensors[2];
+        int before = model.getEvents().getListenerCount();
+
+        CompletableFuture<EventHub.Event> occupied = model.getEvents().whenOccupied(c);
+        CompletableFuture<EventHub.Event> clear = model.getEvents().whenClear(c);
+
+        assertFalse(occupied.isDone());
+        model.setFeedbackState(c, true);
+
+        assertTrue(occupied.get(5, TimeUnit.SECONDS).getState());
+        assertFalse(clear.isDone());
+
+        model.setFeedbackState(c, false);
+        assertFalse(clear.get(5, TimeUnit.SECONDS).getState());
+
+        Thread.sleep(100);
+        assertEquals(model.getEvents().getListenerCount(), before, "one-shots unsubscribe");
+
+        CompletableFuture<EventHub.Event> cancelled = model.getEvents().whenOccupied(c);
+        cancelled.cancel(false);
+        assertEquals(model.getEvents().getListenerCount(), before, "and so do cancelled ones");
+    }
+
+    /**
+     * Nothing is delivered beyond demand; a subscriber that falls too far behind loses the oldest
+     */
+    @Test
+    public void testPublisherBackpressure() throws Exception
+    {
+        EventHub hub = new EventHub(e -> fail(e.toString()));
+        List<Boolean> received = Collections.synchronizedList(new ArrayList<>());
+        EventHub.Demand[] demand = new EventHub.Demand[1];
+        CountDownLatch subscribed = new CountDownLatch(1);
+
+        hub.publisher(EventHub.Kind.ACCESSORY, "Switch 1").subscribe(new EventHub.Subscriber()
+        {
+            @Override
+            public void onSubscribe(EventHub.Demand d)
+            {
+                demand[0] = d;
+                subscribed.countDown();
+            }
+
+            @Override
+            public void onNext(EventHub.Event event)
+            {
+                received.add(event.getState());
+            }
+
+            @Override
+            public void onError(Throwable error)
+            {
+            }
+
+            @Override
+            public void onComplete()
+            {
+            }
+        });
+
+        await(subscribed);
+
+        int total = EventHub.PUBLISHER_BUFFER + 50;
+
+        for (int i = 0; i < total; i++)
+        {
+            hub.publish(EventHub.Kind.ACCESSORY, "Switch 1", i % 2 == 0, null);
+            hub.publish(EventHub.Kind.ACCESSORY, "Switch 2", true, null);
+        }
+
+        demand[0].request(3);
+        Thread.sleep(200);
+
+        assertEquals(received.size(), 3, "only what was requested");
+        assertEquals(hub.getDroppedCount(), 50, "the oldest beyond the buffer");
+
+        demand[0].request(Long.MAX_VALUE);
+        Thread.sleep(200);
+
+        assertEquals(received.size(), EventHub.PUBLISHER_BUFFER, "the rest of the buffer, and not Switch 2");
+
+        demand[0].cancel();
+        hub.publish(EventHub.Kind.ACCESSORY, "Switch 1", true, null);
+        Thread.sleep(100);
+
+        assertEquals(received.size(), EventHub.PUBLISHER_BUFFER);
+        assertEquals(hub.getListenerCount(), 0);
+    }
+
+    /**
+     * Ten thousand rules cost a handful of threads, and each hears its own sensor
+     */
+    @Test
+    public void testManySubscriptions() throws Exception
+    {
+        EventHub hub = new EventHub(e -> fail(e.toString()));
+        int rules = 10000;
+        int threadsBefore = Thread.activeCount();
+        AtomicInteger fired = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(rules);
+
+        for (int i = 0; i < rules; i++)
+        {
+            hub.onFeedback("S" + i, true, e -> { fired.incrementAndGet(); done.countDown(); });
+        }
+
+        for (int i = 0; i < rules; i++)
+        {
+            hub.publish(EventHub.Kind.FEEDBACK, "S" + i, true, null);
+            hub.publish(EventHub.Kind.FEEDBACK, "S" + i, false, null);
+        }
+
+        await(done);
+        Thread.sleep(100);
+
+        assertEquals(fired.get(), rules, "once each, on the occupied edge");
+        assertEquals(hub.getDeliveredCount(), rules);
+        assertTrue(hub.getThreadCount() <= Runtime.getRuntime().availableProcessors() + 4, hub.getThreadCount() + " lanes");
+        assertTrue(Thread.activeCount() - threadsBefore < 64, (Thread.activeCount() - threadsBefore) + " threads");
+    }
+
+    /**
+     * Cancelling the last listener for a name forgets the name, so an idle hub is empty again; one
+     * subscribing while another cancels on the same name is never lost
+     */
+    @Test
+    public void testCancelRemovesEmptyKeys() throws Exception
+    {
+        EventHub hub = new EventHub(e -> fail(e.toString()));
+        Field field = EventHub.class.getDeclaredField("listeners");
+        field.setAccessible(true);
+        Map<?, ?> listeners = (Map<?, ?>) field.get(hub);
+
+        List<EventHub.Subscription> subs = new ArrayList<>();
+
+        for (int i = 0; i < 1000; i++)
+        {
+            subs.add(hub.onFeedback("S" + i, true, e -> { }));
+        }
+
+        subs.forEach(EventHub.Subscription::cancel);
+
+        assertEquals(hub.getListenerCount(), 0);
+        assertTrue(listeners.isEmpty(), listeners.size() + " names left behind");
+
+        for (int round = 0; round < 500; round++)
+        {
+            EventHub.Subscription old = hub.onFeedback("Shared", true, e -> { });
+            CountDownLatch heard = new CountDownLatch(1);
+            EventHub.Subscription[] added = new EventHub.Subscription[1];
+            CyclicBarrier barrier = new CyclicBarrier(2);
+
+            Thread t = new Thread(() ->
+            {
+                try
+                {
+                    barrier.await();
+                }
+                catch (Exception e)
+                {
+                    return;
+                }
+
+                added[0] = hub.onFeedback("Shared", true, e -> heard.countDown());
+            });
+
+            t.start();
+            barrier.await();
+            old.cancel();
+            t.join();
+
+            hub.publish(EventHub.Kind.FEEDBACK, "Shared", true, null);
+            await(heard);
+
+            added[0].cancel();
+            assertTrue(listeners.isEmpty());
+        }
+    }
+
+    private static CS2Message power(int sub)
+    {
+        CS2Message m = new CS2Message(CS2Message.CMD_SYSTEM, new byte[] {0, 0, 0, 0, (byte) sub});
+
+        return new CS2Message(m.getCommand(), m.getHash(), true, m.getData());
+    }
+
+    /**
+     * The Central Station reporting the power going on reaches the model's subscribers
+     */
+    @Test
+    public void testPower() throws Exception
+    {
+        model.receiveMessage(power(CS2Message.CMD_SYSSUB_STOP));
+        Thread.sleep(200);
+
+        CompletableFuture<EventHub.Event> on = model.getEvents().whenPower(true);
+        model.receiveMessage(power(CS2Message.CMD_SYSSUB_GO));
+
+        assertTrue(on.get(5, TimeUnit.SECONDS).getState());
+        assertNull(on.get().getName());
+        assertTrue(model.getPowerState());
+
+        model.receiveMessage(power(CS2Message.CMD_SYSSUB_STOP));
+    }
+}
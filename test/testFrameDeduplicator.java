@@ -0,0 +1,133 @@
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.marklin.udp.CS2Message;
+import org.traincontrol.marklin.udp.FrameDeduplicator;
+
+/**
+ * Suppression of the repeated frames the CS3 sends.
+ *
+ * Needs no model, no socket and no display.  Every time is passed in explicitly.
+ */
+public class testFrameDeduplicator
+{
+    /**
+     * A response frame addressed to a UID
+     */
+    private static CS2Message frame(int command, int uid, int... rest)
+    {
+        byte[] data = new byte[4 + rest.length];
+        data[0] = (byte) (uid >> 24);
+        data[1] = (byte) (uid >> 16);
+        data[2] = (byte) (uid >> 8);
+        data[3] = (byte) uid;
+
+        for (int i = 0; i < rest.length; i++)
+        {
+            data[4 + i] = (byte) rest[i];
+        }
+
+        return new CS2Message(command, CS2Message.CS2_PROTOCOL_V2, true, data);
+    }
+
+    /**
+     * A repeat within the window is dropped and counted; one after it is not
+     */
+    @Test
+    public void testWindow()
+    {
+        FrameDeduplicator d = new FrameDeduplicator();
+        CS2Message a = frame(CS2Message.CMD_ACC_SWITCH, 0x3000 + 5, 1, 1);
+
+        assertFalse(d.isDuplicate(a, 1000));
+        assertTrue(d.isDuplicate(frame(CS2Message.CMD_ACC_SWITCH, 0x3000 + 5, 1, 1), 1000 + FrameDeduplicator.DEFAULT_WINDOW_MS));
+        assertEquals(d.getDroppedCount(FrameDeduplicator.frameClass.ACCESSORY), 1);
+
+        // A genuine second command, well after the first
+        assertFalse(d.isDuplicate(a, 2000));
+        assertEquals(d.getDroppedCount(), 1);
+    }
+
+    /**
+     * Interleaved repeats of two frames are both caught - the previous filter only compared each
+     * frame with the one before it
+     */
+    @Test
+    public void testInterleaved()
+    {
+        FrameDeduplicator d = new FrameDeduplicator();
+        CS2Message a = frame(CS2Message.CMD_LOCO_VELOCITY, 0x4005, 0, 100);
+        CS2Message b = frame(CS2Message.CMD_ACC_SWITCH, 0x3000 + 7, 0, 1);
+
+        assertFalse(d.isDuplicate(a, 0));
+        assertFalse(d.isDuplicate(b, 1));
+        assertTrue(d.isDuplicate(frame(CS2Message.CMD_LOCO_VELOCITY, 0x4005, 0, 100), 2));
+        assertTrue(d.isDuplicate(frame(CS2Message.CMD_ACC_SWITCH, 0x3000 + 7, 0, 1), 3));
+
+        assertEquals(d.getDroppedCount(FrameDeduplicator.frameClass.LOCOMOTIVE), 1);
+        assertEquals(d.getDroppedCount(FrameDeduplicator.frameClass.ACCESSORY), 1);
+    }
+
+    /**
+     * Frames differing in any byte are not mistaken for each other
+     */
+    @Test
+    public void testDistinctFramesPass()
+    {
+        FrameDeduplicator d = new FrameDeduplicator();
+
+        // Every speed of every locomotive in one burst, within a single window
+        for (int uid = 0x4001; uid <= 0x4040; uid++)
+        {
+            for (int speed = 0; speed < 16; speed++)
+            {
+                assertFalse(d.isDuplicate(frame(CS2Message.CMD_LOCO_VELOCITY, uid, speed >> 8, speed * 16), 10));
+            }
+        }
+
+        assertEquals(d.getDroppedCount(), 0);
+    }
+
+    /**
+     * The window is set per command class, and a class with no window is never filtered
+     */
+    @Test
+    public void testPolicyPerClass()
+    {
+        FrameDeduplicator d = new FrameDeduplicator();
+
+        // Off by default for system frames
+        CS2Message stop = frame(CS2Message.CMD_SYSTEM, 0, CS2Message.CMD_SYSSUB_STOP);
+        assertEquals(d.getWindow(FrameDeduplicator.frameClass.SYSTEM), 0);
+        assertFalse(d.isDuplicate(stop, 0));
+        assertFalse(d.isDuplicate(stop, 1));
+
+        // Turned off for feedback
+        d.setWindow(FrameDeduplicator.frameClass.FEEDBACK, 0);
+        CS2Message s88 = frame(CS2Message.CMD_ACC_SENSOR, 0x10001, 0, 1, 0, 10);
+        assertFalse(d.isDuplicate(s88, 0));
+        assertFalse(d.isDuplicate(s88, 1));
+
+        // Lengthened for accessories
+        d.setWindow(FrameDeduplicator.frameClass.ACCESSORY, 500);
+        CS2Message acc = frame(CS2Message.CMD_ACC_SWITCH, 0x3000 + 1, 1, 1);
+        assertFalse(d.isDuplicate(acc, 0));
+        assertTrue(d.isDuplicate(acc, 400));
+
+        assertEquals(d.getDroppedCount(), 1);
+    }
+
+    /**
+     * Timestamps are compared safely across the millisecond clock wrapping
+     */
+    @Test
+    public void testClockWrap()
+    {
+        FrameDeduplicator d = new FrameDeduplicator();
+        CS2Message a = frame(CS2Message.CMD_ACC_SWITCH, 0x3000 + 2, 1, 1);
+        long t = 0xFFFFFFFFL - 10;
+
+        assertFalse(d.isDuplicate(a, t));
+        assertTrue(d.isDuplicate(a, t + 20));
+        assertFalse(d.isDuplicate(a, t + 20 + 1000));
+    }
+}
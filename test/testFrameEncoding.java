@@ -0,0 +1,220 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import static org.testng.Assert.*;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+import org.traincontrol.marklin.udp.CS2Message;
+import org.traincontrol.marklin.udp.CommandLatencyMonitor;
+
+/**
+ * Frame encoding: an encoded frame is byte for byte the message the constructors build, frames are
+ * reused once released, and encoding, classifying and releasing a frame allocates nothing - measured
+ * with the JVM's per-thread allocation counter.
+ *
+ * Needs no model, no socket and no display.
+ */
+public class testFrameEncoding
+{
+    private static final int UID = 0x4007_12AB;
+    private static final int FRAMES = 200_000;
+
+    private static byte[] withUID(int... rest)
+    {
+        byte[] data = new byte[4 + rest.length];
+        data[0] = (byte) (UID >> 24);
+        data[1] = (byte) (UID >> 16);
+        data[2] = (byte) (UID >> 8);
+        data[3] = (byte) UID;
+
+        for (int i = 0; i < rest.length; i++)
+        {
+            data[4 + i] = (byte) rest[i];
+        }
+
+        return data;
+    }
+
+    private static void assertSameFrame(CS2Message encoded, CS2Message constructed)
+    {
+        assertTrue(encoded.equals(constructed), encoded + " vs " + constructed);
+        assertTrue(constructed.equals(encoded));
+        assertEquals(encoded.getRawMessage(), constructed.getRawMessage());
+        assertEquals(encoded.getData(), constructed.getData());
+        assertEquals(encoded.getCommand(), constructed.getCommand());
+        assertEquals(encoded.getHash(), constructed.getHash());
+        assertEquals(encoded.getLength(), constructed.getLength());
+        assertEquals(encoded.getSubCommand(), constructed.getSubCommand());
+
+        if (constructed.getLength() >= 4)
+        {
+            assertEquals(encoded.extractUID(), constructed.extractUID());
+            assertEquals(encoded.extractShortUID(), constructed.extractShortUID());
+        }
+
+        // And as the Central Station would read it back
+        assertTrue(new CS2Message(encoded.getRawMessage()).equals(constructed));
+    }
+
+    /**
+     * Each migrated command encodes to the frame it was built as before
+     */
+    @Test
+    public void testEncodedMatchesConstructed()
+    {
+        assertSameFrame(CS2Message.encode(CS2Message.CMD_LOCO_VELOCITY, 6).putUID(UID).put(4, 731 >> 8).put(5, 731),
+            new CS2Message(CS2Message.CMD_LOCO_VELOCITY, withUID(731 >> 8, 731 & 0xFF)));
+
+        assertSameFrame(CS2Message.encode(CS2Message.CMD_LOCO_DIRECTION, 5).putUID(UID).put(4, 2),
+            new CS2Message(CS2Message.CMD_LOCO_DIRECTION, withUID(2)));
+
+        assertSameFrame(CS2Message.encode(CS2Message.CMD_LOCO_FUNCTION, 6).putUID(UID).put(4, 31).put(5, 1),
+            new CS2Message(CS2Message.CMD_LOCO_FUNCTION, withUID(31, 1)));
+
+        assertSameFrame(CS2Message.encode(CS2Message.CMD_LOCO_VELOCITY, 4).putUID(UID),
+            new CS2Message(CS2Message.CMD_LOCO_VELOCITY, withUID()));
+
+        assertSameFrame(CS2Message.encode(CS2Message.CMD_ACC_SWITCH, 6).putUID(0x3000 + 17).put(4, 0).put(5, 1),
+            new CS2Message(CS2Message.CMD_ACC_SWITCH, new byte[] {0, 0, 0x30, 17, 0, 1}));
+
+        assertSameFrame(CS2Message.encode(CS2Message.CMD_SYSTEM, 5).putUID(UID).put(4, CS2Message.CMD_SYSSUB_TRAINSTOP),
+            new CS2Message(CS2Message.CMD_SYSTEM, withUID(CS2Message.CMD_SYSSUB_TRAINSTOP)));
+
+        assertSameFrame(CS2Message.encode(CS2Message.CAN_CMD_PING, 0),
+            new CS2Message(CS2Message.CAN_CMD_PING, new byte[0]));
+
+        // Every header field, including a command with the high bit set
+        assertSameFrame(CS2Message.encode(3, 0x9A, 0xE39D, true, 2).put(0, 7).put(1, 9),
+            new CS2Message(3, 0x9A, 0xE39D, true, 2, new byte[] {7, 9}));
+    }
+
+    /**
+     * A released frame is the next one encoded, cleared of what it held
+     */
+    @Test
+    public void testReuse()
+    {
+        CS2Message first = CS2Message.encode(CS2Message.CMD_LOCO_FUNCTION, 6).putUID(UID).put(4, 3).put(5, 1);
+        byte[] data = first.getData();
+        first.release();
+
+        // Released twice, but pooled once
+        first.release();
+
+        CS2Message second = CS2Message.encode(CS2Message.CMD_LOCO_DIRECTION, 5).putUID(1).put(4, 1);
+        CS2Message third = CS2Message.encode(CS2Message.CMD_LOCO_DIRECTION, 5);
+
+        assertSame(second, first);
+        assertNotSame(third, second);
+        assertEquals(second.getData(), new byte[] {0, 0, 0, 1, 1});
+        assertEquals(second.getRawMessage()[10], 0, "a stale payload byte");
+        assertEquals(data, withUID(3, 1), "the payload copy handed out before release is left alone");
+
+        second.release();
+        third.release();
+
+        // A constructed message is never pooled
+        CS2Message constructed = new CS2Message(CS2Message.CAN_CMD_PING, new byte[0]);
+        constructed.release();
+        assertNotSame(CS2Message.encode(CS2Message.CAN_CMD_PING, 0), constructed);
+    }
+
+    private static long allocated()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+            || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+        {
+            throw new SkipException("per-thread allocation counters are not available");
+        }
+
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Sends a speed, a function and an accessory frame the way the hot paths now do, through what
+     * exec does with them before the socket
+     */
+    private static int encoded(CommandLatencyMonitor monitor, int n)
+    {
+        int check = 0;
+
+        for (int i = 0; i < n; i++)
+        {
+            CS2Message m = CS2Message.encode(CS2Message.CMD_LOCO_VELOCITY, 6).putUID(UID + (i & 0xFF)).put(4, i >> 8).put(5, i);
+            monitor.sent(m, i);
+            check += m.getRawMessage()[12];
+            m.release();
+
+            m = CS2Message.encode(CS2Message.CMD_LOCO_FUNCTION, 6).putUID(UID).put(4, i & 0x1F).put(5, i & 1);
+            monitor.sent(m, i);
+            check += m.getRawMessage()[10];
+            m.release();
+
+            m = CS2Message.encode(CS2Message.CMD_ACC_SWITCH, 6).putUID(0x3000 + (i & 0xFF)).put(4, i & 1).put(5, 1);
+            monitor.sent(m, i);
+            check += m.getRawMessage()[9];
+            m.release();
+        }
+
+        return check;
+    }
+
+    /**
+     * The same three frames, constructed as the hot paths used to build them
+     */
+    private static int constructed(CommandLatencyMonitor monitor, int n)
+    {
+        int check = 0;
+
+        for (int i = 0; i < n; i++)
+        {
+            CS2Message m = new CS2Message(CS2Message.CMD_LOCO_VELOCITY, withUID(i >> 8, i));
+            monitor.sent(m, i);
+            check += m.getRawMessage()[12];
+
+            m = new CS2Message(CS2Message.CMD_LOCO_FUNCTION, withUID(i & 0x1F, i & 1));
+            monitor.sent(m, i);
+            check += m.getRawMessage()[10];
+
+            m = new CS2Message(CS2Message.CMD_ACC_SWITCH, new byte[] {0, 0, 0x30, (byte) i, (byte) (i & 1), 1});
+            monitor.sent(m, i);
+            check += m.getRawMessage()[9];
+        }
+
+        return check;
+    }
+
+    /**
+     * Once warmed up, encoding allocates nothing per frame
+     */
+    @Test
+    public void testEncodingAllocatesNothing()
+    {
+        CommandLatencyMonitor monitor = new CommandLatencyMonitor();
+        List<Integer> sink = new ArrayList<>();
+
+        // Warm up, so that what is measured is compiled code and a filled pool
+        for (int i = 0; i < 5; i++)
+        {
+            sink.add(encoded(monitor, FRAMES / 3));
+            sink.add(constructed(monitor, FRAMES / 3));
+        }
+
+        long before = allocated();
+        sink.add(encoded(monitor, FRAMES / 3));
+        long encodedBytes = allocated() - before;
+
+        before = allocated();
+        sink.add(constructed(monitor, FRAMES / 3));
+        long constructedBytes = allocated() - before;
+
+        System.out.println("Allocated per frame: encoded " + (double) encodedBytes / FRAMES
+            + " bytes, constructed " + (double) constructedBytes / FRAMES + " bytes");
+
+        assertTrue(encodedBytes < FRAMES / 10, encodedBytes + " bytes for " + FRAMES + " encoded frames");
+        assertTrue(constructedBytes > FRAMES * 40L, constructedBytes + " bytes for " + FRAMES + " constructed frames");
+        assertEquals(sink.size(), 12);
+    }
+}
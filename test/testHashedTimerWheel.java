@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.util.HashedTimerWheel;
+
+/**
+ * The timer routes are scheduled on: tasks run in deadline order, not early, not much late, and not
+ * at all once cancelled.
+ *
+ * Needs no model, no socket and no display.
+ */
+public class testHashedTimerWheel
+{
+    // Runs each task on the timer thread itself
+    private static final Executor DIRECT = Runnable::run;
+
+    /**
+     * Tasks scheduled out of order run in deadline order, none before its deadline
+     */
+    @Test
+    public void testOrderAndDeadline() throws Exception
+    {
+        HashedTimerWheel wheel = new HashedTimerWheel("test timer", DIRECT);
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(5);
+        AtomicInteger early = new AtomicInteger();
+
+        int[] delays = {120, 30, 90, 0, 60};
+
+        for (int d : delays)
+        {
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(d);
+
+            wheel.schedule(() ->
+            {
+                if (System.nanoTime() < due) early.incrementAndGet();
+
+                seen.add(d);
+                done.countDown();
+            }, d);
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(seen, Arrays.asList(0, 30, 60, 90, 120));
+        assertEquals(early.get(), 0);
+        assertEquals(wheel.getPendingCount(), 0);
+
+        wheel.shutdown();
+    }
+
+    /**
+     * A cancelled task never runs, and one that has run can no longer be cancelled
+     */
+    @Test
+    public void testCancel() throws Exception
+    {
+        HashedTimerWheel wheel = new HashedTimerWheel("test timer", DIRECT);
+        AtomicInteger ran = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+
+        HashedTimerWheel.Timeout cancelled = wheel.schedule(ran::incrementAndGet, 50);
+        HashedTimerWheel.Timeout kept = wheel.schedule(done::countDown, 100);
+
+        assertEquals(wheel.getPendingCount(), 2);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel(), "already cancelled");
+        assertEquals(wheel.getPendingCount(), 1);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        assertEquals(ran.get(), 0);
+        assertTrue(cancelled.isCancelled());
+        assertTrue(kept.isExpired());
+        assertFalse(kept.cancel(), "already run");
+
+        wheel.shutdown();
+    }
+
+    /**
+     * Deadlines past one turn of the wheel wait for their round rather than running a turn early, and
+     * an idle timer picks up where the clock is rather than where it stopped
+     */
+    @Test
+    public void testRoundsAndIdle() throws Exception
+    {
+        // 8 ticks of 5 ms: one turn is 40 ms
+        HashedTimerWheel wheel = new HashedTimerWheel("test timer", 5, 8, DIRECT);
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        wheel.schedule(done::countDown, 130);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(took >= 130, "ran after " + took + " ms");
+
+        // Idle for several turns, then a short one must not be run late by catching up
+        Thread.sleep(200);
+
+        CountDownLatch again = new CountDownLatch(1);
+        start = System.nanoTime();
+        wheel.schedule(again::countDown, 20);
+
+        assertTrue(again.await(5, TimeUnit.SECONDS));
+        took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(took >= 20 && took < 500, "ran after " + took + " ms");
+
+        wheel.shutdown();
+    }
+
+    /**
+     * Thousands of pending tasks on the one timer thread
+     */
+    @Test
+    public void testManyTimers() throws Exception
+    {
+        HashedTimerWheel wheel = new HashedTimerWheel("test timer", DIRECT);
+        int n = 5000;
+        CountDownLatch done = new CountDownLatch(n / 2);
+        List<HashedTimerWheel.Timeout> handles = new ArrayList<>();
+        AtomicInteger ran = new AtomicInteger();
+
+        for (int i = 0; i < n; i++)
+        {
+            handles.add(wheel.schedule(() ->
+            {
+                ran.incrementAndGet();
+                done.countDown();
+            }, 200 + i % 300));
+        }
+
+        for (int i = 1; i < n; i += 2)
+        {
+            assertTrue(handles.get(i).cancel());
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        assertEquals(ran.get(), n / 2);
+        assertEquals(wheel.getPendingCount(), 0);
+
+        wheel.shutdown();
+    }
+}
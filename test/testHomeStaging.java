@@ -2184,4 +2184,83 @@ public class testHomeStaging
                     && "HS C".equals(m.getEnd().getName())),
             "the plan must actually send the locomotive there: " + plan.getMoves());
     }
+    /**
+     * Stations around a junction, each reached only through it, with every locomotive standing on its
+     * partner's home and one station spare.
+     *
+     * Nothing can go straight home, so the greedy pass does nothing and the whole plan is the search's.
+     * Each pair takes three moves through the one free station, and with ten locomotives every
+     * state offers about as many moves - the shape on which the planner used to run out of time.
+     */
+    private static String hub(List<String> locs)
+    {
+        StringBuilder points = new StringBuilder("{'name': 'HS HUB', 'station': false}");
+        StringBuilder edges = new StringBuilder();
+
+        for (int i = 0; i <= locs.size(); i++)
+        {
+            String name = "HS S" + i;
+
+            points.append(",").append(station(name, 20 + i, i < locs.size() ? locs.get(i) : null));
+            edges.append(i == 0 ? "" : ",").append(edge("HS HUB", name)).append(",").append(edge(name, "HS HUB"));
+        }
+
+        return json("{'points': [" + points + "],'edges': [" + edges
+            + "],'minDelay': 0,'maxDelay': 0,'defaultLocSpeed': 30}");
+    }
+
+    /**
+     * Five swapped pairs, solved by the search alone - beyond the old string-keyed search, which spent
+     * its 50000 states without finding a plan.  Also reports how many configurations it examined
+     * and how fast, since that is what decides whether a large layout gets a plan within the budget.
+     */
+    @Test
+    public void testManySwappedPairsAreUnwoundBySearch()
+    {
+        int pairs = 5;
+        List<String> names = new ArrayList<>();
+
+        for (int i = 0; i < 2 * pairs; i++)
+        {
+            names.add("HS hub " + i);
+            model.newMM2Locomotive(names.get(i), 60 + i);
+        }
+
+        try
+        {
+            Layout layout = load(hub(names));
+            String spare = "HS S" + names.size();
+
+            for (int i = 0; i < names.size(); i += 2)
+            {
+                assertTrue(layout.moveLocomotive(names.get(i), spare, false));
+                assertTrue(layout.moveLocomotive(names.get(i + 1), "HS S" + i, false));
+                assertTrue(layout.moveLocomotive(names.get(i), "HS S" + (i + 1), false));
+            }
+
+            HomeStaging staging = HomeStaging.snapshot(layout);
+
+            long start = System.nanoTime();
+            HomeStaging.Plan plan = staging.plan();
+            long elapsed = System.nanoTime() - start;
+
+            assertTrue(plan.isPossible(), "outcome was " + plan.getOutcome()
+                + " after " + staging.getStatesExamined() + " states");
+            assertEquals(plan.getMoves().size(), 3 * pairs, "three moves per pair: " + plan.getMoves());
+
+            System.out.println(String.format("Staging search: %d states in %d ms (%.0f states/s)",
+                staging.getStatesExamined(), elapsed / 1000000,
+                staging.getStatesExamined() * 1e9 / elapsed));
+
+            applyPlan(layout, plan);
+            assertEveryoneHome(layout);
+        }
+        finally
+        {
+            for (String name : names)
+            {
+                model.deleteLoc(name);
+            }
+        }
+    }
 }
@@ -0,0 +1,398 @@
+import java.awt.Image;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.base.LayoutDiagram;
+import org.traincontrol.base.LayoutDiagramComponent;
+import org.traincontrol.marklin.MarklinAccessory;
+import org.traincontrol.marklin.file.CS2File;
+import org.traincontrol.util.ImagePyramid;
+import org.traincontrol.util.ImagePyramidCache;
+import org.traincontrol.util.ImageUtil;
+
+/**
+ * Image pyramids: levels are averaged halvings, sizes are served from the nearest level, sources are
+ * decoded once however many sizes and threads ask for them, the cache stays under its memory cap, and
+ * re-rendering a page after a zoom change no longer decodes anything.
+ *
+ * Needs no model, no socket and no display.
+ */
+public class testImagePyramid
+{
+    private static BufferedImage noise(int w, int h, long seed)
+    {
+        Random r = new Random(seed);
+        BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+
+        for (int y = 0; y < h; y++)
+        {
+            for (int x = 0; x < w; x++)
+            {
+                int v = r.nextInt(256);
+                img.setRGB(x, y, 0xFF000000 | v << 16 | v << 8 | v);
+            }
+        }
+
+        return img;
+    }
+
+    private static int grey(BufferedImage img, int x, int y)
+    {
+        return img.getRGB(x, y) & 0xFF;
+    }
+
+    /**
+     * Each level half the one above, down to a single row or column
+     */
+    @Test
+    public void testLevels()
+    {
+        ImagePyramid p = new ImagePyramid(noise(100, 60, 1));
+        int[][] sizes = {{100, 60}, {50, 30}, {25, 15}, {12, 7}, {6, 3}, {3, 1}};
+
+        assertEquals(p.getLevels().size(), sizes.length);
+
+        long bytes = 0;
+
+        for (int i = 0; i < sizes.length; i++)
+        {
+            assertEquals(p.getLevels().get(i).getWidth(), sizes[i][0]);
+            assertEquals(p.getLevels().get(i).getHeight(), sizes[i][1]);
+            bytes += 4L * sizes[i][0] * sizes[i][1];
+        }
+
+        assertEquals(p.getBytes(), bytes);
+
+        // Nearest level at least as large
+        assertEquals(p.getLevel(40, 20).getWidth(), 50);
+        assertEquals(p.getLevel(50, 30).getWidth(), 50);
+        assertEquals(p.getLevel(51, 30).getWidth(), 100);
+        assertEquals(p.getLevel(200, 200).getWidth(), 100);
+
+        // Exact sizes are the levels themselves, others a resample of one
+        assertSame(p.getScaled(25, 15), p.getLevels().get(2));
+        assertSame(p.getScaledToWidth(100), p.getLevels().get(0));
+        assertEquals(p.getScaled(40, 24).getWidth(), 40);
+        assertEquals(p.getScaled(40, 24).getHeight(), 24);
+        assertEquals(p.getScaled(160, 96).getWidth(), 160);
+        assertEquals(p.getScaledToWidth(30).getHeight(), 18);
+    }
+
+    /**
+     * Shrinking eightfold averages every source pixel, where one bilinear step only samples a few
+     */
+    @Test
+    public void testDownscaleQuality()
+    {
+        BufferedImage source = noise(256, 256, 2);
+        BufferedImage mip = new ImagePyramid(source).getScaled(32, 32);
+        BufferedImage direct = ImageUtil.getScaledImage(source, 32, 32);
+
+        double mipError = 0;
+        double directError = 0;
+
+        for (int y = 0; y < 32; y++)
+        {
+            for (int x = 0; x < 32; x++)
+            {
+                int sum = 0;
+
+                for (int dy = 0; dy < 8; dy++)
+                {
+                    for (int dx = 0; dx < 8; dx++)
+                    {
+                        sum += grey(source, x * 8 + dx, y * 8 + dy);
+                    }
+                }
+
+                double mean = sum / 64.0;
+
+                mipError = Math.max(mipError, Math.abs(grey(mip, x, y) - mean));
+                directError += Math.abs(grey(direct, x, y) - mean) / (32 * 32);
+            }
+        }
+
+        assertTrue(mipError <= 2, "mip level off the block mean by " + mipError);
+        assertTrue(directError > 10, "a single bilinear step was expected to alias, off by " + directError + " on average");
+    }
+
+    /**
+     * Transparent pixels do not darken the colour next to them
+     */
+    @Test
+    public void testTransparency()
+    {
+        BufferedImage img = new BufferedImage(2, 2, BufferedImage.TYPE_INT_ARGB);
+        img.setRGB(0, 0, 0xFFFF0000);
+
+        BufferedImage half = new ImagePyramid(img).getLevels().get(1);
+        int p = half.getRGB(0, 0);
+
+        assertEquals(p & 0x00FFFFFF, 0xFF0000);
+        assertEquals(p >>> 24, 64);
+    }
+
+    /**
+     * Every size of a source, from any number of threads at once, is one decode
+     */
+    @Test
+    public void testDecodedOnce() throws Exception
+    {
+        ImagePyramidCache cache = new ImagePyramidCache(ImagePyramidCache.DEFAULT_CAPACITY);
+        AtomicInteger decodes = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ImagePyramidCache.Decoder slow = () ->
+        {
+            decodes.incrementAndGet();
+
+            try
+            {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e)
+            {
+            }
+
+            return noise(296, 114, 3);
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+
+        try
+        {
+            List<Future<BufferedImage>> sizes = new ArrayList<>();
+
+            for (int i = 0; i < 16; i++)
+            {
+                int width = 20 + i * 17;
+
+                sizes.add(pool.submit(() ->
+                {
+                    start.await();
+                    return cache.getScaledToWidth("loc.png", slow, width);
+                }));
+            }
+
+            start.countDown();
+
+            for (int i = 0; i < sizes.size(); i++)
+            {
+                assertEquals(sizes.get(i).get().getWidth(), 20 + i * 17);
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        assertEquals(decodes.get(), 1);
+        assertEquals(cache.getDecodes(), 1);
+        assertEquals(cache.size(), 1);
+    }
+
+    /**
+     * A source that does not decode is not cached, nor is one that fails
+     */
+    @Test
+    public void testUndecodable() throws Exception
+    {
+        ImagePyramidCache cache = new ImagePyramidCache(ImagePyramidCache.DEFAULT_CAPACITY);
+
+        assertNull(cache.get("empty", () -> null));
+        assertFalse(cache.contains("empty"));
+
+        expectThrows(IOException.class, () -> cache.get("broken", () ->
+        {
+            throw new IOException("unreachable");
+        }));
+        assertFalse(cache.contains("broken"));
+
+        assertNotNull(cache.get("broken", () -> noise(4, 4, 4)));
+        assertEquals(cache.getDecodes(), 3);
+    }
+
+    /**
+     * The least recently used pyramids go first once the cap is exceeded
+     */
+    @Test
+    public void testMemoryCap() throws Exception
+    {
+        long each = new ImagePyramid(noise(64, 64, 5)).getBytes();
+        ImagePyramidCache cache = new ImagePyramidCache(each * 3);
+
+        for (int i = 0; i < 3; i++)
+        {
+            cache.get("image" + i, () -> noise(64, 64, 5));
+        }
+
+        assertEquals(cache.size(), 3);
+
+        // Used recently, so kept
+        cache.get("image0", () -> null);
+
+        for (int i = 3; i < 5; i++)
+        {
+            cache.get("image" + i, () -> noise(64, 64, 5));
+        }
+
+        assertEquals(cache.size(), 3);
+        assertTrue(cache.getBytes() <= cache.getCapacity());
+        assertTrue(cache.contains("image0"));
+        assertFalse(cache.contains("image1"));
+        assertFalse(cache.contains("image2"));
+        assertEquals(cache.getEvictions(), 2);
+
+        cache.setCapacity(each);
+        assertEquals(cache.size(), 1);
+        assertTrue(cache.contains("image4"));
+
+        // Too large for the cap on its own, yet kept until something else is added
+        cache.get("large", () -> noise(256, 256, 6));
+        assertEquals(cache.size(), 1);
+        assertTrue(cache.contains("large"));
+    }
+
+    /**
+     * Re-rendering every tile of the sample layout's main page at a new size, as after a zoom change:
+     * nothing is decoded again, and it takes less time than decoding and scaling each icon did
+     */
+    @Test
+    public void testZoom() throws Exception
+    {
+        File folder = new File("cs2_sample_layout");
+        String url = "file:///" + folder.getAbsolutePath().replace('\\', '/') + "/";
+
+        CS2File parser = new CS2File(url, null);
+        parser.setLayoutDataLoc(url);
+
+        List<LayoutDiagramComponent> tiles = new ArrayList<>();
+
+        for (LayoutDiagram page : parser.parseLayout(new LinkedList<MarklinAccessory>()))
+        {
+            for (LayoutDiagramComponent c : page.getAll())
+            {
+                if (!c.isText())
+                {
+                    tiles.add(c);
+                }
+            }
+        }
+
+        assertTrue(tiles.size() > 100, "only " + tiles.size() + " tiles");
+
+        // First display at each size decodes each icon once, whatever its orientations
+        long decodes = ImagePyramidCache.getShared().getDecodes();
+        render(tiles, 30);
+        render(tiles, 60);
+
+        Set<String> icons = new HashSet<>();
+
+        for (LayoutDiagramComponent c : tiles)
+        {
+            icons.add(c.getImageName(30, false));
+            icons.add(c.getImageName(60, false));
+        }
+
+        assertTrue(ImagePyramidCache.getShared().getDecodes() - decodes <= icons.size(),
+            (ImagePyramidCache.getShared().getDecodes() - decodes) + " decodes for " + icons.size() + " icons");
+
+        decodes = ImagePyramidCache.getShared().getDecodes();
+        int rounds = 5;
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < rounds; i++)
+        {
+            render(tiles, 60);
+            render(tiles, 30);
+        }
+
+        long pyramidMs = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(ImagePyramidCache.getShared().getDecodes() - decodes, 0, "a zoom change decoded icons");
+
+        start = System.nanoTime();
+
+        for (int i = 0; i < rounds; i++)
+        {
+            renderFromSource(tiles, 60);
+            renderFromSource(tiles, 30);
+        }
+
+        long sourceMs = (System.nanoTime() - start) / 1000000;
+
+        // Sizes without an icon set of their own are served from the largest set, decoding nothing
+        render(tiles, 45);
+        assertEquals(tiles.get(0).getImage(45, true).getWidth(null), 45);
+        assertEquals(ImagePyramidCache.getShared().getDecodes() - decodes, 0, "a new size decoded icons");
+
+        System.out.println("Re-rendering " + tiles.size() + " tiles over " + rounds * 2 + " zoom changes: from source "
+            + sourceMs + " ms, from pyramids " + pyramidMs + " ms");
+
+        assertTrue(pyramidMs < sourceMs, "pyramids " + pyramidMs + " ms, from source " + sourceMs + " ms");
+    }
+
+    /**
+     * Each distinct tile image at a size, once, as the UI's image cache would after a zoom change
+     */
+    private static void render(List<LayoutDiagramComponent> tiles, int size) throws Exception
+    {
+        Map<String, Image> images = new HashMap<>();
+
+        for (LayoutDiagramComponent c : tiles)
+        {
+            String key = c.getImageKey(size, false);
+
+            if (!images.containsKey(key))
+            {
+                images.put(key, c.getImage(size, false));
+            }
+        }
+    }
+
+    /**
+     * The same, reading and decoding each icon from its resource as getImage used to
+     */
+    private static void renderFromSource(List<LayoutDiagramComponent> tiles, int size) throws Exception
+    {
+        Map<String, Image> images = new HashMap<>();
+
+        for (LayoutDiagramComponent c : tiles)
+        {
+            String key = c.getImageKey(size, false);
+
+            if (!images.containsKey(key))
+            {
+                Image img = ImageIO.read(LayoutDiagramComponent.class.getResource(c.getImageName(size, false)));
+
+                if (c.getOrientation() > 0)
+                {
+                    AffineTransform transform = new AffineTransform();
+                    transform.rotate(Math.toRadians((4 - c.getOrientation()) * 90), img.getWidth(null) / 2, img.getHeight(null) / 2);
+                    img = new AffineTransformOp(transform, AffineTransformOp.TYPE_BILINEAR).filter(LayoutDiagramComponent.toBufferedImage(img), null);
+                }
+
+                images.put(key, img);
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.traincontrol.base.RouteCommand;
+import org.traincontrol.marklin.MarklinControlStation;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+import org.traincontrol.marklin.MarklinLocomotive;
+import org.traincontrol.marklin.file.CS2File;
+import org.traincontrol.marklin.file.CS2Snapshot;
+import org.traincontrol.marklin.file.CS2SyncState;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Incremental sync with the Central Station: an unchanged database is not parsed at all, a changed
+ * record is the only one parsed and applied, a record whose local counterpart was deleted is applied
+ * again, and route parsing resolves accessories and locomotives against the documents it is given.
+ *
+ * The Central Station is CS3TestServer, serving copies of the CS3 fixtures so that a record can be
+ * changed between syncs.  The model's parser and CS3 flag are injected by reflection, as in
+ * testImportRename, and the import is invoked directly: syncWithCS2 would replace the parser with one
+ * pointed at the configured IP.
+ *
+ * Runs against the simulated model.
+ */
+public class testIncrementalSync
+{
+    private static MarklinControlStation model;
+    private static CS3TestServer server;
+    private static Path loks;
+
+    private static final String CHANGED = "BR 10 001";
+    private static final String DELETED = "V 200 150";
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, false);
+        model.stop();
+
+        loks = Files.createTempFile("CS3_loks_v260", ".json");
+        Files.copy(Paths.get(testIncrementalSync.class.getResource("CS3_loks_v260.json").toURI()), loks,
+            java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+        serve();
+
+        set("fileParser", new CS2File("localhost:8080", model));
+        set("isCS3", true);
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception
+    {
+        if (server != null) server.stopServer();
+
+        Files.deleteIfExists(loks);
+    }
+
+    /**
+     * (Re)starts the server on the current contents of the locomotive file
+     */
+    private static void serve() throws Exception
+    {
+        if (server != null) server.stopServer();
+
+        server = new CS3TestServer(
+            testIncrementalSync.class.getResource("CS3_loks.json").toURI().toString(),
+            loks.toUri().toString(),
+            testIncrementalSync.class.getResource("CS3_mags.json").toURI().toString(),
+            testIncrementalSync.class.getResource("CS3_automatics.json").toURI().toString(),
+            testIncrementalSync.class.getResource("CS3_automatics_v260.json").toURI().toString()
+        );
+
+        server.startServer(260);
+    }
+
+    private static void set(String field, Object value) throws Exception
+    {
+        Field f = MarklinControlStation.class.getDeclaredField(field);
+
+        f.setAccessible(true);
+        f.set(model, value);
+    }
+
+    private static void sync() throws Exception
+    {
+        Method m = MarklinControlStation.class.getDeclaredMethod("importFromCentralStation", long.class);
+        m.setAccessible(true);
+
+        try
+        {
+            m.invoke(model, System.nanoTime());
+        }
+        catch (InvocationTargetException e)
+        {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static CS2SyncState.ChangeSet changes(CS2Snapshot.recordType type)
+    {
+        return model.getLastSyncChanges().get(type);
+    }
+
+    /**
+     * Rewrites one locomotive's icon in the served file, leaving the rest of it byte for byte
+     */
+    private static void setIcon(String from, String to) throws Exception
+    {
+        String text = new String(Files.readAllBytes(loks), StandardCharsets.UTF_8);
+
+        assertTrue(text.contains(from));
+        Files.write(loks, text.replace(from, to).getBytes(StandardCharsets.UTF_8));
+        serve();
+    }
+
+    /**
+     * A second sync of the same databases parses nothing
+     */
+    @Test
+    public void testUnchangedIsNotParsed() throws Exception
+    {
+        sync();
+        sync();
+
+        for (CS2Snapshot.recordType type : CS2Snapshot.recordType.values())
+        {
+            assertTrue(changes(type).isDocumentUnchanged(), type + ": " + changes(type));
+            assertTrue(changes(type).getToApply().isEmpty(), type + ": " + changes(type));
+            assertTrue(changes(type).getUnchanged() > 0, type + ": " + changes(type));
+        }
+
+        assertEquals(changes(CS2Snapshot.recordType.LOCOMOTIVE).getUnchanged(), 154);
+        assertEquals(changes(CS2Snapshot.recordType.ROUTE).getUnchanged(), 50);
+
+        assertTrue(model.getLastSyncTimings().keySet().containsAll(Arrays.asList(
+            "fetch", "routes.diff", "routes.parse", "routes.apply",
+            "locomotives.diff", "locomotives.parse", "locomotives.apply")), model.getLastSyncTimings().toString());
+    }
+
+    /**
+     * One changed locomotive is the only record applied; the routes, which only depend on the
+     * locomotives' names, are all unchanged
+     */
+    @Test
+    public void testOnlyChangedRecordIsApplied() throws Exception
+    {
+        byte[] original = Files.readAllBytes(loks);
+
+        try
+        {
+            sync();
+
+            setIcon("lokicons/DB BR 10 001\"", "lokicons/DB BR 10 001 changed\"");
+            sync();
+
+            CS2SyncState.ChangeSet locChanges = changes(CS2Snapshot.recordType.LOCOMOTIVE);
+
+            assertEquals(locChanges.getChanged(), Collections.singletonList(CHANGED), locChanges.toString());
+            assertTrue(locChanges.getAdded().isEmpty(), locChanges.toString());
+            assertEquals(locChanges.getUnchanged(), 153);
+            assertTrue(model.getLocByName(CHANGED).getImageURL().contains("changed"), model.getLocByName(CHANGED).getImageURL());
+
+            CS2SyncState.ChangeSet routeChanges = changes(CS2Snapshot.recordType.ROUTE);
+
+            assertFalse(routeChanges.isDocumentUnchanged(), "the locomotive file is one of the routes' documents");
+            assertTrue(routeChanges.getToApply().isEmpty(), routeChanges.toString());
+            assertEquals(routeChanges.getUnchanged(), 50);
+        }
+        finally
+        {
+            Files.write(loks, original);
+            serve();
+            sync();
+        }
+
+        assertEquals(changes(CS2Snapshot.recordType.LOCOMOTIVE).getChanged(), Collections.singletonList(CHANGED));
+        assertFalse(model.getLocByName(CHANGED).getImageURL().contains("changed"));
+    }
+
+    /**
+     * A locomotive deleted locally is imported again, even though the Central Station did not change
+     */
+    @Test
+    public void testLocallyDeletedIsRestored() throws Exception
+    {
+        sync();
+        assertNotNull(model.getLocByName(DELETED));
+
+        model.deleteLoc(DELETED);
+        sync();
+
+        CS2SyncState.ChangeSet locChanges = changes(CS2Snapshot.recordType.LOCOMOTIVE);
+
+        assertEquals(locChanges.getAdded(), Collections.singletonList(DELETED), locChanges.toString());
+        assertNotNull(model.getLocByName(DELETED));
+        assertEquals(((MarklinLocomotive) model.getLocByName(DELETED)).getAddress(), 21);
+
+        sync();
+        assertTrue(changes(CS2Snapshot.recordType.LOCOMOTIVE).isDocumentUnchanged());
+    }
+
+    /**
+     * Every record has a fingerprint, and the same content the same one
+     */
+    @Test
+    public void testRecordFingerprints() throws Exception
+    {
+        CS2File parser = new CS2File("localhost:8080", model);
+        CS2Snapshot a = CS2Snapshot.fetch(parser, true);
+        CS2Snapshot b = CS2Snapshot.fetch(parser, true);
+
+        assertEquals(a.getRecordFingerprints(CS2Snapshot.recordType.LOCOMOTIVE).size(), 154);
+        assertEquals(a.getRecordFingerprints(CS2Snapshot.recordType.ROUTE).size(), 50);
+        assertEquals(a.getRecordFingerprints(CS2Snapshot.recordType.LOCOMOTIVE), b.getRecordFingerprints(CS2Snapshot.recordType.LOCOMOTIVE));
+        assertEquals(a.getFingerprint(CS2Snapshot.recordType.ROUTE), b.getFingerprint(CS2Snapshot.recordType.ROUTE));
+
+        // Only what was asked for is parsed
+        List<MarklinLocomotive> some = a.parseLocomotives(Arrays.asList(CHANGED, DELETED));
+        assertEquals(some.size(), 2);
+
+        assertEquals(CS2Snapshot.routeKey("033"), "33");
+        assertEquals(CS2Snapshot.routeKey(33), "33");
+    }
+
+    /**
+     * Route items are resolved against the documents passed in, not against what an earlier parse saw
+     */
+    @Test
+    public void testRouteLookupFollowsDocuments()
+    {
+        CS2File parser = new CS2File("localhost:8080", model);
+
+        JSONArray routes = new JSONArray()
+            .put(new JSONObject().put("name", "Lookup").put("id", 900).put("items", new JSONArray()
+                .put(new JSONObject().put("typ", "speed").put("lok", "Lookup#20loc").put("wert", 500))
+                .put(new JSONObject().put("typ", "mag").put("magnetartikel", 7).put("stellung", "1"))));
+
+        JSONArray mags = new JSONArray().put(new JSONObject().put("id", 7).put("address", 12).put("prot", "mm").put("typ", "linksweiche").put("states", 2));
+        JSONArray locs = new JSONArray().put(new JSONObject().put("internname", "Lookup#20loc").put("name", "Old name"));
+
+        List<RouteCommand> first = parser.parseRoutesCS3(routes, mags, locs).get(0).getRoute();
+
+        assertEquals(first.get(0).getName(), "Old name");
+        assertEquals(first.get(1).getAddress(), 12);
+
+        mags.getJSONObject(0).put("address", 13);
+        locs.getJSONObject(0).put("name", "New name");
+
+        List<RouteCommand> second = parser.parseRoutesCS3(routes, mags, locs).get(0).getRoute();
+
+        assertEquals(second.get(0).getName(), "New name");
+        assertEquals(second.get(1).getAddress(), 13);
+    }
+}
@@ -0,0 +1,196 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.util.KeyedLaneExecutor;
+
+/**
+ * The lanes that CAN messages are dispatched on: one device's messages must stay in order, one
+ * device stuck in a slow handler must not hold up a device on another lane, and a barrier is ordered
+ * against all of them.
+ *
+ * Needs no model, no socket and no display.
+ */
+public class testKeyedLaneExecutor
+{
+    /**
+     * Finds a key that maps to a different lane than the given one
+     */
+    private static int keyOnOtherLane(KeyedLaneExecutor ex, int key)
+    {
+        for (int k = key + 1; ; k++)
+        {
+            if (ex.laneOf(k) != ex.laneOf(key))
+            {
+                return k;
+            }
+        }
+    }
+
+    /**
+     * Everything submitted under one key runs in submission order
+     */
+    @Test
+    public void testPerKeyOrder() throws Exception
+    {
+        KeyedLaneExecutor ex = new KeyedLaneExecutor("test", 4, null);
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1000);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            final int n = i;
+            ex.submit(0x4005, () ->
+            {
+                seen.add(n);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 1000; i++)
+        {
+            assertEquals((int) seen.get(i), i);
+        }
+
+        ex.shutdown();
+    }
+
+    /**
+     * A blocked lane does not hold up another lane, and its backlog shows up as queue depth
+     */
+    @Test
+    public void testBlockedLaneDoesNotStallOthers() throws Exception
+    {
+        KeyedLaneExecutor ex = new KeyedLaneExecutor("test", 2, null);
+
+        int slowKey = 0x4001;
+        int fastKey = keyOnOtherLane(ex, slowKey);
+        int slowLane = ex.laneOf(slowKey);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch fastDone = new CountDownLatch(1);
+
+        ex.submit(slowKey, () ->
+        {
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        ex.submit(slowKey, () -> {});
+        ex.submit(fastKey, fastDone::countDown);
+
+        assertTrue(fastDone.await(5, TimeUnit.SECONDS), "the other lane must proceed while this one is blocked");
+        assertEquals(ex.getQueueDepth(slowLane), 2);
+        assertTrue(ex.getMaxQueueDepth(slowLane) >= 2);
+
+        Thread.sleep(20);
+        release.countDown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ex.getQueueDepth(slowLane) > 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+
+        assertEquals(ex.getQueueDepth(slowLane), 0);
+        assertEquals(ex.getCompletedCount(slowLane), 2);
+        assertTrue(ex.getMaxTaskTime(slowLane) >= 20, "the blocked task's duration is recorded");
+
+        ex.shutdown();
+    }
+
+    /**
+     * A barrier runs after everything submitted before it on every lane, and everything submitted after
+     * it on any lane waits for it
+     */
+    @Test
+    public void testBarrierOrdersEveryLane() throws Exception
+    {
+        KeyedLaneExecutor ex = new KeyedLaneExecutor("test", 4, null);
+
+        int slowKey = 0x4001;
+        int otherKey = keyOnOtherLane(ex, slowKey);
+
+        List<String> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        ex.submit(slowKey, () ->
+        {
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            seen.add("before");
+        });
+
+        ex.submitBarrier(() -> seen.add("barrier"));
+
+        ex.submit(otherKey, () ->
+        {
+            seen.add("after");
+            done.countDown();
+        });
+
+        Thread.sleep(200);
+        assertTrue(seen.isEmpty(), "nothing may pass the barrier while a lane ahead of it is busy: " + seen);
+
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(seen, java.util.Arrays.asList("before", "barrier", "after"));
+
+        ex.shutdown();
+    }
+
+    /**
+     * An exception in a task is reported, and the lane keeps running afterwards
+     */
+    @Test
+    public void testExceptionReportedAndLaneSurvives() throws Exception
+    {
+        AtomicReference<Exception> reported = new AtomicReference<>();
+        KeyedLaneExecutor ex = new KeyedLaneExecutor("test", 1, reported::set);
+        CountDownLatch after = new CountDownLatch(1);
+
+        ex.submit(1, () ->
+        {
+            throw new IllegalStateException("boom");
+        });
+
+        ex.submit(1, after::countDown);
+
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        assertTrue(reported.get() instanceof IllegalStateException);
+
+        ex.shutdown();
+    }
+
+    /**
+     * The automatic size stays within bounds
+     */
+    @Test
+    public void testDefaultLaneCount()
+    {
+        int n = KeyedLaneExecutor.defaultLaneCount();
+
+        assertTrue(n >= KeyedLaneExecutor.MIN_LANES && n <= KeyedLaneExecutor.MAX_LANES);
+    }
+}
@@ -11,6 +11,7 @@ import java.util.Random;
 import java.util.Set;
 import org.traincontrol.automation.Edge;
 import org.traincontrol.automation.Layout;
+import org.traincontrol.automation.PathGenerator;
 import org.traincontrol.automation.Point;
 import org.traincontrol.marklin.MarklinControlStation;
 import org.traincontrol.marklin.MarklinFeedback;
@@ -579,4 +580,106 @@ public class testLayoutBfs
         assertTrue(alternativesFound > 0,
             "no graph ever yielded a second distinct route, so exclusion was never really tested");
     }
+
+    /**
+     * The weighted path generator, with the default cost of one per edge, against bfs on the same graphs:
+     * it finds a route exactly when bfs does, its first is as short as bfs's, it yields every simple
+     * route once in order of length, and that includes every route bfs finds by exclusion.
+     */
+    @Test(timeOut = 180000)
+    public void testRandomGraphsPathGeneratorMatchesBfs() throws Exception
+    {
+        int compared = 0;
+
+        for (long seed = 0; seed < RANDOM_SEEDS; seed++)
+        {
+            RandomGraph g = randomGraph(seed);
+
+            for (String startName : g.names)
+            {
+                for (String endName : g.names)
+                {
+                    // A route from a point to itself is a loop, not a simple path
+                    if (startName.equals(endName)) continue;
+
+                    String context = "seed " + seed + " " + startName + "->" + endName;
+
+                    Point start = g.layout.getPoint(startName);
+                    Point end = g.layout.getPoint(endName);
+
+                    List<Edge> shortest = g.layout.bfs(start, end, null);
+                    PathGenerator paths = g.layout.getPaths(start, end);
+
+                    assertEquals(paths.hasNext(), shortest != null, context + ": reachability");
+
+                    List<String> generated = new ArrayList<>();
+                    int previous = 0;
+
+                    while (paths.hasNext())
+                    {
+                        List<Edge> path = paths.next();
+
+                        assertWalkable(path, startName, endName);
+                        assertSimple(path, context);
+                        assertTrue(path.size() >= previous, context + ": " + render(path) + " out of order");
+
+                        if (generated.isEmpty())
+                        {
+                            assertEquals(path.size(), shortest.size(), context + ": first is a shortest route");
+                        }
+
+                        previous = path.size();
+                        generated.add(render(path));
+                    }
+
+                    assertEquals(new HashSet<>(generated).size(), generated.size(), context + ": a route repeated");
+
+                    if (shortest == null || generated.size() >= Layout.MAX_PATH_ALTERNATIVES) continue;
+
+                    assertEquals(generated.size(), referenceSimpleRoutes(g.adjacency, startName, endName),
+                        context + ": every simple route");
+
+                    List<List<Edge>> exclude = new ArrayList<>();
+
+                    for (List<Edge> path = shortest; path != null; path = g.layout.bfs(start, end, exclude))
+                    {
+                        assertTrue(generated.contains(render(path)), context + ": bfs found " + render(path));
+                        exclude.add(path);
+                    }
+
+                    compared++;
+                }
+            }
+        }
+
+        assertTrue(compared > 300, "expected plenty of reachable pairs, got " + compared);
+    }
+
+    /**
+     * How many simple routes lead from start to end, by plain depth-first search
+     */
+    private static int referenceSimpleRoutes(Map<String, List<String>> adjacency, String start, String end)
+    {
+        return countRoutes(adjacency, start, end, new HashSet<>(Arrays.asList(start)));
+    }
+
+    private static int countRoutes(Map<String, List<String>> adjacency, String at, String end, Set<String> onRoute)
+    {
+        int count = 0;
+
+        for (String to : adjacency.getOrDefault(at, new ArrayList<>()))
+        {
+            if (to.equals(end))
+            {
+                count++;
+            }
+            else if (onRoute.add(to))
+            {
+                count += countRoutes(adjacency, to, end, onRoute);
+                onRoute.remove(to);
+            }
+        }
+
+        return count;
+    }
 }
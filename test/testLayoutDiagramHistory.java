@@ -0,0 +1,255 @@
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.base.LayoutDiagram;
+import org.traincontrol.base.LayoutDiagramComponent;
+import org.traincontrol.base.LayoutDiagramHistory;
+
+/**
+ * The track diagram editor's undo history: an edit is recorded as the cells it changed, undo and redo
+ * put back exactly those cells and the page size, nested edits are one step, and on a large page an
+ * edit costs what it changed rather than a copy of the page.
+ *
+ * Needs no model, no socket and no display.
+ */
+public class testLayoutDiagramHistory
+{
+    private static LayoutDiagram page(int sx, int sy)
+    {
+        LayoutDiagram page = new LayoutDiagram("Test", sx, sy, null, null);
+        page.setEdit();
+
+        return page;
+    }
+
+    private static LayoutDiagramComponent tile(LayoutDiagramComponent.componentType type, int x, int y, int orientation) throws Exception
+    {
+        return new LayoutDiagramComponent(type, x, y, orientation, 0, 0, 0, Accessory.accessoryDecoderType.MM2);
+    }
+
+    /**
+     * Everything on the page, as saved, and its size
+     */
+    private static String contents(LayoutDiagram page) throws Exception
+    {
+        return page.getSx() + "x" + page.getSy() + "\n" + page.exportToCS2TextFormat();
+    }
+
+    /**
+     * Placing, replacing and clearing single tiles, undone and redone in order
+     */
+    @Test
+    public void testCellEdits() throws Exception
+    {
+        LayoutDiagram page = page(10, 10);
+        LayoutDiagramHistory history = new LayoutDiagramHistory(page, 100);
+        String empty = contents(page);
+
+        history.begin();
+        page.addComponent(tile(LayoutDiagramComponent.componentType.STRAIGHT, 2, 3, 0), 2, 3);
+        LayoutDiagramHistory.Edit placed = history.commit();
+
+        assertEquals(placed.getCellCount(), 1);
+        assertEquals(placed.getX(0), 2);
+        assertEquals(placed.getY(0), 3);
+        String one = contents(page);
+
+        // Rotated on a copy, as the editor does it
+        history.begin();
+        LayoutDiagramComponent rotated = new LayoutDiagramComponent(page.getComponent(2, 3));
+        rotated.rotate();
+        page.addComponent(rotated, 2, 3);
+        history.commit();
+        String turned = contents(page);
+
+        history.begin();
+        page.addComponent(null, 2, 3);
+        history.commit();
+
+        assertEquals(contents(page), empty);
+        assertEquals(history.getUndoCount(), 3);
+
+        history.undo();
+        assertEquals(contents(page), turned);
+        history.undo();
+        assertEquals(contents(page), one);
+        history.undo();
+        assertEquals(contents(page), empty);
+        assertNull(history.undo());
+        assertFalse(history.canUndo());
+
+        history.redo();
+        history.redo();
+        assertEquals(contents(page), turned);
+
+        // A new edit forgets what was undone
+        history.begin();
+        page.addComponent(tile(LayoutDiagramComponent.componentType.CURVE, 0, 0, 1), 0, 0);
+        history.commit();
+        assertFalse(history.canRedo());
+    }
+
+    /**
+     * Edits that change nothing are not kept, and the oldest are forgotten past the limit
+     */
+    @Test
+    public void testNothingChanged() throws Exception
+    {
+        LayoutDiagram page = page(5, 5);
+        LayoutDiagramHistory history = new LayoutDiagramHistory(page, 3);
+
+        page.addComponent(tile(LayoutDiagramComponent.componentType.STRAIGHT, 1, 1, 0), 1, 1);
+
+        history.begin();
+        page.addComponent(tile(LayoutDiagramComponent.componentType.STRAIGHT, 1, 1, 0), 1, 1);
+        page.addComponent(null, 4, 4);
+        assertNull(history.commit(), "the same tile put back, and an empty cell cleared");
+        assertFalse(history.canUndo());
+
+        assertNull(history.commit(), "a commit with nothing open");
+
+        for (int i = 0; i < 5; i++)
+        {
+            history.begin();
+            page.addComponent(tile(LayoutDiagramComponent.componentType.CURVE, i, 0, 0), i, 0);
+            history.commit();
+        }
+
+        assertEquals(history.getUndoCount(), 3);
+        assertEquals(history.getCellCount(), 3);
+    }
+
+    /**
+     * Everything between the outermost begin and commit undoes as one step, as a drag does
+     */
+    @Test
+    public void testGroupedEdit() throws Exception
+    {
+        LayoutDiagram page = page(8, 8);
+        LayoutDiagramHistory history = new LayoutDiagramHistory(page, 100);
+        page.addComponent(tile(LayoutDiagramComponent.componentType.SIGNAL, 1, 1, 2), 1, 1);
+        String before = contents(page);
+
+        // A move: cut from one cell, placed in another, with a nested edit in between
+        history.begin();
+        LayoutDiagramComponent moved = new LayoutDiagramComponent(page.getComponent(1, 1));
+        moved.setX(5);
+        moved.setY(6);
+        page.addComponent(null, 1, 1);
+
+        history.begin();
+        page.addComponent(moved, 5, 6);
+        assertNull(history.commit(), "nested");
+        assertNull(history.undo(), "no undo while an edit is open");
+
+        LayoutDiagramHistory.Edit edit = history.commit();
+        String after = contents(page);
+
+        assertEquals(edit.getCellCount(), 2);
+        assertEquals(history.getUndoCount(), 1);
+
+        history.undo();
+        assertEquals(contents(page), before);
+        history.redo();
+        assertEquals(contents(page), after);
+    }
+
+    /**
+     * Shifts and added rows and columns restore the page size as well as its cells
+     */
+    @Test
+    public void testShiftsAndResize() throws Exception
+    {
+        Random random = new Random(41);
+        LayoutDiagram page = page(12, 9);
+        LayoutDiagramComponent.componentType[] types = {
+            LayoutDiagramComponent.componentType.STRAIGHT, LayoutDiagramComponent.componentType.CURVE,
+            LayoutDiagramComponent.componentType.SWITCH_LEFT, LayoutDiagramComponent.componentType.FEEDBACK
+        };
+
+        for (int i = 0; i < 60; i++)
+        {
+            int x = random.nextInt(12), y = random.nextInt(9);
+            page.addComponent(tile(types[random.nextInt(types.length)], x, y, random.nextInt(4)), x, y);
+        }
+
+        page.checkBounds();
+        LayoutDiagramHistory history = new LayoutDiagramHistory(page, 100);
+        String original = contents(page);
+
+        String[] steps = new String[6];
+        steps[0] = original;
+
+        history.begin(); page.shiftRight(4); history.commit();
+        steps[1] = contents(page);
+        history.begin(); page.shiftDown(3); history.commit();
+        steps[2] = contents(page);
+        history.begin(); page.shiftUp(2); history.commit();
+        steps[3] = contents(page);
+        history.begin(); page.shiftLeft(6); history.commit();
+        steps[4] = contents(page);
+        history.begin(); page.addRowsAndColumns(2, 3); history.commit();
+        steps[5] = contents(page);
+
+        assertTrue(history.getUndoCount() == 5, "every step changed something");
+        assertNotEquals(steps[5], original);
+
+        for (int i = 4; i >= 0; i--)
+        {
+            history.undo();
+            assertEquals(contents(page), steps[i], "undo to step " + i);
+        }
+
+        for (int i = 1; i <= 5; i++)
+        {
+            history.redo();
+            assertEquals(contents(page), steps[i], "redo to step " + i);
+        }
+    }
+
+    /**
+     * On a 200 x 80 page that is full, an edit keeps one cell, and a hundred undos are quick
+     */
+    @Test
+    public void testLargePage() throws Exception
+    {
+        LayoutDiagram page = page(200, 80);
+
+        for (int x = 0; x < 200; x++)
+        {
+            for (int y = 0; y < 80; y++)
+            {
+                page.addComponent(tile(LayoutDiagramComponent.componentType.STRAIGHT, x, y, (x + y) % 2), x, y);
+            }
+        }
+
+        LayoutDiagramHistory history = new LayoutDiagramHistory(page, 100);
+        String original = contents(page);
+
+        for (int i = 0; i < 100; i++)
+        {
+            int x = (i * 37) % 200, y = (i * 11) % 80;
+
+            history.begin();
+            LayoutDiagramComponent rotated = new LayoutDiagramComponent(page.getComponent(x, y));
+            rotated.rotate();
+            page.addComponent(rotated, x, y);
+            assertEquals(history.commit().getCellCount(), 1);
+        }
+
+        assertEquals(history.getCellCount(), 100, "one cell per edit, not sixteen thousand");
+
+        long start = System.nanoTime();
+
+        while (history.canUndo())
+        {
+            history.undo();
+        }
+
+        long ms = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(contents(page), original);
+        assertTrue(ms < 500, ms + " ms");
+    }
+}
@@ -0,0 +1,242 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.base.LayoutDiagram;
+import org.traincontrol.base.LayoutDiagramComponent;
+
+/**
+ * Sparse track diagram storage: cells are found, walked and saved in the order the dense grid had
+ * them, the bounds follow what is laid, shifts move what is on the page, and a large sparse page
+ * costs what is on it rather than its area.
+ *
+ * Needs no model, no socket and no display.
+ */
+public class testLayoutDiagramStorage
+{
+    private static LayoutDiagramComponent tile(int x, int y) throws Exception
+    {
+        return new LayoutDiagramComponent(LayoutDiagramComponent.componentType.STRAIGHT, x, y, (x + y) % 2, 0, 0, 0,
+            Accessory.accessoryDecoderType.MM2);
+    }
+
+    private static void place(LayoutDiagram page, int x, int y) throws Exception
+    {
+        page.addComponent(tile(x, y), x, y);
+    }
+
+    /**
+     * What a dense walk over the page would find, row by row
+     */
+    private static List<LayoutDiagramComponent> scanRows(LayoutDiagram page, int x0, int y0, int x1, int y1)
+    {
+        List<LayoutDiagramComponent> out = new ArrayList<>();
+
+        for (int y = y0; y <= y1; y++)
+        {
+            for (int x = x0; x <= x1; x++)
+            {
+                if (page.getComponent(x, y) != null) out.add(page.getComponent(x, y));
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Every cell's component sits where it says it does
+     */
+    private static void assertCoordinates(LayoutDiagram page)
+    {
+        for (LayoutDiagramComponent c : page.getAll())
+        {
+            assertSame(page.getComponent(c.getX(), c.getY()), c);
+        }
+    }
+
+    /**
+     * getAll goes column by column, the export and viewport queries row by row, as the grid did
+     */
+    @Test
+    public void testOrder() throws Exception
+    {
+        LayoutDiagram page = new LayoutDiagram("Test", 40, 40, null, null);
+        Random random = new Random(50);
+
+        for (int i = 0; i < 200; i++)
+        {
+            place(page, random.nextInt(40), random.nextInt(40));
+        }
+
+        List<LayoutDiagramComponent> columns = scanRows(page, 0, 0, 39, 39);
+        columns.sort(Comparator.comparingInt(LayoutDiagramComponent::getX).thenComparingInt(LayoutDiagramComponent::getY));
+
+        assertEquals(page.getAll(), columns);
+        assertEquals(page.getComponentCount(), columns.size());
+        assertEquals(page.getComponentsIn(0, 0, 40, 40), scanRows(page, 0, 0, 39, 39));
+
+        // Across chunk edges, and past the page
+        assertEquals(page.getComponentsIn(13, 7, 20, 11), scanRows(page, 13, 7, 32, 17));
+        assertEquals(page.getComponentsIn(30, 30, 50, 50), scanRows(page, 30, 30, 39, 39));
+        assertTrue(page.getComponentsIn(45, 0, 10, 10).isEmpty());
+
+        StringBuilder export = new StringBuilder();
+
+        for (LayoutDiagramComponent c : scanRows(page, 0, 0, 39, 39))
+        {
+            export.append(c.exportToCS2TextFormat()).append("\n");
+        }
+
+        assertTrue(page.exportToCS2TextFormat().endsWith(export.toString().trim()));
+
+        // Cells off the page are empty, and cannot be filled
+        assertNull(page.getComponent(40, 0));
+        assertNull(page.getComponent(-1, 0));
+        assertThrows(IndexOutOfBoundsException.class, () -> place(page, 40, 0));
+    }
+
+    /**
+     * The bounds follow components placed and removed, edges included
+     */
+    @Test
+    public void testBounds() throws Exception
+    {
+        LayoutDiagram page = new LayoutDiagram("Test", 100, 100, null, null);
+
+        page.checkBounds();
+        assertEquals(page.getMinx(), 100);
+        assertEquals(page.getMaxx(), 0);
+
+        place(page, 20, 30);
+        place(page, 70, 5);
+        place(page, 40, 90);
+        page.checkBounds();
+
+        assertEquals(page.getMinx(), 20);
+        assertEquals(page.getMiny(), 5);
+        assertEquals(page.getMaxx(), 70);
+        assertEquals(page.getMaxy(), 90);
+
+        page.addComponent(null, 70, 5);
+        page.addComponent(null, 40, 90);
+        page.checkBounds();
+
+        assertEquals(page.getMinx(), 20);
+        assertEquals(page.getMiny(), 30);
+        assertEquals(page.getMaxx(), 20);
+        assertEquals(page.getMaxy(), 30);
+
+        // Replacing a component is not emptying its cell
+        place(page, 20, 30);
+        page.checkBounds();
+        assertEquals(page.getMaxx(), 20);
+        assertEquals(page.getComponentCount(), 1);
+
+        // The whole page in edit mode
+        page.setEdit();
+        page.checkBounds();
+
+        assertEquals(page.getMinx(), 0);
+        assertEquals(page.getMaxx(), 99);
+        assertEquals(page.getMaxy(), 99);
+    }
+
+    /**
+     * Shifts move each component and its coordinates, and drop a removed row or column
+     */
+    @Test
+    public void testShifts() throws Exception
+    {
+        LayoutDiagram page = new LayoutDiagram("Test", 40, 40, null, null);
+        page.setEdit();
+
+        place(page, 0, 0);
+        place(page, 15, 16);
+        place(page, 16, 16);
+        place(page, 17, 30);
+        page.checkBounds();
+
+        page.shiftRight(16);
+        assertEquals(page.getSx(), 41);
+        assertNotNull(page.getComponent(15, 16));
+        assertNull(page.getComponent(16, 16));
+        assertNotNull(page.getComponent(17, 16));
+        assertNotNull(page.getComponent(18, 30));
+        assertCoordinates(page);
+
+        page.shiftDown(20);
+        assertEquals(page.getSy(), 41);
+        assertNotNull(page.getComponent(18, 31));
+        assertNotNull(page.getComponent(17, 16));
+        assertCoordinates(page);
+
+        page.shiftUp(16);
+        assertEquals(page.getComponentCount(), 2, "row 16 removed");
+        assertNotNull(page.getComponent(0, 0));
+        assertNotNull(page.getComponent(18, 30));
+        assertCoordinates(page);
+
+        page.shiftLeft(18);
+        assertEquals(page.getComponentCount(), 1, "column 18 removed");
+        assertNotNull(page.getComponent(0, 0));
+        assertCoordinates(page);
+    }
+
+    /**
+     * A 500 x 500 page with a few hundred tiles: walking, bounding and saving it costs the tiles, and
+     * drawing a screenful costs the chunks on screen
+     */
+    @Test
+    public void testLargeSparsePage() throws Exception
+    {
+        int size = 500, tiles = 600;
+
+        LayoutDiagram page = new LayoutDiagram("Test", size, size, null, null);
+        Random random = new Random(500);
+
+        // A few clusters of track, as a large layout has, rather than noise over the whole page
+        for (int i = 0; i < tiles; i++)
+        {
+            int cluster = i % 6;
+            place(page, 40 + cluster * 70 + random.nextInt(30), 30 + cluster * 75 + random.nextInt(30));
+        }
+
+        int laid = page.getComponentCount();
+        assertTrue(laid > tiles / 2);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 100; i++)
+        {
+            page.checkBounds();
+            assertEquals(page.getAll().size(), laid);
+            page.exportToCS2TextFormat();
+        }
+
+        long walkMs = (System.nanoTime() - start) / 1000000;
+
+        // A 40 x 25 screen panned over the page
+        start = System.nanoTime();
+        int seen = 0;
+
+        for (int i = 0; i < 10000; i++)
+        {
+            seen += page.getComponentsIn((i * 7) % (size - 40), (i * 13) % (size - 25), 40, 25).size();
+        }
+
+        long viewMs = (System.nanoTime() - start) / 1000000;
+
+        System.out.println("Sparse page: " + laid + " tiles on " + size + " x " + size + ", 100 bound/walk/export in "
+            + walkMs + " ms, 10000 viewport queries in " + viewMs + " ms (" + seen + " tiles)");
+
+        assertEquals(page.getComponentsIn(0, 0, size, size), scanRows(page, 0, 0, size - 1, size - 1));
+        assertTrue(seen > 0);
+
+        // A dense walk of 250000 cells each time would take far longer
+        assertTrue(walkMs < 2000, walkMs + " ms");
+        assertTrue(viewMs < 2000, viewMs + " ms");
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.automation.Edge;
+import org.traincontrol.automation.Layout;
+import org.traincontrol.automation.LayoutGraph;
+import org.traincontrol.automation.Point;
+
+/**
+ * The integer-indexed graph snapshot behind Layout's neighbour lookups and searches: its rows and edge
+ * attributes describe the layout, it is rebuilt when and only when the graph changes, and the lookups
+ * built on it answer exactly what the old scans of every edge did.
+ *
+ * Needs no model, no socket and no display.  Only non-destination points are created.
+ */
+public class testLayoutGraph
+{
+    private static Layout layout(String... edgeSpecs) throws Exception
+    {
+        Layout layout = new Layout(null);
+        Set<String> created = new HashSet<>();
+
+        for (String spec : edgeSpecs)
+        {
+            for (String name : spec.split(">"))
+            {
+                if (created.add(name)) layout.createPoint(name, false, null);
+            }
+        }
+
+        for (String spec : edgeSpecs)
+        {
+            String[] ends = spec.split(">");
+            layout.createEdge(ends[0], ends[1]);
+        }
+
+        return layout;
+    }
+
+    private static List<String> names(List<Edge> edges)
+    {
+        List<String> out = new ArrayList<>();
+
+        for (Edge e : edges)
+        {
+            out.add(e.getName());
+        }
+
+        return out;
+    }
+
+    /**
+     * Rows are sorted, and length, opposite and lock edges are carried per edge
+     */
+    @Test
+    public void testRowsAndAttributes() throws Exception
+    {
+        Layout layout = layout("A>C", "A>B", "B>A", "C>B", "D>B");
+        layout.getEdge("A", "B").setLength(3);
+        layout.getEdge("A", "B").addLockEdge(layout.getEdge("D", "B"));
+
+        LayoutGraph g = layout.getGraph();
+
+        assertEquals(g.getPointCount(), 4);
+        assertEquals(g.getEdgeCount(), 5);
+        assertEquals(g.getMaxOutDegree(), 2);
+
+        int a = g.pointId("A"), b = g.pointId("B");
+        assertEquals(g.pointId("nowhere"), -1);
+
+        assertEquals(names(g.getOutgoing(a)), Arrays.asList("A -> B", "A -> C"));
+        assertEquals(names(g.getIncoming(b)), Arrays.asList("A -> B", "C -> B", "D -> B"));
+        assertEquals(g.inDegree(a), 1);
+
+        int ab = g.edgeId(layout.getEdge("A", "B"));
+
+        assertEquals(g.from(ab), a);
+        assertEquals(g.to(ab), b);
+        assertEquals(g.length(ab), 3);
+        assertEquals(g.getEdge(g.opposite(ab)).getName(), "B -> A");
+        assertEquals(g.opposite(g.edgeId(layout.getEdge("A", "C"))), -1);
+
+        assertEquals(g.lockOffset(ab + 1) - g.lockOffset(ab), 1);
+        assertEquals(g.getEdge(g.lockEdge(g.lockOffset(ab))).getName(), "D -> B");
+    }
+
+    /**
+     * The same snapshot is handed out until a point, an edge, a length or a lock edge changes
+     */
+    @Test
+    public void testRebuiltOnlyOnChange() throws Exception
+    {
+        Layout layout = layout("A>B", "B>C");
+        LayoutGraph g = layout.getGraph();
+
+        layout.getNeighbors(layout.getPoint("A"));
+        layout.getIncomingEdges(layout.getPoint("B"));
+        assertSame(layout.getGraph(), g, "reads do not rebuild");
+
+        layout.createEdge("C", "A");
+        assertNotSame(layout.getGraph(), g, "new edge");
+        assertEquals(layout.getIncomingEdges(layout.getPoint("A")).size(), 1);
+
+        g = layout.getGraph();
+        layout.getEdge("A", "B").setLength(2);
+        assertNotSame(layout.getGraph(), g, "new length");
+        assertEquals(layout.getGraph().length(layout.getGraph().edgeId(layout.getEdge("A", "B"))), 2);
+
+        g = layout.getGraph();
+        layout.getEdge("A", "B").addLockEdge(layout.getEdge("B", "C"));
+        assertNotSame(layout.getGraph(), g, "new lock edge");
+
+        g = layout.getGraph();
+        layout.renamePoint("B", "B2");
+        assertNotSame(layout.getGraph(), g, "renamed");
+        assertEquals(layout.getGraph().pointId("B"), -1);
+        assertEquals(names(layout.getNeighbors(layout.getPoint("A"))), Arrays.asList("A -> B2"));
+
+        layout.deleteEdge("C", "A");
+        assertTrue(layout.getIncomingEdges(layout.getPoint("A")).isEmpty());
+
+        layout.deleteEdge("B2", "C");
+        layout.deleteEdge("A", "B2");
+        layout.deletePoint("C");
+        assertEquals(layout.getGraph().pointId("C"), -1);
+        assertTrue(layout.getNeighbors(layout.getPoint("A")).isEmpty());
+    }
+
+    /**
+     * On random graphs, every lookup answers what a scan of every edge does
+     */
+    @Test
+    public void testLookupsMatchAScan() throws Exception
+    {
+        Random random = new Random(38);
+
+        for (int round = 0; round < 50; round++)
+        {
+            int n = 2 + random.nextInt(12);
+            Layout layout = new Layout(null);
+
+            for (int i = 0; i < n; i++)
+            {
+                layout.createPoint("P" + i, false, null);
+            }
+
+            for (int i = 0; i < n * 2; i++)
+            {
+                String s = "P" + random.nextInt(n), e = "P" + random.nextInt(n);
+
+                if (layout.getEdge(s, e) == null) layout.createEdge(s, e);
+            }
+
+            for (Point p : layout.getPoints())
+            {
+                List<Edge> out = new ArrayList<>(), in = new ArrayList<>();
+
+                for (Edge e : layout.getEdges())
+                {
+                    if (e.getStart().equals(p)) out.add(e);
+                    if (e.getEnd().equals(p)) in.add(e);
+                }
+
+                out.sort(Comparator.comparing(e -> e.getEnd().getName()));
+                in.sort(Comparator.comparing(e -> e.getStart().getName()));
+
+                assertEquals(new HashSet<>(layout.getNeighbors(p)), new HashSet<>(out));
+                assertEquals(layout.getNeighbors(p).size(), out.size());
+                assertEquals(layout.getIncomingEdges(p), in);
+
+                List<Edge> both = new ArrayList<>(out);
+                both.addAll(in);
+                assertEquals(layout.getNeighborsAndIncoming(p), both);
+            }
+        }
+    }
+
+    /**
+     * Incoming edges for every point of a large layout: one row each, where it used to be a scan of
+     * every edge each
+     */
+    @Test
+    public void testLargeLayoutIncoming() throws Exception
+    {
+        int n = 20000;
+        Layout layout = new Layout(null);
+
+        for (int i = 0; i < n; i++)
+        {
+            layout.createPoint("R" + i, false, null);
+        }
+
+        for (int i = 0; i < n; i++)
+        {
+            layout.createEdge("R" + i, "R" + ((i + 1) % n));
+        }
+
+        long start = System.nanoTime();
+
+        for (Point p : layout.getPoints())
+        {
+            assertEquals(layout.getIncomingEdges(p).size(), 1);
+            assertFalse(layout.hasOnlyReversingIncoming(p));
+        }
+
+        long ms = (System.nanoTime() - start) / 1000000;
+        assertTrue(ms < 2000, ms + " ms");
+    }
+}
@@ -0,0 +1,278 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.traincontrol.base.LayoutDiagram;
+import org.traincontrol.marklin.MarklinControlStation;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+import org.traincontrol.marklin.file.CS2File;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Layout page import: pages are fetched concurrently yet delivered in index order, with the same
+ * result as fetching them one by one - and faster - and a page that fails leaves none imported.
+ *
+ * The Central Station is a local HTTP server holding PAGES copies of a sample page, answering every
+ * request after LATENCY_MS, as a Central Station over Wi-Fi would.  Sequential import is the same
+ * parser limited to one fetch at a time.
+ *
+ * Runs against the simulated model.
+ */
+public class testLayoutImport
+{
+    private static final int PAGES = 20;
+    private static final int LATENCY_MS = 50;
+
+    private static MarklinControlStation model;
+    private static HttpServer server;
+    private static ExecutorService serverThreads;
+    private static String base;
+    private static byte[] page;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, false);
+        model.stop();
+
+        page = Files.readAllBytes(Paths.get("cs2_sample_layout/config/gleisbilder/1 - Main.cs2"));
+
+        StringBuilder index = new StringBuilder("[gleisbild]\nversion\n .major=1\ngroesse\n");
+
+        for (int i = 0; i < PAGES; i++)
+        {
+            index.append("seite\n .id=").append(i).append("\n .name=").append(name(i)).append("\n");
+        }
+
+        byte[] master = index.toString().getBytes("UTF-8");
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        serverThreads = Executors.newFixedThreadPool(16);
+        server.setExecutor(serverThreads);
+
+        server.createContext("/config/", exchange ->
+        {
+            String path = exchange.getRequestURI().getPath();
+            byte[] body = null;
+
+            if (path.equals("/config/gleisbild.cs2"))
+            {
+                body = master;
+            }
+            else if (path.startsWith("/config/gleisbilder/Page"))
+            {
+                body = page;
+            }
+
+            try
+            {
+                Thread.sleep(LATENCY_MS);
+            }
+            catch (InterruptedException e)
+            {
+            }
+
+            if (body == null)
+            {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream os = exchange.getResponseBody())
+            {
+                os.write(body);
+            }
+        });
+
+        server.start();
+        base = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @AfterClass
+    public static void tearDownClass()
+    {
+        if (server != null) server.stop(0);
+        if (serverThreads != null) serverThreads.shutdownNow();
+    }
+
+    private static String name(int i)
+    {
+        return String.format("Page %02d", i);
+    }
+
+    private static CS2File parser(int threads)
+    {
+        CS2File parser = new CS2File("localhost", model);
+        parser.setLayoutDataLoc(base);
+        parser.setLayoutPageThreads(threads);
+
+        return parser;
+    }
+
+    /**
+     * The same pages, in the same order, with the same contents - in a fraction of the time
+     */
+    @Test
+    public void testConcurrentMatchesSequential() throws Exception
+    {
+        long start = System.nanoTime();
+        List<LayoutDiagram> sequential = parser(1).parseLayout(Collections.emptyList());
+        long sequentialMs = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        List<LayoutDiagram> concurrent = parser(CS2File.LAYOUT_PAGE_THREADS).parseLayout(Collections.emptyList());
+        long concurrentMs = (System.nanoTime() - start) / 1000000;
+
+        System.out.println("Layout import of " + PAGES + " pages at " + LATENCY_MS + " ms: sequential "
+            + sequentialMs + " ms, concurrent " + concurrentMs + " ms");
+
+        assertEquals(concurrent.size(), PAGES);
+        assertEquals(sequential.size(), PAGES);
+
+        for (int i = 0; i < PAGES; i++)
+        {
+            assertEquals(concurrent.get(i).getName(), name(i));
+            assertEquals(concurrent.get(i).getName(), sequential.get(i).getName());
+            assertEquals(concurrent.get(i).getAll().size(), sequential.get(i).getAll().size());
+            assertFalse(concurrent.get(i).getAll().isEmpty());
+        }
+
+        assertTrue(sequentialMs >= PAGES * LATENCY_MS, "sequential " + sequentialMs + " ms");
+        assertTrue(concurrentMs < sequentialMs / 2, "concurrent " + concurrentMs + " ms, sequential " + sequentialMs + " ms");
+    }
+
+    /**
+     * A server holding three pages, the middle one of which cannot be fetched
+     */
+    private static HttpServer failingServer() throws Exception
+    {
+        HttpServer other = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        other.createContext("/config/", exchange ->
+        {
+            String path = exchange.getRequestURI().getPath();
+            byte[] body = path.equals("/config/gleisbild.cs2")
+                ? "[gleisbild]\nseite\n .name=Page 00\nseite\n .name=Missing\nseite\n .name=Page 02\n".getBytes("UTF-8")
+                : path.contains("Missing") || !path.startsWith("/config/gleisbilder/") ? null : page;
+
+            if (body == null)
+            {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream os = exchange.getResponseBody())
+            {
+                os.write(body);
+            }
+        });
+        other.start();
+
+        return other;
+    }
+
+    /**
+     * A page that cannot be fetched fails the import, as it always did
+     */
+    @Test
+    public void testFailedPageFails() throws Exception
+    {
+        CS2File parser = parser(CS2File.LAYOUT_PAGE_THREADS);
+        HttpServer other = failingServer();
+
+        try
+        {
+            parser.setLayoutDataLoc("http://localhost:" + other.getAddress().getPort());
+            expectThrows(Exception.class, () -> parser.parseLayout(Collections.emptyList()));
+        }
+        finally
+        {
+            other.stop(0);
+        }
+    }
+
+    /**
+     * A failed import adds none of its pages to the model.  Pages used to be added as each one
+     * arrived, so the page before the failed one was left imported.
+     */
+    @Test
+    public void testFailedImportAddsNoPages() throws Exception
+    {
+        Field field = MarklinControlStation.class.getDeclaredField("fileParser");
+        field.setAccessible(true);
+        Object original = field.get(model);
+
+        HttpServer other = failingServer();
+
+        try
+        {
+            CS2File parser = new CS2File("localhost", model);
+            parser.setLayoutDataLoc("http://localhost:" + other.getAddress().getPort());
+            field.set(model, parser);
+
+            model.clearLayouts();
+            model.refreshLayouts();
+
+            assertEquals(model.getLayoutList(), Collections.emptyList());
+        }
+        finally
+        {
+            field.set(model, original);
+            other.stop(0);
+        }
+    }
+
+    /**
+     * Downloading writes every page, each intact
+     */
+    @Test
+    public void testDownload() throws Exception
+    {
+        Path dir = Files.createTempDirectory("layoutDownload");
+
+        try
+        {
+            // The download also fetches the accessory file, from the Central Station itself
+            CS2File parser = parser(CS2File.LAYOUT_PAGE_THREADS);
+
+            try
+            {
+                parser.downloadCS2Layout(dir.toFile());
+            }
+            catch (Exception e)
+            {
+                // Only the accessory file is not served
+            }
+
+            File pages = new File(dir.toFile(), "config/gleisbilder");
+
+            for (int i = 0; i < PAGES; i++)
+            {
+                File f = new File(pages, name(i) + ".cs2");
+                assertTrue(f.exists(), f.toString());
+                assertEquals(Files.readAllLines(f.toPath()), Files.readAllLines(Paths.get("cs2_sample_layout/config/gleisbilder/1 - Main.cs2")));
+            }
+        }
+        finally
+        {
+            Files.walk(dir).sorted(Collections.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
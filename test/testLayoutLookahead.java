@@ -0,0 +1,248 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.json.JSONObject;
+import org.traincontrol.automation.Edge;
+import org.traincontrol.automation.Layout;
+import org.traincontrol.automation.Point;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.base.Locomotive;
+import org.traincontrol.marklin.MarklinControlStation;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+
+/**
+ * Lookahead dispatch: trains reserve their next path on the way into a station and depart on it once
+ * they arrive, reservations never overlap, and the option survives a save and reload.
+ *
+ * Runs against the simulated model, on the frozen layout testAutonomySimulationSanity uses.
+ */
+public class testLayoutLookahead
+{
+    private static MarklinControlStation model;
+
+    private static final Accessory.accessoryDecoderType MM2 = Accessory.accessoryDecoderType.MM2;
+
+    private static final String[] LOCO_NAMES =
+    {
+        "Auto Test Loc 1", "Auto Test Loc 2", "Auto Test Loc 3"
+    };
+
+    private static final long RUN_MS = 30_000;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, true);
+        model.setNetworkCommState(false);
+        MarklinControlStation.DEBUG_SIMULATE_PACKETS = true;
+
+        for (int i = 0; i < LOCO_NAMES.length; i++)
+        {
+            if (model.getLocByName(LOCO_NAMES[i]) == null)
+            {
+                model.newMM2Locomotive(LOCO_NAMES[i], 61 + i);
+            }
+        }
+
+        for (int i = 1; i <= 4; i++)
+        {
+            model.newSwitch(i, MM2, false);
+        }
+
+        for (int i = 5; i <= 7; i++)
+        {
+            model.newSignal(i, MM2, false);
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass()
+    {
+        if (model.hasAutoLayout())
+        {
+            model.getAutoLayout().stopLocomotives();
+        }
+
+        MarklinControlStation.DEBUG_SIMULATE_PACKETS = false;
+
+        for (String name : LOCO_NAMES)
+        {
+            model.deleteLoc(name);
+        }
+    }
+
+    private static JSONObject fixture() throws Exception
+    {
+        return new JSONObject(new BufferedReader(new InputStreamReader(
+                testLayoutLookahead.class.getResource("autonomy_sanity.json").openStream()))
+                .lines().collect(Collectors.joining("\n")));
+    }
+
+    /**
+     * Saved with the layout, read back, and refused when it is not a boolean
+     */
+    @Test
+    public void testPersistence() throws Exception
+    {
+        JSONObject o = fixture();
+        assertFalse(Layout.fromJSON(o.toString(), model).isLookahead(), "off unless asked for");
+
+        o.put("lookahead", true);
+        Layout l = Layout.fromJSON(o.toString(), model);
+        assertTrue(l.isValid());
+        assertTrue(l.isLookahead());
+
+        assertTrue(Layout.fromJSON(l.toJSON(), model).isLookahead());
+
+        o.put("lookahead", "sometimes");
+        assertFalse(Layout.fromJSON(o.toString(), model).isValid());
+    }
+
+    /**
+     * One train, nothing in its way: it departs on the path it reserved coming in, every time it can.
+     * Without a dwell the simulated sensors clear behind the train at once; otherwise whether its tail
+     * still covers the arrival track when it stops, and so whether the reservation stands, is chance.
+     */
+    @Test
+    public void testLookaheadTaken() throws Exception
+    {
+        JSONObject o = fixture();
+        o.put("maxDelay", 0);
+
+        Layout layout = run(o, new String[] {LOCO_NAMES[0]}, 30, 3);
+
+        assertTrue(layout.getLookaheadConfirmedCount() >= 3, layout.getLookaheadConfirmedCount() + " taken");
+    }
+
+    /**
+     * Three trains sharing one arrival track: reservations never overlap, and a train that is waiting
+     * for the track is not starved by the others reserving it ahead.  The yield threshold is lowered so
+     * that the fixture rotates its trains inside the run; without lookahead each arrives about twice.
+     */
+    @Test
+    public void testLookaheadContended() throws Exception
+    {
+        run(fixture(), LOCO_NAMES, 5, 1);
+    }
+
+    /**
+     * Runs a fixture with lookahead on and only the given trains placed, asserting throughout that no
+     * two reservations share a point and at the end that every train arrived at least minArrivals times
+     */
+    private static Layout run(JSONObject o, String[] names, int maxLocInactiveSeconds, int minArrivals) throws Exception
+    {
+        o.put("lookahead", true);
+        o.put("maxLocInactiveSeconds", maxLocInactiveSeconds);
+
+        for (Object p : o.getJSONArray("points"))
+        {
+            JSONObject point = (JSONObject) p;
+
+            if (point.has("loc") && !java.util.Arrays.asList(names).contains(point.getJSONObject("loc").getString("name")))
+            {
+                point.remove("loc");
+            }
+        }
+
+        model.parseAuto(o.toString(4));
+
+        // Simulated sensors stay as the last run left them, and a train stopped on the arrival track
+        // would otherwise keep every path blocked for this one
+        for (Object p : o.getJSONArray("points"))
+        {
+            JSONObject point = (JSONObject) p;
+
+            if (point.has("s88"))
+            {
+                model.setFeedbackState(Integer.toString(point.getInt("s88")), false);
+            }
+        }
+
+        Layout layout = model.getAutoLayout();
+        assertTrue(layout != null && layout.isValid() && layout.isLookahead());
+
+        Map<String, AtomicInteger> arrivals = new HashMap<>();
+        List<Locomotive> locs = new ArrayList<>();
+
+        for (String name : names)
+        {
+            arrivals.put(name, new AtomicInteger(0));
+            locs.add(model.getLocByName(name));
+            model.getLocByName(name).setCallback(Layout.CB_ROUTE_END,
+                (l) -> arrivals.get(l.getName()).incrementAndGet());
+        }
+
+        model.go();
+        layout.runLocomotives();
+
+        long deadline = System.currentTimeMillis() + RUN_MS;
+
+        while (System.currentTimeMillis() < deadline)
+        {
+            List<Set<Point>> reserved = new ArrayList<>();
+
+            for (Locomotive loc : locs)
+            {
+                List<Edge> path = layout.getLookaheadPath(loc);
+
+                if (path != null)
+                {
+                    Set<Point> touched = new HashSet<>();
+
+                    for (Edge e : path)
+                    {
+                        touched.add(e.getStart());
+                        touched.add(e.getEnd());
+                    }
+
+                    for (Set<Point> other : reserved)
+                    {
+                        assertTrue(other.stream().noneMatch(touched::contains), "reservations overlap");
+                    }
+
+                    reserved.add(touched);
+                }
+            }
+
+            Thread.sleep(20);
+        }
+
+        layout.stopLocomotives();
+
+        long windDown = System.currentTimeMillis() + 10000;
+
+        while (!layout.getActiveLocomotives().isEmpty() && System.currentTimeMillis() < windDown)
+        {
+            Thread.sleep(100);
+        }
+
+        for (String name : names)
+        {
+            assertTrue(arrivals.get(name).get() >= minArrivals, name + " arrived " + arrivals.get(name).get() + " times");
+        }
+
+        // Stopping released everything that was still held
+        Thread.sleep(500);
+
+        for (Locomotive loc : locs)
+        {
+            assertNull(layout.getLookaheadPath(loc));
+        }
+
+        System.out.println(String.format("Lookahead, %d trains: %d taken, %d released", names.length,
+            layout.getLookaheadConfirmedCount(), layout.getLookaheadReleasedCount()));
+
+        return layout;
+    }
+}
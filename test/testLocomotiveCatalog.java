@@ -0,0 +1,242 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.base.Locomotive;
+import org.traincontrol.base.LocomotiveCatalog;
+import org.traincontrol.base.LocomotiveNotes;
+import org.traincontrol.marklin.MarklinLocomotive;
+
+/**
+ * The locomotive catalog index behind the selector filter and similar-locomotive search.  Results are
+ * checked against a plain scan of the same locomotives.
+ *
+ * Needs no model, no socket and no display.
+ */
+public class testLocomotiveCatalog
+{
+    private static final String[] RAILWAYS = {"DB", "SBB", "ÖBB", "NS", "SNCF", ""};
+
+    private static MarklinLocomotive loc(String name, int address, MarklinLocomotive.decoderType type)
+    {
+        return new MarklinLocomotive(null, address, type, name);
+    }
+
+    /**
+     * A catalog-sized fleet with random names, addresses and notes
+     */
+    private static List<Locomotive> fleet(int n, long seed)
+    {
+        Random r = new Random(seed);
+        List<Locomotive> out = new ArrayList<>();
+        String[] words = {"BR", "Re", "Ae", "Class", "Taurus", "Krokodil", "Vectron", "ICE", "Glacier", "V"};
+        MarklinLocomotive.decoderType[] types = MarklinLocomotive.decoderType.values();
+
+        for (int i = 0; i < n; i++)
+        {
+            String name = words[r.nextInt(words.length)] + " " + (10 + r.nextInt(990)) + (r.nextBoolean() ? " " + words[r.nextInt(words.length)] : "");
+            MarklinLocomotive l = loc(name + " #" + i, 1 + r.nextInt(250), types[r.nextInt(types.length)]);
+
+            if (r.nextInt(4) > 0)
+            {
+                int start = 1900 + r.nextInt(120);
+                int end = r.nextBoolean() ? 0 : start + r.nextInt(60);
+                l.setStructuredNotes(start, end, RAILWAYS[r.nextInt(RAILWAYS.length)], "notes " + i);
+            }
+
+            out.add(l);
+        }
+
+        return out;
+    }
+
+    /**
+     * What the selector filter matches, by direct scan
+     */
+    private static Set<Locomotive> scan(List<Locomotive> locs, String query)
+    {
+        Set<Locomotive> out = new HashSet<>();
+        String q = query.toLowerCase();
+
+        for (Locomotive l : locs)
+        {
+            if (l.getName().toLowerCase().contains(q)
+                || Integer.toString(l.getAddress()).contains(q)
+                || l.getDecoderTypeLabel().toLowerCase().contains(q)
+                || l.getStructuredNotes().getRailway().toLowerCase().contains(q))
+            {
+                out.add(l);
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Every query, short or long, matches exactly what a scan finds
+     */
+    @Test
+    public void testSearchMatchesScan()
+    {
+        List<Locomotive> locs = fleet(600, 1);
+        LocomotiveCatalog catalog = new LocomotiveCatalog(locs);
+
+        assertEquals(catalog.size(), 600);
+
+        for (String q : Arrays.asList("", "b", "BR", "br 1", "re 4", "taurus", "krokodil 5", "12", "mfx", "dcc", "sbb", "öbb", "#59", "zzz", "glacier 9"))
+        {
+            assertEquals(new HashSet<>(catalog.search(q)), scan(locs, q), "query \"" + q + "\"");
+        }
+    }
+
+    /**
+     * Renames, address changes, note edits and deletions are picked up by sync, and only the affected
+     * locomotives are re-indexed
+     */
+    @Test
+    public void testIncrementalSync()
+    {
+        List<Locomotive> locs = new ArrayList<>(fleet(50, 2));
+        MarklinLocomotive a = loc("Gotthard Giant", 5, MarklinLocomotive.decoderType.MFX);
+        MarklinLocomotive b = loc("Little Shunter", 77, MarklinLocomotive.decoderType.MM2);
+        locs.add(a);
+        locs.add(b);
+
+        LocomotiveCatalog catalog = new LocomotiveCatalog(locs);
+        assertEquals(catalog.sync(locs), 0, "nothing changed");
+
+        a.rename("Bernina Express");
+        b.setStructuredNotes(1950, 1970, "RhB", "");
+        assertEquals(catalog.sync(locs), 2);
+
+        assertTrue(catalog.search("gotthard").isEmpty());
+        assertEquals(catalog.search("bernina"), Collections.singleton(a));
+        assertTrue(catalog.search("rhb").contains(b));
+        assertTrue(catalog.inService(1960, 1960).contains(b));
+        assertFalse(catalog.inService(1971, 1980).contains(b));
+
+        locs.remove(a);
+        assertEquals(catalog.sync(locs), 1);
+        assertTrue(catalog.search("bernina").isEmpty());
+        assertEquals(catalog.size(), 51);
+
+        // A new locomotive reuses the freed slot without inheriting anything from it
+        MarklinLocomotive c = loc("Crocodile", 12, MarklinLocomotive.decoderType.DCC);
+        locs.add(c);
+        assertEquals(catalog.sync(locs), 1);
+        assertEquals(new HashSet<>(catalog.search("croc")), Collections.singleton(c));
+        assertEquals(new HashSet<>(catalog.search("dcc")), scan(locs, "dcc"));
+    }
+
+    /**
+     * Similar-locomotive search gives the same answer, in the same order, as the direct version
+     */
+    @Test
+    public void testFindSimilarMatchesScan()
+    {
+        List<Locomotive> locs = fleet(600, 3);
+        LocomotiveCatalog catalog = new LocomotiveCatalog(locs);
+
+        for (int i = 0; i < 60; i++)
+        {
+            Locomotive target = locs.get(i * 10);
+
+            for (List<String> railroads : Arrays.asList(Collections.<String>emptyList(), Arrays.asList("db"), Arrays.asList("SBB", "ns")))
+            {
+                for (int max : new int[] {1, 5, 1000})
+                {
+                    assertEquals(
+                        catalog.findSimilar(target, max, railroads, locs),
+                        expectedSimilar(target, max, railroads, locs),
+                        target.getName() + " " + railroads + " " + max
+                    );
+                }
+            }
+        }
+    }
+
+    /**
+     * The similarity rules checked one locomotive at a time, over the list in the order given
+     */
+    private static List<Locomotive> expectedSimilar(Locomotive target, int max, List<String> railroads, List<Locomotive> locs)
+    {
+        List<Locomotive> out = new ArrayList<>();
+        LocomotiveNotes targetNotes = target.getStructuredNotes();
+
+        if (targetNotes.getStartYear() == 0 && railroads.isEmpty())
+        {
+            return out;
+        }
+
+        for (Locomotive l : locs)
+        {
+            if (l == target) continue;
+
+            LocomotiveNotes notes = l.getStructuredNotes();
+
+            boolean yearsOverlap = notes.getStartYear() != 0
+                && (notes.getStartYear() <= targetNotes.getEndYear() || targetNotes.getEndYear() == 0)
+                && (notes.getEndYear() == 0 || notes.getEndYear() >= targetNotes.getStartYear());
+
+            boolean railroadMatch = railroads.isEmpty()
+                || railroads.stream().anyMatch(r -> r.equalsIgnoreCase(notes.getRailway()));
+
+            if (yearsOverlap && railroadMatch)
+            {
+                out.add(l);
+
+                if (out.size() >= max) break;
+            }
+        }
+
+        return out;
+    }
+
+    /**
+     * Reported rather than asserted, since it depends on the machine running it
+     */
+    @Test
+    public void testBenchmark()
+    {
+        List<Locomotive> locs = fleet(600, 4);
+        LocomotiveCatalog catalog = new LocomotiveCatalog(locs);
+        String[] queries = {"b", "br", "br 1", "taurus", "re 4", "12", "ice 3"};
+        int rounds = 500;
+
+        long start = System.nanoTime();
+        int a = 0;
+
+        for (int r = 0; r < rounds; r++)
+        {
+            for (String q : queries)
+            {
+                a += catalog.search(q).size();
+            }
+        }
+
+        long indexNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int b = 0;
+
+        for (int r = 0; r < rounds; r++)
+        {
+            for (String q : queries)
+            {
+                b += scan(locs, q).size();
+            }
+        }
+
+        long scanNanos = System.nanoTime() - start;
+
+        assertEquals(a, b);
+
+        System.out.println(String.format("Catalog filter: %.1f us/query; scan: %.1f us/query",
+            indexNanos / 1000.0 / (rounds * queries.length), scanNanos / 1000.0 / (rounds * queries.length)));
+    }
+}
@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.List;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.json.JSONObject;
+import org.traincontrol.automation.Edge;
+import org.traincontrol.automation.Layout;
+import org.traincontrol.automation.PathGenerator;
+import org.traincontrol.automation.RouteCost;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.marklin.MarklinControlStation;
+import org.traincontrol.marklin.MarklinFeedback;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+
+/**
+ * Weighted routing: lengths, switches, reversing points and slow sections each reorder the routes the
+ * generator yields, it does no more work than the routes asked for, and the weights survive a save and
+ * reload.  Parity with bfs on unweighted graphs is in testLayoutBfs.
+ *
+ * Runs against the simulated model.
+ */
+public class testPathGenerator
+{
+    private static MarklinControlStation model;
+    private static String destinationS88;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, false);
+        model.stop();
+
+        MarklinFeedback feedback = model.newFeedback(47200, null);
+        model.setFeedbackState(feedback.getName(), false);
+
+        destinationS88 = feedback.getName();
+    }
+
+    /**
+     * Two routes from A to D: A>B>D, two edges, and A>C>E>D, three
+     */
+    private static Layout diamond() throws Exception
+    {
+        Layout layout = new Layout(model);
+
+        layout.createPoint("A", true, destinationS88);
+        layout.createPoint("D", true, destinationS88);
+
+        for (String name : new String[] {"B", "C", "E"})
+        {
+            layout.createPoint(name, false, null);
+        }
+
+        for (String spec : new String[] {"A>B", "B>D", "A>C", "C>E", "E>D"})
+        {
+            layout.createEdge(spec.split(">")[0], spec.split(">")[1]);
+        }
+
+        return layout;
+    }
+
+    private static String render(List<Edge> path)
+    {
+        StringBuilder out = new StringBuilder(path.get(0).getStart().getName());
+
+        for (Edge e : path)
+        {
+            out.append(">").append(e.getEnd().getName());
+        }
+
+        return out.toString();
+    }
+
+    private static String first(Layout layout) throws Exception
+    {
+        return render(layout.getPaths(layout.getPoint("A"), layout.getPoint("D")).next());
+    }
+
+    private static List<String> all(Layout layout) throws Exception
+    {
+        List<String> out = new ArrayList<>();
+
+        for (PathGenerator paths = layout.getPaths(layout.getPoint("A"), layout.getPoint("D")); paths.hasNext();)
+        {
+            out.add(render(paths.next()));
+        }
+
+        return out;
+    }
+
+    /**
+     * Unweighted, the shorter route comes first; weighted by length, the longer edges lose
+     */
+    @Test
+    public void testLength() throws Exception
+    {
+        Layout layout = diamond();
+        String direct = first(layout);
+
+        assertTrue(direct.contains("B"), direct);
+        assertEquals(all(layout).size(), 2);
+
+        layout.getEdge("A", "B").setLength(5);
+        assertEquals(first(layout), direct, "lengths are ignored until weighted");
+
+        layout.setRouteCost(new RouteCost(1, 0, 0, false));
+        assertTrue(first(layout).contains("C"), first(layout));
+        assertEquals(all(layout).get(1), direct);
+    }
+
+    /**
+     * A reversing point, a switch and a slow section each cost extra when asked to
+     */
+    @Test
+    public void testPenalties() throws Exception
+    {
+        Layout layout = diamond();
+        layout.getPoint("B").setReversing(true);
+        layout.setRouteCost(new RouteCost(0, 0, 2, false));
+        assertTrue(first(layout).contains("C"), "reversing: " + first(layout));
+
+        layout = diamond();
+        Accessory turnout = model.newSwitch(200, Accessory.accessoryDecoderType.MM2, false);
+        layout.getEdge("B", "D").addConfigCommand(turnout.getName(), Accessory.accessorySetting.TURN);
+        layout.setRouteCost(new RouteCost(0, 1, 0, false));
+        assertTrue(first(layout).contains("B"), "one switch is a tie-breaker at most: " + first(layout));
+        layout.setRouteCost(new RouteCost(0, 2, 0, false));
+        assertTrue(first(layout).contains("C"), "turnout: " + first(layout));
+
+        layout = diamond();
+        layout.getPoint("B").setSpeedMultiplier(0.25);
+        assertTrue(first(layout).contains("B"), "speed ignored unless weighted");
+        layout.setRouteCost(new RouteCost(0, 0, 0, true));
+        assertTrue(first(layout).contains("C"), "speed: " + first(layout));
+    }
+
+    /**
+     * On a grid with thousands of routes, the first costs one search and counts one route
+     */
+    @Test
+    public void testLazy() throws Exception
+    {
+        int size = 12;
+        Layout layout = new Layout(model);
+
+        for (int x = 0; x < size; x++)
+        {
+            for (int y = 0; y < size; y++)
+            {
+                boolean corner = (x == 0 && y == 0) || (x == size - 1 && y == size - 1);
+                layout.createPoint("G" + x + "_" + y, corner, corner ? destinationS88 : null);
+            }
+        }
+
+        for (int x = 0; x < size; x++)
+        {
+            for (int y = 0; y < size; y++)
+            {
+                if (x + 1 < size) layout.createEdge("G" + x + "_" + y, "G" + (x + 1) + "_" + y);
+                if (y + 1 < size) layout.createEdge("G" + x + "_" + y, "G" + x + "_" + (y + 1));
+            }
+        }
+
+        PathGenerator paths = layout.getPaths(layout.getPoint("G0_0"), layout.getPoint("G" + (size - 1) + "_" + (size - 1)));
+
+        assertEquals(paths.next().size(), 2 * (size - 1));
+        assertEquals(paths.getCount(), 1);
+
+        int yielded = 1;
+
+        while (paths.hasNext())
+        {
+            assertEquals(paths.next().size(), 2 * (size - 1), "every grid route is as long");
+            yielded++;
+        }
+
+        assertEquals(yielded, Layout.MAX_PATH_ALTERNATIVES, "capped");
+    }
+
+    /**
+     * Saved with the layout, read back, and refused when negative
+     */
+    @Test
+    public void testPersistence() throws Exception
+    {
+        Layout layout = diamond();
+        layout.setRouteCost(new RouteCost(3, 4, 5, true));
+        layout.setDefaultLocSpeed(50);
+
+        JSONObject o = new JSONObject(layout.toJSON());
+        Layout reloaded = Layout.fromJSON(o.toString(), model);
+        assertTrue(reloaded.isValid(), o.toString());
+
+        RouteCost read = reloaded.getRouteCost();
+
+        assertEquals(read.getLengthWeight(), 3);
+        assertEquals(read.getTurnoutPenalty(), 4);
+        assertEquals(read.getReversingPenalty(), 5);
+        assertTrue(read.isSpeedWeighted());
+
+        o.remove("routeCost");
+        assertEquals(Layout.fromJSON(o.toString(), model).getRouteCost().getLengthWeight(), 0, "default");
+
+        o.put("routeCost", new JSONObject().put("lengthWeight", -1));
+        assertFalse(Layout.fromJSON(o.toString(), model).isValid());
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.automation.Edge;
+import org.traincontrol.automation.PathReservations;
+import org.traincontrol.automation.Point;
+
+/**
+ * The striped locks path claims hold while their accessories are commanded: a claim takes all of its
+ * stripes or none, waits while any is held, and claims that share nothing do not wait for each other.
+ *
+ * Needs no model, no socket and no display.  Points and edges are built directly.
+ */
+public class testPathReservations
+{
+    private static List<Edge> path(Point... through)
+    {
+        List<Edge> path = new ArrayList<>();
+
+        for (int i = 0; i + 1 < through.length; i++)
+        {
+            path.add(new Edge(through[i], through[i + 1]));
+        }
+
+        return path;
+    }
+
+    /**
+     * Points, lock edges and accessories all land in the footprint
+     */
+    @Test
+    public void testFootprint() throws Exception
+    {
+        Point a = new Point("PR A", true, "1"), b = new Point("PR B", false, null), c = new Point("PR C", true, "3");
+        Point x = new Point("PR X", false, null), y = new Point("PR Y", false, null);
+
+        List<Edge> p = path(a, b, c);
+        p.get(0).addLockEdge(new Edge(x, y));
+        p.get(1).addConfigCommand("Switch 12", org.traincontrol.base.Accessory.accessorySetting.TURN);
+
+        int[] footprint = PathReservations.footprint(p);
+
+        for (String key : new String[] {"p:" + a.getUniqueId(), "p:" + b.getUniqueId(), "p:" + c.getUniqueId(),
+            "p:" + x.getUniqueId(), "p:" + y.getUniqueId(), "a:Switch 12"})
+        {
+            assertTrue(java.util.Arrays.binarySearch(footprint, PathReservations.stripeOf(key)) >= 0, key);
+        }
+
+        for (int i = 1; i < footprint.length; i++)
+        {
+            assertTrue(footprint[i - 1] < footprint[i], "ascending, no duplicates");
+        }
+    }
+
+    /**
+     * A claim that finds one stripe held takes none of them, and counts the contention on that stripe
+     */
+    @Test
+    public void testAllOrNothing() throws Exception
+    {
+        PathReservations r = new PathReservations();
+        int[] wanted = {3, 17, 40};
+
+        PathReservations.Claim blocker = r.tryClaim(new int[] {17});
+        assertNotNull(blocker);
+
+        AtomicReference<PathReservations.Claim> got = new AtomicReference<>();
+        Thread t = new Thread(() -> got.set(r.tryClaim(wanted)));
+        t.start();
+        t.join();
+
+        assertNull(got.get());
+        assertFalse(r.isHeld(3), "backed off");
+        assertFalse(r.isHeld(40), "never reached");
+        assertEquals(r.getContention(17), 1);
+        assertEquals(r.getTotalContention(), 1);
+
+        blocker.close();
+
+        try (PathReservations.Claim c = r.tryClaim(wanted))
+        {
+            assertNotNull(c);
+            assertTrue(r.isHeld(3) && r.isHeld(17) && r.isHeld(40));
+        }
+
+        assertFalse(r.isHeld(17));
+        assertEquals(r.getClaims(17), 2);
+    }
+
+    /**
+     * A waiting claim gets its stripes as soon as the holder lets go; a disjoint one never waits
+     */
+    @Test
+    public void testWaitAndIndependence() throws Exception
+    {
+        PathReservations r = new PathReservations();
+        PathReservations.Claim holder = r.claim(new int[] {5, 6});
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() ->
+        {
+            try (PathReservations.Claim c = r.claim(new int[] {6, 9}))
+            {
+                acquired.countDown();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        waiter.start();
+
+        // Disjoint: taken at once while the other two are held and waited on
+        try (PathReservations.Claim c = r.tryClaim(new int[] {7, 8}))
+        {
+            assertNotNull(c);
+        }
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS), "stripe 6 is held");
+        assertTrue(r.getContention(6) > 0);
+
+        holder.close();
+
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertFalse(r.isHeld(9));
+    }
+}
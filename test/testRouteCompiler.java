@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.base.RouteCommand;
+import org.traincontrol.marklin.MarklinControlStation;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+import org.traincontrol.marklin.MarklinRoute;
+import org.traincontrol.marklin.RouteCompiler;
+
+/**
+ * The route compiler: footprints that follow triggered routes the way the route engine runs them,
+ * cycles, expected durations, and a conflict matrix kept current as routes are added, edited and
+ * deleted - recompiling only what an edit touches.
+ *
+ * Runs against the simulated model.
+ */
+public class testRouteCompiler
+{
+    private static MarklinControlStation model;
+    private static RouteCompiler compiler;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, false);
+        model.stop();
+        compiler = model.getRouteCompiler();
+    }
+
+    private static RouteCommand acc(int address, boolean setting)
+    {
+        return RouteCommand.RouteCommandAccessory(address, Accessory.accessoryDecoderType.MM2, setting);
+    }
+
+    private static RouteCommand delayed(RouteCommand rc, int delayMs)
+    {
+        rc.setDelay(delayMs);
+        return rc;
+    }
+
+    private static String key(int address)
+    {
+        return RouteCompiler.accessoryKey(Accessory.accessoryDecoderType.MM2, address);
+    }
+
+    private static MarklinRoute route(String name, RouteCommand... commands)
+    {
+        model.deleteRoute(name);
+        assertTrue(model.newRoute(name, new ArrayList<>(Arrays.asList(commands)), 0,
+            MarklinRoute.s88Triggers.CLEAR_THEN_OCCUPIED, false, null));
+
+        return model.getRoute(name);
+    }
+
+    private static void edit(String name, RouteCommand... commands)
+    {
+        assertTrue(model.editRoute(name, name, new ArrayList<>(Arrays.asList(commands)), 0,
+            MarklinRoute.s88Triggers.CLEAR_THEN_OCCUPIED, false, null));
+    }
+
+    /**
+     * A footprint holds the route's own accessories and those of the routes it triggers, one level
+     * deep as the engine allows, and lasts until the longest of them ends
+     */
+    @Test
+    public void testFootprint()
+    {
+        route("RC inner", acc(601, true), delayed(acc(602, false), 2000), acc(603, true));
+        route("RC outer", acc(600, true), RouteCommand.RouteCommandRoute("RC inner"), acc(601, false));
+        route("RC outermost", RouteCommand.RouteCommandRoute("RC outer"));
+
+        RouteCompiler.Footprint inner = compiler.getFootprint("RC inner");
+        RouteCompiler.Footprint outer = compiler.getFootprint("RC outer");
+        RouteCompiler.Footprint outermost = compiler.getFootprint("RC outermost");
+
+        assertEquals(inner.getPlannedMs(),
+            model.getRoute("RC inner").getRoute().stream().mapToLong(MarklinRoute::gapAfter).sum());
+        assertEquals(inner.getExpectedMs(), inner.getPlannedMs());
+
+        // Its own 601 comes after the inner route's, so it wins, and is last in sending order
+        assertEquals(new ArrayList<>(outer.getAccessories().keySet()), Arrays.asList(key(600), key(602), key(603), key(601)));
+        assertFalse(outer.getAccessories().get(key(601)));
+        assertTrue(outer.getRoutes().contains("RC inner"));
+        assertFalse(outer.isCyclic());
+
+        // The inner route outlasts the rest of the outer one, which does not wait for it
+        long startInner = MarklinRoute.gapAfter(acc(600, true));
+        assertEquals(outer.getExpectedMs(), startInner + inner.getExpectedMs());
+        assertTrue(outer.getExpectedMs() > outer.getPlannedMs());
+
+        // Two levels down is never run by the engine, so it is not in the footprint
+        assertEquals(outermost.getRoutes(), new java.util.LinkedHashSet<>(Arrays.asList("RC outermost", "RC outer")));
+        assertEquals(outermost.getAccessories().keySet(), new java.util.HashSet<>(Arrays.asList(key(600), key(601))));
+
+        assertNull(compiler.getFootprint("RC no such route"));
+    }
+
+    /**
+     * Routes that trigger each other are compiled, and flagged
+     */
+    @Test
+    public void testCycles()
+    {
+        route("RC cycle A", acc(611, true), RouteCommand.RouteCommandRoute("RC cycle B"));
+        route("RC cycle B", acc(612, true), RouteCommand.RouteCommandRoute("RC cycle A"));
+        route("RC self", acc(613, true), RouteCommand.RouteCommandRoute("RC self"));
+
+        assertTrue(compiler.getFootprint("RC cycle A").isCyclic());
+        assertTrue(compiler.getFootprint("RC cycle B").isCyclic());
+        assertTrue(compiler.getFootprint("RC self").isCyclic());
+        assertEquals(compiler.getFootprint("RC cycle A").getAccessories().keySet(),
+            new java.util.HashSet<>(Arrays.asList(key(611), key(612))));
+    }
+
+    /**
+     * The matrix follows adds, edits, renames and deletes - including edits to a triggered route, and
+     * a triggered route that is only added later
+     */
+    @Test
+    public void testConflictMatrix()
+    {
+        route("RC left", acc(621, true), acc(622, true));
+        route("RC right", acc(622, false), acc(623, false));
+        route("RC apart", acc(624, false));
+        route("RC caller", acc(625, true), RouteCommand.RouteCommandRoute("RC later"));
+
+        assertEquals(compiler.getConflicts("RC left", "RC right"), new java.util.HashSet<>(Arrays.asList(key(622))));
+        assertEquals(compiler.getConflicts("RC right", "RC left"), new java.util.HashSet<>(Arrays.asList(key(622))));
+        assertTrue(compiler.isCompatible("RC left", "RC apart"));
+        assertTrue(compiler.getConflicts("RC left").containsKey("RC right"));
+        assertEquals(compiler.getRoutesSetting(key(622)).get("RC right"), Boolean.FALSE);
+
+        // Edited to agree
+        edit("RC right", acc(622, true), acc(623, false));
+        assertTrue(compiler.isCompatible("RC left", "RC right"));
+        assertFalse(compiler.getConflicts("RC left").containsKey("RC right"));
+
+        // A route triggered by name that only exists now
+        assertTrue(compiler.isCompatible("RC caller", "RC left"));
+        route("RC later", acc(621, false));
+        assertEquals(compiler.getConflicts("RC caller", "RC left"), new java.util.HashSet<>(Arrays.asList(key(621))));
+
+        // Editing the triggered route reaches its caller
+        edit("RC later", acc(626, false));
+        assertTrue(compiler.isCompatible("RC caller", "RC left"));
+
+        // Edited in place
+        model.getRoute("RC later").addItem(acc(621, false));
+        assertFalse(compiler.isCompatible("RC caller", "RC left"));
+
+        // Renamed: the caller follows the new name
+        assertTrue(model.editRoute("RC later", "RC later renamed", model.getRoute("RC later").getRoute(), 0,
+            MarklinRoute.s88Triggers.CLEAR_THEN_OCCUPIED, false, null));
+        assertTrue(compiler.getFootprint("RC caller").getRoutes().contains("RC later renamed"));
+        assertFalse(compiler.isCompatible("RC caller", "RC left"));
+
+        // Deleted
+        model.deleteRoute("RC later renamed");
+        assertTrue(compiler.isCompatible("RC caller", "RC left"));
+
+        model.deleteRoute("RC left");
+        assertNull(compiler.getFootprint("RC left"));
+        assertTrue(compiler.getConflicts("RC left").isEmpty());
+        assertFalse(compiler.getRoutesSetting(key(621)).containsKey("RC left"));
+    }
+
+    /**
+     * An edit recompiles the route and its callers only, and lookups recompile nothing
+     */
+    @Test
+    public void testIncrementalAndConstantTimeLookups()
+    {
+        int n = 500;
+        List<String> names = new ArrayList<>();
+        Random random = new Random(49);
+
+        for (int i = 0; i < n; i++)
+        {
+            List<RouteCommand> rcs = new ArrayList<>();
+
+            for (int j = 0; j < 20; j++)
+            {
+                rcs.add(acc(1 + (i * 7 + j) % 300, random.nextBoolean()));
+            }
+
+            String name = "RC bulk " + i;
+            model.deleteRoute(name);
+            assertTrue(model.newRoute(name, rcs, 0, MarklinRoute.s88Triggers.CLEAR_THEN_OCCUPIED, false, null));
+            names.add(name);
+        }
+
+        route("RC bulk caller", RouteCommand.RouteCommandRoute("RC bulk 7"));
+
+        compiler.getFootprint(names.get(0));
+        long compiled = compiler.getCompilations();
+
+        // Lookups alone
+        long start = System.nanoTime();
+        int conflicting = 0;
+
+        for (int round = 0; round < 4; round++)
+        {
+            for (String a : names)
+            {
+                for (int k = 0; k < 50; k++)
+                {
+                    if (!compiler.isCompatible(a, names.get(Math.floorMod(a.hashCode() + k, n))))
+                    {
+                        conflicting++;
+                    }
+                }
+            }
+        }
+
+        long ns = System.nanoTime() - start;
+        System.out.println("Route compiler: " + (4 * n * 50) + " compatibility checks in " + ns / 1_000_000
+            + " ms, " + conflicting + " conflicting");
+
+        assertEquals(compiler.getCompilations(), compiled, "a lookup recompiled something");
+        assertTrue(conflicting > 0);
+
+        // One edit recompiles that route and its caller, not all of them
+        edit("RC bulk 7", acc(999, true));
+        assertEquals(compiler.getFootprint("RC bulk caller").getAccessories().keySet(),
+            new java.util.HashSet<>(Arrays.asList(key(999))));
+        assertEquals(compiler.getCompilations() - compiled, 2);
+
+        for (String name : names)
+        {
+            model.deleteRoute(name);
+        }
+
+        model.deleteRoute("RC bulk caller");
+    }
+}
@@ -0,0 +1,239 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.base.RouteCommand;
+import org.traincontrol.marklin.MarklinControlStation;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+import org.traincontrol.marklin.MarklinRoute;
+import org.traincontrol.marklin.RouteEngine;
+import org.traincontrol.marklin.udp.CS2Message;
+
+/**
+ * Routes executed on the shared route engine: commands land with their delays, many routes run at
+ * once on a few threads, a route can be stopped part way, and routes that disagree about an accessory
+ * are reported.
+ *
+ * Runs against the simulated model.
+ */
+public class testRouteEngine
+{
+    private static MarklinControlStation model;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, false);
+    }
+
+    /**
+     * A route of accessory commands, one per address, all to the same setting
+     */
+    private static MarklinRoute route(String name, int firstAddress, int commands, int delayMs, boolean setting)
+    {
+        List<RouteCommand> rcs = new ArrayList<>();
+
+        for (int i = 0; i < commands; i++)
+        {
+            RouteCommand rc = RouteCommand.RouteCommandAccessory(firstAddress + i, Accessory.accessoryDecoderType.MM2, setting);
+            rc.setDelay(delayMs);
+            rcs.add(rc);
+        }
+
+        model.deleteRoute(name);
+        assertTrue(model.newRoute(name, rcs, 0, MarklinRoute.s88Triggers.CLEAR_THEN_OCCUPIED, false, null));
+
+        return model.getRoute(name);
+    }
+
+    private static void awaitIdle(MarklinRoute r, long timeoutMs) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + timeoutMs;
+
+        while (r.isExecuting() && System.currentTimeMillis() < end)
+        {
+            Thread.sleep(20);
+        }
+
+        assertFalse(r.isExecuting(), r.getName() + " still executing");
+    }
+
+    /**
+     * Every command runs, and the run takes at least as long as its delays add up to
+     */
+    @Test
+    public void testTimedExecution() throws Exception
+    {
+        MarklinRoute r = route("RE timed", 701, 3, 0, true);
+
+        model.execRoute(r.getName());
+        awaitIdle(r, 5000);
+
+        for (int i = 0; i < 3; i++)
+        {
+            assertTrue(model.getAccessoryState(701 + i, Accessory.accessoryDecoderType.MM2));
+        }
+
+        RouteEngine.RouteTiming timing = model.getRouteEngine().getTiming(r.getName());
+
+        assertNotNull(timing);
+        assertEquals(timing.getRuns(), 1);
+        assertEquals(timing.getLastPlannedMs(), r.getRoute().stream().mapToLong(MarklinRoute::gapAfter).sum());
+        assertTrue(timing.getLastDurationMs() >= timing.getLastPlannedMs(), timing.getLastDurationMs() + " ms");
+    }
+
+    /**
+     * A cancelled route stops before its next command and can be run again afterwards
+     */
+    @Test
+    public void testCancelInFlight() throws Exception
+    {
+        MarklinRoute r = route("RE cancel", 711, 5, 400, true);
+
+        model.execRoute(r.getName());
+        Thread.sleep(200);
+
+        assertTrue(model.getRouteEngine().cancel(r.getName()));
+        awaitIdle(r, 2000);
+
+        assertTrue(model.getAccessoryState(711, Accessory.accessoryDecoderType.MM2), "first command ran");
+        Thread.sleep(600);
+        assertFalse(model.getAccessoryState(715, Accessory.accessoryDecoderType.MM2), "last command never ran");
+
+        assertEquals(model.getRouteEngine().getTiming(r.getName()).getCancelled(), 1);
+        assertFalse(model.getRouteEngine().cancel(r.getName()), "nothing left to cancel");
+
+        // The executing flag was released
+        RouteEngine.Execution again = model.getRouteEngine().start(r, false, 1);
+        assertNotNull(again);
+        again.cancel();
+        awaitIdle(r, 2000);
+    }
+
+    /**
+     * An emergency stop ends routes in flight
+     */
+    @Test
+    public void testStopCancelsRoutes() throws Exception
+    {
+        MarklinRoute r = route("RE stop", 721, 5, 400, true);
+
+        model.execRoute(r.getName());
+        Thread.sleep(100);
+
+        model.stop();
+        awaitIdle(r, 2000);
+
+        assertTrue(model.getRouteEngine().getTiming(r.getName()).getCancelled() >= 1);
+
+        model.go();
+    }
+
+    /**
+     * A route that turns the power off from a route it triggered still finishes: the stop spares the
+     * route issuing it and every route above it
+     */
+    @Test
+    public void testNestedStopSparesCallers() throws Exception
+    {
+        // Power reported on, so that the stop command is sent rather than skipped
+        CS2Message go = new CS2Message(CS2Message.CMD_SYSTEM, new byte[] {0, 0, 0, 0, CS2Message.CMD_SYSSUB_GO});
+        model.receiveMessage(new CS2Message(go.getCommand(), go.getHash(), true, go.getData()));
+        assertTrue(model.getPowerState());
+
+        model.deleteRoute("RE nested stop");
+        assertTrue(model.newRoute("RE nested stop", new ArrayList<>(Arrays.asList(RouteCommand.RouteCommandStop())), 0,
+            MarklinRoute.s88Triggers.CLEAR_THEN_OCCUPIED, false, null));
+
+        model.deleteRoute("RE nested caller");
+        assertTrue(model.newRoute("RE nested caller", new ArrayList<>(Arrays.asList(
+            RouteCommand.RouteCommandRoute("RE nested stop"),
+            RouteCommand.RouteCommandAccessory(741, Accessory.accessoryDecoderType.MM2, true),
+            RouteCommand.RouteCommandAccessory(742, Accessory.accessoryDecoderType.MM2, true))), 0,
+            MarklinRoute.s88Triggers.CLEAR_THEN_OCCUPIED, false, null));
+
+        MarklinRoute caller = model.getRoute("RE nested caller");
+        int cancelledBefore = model.getRouteEngine().getTiming(caller.getName()) == null ? 0
+            : model.getRouteEngine().getTiming(caller.getName()).getCancelled();
+
+        model.execRoute(caller.getName());
+        awaitIdle(caller, 5000);
+
+        assertTrue(model.getAccessoryState(741, Accessory.accessoryDecoderType.MM2), "caller carried on");
+        assertTrue(model.getAccessoryState(742, Accessory.accessoryDecoderType.MM2), "caller finished");
+        assertEquals(model.getRouteEngine().getTiming(caller.getName()).getCancelled(), cancelledBefore);
+
+        model.go();
+    }
+
+    /**
+     * Two routes running together that set an accessory differently are counted and logged
+     */
+    @Test
+    public void testAccessoryConflict() throws Exception
+    {
+        MarklinRoute a = route("RE conflict A", 731, 3, 300, true);
+        MarklinRoute b = route("RE conflict B", 733, 3, 0, false);
+        MarklinRoute c = route("RE no conflict", 741, 3, 0, false);
+
+        long before = model.getRouteEngine().getConflictCount();
+
+        model.execRoute(a.getName());
+        Thread.sleep(50);
+        model.execRoute(b.getName());
+        model.execRoute(c.getName());
+
+        awaitIdle(a, 5000);
+        awaitIdle(b, 5000);
+        awaitIdle(c, 5000);
+
+        assertEquals(model.getRouteEngine().getConflictCount() - before, 1, "only address 733 is shared");
+    }
+
+    /**
+     * Many routes at once, on the engine's few threads rather than one each
+     */
+    @Test
+    public void testManyConcurrentRoutes() throws Exception
+    {
+        int n = 40;
+        List<MarklinRoute> routes = new ArrayList<>();
+
+        for (int i = 0; i < n; i++)
+        {
+            routes.add(route("RE many " + i, 800 + i * 4, 4, 100, true));
+        }
+
+        long start = System.currentTimeMillis();
+
+        for (MarklinRoute r : routes)
+        {
+            model.execRoute(r.getName());
+        }
+
+        Thread.sleep(100);
+
+        long engineThreads = Thread.getAllStackTraces().keySet().stream()
+            .filter(t -> t.getName().startsWith("Route engine")).count();
+
+        assertTrue(engineThreads <= RouteEngine.WORKERS, engineThreads + " threads");
+
+        for (MarklinRoute r : routes)
+        {
+            awaitIdle(r, 10000);
+        }
+
+        long took = System.currentTimeMillis() - start;
+
+        // Side by side: about one route's length, far short of forty of them back to back
+        assertTrue(took < n * 4 * 150 / 4, "took " + took + " ms");
+
+        for (int i = 0; i < n; i++)
+        {
+            assertTrue(model.getAccessoryState(800 + i * 4 + 3, Accessory.accessoryDecoderType.MM2));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.automation.Edge;
+import org.traincontrol.automation.Point;
+import org.traincontrol.automation.StagingSchedule;
+import org.traincontrol.automation.TimetablePath;
+import org.traincontrol.marklin.MarklinLocomotive;
+
+/**
+ * The dependency graph a staging plan is run through: which moves have to wait for which.
+ *
+ * Needs no model, no socket and no display.  Points and edges are built directly.
+ */
+public class testStagingSchedule
+{
+    private static final MarklinLocomotive LOC_A = loc("SS alpha", 1);
+    private static final MarklinLocomotive LOC_B = loc("SS bravo", 2);
+    private static final MarklinLocomotive LOC_C = loc("SS charlie", 3);
+
+    private static MarklinLocomotive loc(String name, int address)
+    {
+        return new MarklinLocomotive(null, address, MarklinLocomotive.decoderType.MM2, name);
+    }
+
+    private static Point point(String name, String s88) throws Exception
+    {
+        return new Point(name, true, s88);
+    }
+
+    private static TimetablePath move(MarklinLocomotive loc, Point... through)
+    {
+        List<Edge> path = new ArrayList<>();
+
+        for (int i = 0; i + 1 < through.length; i++)
+        {
+            path.add(new Edge(through[i], through[i + 1]));
+        }
+
+        return new TimetablePath(loc, path, 0);
+    }
+
+    /**
+     * Moves on separate track do not wait for each other; moves into the same station do
+     */
+    @Test
+    public void testOnlyConflictingMovesWait() throws Exception
+    {
+        Point a = point("SS A", "1"), b = point("SS B", "2"), c = point("SS C", "3"), d = point("SS D", "4");
+
+        StagingSchedule schedule = new StagingSchedule(Arrays.asList(
+            move(LOC_A, a, b),
+            move(LOC_B, c, d),
+            move(LOC_C, d, b)
+        ));
+
+        assertEquals(schedule.getPredecessors(0), Collections.emptyList());
+        assertEquals(schedule.getPredecessors(1), Collections.emptyList(), "separate track: no wait");
+        assertEquals(schedule.getPredecessors(2), Arrays.asList(0, 1), "both B and D are shared");
+
+        assertEquals(schedule.getReady(), Arrays.asList(0, 1));
+        assertEquals(schedule.getCriticalPathMoves(), 2);
+    }
+
+    /**
+     * The same locomotive twice, a shared detection section and a lock edge are all conflicts, even
+     * where the paths themselves have no point in common
+     */
+    @Test
+    public void testIndirectConflicts() throws Exception
+    {
+        Point a = point("SS A", "11"), b = point("SS B", "12"), c = point("SS C", "13"), d = point("SS D", "14");
+        Point e = point("SS E", "15"), f = point("SS F", "16"), g = point("SS G", "12"), h = point("SS H", "17");
+
+        TimetablePath first = move(LOC_A, a, b);
+        TimetablePath sameLoc = move(LOC_A, c, d);
+        TimetablePath sameSection = move(LOC_B, e, g);
+
+        // Crossing: driving F -> H locks the edge into A
+        TimetablePath locking = move(LOC_C, f, h);
+        locking.getPath().get(0).addLockEdge(new Edge(c, a));
+
+        StagingSchedule schedule = new StagingSchedule(Arrays.asList(first, sameLoc, sameSection, locking));
+
+        assertEquals(schedule.getPredecessors(1), Arrays.asList(0), "same locomotive");
+        assertEquals(schedule.getPredecessors(2), Arrays.asList(0), "G shares B's sensor");
+        assertEquals(schedule.getPredecessors(3), Arrays.asList(0, 1), "the lock edge touches A and C");
+    }
+
+    /**
+     * A move is released when its predecessors arrive, and never when one of them did not
+     */
+    @Test
+    public void testReleaseAndFailure() throws Exception
+    {
+        Point a = point("SS A", "21"), b = point("SS B", "22"), c = point("SS C", "23");
+
+        StagingSchedule schedule = new StagingSchedule(Arrays.asList(
+            move(LOC_A, a, b),
+            move(LOC_B, c, a),
+            move(LOC_C, b, c)
+        ));
+
+        assertEquals(schedule.getReady(), Arrays.asList(0));
+
+        schedule.markStarted(0, 1000);
+        assertEquals(schedule.getReady(), Collections.emptyList());
+        assertEquals(schedule.getActive(), 1);
+
+        // A move finishing after the dispatcher looked, but before it waits, ends the wait at once
+        long seen = schedule.getChangeCount();
+        schedule.markFinished(0, true, 5000);
+
+        long start = System.nanoTime();
+        schedule.awaitChange(seen, 5000);
+        assertTrue(System.nanoTime() - start < 2_000_000_000L, "returned at once, not timed out");
+
+        assertEquals(schedule.getReady(), Arrays.asList(1));
+
+        schedule.markStarted(1, 5000);
+        schedule.markFinished(1, false, 6000);
+
+        assertEquals(schedule.getReady(), Collections.emptyList(), "move 2 depends on a move that failed");
+        assertFalse(schedule.isComplete());
+    }
+
+    /**
+     * The critical path is timed by what each move actually took, and the makespan by the run
+     */
+    @Test
+    public void testCriticalPathAgainstMakespan() throws Exception
+    {
+        Point a = point("SS A", "31"), b = point("SS B", "32"), c = point("SS C", "33");
+        Point d = point("SS D", "34"), e = point("SS E", "35"), f = point("SS F", "36");
+
+        // 0 -> 2 is a chain; 1 is independent of both
+        StagingSchedule schedule = new StagingSchedule(Arrays.asList(
+            move(LOC_A, a, b),
+            move(LOC_B, d, e),
+            move(LOC_C, b, c)
+        ));
+
+        assertEquals(schedule.getPredecessors(2), Arrays.asList(0));
+
+        schedule.markStarted(0, 0);
+        schedule.markStarted(1, 0);
+        schedule.markFinished(1, true, 50000);
+        schedule.markFinished(0, true, 20000);
+
+        // Dispatched a little late, as a real run would
+        schedule.markStarted(2, 21000);
+        schedule.markFinished(2, true, 51000);
+
+        assertTrue(schedule.isComplete());
+        assertEquals(schedule.getMaxActive(), 2);
+        assertEquals(schedule.getCriticalPathMoves(), 2);
+        assertEquals(schedule.getCriticalPathMillis(), 50000, "20 s then 30 s along the chain");
+        assertEquals(schedule.getMakespanMillis(), 51000);
+
+        // A move that was done before the run - a graceful stop let it finish - is not timed
+        StagingSchedule resumed = new StagingSchedule(Arrays.asList(move(LOC_A, a, b), move(LOC_B, b, f)));
+        resumed.markDone(0);
+
+        assertEquals(resumed.getReady(), Arrays.asList(1));
+        assertEquals(resumed.getMakespanMillis(), 0);
+    }
+}
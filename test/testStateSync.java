@@ -0,0 +1,354 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import static org.testng.Assert.*;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.traincontrol.base.Locomotive;
+import org.traincontrol.marklin.MarklinControlStation;
+import org.traincontrol.marklin.MarklinLocomotive;
+import org.traincontrol.marklin.MarklinStateSync;
+import org.traincontrol.marklin.udp.CS2Message;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+
+/**
+ * Locomotive state sync: a query asks only for what the Central Station has not reported, a push sends
+ * only what differs from it, frames are paced to the budget, the rate is cut when answers lag, and
+ * frames that go unanswered are sent again.
+ *
+ * The Central Station is played by a thread that answers each frame through the model, as the UDP
+ * reader would, optionally slowly or not at all.
+ *
+ * Runs against the simulated model.
+ */
+public class testStateSync
+{
+    private static MarklinControlStation model;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, false);
+        model.stop();
+    }
+
+    /**
+     * Answers frames one at a time from its own state: each locomotive's speed is its address modulo
+     * 50, it runs forward, and its even functions are on - until a frame sets them otherwise
+     */
+    private static class FakeCentralStation implements Consumer<CS2Message>
+    {
+        private final BlockingQueue<CS2Message> queue = new LinkedBlockingQueue<>();
+        private final Map<String, Integer> state = new ConcurrentHashMap<>();
+        private final AtomicInteger received = new AtomicInteger();
+        private final long serviceMillis;
+        private final int dropEvery;
+        private final Thread thread;
+
+        /**
+         * @param serviceMillis time taken to answer each frame
+         * @param dropEvery every this many frames is lost, 0 for none
+         */
+        FakeCentralStation(long serviceMillis, int dropEvery)
+        {
+            this.serviceMillis = serviceMillis;
+            this.dropEvery = dropEvery;
+            this.thread = new Thread(this::answer);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void accept(CS2Message m)
+        {
+            int n = this.received.incrementAndGet();
+
+            if (this.dropEvery == 0 || n % this.dropEvery != 0)
+            {
+                this.queue.add(m);
+            }
+        }
+
+        private void answer()
+        {
+            try
+            {
+                while (true)
+                {
+                    CS2Message m = this.queue.take();
+
+                    if (this.serviceMillis > 0)
+                    {
+                        Thread.sleep(this.serviceMillis);
+                    }
+
+                    model.receiveMessage(respond(m));
+                }
+            }
+            catch (InterruptedException e)
+            {
+            }
+        }
+
+        private CS2Message respond(CS2Message m)
+        {
+            byte[] d = m.getData();
+            int uid = m.extractUID();
+            byte[] out;
+
+            if (m.getCommand() == CS2Message.CMD_LOCO_VELOCITY)
+            {
+                if (d.length == 6) this.state.put(uid + "s", ((d[4] & 0xFF) << 8 | (d[5] & 0xFF)) / 10);
+                int speed = this.state.getOrDefault(uid + "s", (uid & 0xFFFF) % 50) * 10;
+                out = new byte[] {d[0], d[1], d[2], d[3], (byte) (speed >> 8), (byte) speed};
+            }
+            else if (m.getCommand() == CS2Message.CMD_LOCO_DIRECTION)
+            {
+                if (d.length == 5) this.state.put(uid + "d", (int) d[4]);
+                out = new byte[] {d[0], d[1], d[2], d[3], (byte) (int) this.state.getOrDefault(uid + "d", 1)};
+            }
+            else
+            {
+                if (d.length == 6) this.state.put(uid + "f" + d[4], (int) d[5]);
+                out = new byte[] {d[0], d[1], d[2], d[3], d[4], (byte) (int) this.state.getOrDefault(uid + "f" + d[4], d[4] % 2 == 0 ? 1 : 0)};
+            }
+
+            CS2Message response = new CS2Message(m.getCommand(), out);
+
+            return new CS2Message(response.getCommand(), response.getHash(), true, response.getData());
+        }
+
+        void close()
+        {
+            this.thread.interrupt();
+        }
+    }
+
+    private static List<MarklinLocomotive> locs(String prefix, int address, int count)
+    {
+        List<MarklinLocomotive> locs = new ArrayList<>();
+
+        for (int i = 0; i < count; i++)
+        {
+            locs.add(model.newDCCLocomotive(prefix + " " + i, address + i));
+        }
+
+        return locs;
+    }
+
+    private static void delete(List<MarklinLocomotive> locs)
+    {
+        for (MarklinLocomotive l : locs)
+        {
+            model.deleteLoc(l.getName());
+        }
+    }
+
+    private static int itemsPerLoc(MarklinLocomotive l)
+    {
+        return l.getNumF() + 2;
+    }
+
+    /**
+     * Everything is queried once; after that only what was forgotten
+     */
+    @Test
+    public void testQueryOnlyStale() throws Exception
+    {
+        FakeCentralStation cs = new FakeCentralStation(0, 0);
+        MarklinStateSync sync = new MarklinStateSync(cs);
+        List<MarklinLocomotive> locs = locs("Sync query", 4301, 10);
+
+        try
+        {
+            sync.setBudget(5000, 64);
+            int items = itemsPerLoc(locs.get(0)) * locs.size();
+
+            MarklinStateSync.Progress p = sync.query(locs, 20000);
+
+            assertEquals(p.getTotal(), items, p.toString());
+            assertEquals(p.getAnswered(), items, p.toString());
+            assertEquals(p.getFramesSent(), items, p.toString());
+            assertEquals(p.getUnanswered(), 0);
+            assertTrue(p.isFinished());
+
+            for (MarklinLocomotive l : locs)
+            {
+                assertEquals(l.getSpeed(), (l.getIntUID() & 0xFFFF) % 50, l.getName());
+                assertTrue(l.getF(0) && !l.getF(1) && l.getF(28), l.getName());
+                assertEquals(l.getDirection(), Locomotive.locDirection.DIR_FORWARD);
+            }
+
+            assertEquals(sync.query(locs, 20000).getFramesSent(), 0, "nothing is stale");
+
+            sync.forget(locs.subList(3, 4));
+            p = sync.query(locs, 20000);
+            assertEquals(p.getFramesSent(), itemsPerLoc(locs.get(3)), "only what was forgotten");
+            assertEquals(p.getUnanswered(), 0);
+        }
+        finally
+        {
+            cs.close();
+            delete(locs);
+        }
+    }
+
+    /**
+     * A push sends only the state changed since the Central Station last reported it
+     */
+    @Test
+    public void testPushOnlyChanged() throws Exception
+    {
+        FakeCentralStation cs = new FakeCentralStation(0, 0);
+        MarklinStateSync sync = new MarklinStateSync(cs);
+        List<MarklinLocomotive> locs = locs("Sync push", 4321, 5);
+
+        try
+        {
+            sync.setBudget(5000, 64);
+            sync.query(locs, 20000);
+
+            assertEquals(sync.push(locs, 20000).getFramesSent(), 0, "all of it as reported");
+
+            // Changed locally while the Central Station did not hear it
+            locs.get(1).setSpeed(33);
+            locs.get(4).setF(1, true);
+
+            MarklinStateSync.Progress p = sync.push(locs, 20000);
+
+            assertEquals(p.getTotal(), 2, p.toString());
+            assertEquals(p.getFramesSent(), 2);
+            assertEquals(p.getUnanswered(), 0);
+            assertEquals(cs.state.get(locs.get(1).getIntUID() + "s"), Integer.valueOf(33));
+            assertEquals(cs.state.get(locs.get(4).getIntUID() + "f1"), Integer.valueOf(1));
+
+            assertEquals(sync.push(locs, 20000).getFramesSent(), 0);
+        }
+        finally
+        {
+            cs.close();
+            delete(locs);
+        }
+    }
+
+    /**
+     * A single locomotive's syncFromState, and its consist's, also send only what differs from what
+     * was reported
+     */
+    @Test
+    public void testSyncFromStateOnlyChanged() throws Exception
+    {
+        FakeCentralStation cs = new FakeCentralStation(0, 0);
+        MarklinStateSync sync = new MarklinStateSync(cs);
+        List<MarklinLocomotive> locs = locs("Sync state", 4341, 1);
+        MarklinLocomotive l = locs.get(0);
+
+        try
+        {
+            sync.setBudget(5000, 64);
+            sync.query(locs, 20000);
+
+            long frames = l.getConsist().getFrameCount();
+
+            l.syncFromState();
+            assertEquals(l.getConsist().getFrameCount(), frames, "all of it as reported");
+
+            // Changed locally while the Central Station did not hear it
+            l.setF(3, !l.getF(3));
+            frames = l.getConsist().getFrameCount();
+
+            l.syncFromState();
+            assertEquals(l.getConsist().getFrameCount(), frames + 1, "only the function");
+        }
+        finally
+        {
+            cs.close();
+            delete(locs);
+        }
+    }
+
+    /**
+     * No faster than the budget, even when the Central Station keeps up
+     */
+    @Test
+    public void testPacing() throws Exception
+    {
+        FakeCentralStation cs = new FakeCentralStation(0, 0);
+        MarklinStateSync sync = new MarklinStateSync(cs);
+        List<MarklinLocomotive> locs = locs("Sync pace", 4341, 5);
+
+        try
+        {
+            sync.setBudget(400, 1000);
+            MarklinStateSync.Progress p = sync.query(locs, 20000);
+            long floor = p.getFramesSent() * 1000 / 400;
+
+            assertEquals(p.getUnanswered(), 0);
+            assertTrue(p.getElapsedMillis() >= floor * 8 / 10, p.toString() + ", expected at least " + floor + " ms");
+            assertEquals(p.getBackoffs(), 0);
+        }
+        finally
+        {
+            cs.close();
+            delete(locs);
+        }
+    }
+
+    /**
+     * A Central Station slower than the budget makes the sync back off, not lose frames
+     */
+    @Test
+    public void testBackoff() throws Exception
+    {
+        FakeCentralStation cs = new FakeCentralStation(2, 0);
+        MarklinStateSync sync = new MarklinStateSync(cs);
+        List<MarklinLocomotive> locs = locs("Sync slow", 4361, 4);
+
+        try
+        {
+            sync.setBudget(5000, 16);
+            MarklinStateSync.Progress p = sync.query(locs, 30000);
+
+            assertTrue(p.getBackoffs() > 0, p.toString());
+            assertTrue(p.getRate() < 5000, p.toString());
+            assertEquals(p.getUnanswered(), 0, p.toString());
+            assertEquals(p.getFramesSent(), p.getTotal(), "nothing sent twice: " + p);
+        }
+        finally
+        {
+            cs.close();
+            delete(locs);
+        }
+    }
+
+    /**
+     * Lost frames are sent again until answered
+     */
+    @Test
+    public void testResend() throws Exception
+    {
+        FakeCentralStation cs = new FakeCentralStation(0, 7);
+        MarklinStateSync sync = new MarklinStateSync(cs);
+        List<MarklinLocomotive> locs = locs("Sync lossy", 4381, 3);
+
+        try
+        {
+            sync.setBudget(5000, 256);
+            MarklinStateSync.Progress p = sync.query(locs, 30000);
+
+            assertEquals(p.getUnanswered(), 0, p.toString());
+            assertEquals(p.getAnswered(), p.getTotal(), p.toString());
+            assertTrue(p.getFramesSent() > p.getTotal(), p.toString());
+        }
+        finally
+        {
+            cs.close();
+            delete(locs);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import static org.testng.Assert.*;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.traincontrol.automation.Edge;
+import org.traincontrol.automation.Layout;
+import org.traincontrol.automation.Point;
+import org.traincontrol.automation.TimetablePath;
+import org.traincontrol.automation.TimetableSchedule;
+import org.traincontrol.base.Accessory;
+import org.traincontrol.base.Locomotive;
+import org.traincontrol.marklin.MarklinControlStation;
+import org.traincontrol.marklin.MarklinLocomotive;
+import static org.traincontrol.marklin.MarklinControlStation.init;
+
+/**
+ * The timetable run's schedule: when each entry is due, how late it was dispatched, and that waiting
+ * for it is woken by events rather than found out by polling.
+ *
+ * Runs against the simulated model.
+ */
+public class testTimetableSchedule
+{
+    private static MarklinControlStation model;
+
+    // The fixture places all three; it is only valid if they exist
+    private static final String[] LOCO_NAMES =
+    {
+        "Auto Test Loc 1", "Auto Test Loc 2", "Auto Test Loc 3"
+    };
+
+    private static final String LOC = LOCO_NAMES[0];
+
+    @BeforeClass
+    public static void setUpClass() throws Exception
+    {
+        model = init(null, true, false, false, true);
+        model.setNetworkCommState(false);
+        MarklinControlStation.DEBUG_SIMULATE_PACKETS = true;
+
+        for (int i = 0; i < LOCO_NAMES.length; i++)
+        {
+            if (model.getLocByName(LOCO_NAMES[i]) == null)
+            {
+                model.newMM2Locomotive(LOCO_NAMES[i], 61 + i);
+            }
+        }
+
+        for (int i = 1; i <= 4; i++)
+        {
+            model.newSwitch(i, Accessory.accessoryDecoderType.MM2, false);
+        }
+
+        for (int i = 5; i <= 7; i++)
+        {
+            model.newSignal(i, Accessory.accessoryDecoderType.MM2, false);
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass()
+    {
+        MarklinControlStation.DEBUG_SIMULATE_PACKETS = false;
+
+        for (String name : LOCO_NAMES)
+        {
+            model.deleteLoc(name);
+        }
+    }
+
+    private static List<TimetablePath> entries(int n, long gap) throws Exception
+    {
+        Point a = new Point("TS A", false, null), b = new Point("TS B", false, null);
+        List<Edge> path = Arrays.asList(new Edge(a, b));
+        List<TimetablePath> out = new ArrayList<>();
+
+        for (int i = 0; i < n; i++)
+        {
+            TimetablePath ttp = new TimetablePath(new MarklinLocomotive(model, 1, MarklinLocomotive.decoderType.MM2, "TS " + i), path, 0);
+            ttp.setSecondsToNext(i == 0 ? 0 : gap);
+            out.add(ttp);
+        }
+
+        return out;
+    }
+
+    /**
+     * The first entry is due at once; each later one only once the one before has set off, and then a
+     * gap after that one was dispatched
+     */
+    @Test
+    public void testDueTimes() throws Exception
+    {
+        List<TimetablePath> entries = entries(3, 500);
+        TimetableSchedule s = new TimetableSchedule(entries, 0);
+
+        assertEquals(s.getDueTime(0, 1000), 1000);
+        s.markDispatched(0, 1000, 1010);
+
+        assertEquals(s.getDueTime(1, 1000), -1, "entry 0 has not set off");
+
+        entries.get(0).setExecutionTime(1100);
+        assertEquals(s.getDueTime(1, 1000), 1510);
+
+        // Set off later than the gap: due as soon as it did
+        entries.get(0).setExecutionTime(2000);
+        assertEquals(s.getDueTime(1, 1000), 2000);
+
+        s.markDispatched(1, 2000, 2030);
+        assertEquals(s.getStartSkewMillis(0), 10);
+        assertEquals(s.getStartSkewMillis(1), 30);
+        assertEquals(s.getStartSkewMillis(2), -1, "not dispatched");
+        assertEquals(s.getMaxStartSkewMillis(), 30);
+        assertEquals(s.getMeanStartSkewMillis(), 20);
+        assertEquals(s.getDispatched(), 2);
+    }
+
+    /**
+     * A resumed run's first entry is due at once whatever came before it
+     */
+    @Test
+    public void testResumedRun() throws Exception
+    {
+        TimetableSchedule s = new TimetableSchedule(entries(4, 500), 2);
+
+        assertEquals(s.getDueTime(2, 7), 7);
+        assertEquals(s.getDueTime(3, 7), -1);
+    }
+
+    /**
+     * A waiter is woken by a change well before its timeout
+     */
+    @Test
+    public void testWokenByChange() throws Exception
+    {
+        TimetableSchedule s = new TimetableSchedule(entries(1, 0), 0);
+
+        new Thread(() ->
+        {
+            try
+            {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            s.changed();
+        }).start();
+
+        long start = System.nanoTime();
+        s.awaitChange(s.getChangeCount(), 5000);
+
+        assertTrue(System.nanoTime() - start < 2_000_000_000L, "woken, not timed out");
+    }
+
+    /**
+     * A change between the due check and the wait is not slept through.  The wait used to start from
+     * scratch, so the notification had already been missed and the run sat out the whole poll.
+     */
+    @Test
+    public void testChangeBeforeWaitIsNotMissed() throws Exception
+    {
+        TimetableSchedule s = new TimetableSchedule(entries(1, 0), 0);
+
+        long seen = s.getChangeCount();
+        s.changed();
+
+        long start = System.nanoTime();
+        s.awaitChange(seen, 5000);
+
+        assertTrue(System.nanoTime() - start < 2_000_000_000L, "returned at once, not timed out");
+
+        // With nothing new since the count was read, the timeout still applies
+        start = System.nanoTime();
+        s.awaitChange(s.getChangeCount(), 100);
+
+        assertTrue(System.nanoTime() - start >= 90_000_000L, "waited out the timeout");
+    }
+
+    /**
+     * Thousands of entries are indexed in constant time each
+     */
+    @Test
+    public void testLargeTimetable() throws Exception
+    {
+        int n = 20000;
+        List<TimetablePath> entries = new java.util.LinkedList<>(entries(n, 0));
+        long start = System.nanoTime();
+
+        TimetableSchedule s = new TimetableSchedule(entries, 0);
+
+        for (int i = 0; i < n; i++)
+        {
+            long due = s.getDueTime(i, 0);
+            assertTrue(due >= 0);
+            s.markDispatched(i, due, due);
+            s.getEntry(i).setExecutionTime(1);
+        }
+
+        assertEquals(s.getDispatched(), n);
+        assertTrue(System.nanoTime() - start < 2_000_000_000L, (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * A real timetable run on the simulated layout: each entry is dispatched within 100 ms of being due
+     */
+    @Test
+    public void testStartAccuracy() throws Exception
+    {
+        String json = new BufferedReader(new InputStreamReader(
+                testTimetableSchedule.class.getResource("autonomy_sanity.json").openStream()))
+                .lines().collect(Collectors.joining("\n"));
+
+        model.parseAuto(json);
+
+        Layout layout = model.getAutoLayout();
+        assertTrue(layout.isValid());
+
+        Locomotive loc = model.getLocByName(LOC);
+        String[] stops = {"Station 1", "StationArrival", "Station 1", "StationArrival", "Station 1"};
+        List<TimetablePath> timetable = new ArrayList<>();
+
+        for (int i = 0; i + 1 < stops.length; i++)
+        {
+            List<Edge> path = layout.bfs(layout.getPoint(stops[i]), layout.getPoint(stops[i + 1]), new ArrayList<>());
+            assertNotNull(path, stops[i] + " to " + stops[i + 1]);
+
+            TimetablePath ttp = new TimetablePath(loc, path, 0);
+            ttp.setSecondsToNext(i == 0 ? 0 : 300);
+            timetable.add(ttp);
+        }
+
+        layout.setTimetable(timetable);
+        model.go();
+
+        assertTrue(layout.executeTimetable());
+
+        TimetableSchedule s = layout.getLastTimetableSchedule();
+
+        assertEquals(s.getDispatched(), timetable.size());
+
+        for (int i = 0; i < s.size(); i++)
+        {
+            assertTrue(s.getEntry(i).isExecuted(), "entry " + i + " ran");
+            assertTrue(s.getStartSkewMillis(i) >= 0 && s.getStartSkewMillis(i) < 100,
+                "entry " + i + " dispatched " + s.getStartSkewMillis(i) + " ms late");
+        }
+    }
+}
@@ -0,0 +1,245 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import static org.testng.Assert.*;
+import org.testng.annotations.Test;
+import org.traincontrol.util.UIDIndex;
+
+/**
+ * The primitive UID index that inbound locomotive and accessory echoes are resolved through.
+ *
+ * Needs no model, no socket and no display.
+ */
+public class testUIDIndex
+{
+    /**
+     * A stand-in device: a name and a UID
+     */
+    private static final class Device
+    {
+        final String name;
+        final int uid;
+
+        Device(String name, int uid)
+        {
+            this.name = name;
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * A layout-sized set of devices: MFX, MM2 and DCC locomotives plus accessories, with UIDs built
+     * the way the Central Station builds them
+     */
+    private static List<Device> devices(int perProtocol)
+    {
+        List<Device> out = new ArrayList<>();
+
+        for (int i = 1; i <= perProtocol; i++)
+        {
+            out.add(new Device("mfx " + i, 0x4000 + i));
+            out.add(new Device("mm2 " + i, i));
+            out.add(new Device("dcc " + i, 0xc000 + i));
+            out.add(new Device("acc " + i, 0x3000 + i));
+        }
+
+        return out;
+    }
+
+    /**
+     * Every device is found under its UID, and unknown UIDs are not found
+     */
+    @Test
+    public void testLookup()
+    {
+        List<Device> all = devices(200);
+        UIDIndex<Device> index = UIDIndex.build(all, d -> d.uid);
+
+        assertEquals(index.size(), all.size());
+
+        for (Device d : all)
+        {
+            assertEquals(index.get(d.uid), Arrays.asList(d));
+            assertSame(index.getFirst(d.uid), d);
+        }
+
+        assertNull(index.get(0x4000 + 201));
+        assertNull(index.get(0));
+        assertNull(index.getFirst(-1));
+        assertNull(UIDIndex.<Device>empty().get(0x4001));
+    }
+
+    /**
+     * Locomotives sharing an MM2 address are all returned, in the order they were added
+     */
+    @Test
+    public void testDuplicateUIDs()
+    {
+        Device a = new Device("BR 86", 24);
+        Device b = new Device("BR 86 second", 24);
+        Device c = new Device("Other", 25);
+
+        UIDIndex<Device> index = UIDIndex.build(Arrays.asList(a, c, b), d -> d.uid);
+
+        assertEquals(index.size(), 2);
+        assertEquals(index.get(24), Arrays.asList(a, b));
+        assertEquals(index.get(25), Arrays.asList(c));
+    }
+
+    /**
+     * The lists handed out cannot be used to change the index
+     */
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testUnmodifiable()
+    {
+        UIDIndex<Device> index = UIDIndex.build(devices(1), d -> d.uid);
+
+        index.get(0x4001).add(new Device("x", 0x4001));
+    }
+
+    /**
+     * Looking up a UID - found or not - allocates nothing
+     */
+    @Test
+    public void testNoAllocation()
+    {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+        {
+            return;
+        }
+
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled())
+        {
+            return;
+        }
+
+        List<Device> all = devices(500);
+        UIDIndex<Device> index = UIDIndex.build(all, d -> d.uid);
+        int[] uids = all.stream().mapToInt(d -> d.uid).toArray();
+
+        // Warm up so that the measured loop runs compiled
+        long sink = this.lookups(index, uids, 200);
+
+        long tid = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(tid);
+        sink += this.lookups(index, uids, 100);
+        long allocated = bean.getThreadAllocatedBytes(tid) - before;
+
+        // A few hundred bytes of slack for the measurement itself; one boxed Integer per lookup
+        // would be well over a megabyte here
+        assertTrue(allocated < 1024, "lookups allocated " + allocated + " bytes");
+        assertTrue(sink > 0);
+    }
+
+    /**
+     * Resolves every UID rounds times, including one miss per UID
+     */
+    private long lookups(UIDIndex<Device> index, int[] uids, int rounds)
+    {
+        long found = 0;
+
+        for (int r = 0; r < rounds; r++)
+        {
+            for (int uid : uids)
+            {
+                List<Device> d = index.get(uid);
+
+                if (d != null)
+                {
+                    found += d.size();
+                }
+
+                if (index.get(uid + 0x100000) != null)
+                {
+                    found--;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Lookups per second against the boxed name map it replaced.  Reported rather than asserted
+     * against a fixed figure, since that depends on the machine running it.
+     */
+    @Test
+    public void testBenchmark()
+    {
+        List<Device> all = devices(500);
+        int[] uids = all.stream().mapToInt(d -> d.uid).toArray();
+        int rounds = 2000;
+
+        UIDIndex<Device> index = UIDIndex.build(all, d -> d.uid);
+
+        Map<Integer, List<String>> names = new HashMap<>();
+        Map<String, Device> byName = new HashMap<>();
+
+        for (Device d : all)
+        {
+            names.computeIfAbsent(d.uid, k -> new LinkedList<>()).add(d.name);
+            byName.put(d.name, d);
+        }
+
+        // Warm up both
+        this.lookups(index, uids, rounds);
+        this.boxedLookups(names, byName, uids, rounds);
+
+        long start = System.nanoTime();
+        long a = this.lookups(index, uids, rounds);
+        long indexNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long b = this.boxedLookups(names, byName, uids, rounds);
+        long boxedNanos = System.nanoTime() - start;
+
+        assertEquals(a, b);
+
+        // Two lookups per UID per round
+        double n = 2.0 * uids.length * rounds;
+
+        System.out.println(String.format("UIDIndex: %.1fM lookups/s; boxed map: %.1fM lookups/s",
+            n / indexNanos * 1000, n / boxedNanos * 1000));
+    }
+
+    /**
+     * The previous resolution path: boxed UID to names, then each name to its device, into a new list
+     */
+    private long boxedLookups(Map<Integer, List<String>> names, Map<String, Device> byName, int[] uids, int rounds)
+    {
+        long found = 0;
+
+        for (int r = 0; r < rounds; r++)
+        {
+            for (int uid : uids)
+            {
+                List<String> n = names.get(uid);
+
+                if (n != null)
+                {
+                    List<Device> d = new ArrayList<>();
+
+                    for (String s : n)
+                    {
+                        d.add(byName.get(s));
+                    }
+
+                    found += d.size();
+                }
+
+                if (names.get(uid + 0x100000) != null)
+                {
+                    found--;
+                }
+            }
+        }
+
+        return found;
+    }
+}